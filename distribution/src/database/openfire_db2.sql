@@ -75,6 +75,13 @@ CREATE TABLE ofRosterGroups (
 CREATE INDEX ofRosterGroups_rosterid_idx ON ofRosterGroups (rosterID ASC);
 
 
+CREATE TABLE ofRosterChange (
+  username              VARCHAR(64)     NOT NULL,
+  version               BIGINT          NOT NULL,
+  jid                   VARCHAR(1024)   NULL,
+  CONSTRAINT ofRosterChange_pk PRIMARY KEY (username, version)
+);
+
 CREATE TABLE ofVCard (
   username              VARCHAR(64)     NOT NULL,
   vcard                 VARCHAR(2000)   NOT NULL,
@@ -267,6 +274,7 @@ CREATE TABLE ofMucConversationLog (
 );
 CREATE INDEX ofMucConvLog_time_idx ON ofMucConversationLog (logTime);
 CREATE INDEX ofMucConvLog_msg_id ON ofMucConversationLog (messageID);
+CREATE INDEX ofMucConvLog_room_time_idx ON ofMucConversationLog (roomID, logTime);
 
 
 -- PubSub Tables
@@ -391,7 +399,7 @@ INSERT INTO ofID (idType, id) VALUES (23, 1);
 INSERT INTO ofID (idType, id) VALUES (26, 2);
 INSERT INTO ofID (idType, id) VALUES (27, 1);
 
-INSERT INTO ofVersion (name, version) VALUES ('openfire', 33);
+INSERT INTO ofVersion (name, version) VALUES ('openfire', 35);
 
 -- Entry for admin user
 INSERT INTO ofUser (username, plainPassword, name, email, creationDate, modificationDate)
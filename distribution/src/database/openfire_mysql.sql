@@ -70,6 +70,13 @@ CREATE TABLE ofRosterGroups (
   INDEX ofRosterGroup_rosterid_idx (rosterID)
 );
 
+CREATE TABLE ofRosterChange (
+  username              VARCHAR(64)     NOT NULL,
+  version               BIGINT          NOT NULL,
+  jid                   VARCHAR(1024)   NULL,
+  PRIMARY KEY (username, version)
+);
+
 CREATE TABLE ofVCard (
   username              VARCHAR(64)     NOT NULL,
   vcard                 MEDIUMTEXT      NOT NULL,
@@ -247,7 +254,8 @@ CREATE TABLE ofMucConversationLog (
   body                TEXT          NULL,
   stanza                TEXT          NULL,
   INDEX ofMucConversationLog_time_idx (logTime),
-  INDEX ofMucConversationLog_msg_id (messageID)
+  INDEX ofMucConversationLog_msg_id (messageID),
+  INDEX ofMucConvLog_room_time_idx (roomID, logTime)
 );
 
 # PubSub Tables
@@ -367,7 +375,7 @@ INSERT INTO ofID (idType, id) VALUES (23, 1);
 INSERT INTO ofID (idType, id) VALUES (26, 2);
 INSERT INTO ofID (idType, id) VALUES (27, 1);
 
-INSERT INTO ofVersion (name, version) VALUES ('openfire', 33);
+INSERT INTO ofVersion (name, version) VALUES ('openfire', 35);
 
 # Entry for admin user
 INSERT INTO ofUser (username, plainPassword, name, email, creationDate, modificationDate)
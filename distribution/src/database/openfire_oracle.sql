@@ -78,6 +78,13 @@ CREATE INDEX ofRosterGroup_rosterid_idx ON ofRosterGroups (rosterID ASC);
 ALTER TABLE ofRosterGroups ADD CONSTRAINT ofRosterGroups_rosterID_fk FOREIGN KEY (rosterID) REFERENCES ofRoster INITIALLY DEFERRED DEFERRABLE;
 
 
+CREATE TABLE ofRosterChange (
+  username              VARCHAR2(64)    NOT NULL,
+  version               INTEGER         NOT NULL,
+  jid                   VARCHAR2(1024)  NULL,
+  CONSTRAINT ofRosterChange_pk PRIMARY KEY (username, version)
+);
+
 CREATE TABLE ofVCard (
   username              VARCHAR2(64)    NOT NULL,
   vcard                 LONG            NOT NULL,
@@ -256,6 +263,7 @@ CREATE TABLE ofMucConversationLog (
 );
 CREATE INDEX ofMucConversationLog_time_idx ON ofMucConversationLog (logTime);
 CREATE INDEX ofMucConversationLog_msg_id ON ofMucConversationLog (messageID);
+CREATE INDEX ofMucConvLog_room_time_idx ON ofMucConversationLog (roomID, logTime);
 
 
 -- PubSub Tables
@@ -375,7 +383,7 @@ INSERT INTO ofID (idType, id) VALUES (23, 1);
 INSERT INTO ofID (idType, id) VALUES (26, 2);
 INSERT INTO ofID (idType, id) VALUES (27, 1);
 
-INSERT INTO ofVersion (name, version) VALUES ('openfire', 33);
+INSERT INTO ofVersion (name, version) VALUES ('openfire', 35);
 
 -- Entry for admin user
 INSERT INTO ofUser (username, plainPassword, name, email, creationDate, modificationDate)
@@ -80,6 +80,13 @@ CREATE INDEX ofRosterGroups_rosterID_idx ON ofRosterGroups (rosterID);
 ALTER TABLE ofRosterGroups ADD CONSTRAINT ofRosterGroups_rosterID_fk FOREIGN KEY (rosterID) REFERENCES ofRoster INITIALLY DEFERRED DEFERRABLE;
 
 
+CREATE TABLE ofRosterChange (
+  username              VARCHAR(64)     NOT NULL,
+  version               BIGINT          NOT NULL,
+  jid                   VARCHAR(1024)   NULL,
+  CONSTRAINT ofRosterChange_pk PRIMARY KEY (username, version)
+);
+
 CREATE TABLE ofVCard (
   username              VARCHAR(64)     NOT NULL,
   vcard                 TEXT            NOT NULL,
@@ -264,6 +271,7 @@ CREATE TABLE ofMucConversationLog (
 );
 CREATE INDEX ofMucConversationLog_time_idx ON ofMucConversationLog (logTime);
 CREATE INDEX ofMucConversationLog_msg_id ON ofMucConversationLog (messageID);
+CREATE INDEX ofMucConvLog_room_time_idx ON ofMucConversationLog (roomID, logTime);
 
 
 -- PubSub Tables
@@ -383,7 +391,7 @@ INSERT INTO ofID (idType, id) VALUES (23, 1);
 INSERT INTO ofID (idType, id) VALUES (26, 2);
 INSERT INTO ofID (idType, id) VALUES (27, 1);
 
-INSERT INTO ofVersion (name, version) VALUES ('openfire', 33);
+INSERT INTO ofVersion (name, version) VALUES ('openfire', 35);
 
 -- Entry for admin user
 INSERT INTO ofUser (username, plainPassword, name, email, creationDate, modificationDate)
@@ -77,6 +77,13 @@ CREATE INDEX ofRosterGroups_rosterid_idx ON ofRosterGroups (rosterID ASC)
 ALTER TABLE ofRosterGroups ADD CONSTRAINT ofRosterGroups_rosterID_fk FOREIGN KEY (rosterID) REFERENCES ofRoster
 
 
+CREATE TABLE ofRosterChange (
+  username              NVARCHAR(64)    NOT NULL,
+  version               BIGINT          NOT NULL,
+  jid                   NVARCHAR(1024)  NULL,
+  CONSTRAINT ofRosterChange_pk PRIMARY KEY (username, version)
+)
+
 CREATE TABLE ofVCard (
   username              NVARCHAR(64)    NOT NULL,
   vcard                 TEXT            NOT NULL,
@@ -261,6 +268,7 @@ CREATE TABLE ofMucConversationLog (
 )
 CREATE INDEX ofMucConversationLog_time_idx ON ofMucConversationLog (logTime)
 CREATE INDEX ofMucConversationLog_msg_id ON ofMucConversationLog (messageID)
+CREATE INDEX ofMucConvLog_room_time_idx ON ofMucConversationLog (roomID, logTime)
 
 
 /* PubSub Tables */
@@ -380,7 +388,7 @@ INSERT INTO ofID (idType, id) VALUES (23, 1)
 INSERT INTO ofID (idType, id) VALUES (26, 2)
 INSERT INTO ofID (idType, id) VALUES (27, 1)
 
-INSERT INTO ofVersion (name, version) VALUES ('openfire', 33)
+INSERT INTO ofVersion (name, version) VALUES ('openfire', 35)
 
 /* Entry for admin user */
 INSERT INTO ofUser (username, plainPassword, name, email, creationDate, modificationDate)
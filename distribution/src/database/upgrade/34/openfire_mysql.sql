@@ -0,0 +1,3 @@
+ALTER TABLE ofMucConversationLog ADD INDEX ofMucConvLog_room_time_idx (roomID, logTime);
+
+UPDATE ofVersion SET version = 34 WHERE name = 'openfire';
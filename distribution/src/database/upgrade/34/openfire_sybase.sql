@@ -0,0 +1,3 @@
+CREATE INDEX ofMucConvLog_room_time_idx ON ofMucConversationLog (roomID, logTime);
+
+UPDATE ofVersion SET version = 34 WHERE name = 'openfire';
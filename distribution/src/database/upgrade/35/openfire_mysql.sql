@@ -0,0 +1,8 @@
+CREATE TABLE ofRosterChange (
+  username              VARCHAR(64)     NOT NULL,
+  version               BIGINT          NOT NULL,
+  jid                   VARCHAR(1024)   NULL,
+  PRIMARY KEY (username, version)
+);
+
+UPDATE ofVersion SET version = 35 WHERE name = 'openfire';
@@ -0,0 +1,8 @@
+CREATE TABLE ofRosterChange (
+  username              VARCHAR2(64)    NOT NULL,
+  version               INTEGER         NOT NULL,
+  jid                   VARCHAR2(1024)  NULL,
+  CONSTRAINT ofRosterChange_pk PRIMARY KEY (username, version)
+);
+
+UPDATE ofVersion SET version = 35 WHERE name = 'openfire';
@@ -0,0 +1,8 @@
+CREATE TABLE ofRosterChange (
+  username              NVARCHAR(64)    NOT NULL,
+  version               BIGINT          NOT NULL,
+  jid                   NVARCHAR(1024)  NULL,
+  CONSTRAINT ofRosterChange_pk PRIMARY KEY (username, version)
+);
+
+UPDATE ofVersion SET version = 35 WHERE name = 'openfire';
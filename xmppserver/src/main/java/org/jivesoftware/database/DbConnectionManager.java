@@ -30,6 +30,7 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.MissingResourceException;
+import java.util.concurrent.TimeUnit;
 
 import org.jivesoftware.util.ClassUtils;
 import org.jivesoftware.util.JiveGlobals;
@@ -78,6 +79,8 @@ public class DbConnectionManager {
 
     private static final String SETTING_DATABASE_MAX_RETRIES = "database.maxRetries";
     private static final String SETTING_DATABASE_RETRY_DELAY = "database.retryDelay";
+    private static final String SETTING_DATABASE_METRICS_ENABLED = "database.metrics.enabled";
+    private static final String SETTING_DATABASE_METRICS_SLOW_QUERY_THRESHOLD = "database.metrics.slowQueryThreshold";
 
     private static DatabaseType databaseType = DatabaseType.unknown;
 
@@ -164,21 +167,29 @@ public class DbConnectionManager {
         Integer currentRetryCount = 0;
         Integer maxRetries = JiveGlobals.getXMLProperty(SETTING_DATABASE_MAX_RETRIES, 10);
         Integer retryWait = JiveGlobals.getXMLProperty(SETTING_DATABASE_RETRY_DELAY, 250); // milliseconds
+        boolean metricsEnabled = JiveGlobals.getXMLProperty(SETTING_DATABASE_METRICS_ENABLED, true);
         SQLException lastException = null;
         boolean loopIfNoConnection = false;
         do {
             try {
+                final long waitStart = System.nanoTime();
                 Connection con = connectionProvider.getConnection();
                 if (con != null) {
                     // Got one, lets hand it off.
                     // Usually profiling is not enabled. So we return a normal 
                     // connection unless profiling is enabled. If yes, wrap the
                     // connection with a profiled connection.
-                    if (!profilingEnabled) {
-                        return con;
-                    } else {
-                        return new ProfiledConnection(con); 
+                    if (profilingEnabled) {
+                        con = new ProfiledConnection(con);
                     }
+                    // Statement metrics are collected at all times, unless explicitly disabled.
+                    if (metricsEnabled) {
+                        final StatementMetrics metrics = StatementMetrics.getInstance();
+                        metrics.recordPoolWait(System.nanoTime() - waitStart);
+                        final long slowThreshold = JiveGlobals.getXMLProperty(SETTING_DATABASE_METRICS_SLOW_QUERY_THRESHOLD, 500); // milliseconds
+                        con = new InstrumentedConnection(con, metrics, TimeUnit.MILLISECONDS.toNanos(slowThreshold));
+                    }
+                    return con;
                 }
             } catch (SQLException e) {
                 // TODO distinguish recoverable from non-recoverable exceptions.
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.database;
+
+import java.sql.*;
+
+/**
+ * Wraps a Connection object, and records the executions of the statements that are created through it, as well as
+ * the time for which the connection is held, in {@link StatementMetrics}.
+ *
+ * Statements that are prepared are recorded under their SQL. For other statements, a template is derived from the
+ * SQL by replacing literal values by a placeholder.
+ */
+public class InstrumentedConnection extends AbstractConnection {
+
+    private final StatementMetrics metrics;
+    private final long slowThresholdNanos;
+    private final long obtained = System.nanoTime();
+    private boolean closed;
+
+    /**
+     * Creates a new InstrumentedConnection that wraps the specified connection.
+     *
+     * @param connection the Connection to wrap and collect metrics for.
+     * @param metrics the metrics to which executions are recorded.
+     * @param slowThresholdNanos the duration (in nanoseconds) above which a statement execution is sampled as a slow query.
+     */
+    public InstrumentedConnection(Connection connection, StatementMetrics metrics, long slowThresholdNanos) {
+        super(connection);
+        this.metrics = metrics;
+        this.slowThresholdNanos = slowThresholdNanos;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (!closed) {
+            closed = true;
+            metrics.recordHoldTime(System.nanoTime() - obtained);
+        }
+        connection.close();
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return new InstrumentedStatement(connection.createStatement());
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return new InstrumentedStatement(connection.createStatement(resultSetType, resultSetConcurrency));
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return new InstrumentedStatement(connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return new InstrumentedPreparedStatement(connection.prepareStatement(sql), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return new InstrumentedPreparedStatement(connection.prepareStatement(sql, resultSetType, resultSetConcurrency), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return new InstrumentedPreparedStatement(connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return new InstrumentedPreparedStatement(connection.prepareStatement(sql, autoGeneratedKeys), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        return new InstrumentedPreparedStatement(connection.prepareStatement(sql, columnIndexes), sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        return new InstrumentedPreparedStatement(connection.prepareStatement(sql, columnNames), sql);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return new InstrumentedCallableStatement(connection.prepareCall(sql), sql);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return new InstrumentedCallableStatement(connection.prepareCall(sql, resultSetType, resultSetConcurrency), sql);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return new InstrumentedCallableStatement(connection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability), sql);
+    }
+
+    /**
+     * A statement execution that is timed.
+     */
+    @FunctionalInterface
+    private interface Execution<T> {
+        T execute() throws SQLException;
+    }
+
+    private <T> T time(StatementMetrics.Template template, Execution<T> execution) throws SQLException {
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final T result = execution.execute();
+            failed = false;
+            return result;
+        } finally {
+            metrics.recordExecution(template, System.nanoTime() - start, failed, slowThresholdNanos);
+        }
+    }
+
+    private <T> T time(String sql, Execution<T> execution) throws SQLException {
+        return time(metrics.getTemplate(StatementMetrics.toTemplate(sql)), execution);
+    }
+
+    /**
+     * An implementation of the Statement interface that wraps an underlying Statement object and records the
+     * executions of the statement.
+     */
+    class InstrumentedStatement extends StatementWrapper {
+
+        private String lastBatchSql;
+
+        InstrumentedStatement(Statement stmt) {
+            super(stmt);
+        }
+
+        @Override
+        public ResultSet executeQuery(String sql) throws SQLException {
+            return time(sql, () -> stmt.executeQuery(sql));
+        }
+
+        @Override
+        public int executeUpdate(String sql) throws SQLException {
+            return time(sql, () -> stmt.executeUpdate(sql));
+        }
+
+        @Override
+        public boolean execute(String sql) throws SQLException {
+            return time(sql, () -> stmt.execute(sql));
+        }
+
+        @Override
+        public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+            return time(sql, () -> stmt.executeUpdate(sql, autoGeneratedKeys));
+        }
+
+        @Override
+        public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+            return time(sql, () -> stmt.executeUpdate(sql, columnIndexes));
+        }
+
+        @Override
+        public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+            return time(sql, () -> stmt.executeUpdate(sql, columnNames));
+        }
+
+        @Override
+        public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+            return time(sql, () -> stmt.execute(sql, autoGeneratedKeys));
+        }
+
+        @Override
+        public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+            return time(sql, () -> stmt.execute(sql, columnIndexes));
+        }
+
+        @Override
+        public boolean execute(String sql, String[] columnNames) throws SQLException {
+            return time(sql, () -> stmt.execute(sql, columnNames));
+        }
+
+        @Override
+        public void addBatch(String sql) throws SQLException {
+            stmt.addBatch(sql);
+            lastBatchSql = sql;
+        }
+
+        @Override
+        public int[] executeBatch() throws SQLException {
+            if (lastBatchSql == null) {
+                return stmt.executeBatch();
+            }
+            // A batch of a plain statement is recorded under the template of the last statement in that batch.
+            return time(lastBatchSql, stmt::executeBatch);
+        }
+    }
+
+    /**
+     * An implementation of the PreparedStatement interface that wraps an underlying PreparedStatement object and
+     * records the executions of the statement.
+     */
+    class InstrumentedPreparedStatement extends PreparedStatementWrapper {
+
+        private final StatementMetrics.Template template;
+
+        InstrumentedPreparedStatement(PreparedStatement pstmt, String sql) {
+            super(pstmt);
+            this.template = metrics.getTemplate(sql);
+        }
+
+        @Override
+        public ResultSet executeQuery() throws SQLException {
+            return time(template, pstmt::executeQuery);
+        }
+
+        @Override
+        public int executeUpdate() throws SQLException {
+            return time(template, pstmt::executeUpdate);
+        }
+
+        @Override
+        public boolean execute() throws SQLException {
+            return time(template, pstmt::execute);
+        }
+
+        @Override
+        public int[] executeBatch() throws SQLException {
+            return time(template, pstmt::executeBatch);
+        }
+    }
+
+    /**
+     * An implementation of the CallableStatement interface that wraps an underlying CallableStatement object and
+     * records the executions of the statement.
+     */
+    class InstrumentedCallableStatement extends CallableStatementWrapper {
+
+        private final StatementMetrics.Template template;
+
+        InstrumentedCallableStatement(CallableStatement cstmt, String sql) {
+            super(cstmt);
+            this.template = metrics.getTemplate(sql);
+        }
+
+        @Override
+        public ResultSet executeQuery() throws SQLException {
+            return time(template, cstmt::executeQuery);
+        }
+
+        @Override
+        public int executeUpdate() throws SQLException {
+            return time(template, cstmt::executeUpdate);
+        }
+
+        @Override
+        public boolean execute() throws SQLException {
+            return time(template, cstmt::execute);
+        }
+
+        @Override
+        public int[] executeBatch() throws SQLException {
+            return time(template, cstmt::executeBatch);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations, from which percentiles can be obtained.
+ *
+ * Durations are recorded with a resolution of one microsecond, in buckets that are log-linear: every power of two is
+ * split in sixteen equally sized buckets. This bounds the error of a reported percentile to about six percent, while
+ * using a fixed amount of memory, regardless of the number of recorded values. Durations of more than about 25 days
+ * are recorded in the highest bucket.
+ *
+ * Recording a value does not allocate, and does not block. Values that are recorded concurrently with a read can, but
+ * need not be, reflected in the result of that read.
+ */
+public class LatencyHistogram
+{
+    /**
+     * The number of bits that determine the bucket within a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The highest power of two that is distinguished.
+     */
+    private static final int MAX_EXPONENT = 41;
+
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder totalMicros = new LongAdder();
+
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration, in nanoseconds.
+     */
+    public void recordNanos(final long nanos)
+    {
+        final long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(bucketIndex(micros));
+        count.increment();
+        totalMicros.add(micros);
+        long max;
+        while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+            // Retry until the maximum is at least the recorded value.
+        }
+    }
+
+    /**
+     * Returns the number of recorded durations.
+     *
+     * @return a count.
+     */
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of all recorded durations.
+     *
+     * @return a duration in milliseconds.
+     */
+    public double getTotalMillis()
+    {
+        return totalMicros.sum() / 1000.0;
+    }
+
+    /**
+     * Returns the average of all recorded durations.
+     *
+     * @return a duration in milliseconds, or zero if no durations were recorded.
+     */
+    public double getMeanMillis()
+    {
+        final long n = count.sum();
+        return n == 0 ? 0 : totalMicros.sum() / 1000.0 / n;
+    }
+
+    /**
+     * Returns the largest recorded duration.
+     *
+     * @return a duration in milliseconds.
+     */
+    public double getMaxMillis()
+    {
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * Returns the duration at or below which a percentage of all recorded durations are.
+     *
+     * @param percentile the percentage (eg: 99.9).
+     * @return a duration in milliseconds, or zero if no durations were recorded.
+     */
+    public double getPercentileMillis(final double percentile)
+    {
+        final long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), maxMicros.get()) / 1000.0;
+            }
+        }
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * Discards all recorded durations.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        totalMicros.reset();
+        maxMicros.set(0);
+    }
+
+    static int bucketIndex(final long micros)
+    {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        final int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(micros));
+        final int subBucket = exponent == MAX_EXPONENT && micros >>> MAX_EXPONENT > 1
+            ? SUB_BUCKET_COUNT - 1
+            : (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long highestEquivalentValue(final int index)
+    {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        final int subBucket = index % SUB_BUCKET_COUNT;
+        return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.database;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Collects metrics of the database statements that are executed through connections that are obtained from
+ * {@link DbConnectionManager}.
+ *
+ * Unlike {@link ProfiledConnection}, which is meant to be enabled temporarily, these metrics are designed to be
+ * collected at all times: recording a statement execution does not block, and typically does not allocate. For every
+ * distinct SQL template, the distribution of execution times is recorded in a {@link LatencyHistogram}. The time that
+ * is spent waiting for a connection from the pool, and the time for which connections are held, are recorded as well.
+ * Executions that exceed a threshold are retained as samples that include the stack trace of the code that executed
+ * the statement.
+ *
+ * @see InstrumentedConnection
+ */
+public class StatementMetrics
+{
+    /**
+     * The maximum number of distinct SQL templates that are tracked. Executions of statements of additional templates
+     * are recorded under {@link #OTHER_TEMPLATE}.
+     */
+    static final int MAX_TEMPLATES = 1000;
+
+    /**
+     * The template under which statements are recorded when {@link #MAX_TEMPLATES} is exceeded.
+     */
+    static final String OTHER_TEMPLATE = "(other)";
+
+    /**
+     * The maximum number of slow statement executions that are retained.
+     */
+    static final int MAX_SLOW_QUERIES = 100;
+
+    /**
+     * The maximum number of stack frames that are retained for a slow statement execution.
+     */
+    private static final int MAX_ORIGIN_FRAMES = 8;
+
+    /**
+     * Matches string literals and numeric literals in SQL, which are replaced by a placeholder when a template is
+     * derived from a statement that is not prepared.
+     */
+    private static final Pattern LITERALS = Pattern.compile("'(?:[^']|'')*'|\\b\\d+(?:\\.\\d+)?\\b");
+
+    private static final StatementMetrics INSTANCE = new StatementMetrics();
+
+    /**
+     * Returns the metrics that are collected by this server.
+     *
+     * @return the (singleton) metrics instance.
+     */
+    public static StatementMetrics getInstance()
+    {
+        return INSTANCE;
+    }
+
+    private final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<>();
+
+    private final LatencyHistogram poolWait = new LatencyHistogram();
+
+    private final LatencyHistogram holdTime = new LatencyHistogram();
+
+    private final LongAdder slowQueryCount = new LongAdder();
+
+    private final Deque<SlowQuery> slowQueries = new ArrayDeque<>();
+
+    private volatile long since = System.currentTimeMillis();
+
+    StatementMetrics()
+    {
+    }
+
+    /**
+     * Derives a template from the SQL of a statement that was not prepared, by replacing literal values by a
+     * placeholder.
+     *
+     * @param sql the SQL of a statement.
+     * @return a template.
+     */
+    @Nonnull
+    static String toTemplate(@Nonnull final String sql)
+    {
+        return LITERALS.matcher(sql.trim()).replaceAll("?");
+    }
+
+    /**
+     * Returns the metrics for a SQL template, creating them when needed.
+     *
+     * @param template the SQL template.
+     * @return the metrics of the template.
+     */
+    @Nonnull
+    Template getTemplate(@Nonnull final String template)
+    {
+        final Template existing = templates.get(template);
+        if (existing != null) {
+            return existing;
+        }
+        if (templates.size() >= MAX_TEMPLATES) {
+            return templates.computeIfAbsent(OTHER_TEMPLATE, Template::new);
+        }
+        return templates.computeIfAbsent(template, Template::new);
+    }
+
+    /**
+     * Records the execution of a statement.
+     *
+     * @param template the metrics of the SQL template of the statement.
+     * @param nanos the duration of the execution, in nanoseconds.
+     * @param failed true if the execution resulted in an exception.
+     * @param slowThresholdNanos the duration above which the execution is sampled as a slow query.
+     */
+    void recordExecution(@Nonnull final Template template, final long nanos, final boolean failed, final long slowThresholdNanos)
+    {
+        template.histogram.recordNanos(nanos);
+        if (failed) {
+            template.errors.increment();
+        }
+        if (nanos >= slowThresholdNanos) {
+            slowQueryCount.increment();
+            final SlowQuery sample = new SlowQuery(template.sql, nanos / 1000000, System.currentTimeMillis(), Thread.currentThread().getName(), origin());
+            synchronized (slowQueries) {
+                if (slowQueries.size() >= MAX_SLOW_QUERIES) {
+                    slowQueries.removeFirst();
+                }
+                slowQueries.addLast(sample);
+            }
+        }
+    }
+
+    /**
+     * Records the time that was spent waiting for a connection from the connection provider.
+     *
+     * @param nanos the duration, in nanoseconds.
+     */
+    void recordPoolWait(final long nanos)
+    {
+        poolWait.recordNanos(nanos);
+    }
+
+    /**
+     * Records the time for which a connection was held, from the moment that it was obtained, until it was closed.
+     *
+     * @param nanos the duration, in nanoseconds.
+     */
+    void recordHoldTime(final long nanos)
+    {
+        holdTime.recordNanos(nanos);
+    }
+
+    /**
+     * Returns the stack frames of the code that executed a statement, excluding the frames of the JDBC layer.
+     */
+    private static String origin()
+    {
+        final StringBuilder result = new StringBuilder();
+        int frames = 0;
+        for (final StackTraceElement element : Thread.currentThread().getStackTrace()) {
+            final String className = element.getClassName();
+            if (className.startsWith("java.") || className.startsWith("sun.") || className.startsWith("jdk.")
+                || isClassOrNested(className, StatementMetrics.class) || isClassOrNested(className, InstrumentedConnection.class)
+                || isClassOrNested(className, ProfiledConnection.class) || className.endsWith("StatementWrapper")) {
+                continue;
+            }
+            if (frames > 0) {
+                result.append('\n');
+            }
+            result.append(element);
+            if (++frames >= MAX_ORIGIN_FRAMES) {
+                break;
+            }
+        }
+        return result.toString();
+    }
+
+    private static boolean isClassOrNested(@Nonnull final String className, @Nonnull final Class<?> type)
+    {
+        return className.equals(type.getName()) || className.startsWith(type.getName() + '$');
+    }
+
+    /**
+     * Returns the metrics of all SQL templates of which statements were executed, ordered by the total time that was
+     * spent executing them (highest first).
+     *
+     * @return metrics per template.
+     */
+    @Nonnull
+    public List<Template> getTemplates()
+    {
+        final List<Template> result = new ArrayList<>(templates.values());
+        result.sort(Comparator.comparingDouble((Template t) -> t.getHistogram().getTotalMillis()).reversed());
+        return result;
+    }
+
+    /**
+     * Returns the distribution of the time that was spent waiting for a connection from the connection provider.
+     *
+     * @return a histogram.
+     */
+    @Nonnull
+    public LatencyHistogram getPoolWait()
+    {
+        return poolWait;
+    }
+
+    /**
+     * Returns the distribution of the time for which connections were held.
+     *
+     * @return a histogram.
+     */
+    @Nonnull
+    public LatencyHistogram getHoldTime()
+    {
+        return holdTime;
+    }
+
+    /**
+     * Returns the number of statement executions that exceeded the slow query threshold.
+     *
+     * @return a count.
+     */
+    public long getSlowQueryCount()
+    {
+        return slowQueryCount.sum();
+    }
+
+    /**
+     * Returns the most recent statement executions that exceeded the slow query threshold, most recent first.
+     *
+     * @return slow query samples.
+     */
+    @Nonnull
+    public List<SlowQuery> getSlowQueries()
+    {
+        final List<SlowQuery> result;
+        synchronized (slowQueries) {
+            result = new ArrayList<>(slowQueries);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Returns the instant at which metrics collection started, or was last reset.
+     *
+     * @return a timestamp (in milliseconds since the epoch).
+     */
+    public long getSince()
+    {
+        return since;
+    }
+
+    /**
+     * Discards all collected metrics.
+     */
+    public void reset()
+    {
+        templates.clear();
+        poolWait.reset();
+        holdTime.reset();
+        slowQueryCount.reset();
+        synchronized (slowQueries) {
+            slowQueries.clear();
+        }
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * Metrics of the executions of statements that share a SQL template.
+     */
+    public static class Template
+    {
+        private final String sql;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        Template(@Nonnull final String sql)
+        {
+            this.sql = sql;
+        }
+
+        /**
+         * Returns the SQL template.
+         *
+         * @return SQL, in which literal values are replaced by a placeholder.
+         */
+        @Nonnull
+        public String getSql()
+        {
+            return sql;
+        }
+
+        /**
+         * Returns the distribution of the execution times of statements of this template.
+         *
+         * @return a histogram.
+         */
+        @Nonnull
+        public LatencyHistogram getHistogram()
+        {
+            return histogram;
+        }
+
+        /**
+         * Returns the number of executions of statements of this template that resulted in an exception.
+         *
+         * @return a count.
+         */
+        public long getErrorCount()
+        {
+            return errors.sum();
+        }
+    }
+
+    /**
+     * A sample of the execution of a statement that exceeded the slow query threshold.
+     */
+    public static class SlowQuery
+    {
+        private final String sql;
+        private final long durationMillis;
+        private final long timestamp;
+        private final String threadName;
+        private final String origin;
+
+        SlowQuery(@Nonnull final String sql, final long durationMillis, final long timestamp, @Nonnull final String threadName, @Nonnull final String origin)
+        {
+            this.sql = sql;
+            this.durationMillis = durationMillis;
+            this.timestamp = timestamp;
+            this.threadName = threadName;
+            this.origin = origin;
+        }
+
+        @Nonnull
+        public String getSql()
+        {
+            return sql;
+        }
+
+        public long getDurationMillis()
+        {
+            return durationMillis;
+        }
+
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        @Nonnull
+        public String getThreadName()
+        {
+            return threadName;
+        }
+
+        /**
+         * Returns the stack frames (separated by a newline) of the code that executed the statement.
+         *
+         * @return stack frames, most specific first.
+         */
+        @Nonnull
+        public String getOrigin()
+        {
+            return origin;
+        }
+
+        @Override
+        public String toString()
+        {
+            return durationMillis + "ms [" + threadName + "] " + sql + (origin.isEmpty() ? "" : " at " + origin.replace('\n', ' '));
+        }
+    }
+}
@@ -0,0 +1,874 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire;
+
+import org.jivesoftware.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Stores offline messages in append-only segment files on the local file system, instead of in the database.
+ *
+ * Every user that has offline messages has a directory in the spool, that holds one or more segment files. Messages
+ * are appended to the most recent segment of a user, which is memory-mapped. When messages are retrieved (and
+ * deleted) on login, the segments of the user are detached, read and then removed as a whole. Deletion of individual
+ * messages is recorded by appending a tombstone, which is applied when segments are compacted.
+ *
+ * Segments that are replaced by compaction, or whose messages have been retrieved or deleted, are superseded. This is
+ * recorded in a metadata file of the user, before the segments are removed. Removing a segment can fail (eg: on
+ * Windows, a file cannot be removed while it is memory-mapped), in which case it is ignored, and removed, when the
+ * spool is next opened.
+ *
+ * The number and size of the messages of every user are kept in memory, and are restored by scanning the spool when it
+ * is opened. Messages that have been appended survive a crash of the JVM, as the memory-mapped pages are owned by the
+ * operating system. They are forced to disk periodically, to also survive a crash of the operating system.
+ *
+ * As the spool is local to one server, it cannot be used when clustering.
+ */
+class OfflineMessageSpool
+{
+    private static final Logger Log = LoggerFactory.getLogger(OfflineMessageSpool.class);
+
+    private static final int MAGIC = 0x4F465350; // "OFSP"
+    private static final byte VERSION = 1;
+    private static final byte TYPE_MESSAGE = 1;
+    private static final byte TYPE_TOMBSTONE = 2;
+
+    /**
+     * The size of a record, excluding its length prefix and payload: type, message ID, creation date and message size.
+     */
+    private static final int RECORD_HEADER_SIZE = 1 + 8 + 8 + 4;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * The name of the metadata file of a user, that holds the sequence number below which segments are superseded.
+     */
+    private static final String METADATA_FILE = "segments.meta";
+
+    /**
+     * The number of segments of a user above which the segments are merged, during maintenance.
+     */
+    static final int MAX_SEGMENTS = 8;
+
+    private final Path directory;
+    private final int segmentSize;
+
+    /**
+     * Used to generate message IDs and segment names that are unique across restarts.
+     */
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private final ConcurrentMap<String, UserSpool> users = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a spool. The spool needs to be opened before it is used.
+     *
+     * @param directory the directory that holds the spool.
+     * @param segmentSize the size (in bytes) of newly created segments.
+     */
+    OfflineMessageSpool(@Nonnull final Path directory, final int segmentSize)
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * An offline message, as stored in the spool.
+     */
+    static final class Entry
+    {
+        final long messageID;
+        final Date creationDate;
+        final String xml;
+
+        Entry(final long messageID, @Nonnull final Date creationDate, @Nonnull final String xml)
+        {
+            this.messageID = messageID;
+            this.creationDate = creationDate;
+            this.xml = xml;
+        }
+    }
+
+    /**
+     * The state of the spool of one user. Access is guarded by the instance.
+     */
+    private static final class UserSpool
+    {
+        final String username;
+        final Path directory;
+        final List<Path> segments = new ArrayList<>();
+        final Set<Long> tombstones = new HashSet<>();
+        int count;
+        long size;
+        long oldest = Long.MAX_VALUE;
+
+        /**
+         * True when this instance is no longer registered, after which it must not be modified.
+         */
+        boolean detached;
+
+        MappedByteBuffer writer;
+        boolean unforced;
+        long lastWrite;
+
+        UserSpool(@Nonnull final String username, @Nonnull final Path directory)
+        {
+            this.username = username;
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * Creates the spool directory if needed, and restores the state of all users from the segments in it.
+     *
+     * @throws IOException when the spool directory cannot be read.
+     */
+    void open() throws IOException
+    {
+        Files.createDirectories(directory);
+        int userCount = 0;
+        try (final DirectoryStream<Path> shards = Files.newDirectoryStream(directory)) {
+            for (final Path shard : shards) {
+                if (!Files.isDirectory(shard)) {
+                    continue;
+                }
+                try (final DirectoryStream<Path> userDirectories = Files.newDirectoryStream(shard)) {
+                    for (final Path userDirectory : userDirectories) {
+                        if (restore(userDirectory)) {
+                            userCount++;
+                        }
+                    }
+                }
+            }
+        }
+        Log.info("Opened offline message spool in {}, containing messages for {} user(s).", directory, userCount);
+    }
+
+    /**
+     * Restores the state of one user from its segments, after removing the segments that are superseded.
+     *
+     * @return true if the user has messages.
+     */
+    private boolean restore(@Nonnull final Path userDirectory) throws IOException
+    {
+        long floor;
+        try {
+            floor = readFloor(userDirectory);
+        } catch (IOException e) {
+            Log.warn("Unable to read the offline message spool metadata in {}. All segments are restored.", userDirectory, e);
+            floor = 0;
+        }
+        sequence.accumulateAndGet(floor, Math::max);
+        final List<Path> segments = new ArrayList<>();
+        boolean superseded = false;
+        for (final Path segment : listSegments(userDirectory)) {
+            if (sequenceOf(segment) >= floor) {
+                segments.add(segment);
+                continue;
+            }
+            // Segments have not yet been mapped, which allows them to be removed on all platforms.
+            try {
+                removeSegment(segment);
+            } catch (IOException e) {
+                superseded = true;
+                Log.warn("Unable to remove superseded offline message spool segment {}. It is ignored.", segment, e);
+            }
+        }
+        if (!superseded && floor > 0) {
+            Files.deleteIfExists(userDirectory.resolve(METADATA_FILE));
+        }
+        if (segments.isEmpty()) {
+            deleteDirectory(userDirectory);
+            return false;
+        }
+        String username = null;
+        final Map<Long, long[]> messages = new LinkedHashMap<>();
+        final Set<Long> tombstones = new HashSet<>();
+        for (final Path segment : segments) {
+            final ByteBuffer buffer;
+            try {
+                buffer = map(segment);
+            } catch (IOException e) {
+                Log.warn("Unable to read offline message spool segment {}. It is ignored.", segment, e);
+                continue;
+            }
+            final String owner = readHeader(buffer);
+            if (owner == null || (username != null && !username.equals(owner))) {
+                Log.warn("Offline message spool segment {} has an invalid header. It is ignored.", segment);
+                continue;
+            }
+            username = owner;
+            readRecords(buffer, false, (type, messageID, creationMillis, size, xml) -> {
+                if (type == TYPE_MESSAGE) {
+                    messages.put(messageID, new long[] { creationMillis, size });
+                } else {
+                    tombstones.add(messageID);
+                }
+            });
+            bumpSequence(segment);
+        }
+        if (username == null) {
+            return false;
+        }
+
+        final UserSpool spool = new UserSpool(username, userDirectory);
+        spool.segments.addAll(segments);
+        for (final Map.Entry<Long, long[]> message : messages.entrySet()) {
+            sequence.accumulateAndGet(message.getKey() + 1, Math::max);
+            if (tombstones.contains(message.getKey())) {
+                spool.tombstones.add(message.getKey());
+                continue;
+            }
+            spool.count++;
+            spool.size += message.getValue()[1];
+            spool.oldest = Math.min(spool.oldest, message.getValue()[0]);
+        }
+        users.put(username, spool);
+        return true;
+    }
+
+    /**
+     * Forces all pending writes to disk, and releases all writers.
+     */
+    void close()
+    {
+        for (final UserSpool spool : users.values()) {
+            synchronized (spool) {
+                closeWriter(spool);
+            }
+        }
+    }
+
+    /**
+     * Appends a message to the spool of a user.
+     *
+     * @param username the user to which the message is addressed.
+     * @param creationDate the date at which the message is stored.
+     * @param xml the message.
+     * @return true if the message was stored.
+     */
+    boolean add(@Nonnull final String username, @Nonnull final Date creationDate, @Nonnull final String xml)
+    {
+        final byte[] payload = xml.getBytes(StandardCharsets.UTF_8);
+        while (true) {
+            final UserSpool spool = users.computeIfAbsent(username, key -> new UserSpool(key, userDirectory(key)));
+            synchronized (spool) {
+                if (spool.detached) {
+                    continue;
+                }
+                try {
+                    append(spool, TYPE_MESSAGE, sequence.incrementAndGet(), creationDate.getTime(), xml.length(), payload);
+                } catch (IOException e) {
+                    Log.error("Unable to store offline message for user '{}' in the spool.", username, e);
+                    if (spool.segments.isEmpty()) {
+                        detach(spool);
+                    }
+                    return false;
+                }
+                spool.count++;
+                spool.size += xml.length();
+                spool.oldest = Math.min(spool.oldest, creationDate.getTime());
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Passes all messages of a user, oldest first, to a consumer.
+     *
+     * When the messages are to be deleted, all segments of the user are detached before they are read, and are removed
+     * after all messages have been passed to the consumer. Messages that are added in the meantime are appended to new
+     * segments. If the server stops before the detached segments are removed, their messages are delivered again.
+     *
+     * @param username the user.
+     * @param delete true if the messages are to be deleted.
+     * @param consumer receives the messages.
+     */
+    void process(@Nonnull final String username, final boolean delete, @Nonnull final Consumer<Entry> consumer)
+    {
+        final UserSpool spool = users.get(username);
+        if (spool == null) {
+            return;
+        }
+        if (!delete) {
+            synchronized (spool) {
+                if (!spool.detached) {
+                    read(spool.segments, spool.tombstones, consumer);
+                }
+            }
+            return;
+        }
+
+        final List<Path> segments;
+        final Set<Long> tombstones;
+        final long floor;
+        synchronized (spool) {
+            if (spool.detached) {
+                return;
+            }
+            segments = new ArrayList<>(spool.segments);
+            tombstones = new HashSet<>(spool.tombstones);
+            detach(spool);
+            // Segments that are created after this point have a higher sequence number.
+            floor = sequence.incrementAndGet();
+        }
+        try {
+            read(segments, tombstones, consumer);
+        } catch (RuntimeException e) {
+            // Retain the segments, which are restored when the spool is next opened.
+            Log.warn("Failed to process the offline messages of user '{}'. Messages that were not processed are restored when the spool is next opened.", username, e);
+            throw e;
+        }
+        supersede(spool.directory, floor, segments);
+    }
+
+    /**
+     * Returns the messages of a user that have a particular creation date.
+     *
+     * @param username the user.
+     * @param creationDate the creation date.
+     * @return the matching messages (possibly empty).
+     */
+    @Nonnull
+    List<Entry> get(@Nonnull final String username, @Nonnull final Date creationDate)
+    {
+        final List<Entry> result = new ArrayList<>();
+        process(username, false, entry -> {
+            if (entry.creationDate.equals(creationDate)) {
+                result.add(entry);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Deletes all messages of a user.
+     *
+     * @param username the user.
+     */
+    void delete(@Nonnull final String username)
+    {
+        final UserSpool spool = users.get(username);
+        if (spool == null) {
+            return;
+        }
+        final List<Path> segments;
+        final long floor;
+        synchronized (spool) {
+            if (spool.detached) {
+                return;
+            }
+            segments = new ArrayList<>(spool.segments);
+            detach(spool);
+            floor = sequence.incrementAndGet();
+        }
+        supersede(spool.directory, floor, segments);
+    }
+
+    /**
+     * Deletes the messages of a user that have a particular creation date, by appending a tombstone for each of them.
+     *
+     * @param username the user.
+     * @param creationDate the creation date.
+     */
+    void delete(@Nonnull final String username, @Nonnull final Date creationDate)
+    {
+        final UserSpool spool = users.get(username);
+        if (spool == null) {
+            return;
+        }
+        synchronized (spool) {
+            if (spool.detached) {
+                return;
+            }
+            final List<Entry> matches = new ArrayList<>();
+            read(spool.segments, spool.tombstones, entry -> {
+                if (entry.creationDate.equals(creationDate)) {
+                    matches.add(entry);
+                }
+            });
+            for (final Entry match : matches) {
+                try {
+                    append(spool, TYPE_TOMBSTONE, match.messageID, match.creationDate.getTime(), 0, new byte[0]);
+                } catch (IOException e) {
+                    Log.error("Unable to delete offline message of user '{}' from the spool.", username, e);
+                    return;
+                }
+                spool.tombstones.add(match.messageID);
+                spool.count--;
+                spool.size -= match.xml.length();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages of a user.
+     *
+     * @param username the user.
+     * @return a message count.
+     */
+    int getCount(@Nonnull final String username)
+    {
+        final UserSpool spool = users.get(username);
+        if (spool == null) {
+            return 0;
+        }
+        synchronized (spool) {
+            return spool.count;
+        }
+    }
+
+    /**
+     * Returns the size (in characters) of the messages of a user.
+     *
+     * @param username the user.
+     * @return the size of the messages.
+     */
+    int getSize(@Nonnull final String username)
+    {
+        final UserSpool spool = users.get(username);
+        if (spool == null) {
+            return 0;
+        }
+        synchronized (spool) {
+            return (int) Math.min(Integer.MAX_VALUE, spool.size);
+        }
+    }
+
+    /**
+     * Returns the size (in characters) of the messages of all users.
+     *
+     * @return the size of the messages.
+     */
+    long getSize()
+    {
+        long result = 0;
+        for (final UserSpool spool : users.values()) {
+            synchronized (spool) {
+                result += spool.size;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forces pending writes to disk, releases writers that have been idle, and compacts the spools of users that have
+     * tombstones, too many segments, or (when a cutoff is provided) messages that are older than the cutoff.
+     *
+     * @param idleCutoff writers that have not been written to since this instant (in milliseconds since the epoch) are released.
+     * @param expiryCutoff messages created before this instant (in milliseconds since the epoch) are removed, or null to retain all messages.
+     * @return the number of messages that were removed because they expired.
+     */
+    int maintain(final long idleCutoff, @Nullable final Long expiryCutoff)
+    {
+        int expired = 0;
+        for (final UserSpool spool : users.values()) {
+            synchronized (spool) {
+                if (spool.detached) {
+                    continue;
+                }
+                if (spool.writer != null) {
+                    if (spool.lastWrite < idleCutoff) {
+                        closeWriter(spool);
+                    } else if (spool.unforced) {
+                        spool.writer.force();
+                        spool.unforced = false;
+                    }
+                }
+                final boolean expire = expiryCutoff != null && spool.oldest < expiryCutoff;
+                if (expire || !spool.tombstones.isEmpty() || spool.segments.size() > MAX_SEGMENTS) {
+                    try {
+                        expired += compact(spool, expiryCutoff == null ? Long.MIN_VALUE : expiryCutoff);
+                    } catch (IOException e) {
+                        Log.warn("Unable to compact the offline message spool of user '{}'.", spool.username, e);
+                    }
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Rewrites the messages of a user that are not deleted or expired into one new segment, after which the existing
+     * segments are superseded.
+     *
+     * @return the number of messages that were removed because they expired.
+     */
+    private int compact(@Nonnull final UserSpool spool, final long expiryCutoff) throws IOException
+    {
+        final List<Entry> retained = new ArrayList<>();
+        final int[] expired = new int[1];
+        read(spool.segments, spool.tombstones, entry -> {
+            if (entry.creationDate.getTime() < expiryCutoff) {
+                expired[0]++;
+            } else {
+                retained.add(entry);
+            }
+        });
+
+        final List<Path> obsolete = new ArrayList<>(spool.segments);
+        final Set<Long> obsoleteTombstones = new HashSet<>(spool.tombstones);
+        // The new segments have a higher sequence number.
+        final long floor = sequence.incrementAndGet();
+        final int previousCount = spool.count;
+        final long previousSize = spool.size;
+        final long previousOldest = spool.oldest;
+        closeWriter(spool);
+        spool.segments.clear();
+        spool.tombstones.clear();
+        spool.count = 0;
+        spool.size = 0;
+        spool.oldest = Long.MAX_VALUE;
+        try {
+            for (final Entry entry : retained) {
+                append(spool, TYPE_MESSAGE, entry.messageID, entry.creationDate.getTime(), entry.xml.length(), entry.xml.getBytes(StandardCharsets.UTF_8));
+                spool.count++;
+                spool.size += entry.xml.length();
+                spool.oldest = Math.min(spool.oldest, entry.creationDate.getTime());
+            }
+            closeWriter(spool);
+            writeFloor(spool.directory, floor);
+        } catch (IOException e) {
+            // Revert to the existing segments, which are superseded only after the new segments have been written.
+            closeWriter(spool);
+            deleteSegments(spool.directory, spool.segments);
+            spool.segments.clear();
+            spool.segments.addAll(obsolete);
+            spool.tombstones.addAll(obsoleteTombstones);
+            spool.count = previousCount;
+            spool.size = previousSize;
+            spool.oldest = previousOldest;
+            throw e;
+        }
+        deleteSegments(spool.directory, obsolete);
+        if (spool.segments.isEmpty()) {
+            detach(spool);
+        }
+        return expired[0];
+    }
+
+    /**
+     * Unregisters the spool of a user, after which it is no longer modified. Callers must hold the lock of the spool.
+     */
+    private void detach(@Nonnull final UserSpool spool)
+    {
+        closeWriter(spool);
+        spool.detached = true;
+        users.remove(spool.username, spool);
+    }
+
+    private void closeWriter(@Nonnull final UserSpool spool)
+    {
+        if (spool.writer != null) {
+            if (spool.unforced) {
+                spool.writer.force();
+            }
+            // The mapping is released when the buffer is garbage collected.
+            spool.writer = null;
+            spool.unforced = false;
+        }
+    }
+
+    /**
+     * Appends a record to the most recent segment of a user, creating a new segment if needed. Callers must hold the
+     * lock of the spool.
+     */
+    private void append(@Nonnull final UserSpool spool, final byte type, final long messageID, final long creationMillis, final int size, @Nonnull final byte[] payload) throws IOException
+    {
+        final int recordLength = RECORD_HEADER_SIZE + payload.length;
+        if (spool.writer == null || spool.writer.remaining() < 4 + recordLength) {
+            newSegment(spool, 4 + recordLength);
+        }
+        final MappedByteBuffer writer = spool.writer;
+        final int position = writer.position();
+        writer.position(position + 4);
+        writer.put(type).putLong(messageID).putLong(creationMillis).putInt(size).put(payload);
+        // The length is written last, which makes the record visible only after it is complete.
+        writer.putInt(position, recordLength);
+        spool.unforced = true;
+        spool.lastWrite = System.currentTimeMillis();
+    }
+
+    private void newSegment(@Nonnull final UserSpool spool, final int minimumCapacity) throws IOException
+    {
+        closeWriter(spool);
+        final byte[] owner = spool.username.getBytes(StandardCharsets.UTF_8);
+        final int headerSize = 4 + 1 + 2 + owner.length;
+        final int capacity = Math.max(segmentSize, headerSize + minimumCapacity + 4);
+        final Path segment = spool.directory.resolve(String.format("%016x", sequence.incrementAndGet()) + SEGMENT_SUFFIX);
+        MappedByteBuffer writer = null;
+        for (int attempt = 0; writer == null; attempt++) {
+            Files.createDirectories(spool.directory);
+            try (final FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                writer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } catch (NoSuchFileException e) {
+                // The directory was removed concurrently, as the previous messages of the user were deleted.
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+        writer.putInt(MAGIC).put(VERSION).putShort((short) owner.length).put(owner);
+        spool.writer = writer;
+        spool.segments.add(segment);
+    }
+
+    /**
+     * Passes the messages in segments that are not tombstoned, oldest first, to a consumer.
+     */
+    private void read(@Nonnull final List<Path> segments, @Nonnull final Set<Long> tombstones, @Nonnull final Consumer<Entry> consumer)
+    {
+        for (final Path segment : segments) {
+            final ByteBuffer buffer;
+            try {
+                buffer = map(segment);
+            } catch (IOException e) {
+                Log.warn("Unable to read offline message spool segment {}.", segment, e);
+                continue;
+            }
+            if (readHeader(buffer) == null) {
+                continue;
+            }
+            readRecords(buffer, true, (type, messageID, creationMillis, size, xml) -> {
+                if (type == TYPE_MESSAGE && !tombstones.contains(messageID)) {
+                    consumer.accept(new Entry(messageID, new Date(creationMillis), xml));
+                }
+            });
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor
+    {
+        void visit(byte type, long messageID, long creationMillis, int size, String xml);
+    }
+
+    private static void readRecords(@Nonnull final ByteBuffer buffer, final boolean decode, @Nonnull final RecordVisitor visitor)
+    {
+        while (buffer.remaining() >= 4) {
+            final int recordLength = buffer.getInt();
+            if (recordLength < RECORD_HEADER_SIZE || recordLength > buffer.remaining()) {
+                // Either the unused remainder of the segment, or a record that was not completely written.
+                break;
+            }
+            final int end = buffer.position() + recordLength;
+            final byte type = buffer.get();
+            final long messageID = buffer.getLong();
+            final long creationMillis = buffer.getLong();
+            final int size = buffer.getInt();
+            String xml = null;
+            if (decode && type == TYPE_MESSAGE) {
+                final byte[] payload = new byte[recordLength - RECORD_HEADER_SIZE];
+                buffer.get(payload);
+                xml = new String(payload, StandardCharsets.UTF_8);
+            }
+            buffer.position(end);
+            visitor.visit(type, messageID, creationMillis, size, xml);
+        }
+    }
+
+    /**
+     * Reads the header of a segment, leaving the buffer positioned at the first record.
+     *
+     * @return the user that owns the segment, or null if the header is invalid.
+     */
+    @Nullable
+    private static String readHeader(@Nonnull final ByteBuffer buffer)
+    {
+        if (buffer.remaining() < 7 || buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            return null;
+        }
+        final int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            return null;
+        }
+        final byte[] owner = new byte[length];
+        buffer.get(owner);
+        return new String(owner, StandardCharsets.UTF_8);
+    }
+
+    @Nonnull
+    private static ByteBuffer map(@Nonnull final Path segment) throws IOException
+    {
+        try (final FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private void bumpSequence(@Nonnull final Path segment)
+    {
+        sequence.accumulateAndGet(sequenceOf(segment) + 1, Math::max);
+    }
+
+    /**
+     * Returns the sequence number in the name of a segment, or Long.MAX_VALUE if the name is not as expected.
+     */
+    private static long sequenceOf(@Nonnull final Path segment)
+    {
+        final String name = segment.getFileName().toString();
+        try {
+            return Long.parseUnsignedLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+        } catch (NumberFormatException e) {
+            Log.debug("Unexpected segment name: {}", segment);
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Records that segments of a user are superseded, after which they are removed. Segments that cannot be removed
+     * now are removed when the spool is next opened. When the segments cannot be recorded as superseded, they are
+     * retained, and their messages are restored when the spool is next opened.
+     *
+     * @param floor the sequence number below which all segments of the user are superseded.
+     * @param segments the segments that are superseded.
+     */
+    private void supersede(@Nonnull final Path userDirectory, final long floor, @Nonnull final List<Path> segments)
+    {
+        try {
+            writeFloor(userDirectory, floor);
+        } catch (IOException e) {
+            Log.warn("Unable to remove offline message spool segments {}. Their messages are restored when the spool is next opened.", segments, e);
+            return;
+        }
+        deleteSegments(userDirectory, segments);
+    }
+
+    /**
+     * Returns the sequence number below which the segments of a user are superseded, or zero if none are.
+     */
+    private static long readFloor(@Nonnull final Path userDirectory) throws IOException
+    {
+        final byte[] metadata;
+        try {
+            metadata = Files.readAllBytes(userDirectory.resolve(METADATA_FILE));
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(metadata);
+        if (buffer.remaining() < 4 + 1 + 8 || buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+            throw new IOException("Offline message spool metadata in " + userDirectory + " is invalid.");
+        }
+        return buffer.getLong();
+    }
+
+    /**
+     * Raises the sequence number below which the segments of a user are superseded. The metadata file is replaced
+     * atomically, and is not memory-mapped, so that it can be replaced on all platforms.
+     */
+    private synchronized void writeFloor(@Nonnull final Path userDirectory, final long floor) throws IOException
+    {
+        Files.createDirectories(userDirectory);
+        final long current = readFloor(userDirectory);
+        if (current >= floor) {
+            return;
+        }
+        final Path metadata = userDirectory.resolve(METADATA_FILE);
+        final Path temporary = userDirectory.resolve(METADATA_FILE + ".tmp");
+        final ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 8);
+        buffer.putInt(MAGIC).put(VERSION).putLong(floor).flip();
+        try (final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, metadata, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the directory of a user, which is named after a hash of the username, in one of 256 shards.
+     */
+    @Nonnull
+    Path userDirectory(@Nonnull final String username)
+    {
+        final String hash = StringUtils.hash(username, "SHA-1");
+        return directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    @Nonnull
+    private static List<Path> listSegments(@Nonnull final Path userDirectory) throws IOException
+    {
+        final List<Path> result = new ArrayList<>();
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(userDirectory, "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(result::add);
+        }
+        // Segment names are zero-padded, and sort in order of creation.
+        result.sort(Comparator.comparing(path -> path.getFileName().toString()));
+        return result;
+    }
+
+    /**
+     * Removes a segment file. On some platforms (eg: Windows), this fails while the segment is memory-mapped.
+     */
+    void removeSegment(@Nonnull final Path segment) throws IOException
+    {
+        Files.deleteIfExists(segment);
+    }
+
+    private void deleteSegments(@Nonnull final Path userDirectory, @Nonnull final List<Path> segments)
+    {
+        for (final Path segment : segments) {
+            try {
+                removeSegment(segment);
+            } catch (IOException e) {
+                Log.debug("Unable to remove offline message spool segment {}. It is removed when the spool is next opened.", segment, e);
+            }
+        }
+        deleteDirectory(userDirectory);
+    }
+
+    /**
+     * Removes the directory of a user, including its metadata, if it holds no segments.
+     */
+    private static void deleteDirectory(@Nonnull final Path userDirectory)
+    {
+        try {
+            if (!listSegments(userDirectory).isEmpty()) {
+                return;
+            }
+            // Segments that are created in the meantime have a higher sequence number, and do not need the metadata.
+            Files.deleteIfExists(userDirectory.resolve(METADATA_FILE));
+            Files.deleteIfExists(userDirectory);
+        } catch (NoSuchFileException e) {
+            // Already removed.
+        } catch (DirectoryNotEmptyException e) {
+            // New messages were added in the meantime.
+        } catch (IOException e) {
+            Log.debug("Unable to remove offline message spool directory {}.", userDirectory, e);
+        }
+    }
+}
@@ -21,6 +21,7 @@ import org.dom4j.Namespace;
 import org.dom4j.QName;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.database.SequenceManager;
+import org.jivesoftware.openfire.archive.Archiver;
 import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.event.UserEventDispatcher;
@@ -35,6 +36,8 @@ import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -43,7 +46,16 @@ import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -64,19 +76,22 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         "INSERT INTO ofOffline (username, messageID, creationDate, messageSize, stanza) " +
         "VALUES (?, ?, ?, ?, ?)";
     private static final String LOAD_OFFLINE =
-        "SELECT stanza, creationDate FROM ofOffline WHERE username=? ORDER BY creationDate ASC";
+        "SELECT stanza, creationDate, messageID FROM ofOffline WHERE username=? ORDER BY creationDate ASC, messageID ASC";
+    private static final String LOAD_OFFLINE_AFTER =
+        "SELECT stanza, creationDate, messageID FROM ofOffline WHERE username=? " +
+        "AND (creationDate > ? OR (creationDate = ? AND messageID > ?)) ORDER BY creationDate ASC, messageID ASC";
     private static final String LOAD_OFFLINE_MESSAGE =
-        "SELECT stanza FROM ofOffline WHERE username=? AND creationDate=?";
-    private static final String SELECT_COUNT_OFFLINE =
-        "SELECT COUNT(*) FROM ofOffline WHERE username=?";
-    private static final String SELECT_SIZE_OFFLINE =
-        "SELECT SUM(messageSize) FROM ofOffline WHERE username=?";
+        "SELECT stanza, messageID FROM ofOffline WHERE username=? AND creationDate=?";
+    private static final String SELECT_ID_SIZE_OFFLINE =
+        "SELECT messageID, messageSize FROM ofOffline WHERE username=?";
     private static final String SELECT_SIZE_ALL_OFFLINE =
         "SELECT SUM(messageSize) FROM ofOffline";
     private static final String DELETE_OFFLINE =
         "DELETE FROM ofOffline WHERE username=?";
     private static final String DELETE_OFFLINE_MESSAGE =
         "DELETE FROM ofOffline WHERE username=? AND creationDate=?";
+    private static final String DELETE_OFFLINE_MESSAGE_ID =
+        "DELETE FROM ofOffline WHERE username=? AND messageID=?";
     private static final String DELETE_OFFLINE_MESSAGE_BEFORE =
         "DELETE FROM ofOffline WHERE creationDate < ?";
     private static final String SELECT_SIZE_OFFLINE_ALL_USERS =
@@ -84,6 +99,123 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
 
     private final Cache<String, Integer> sizeCache;
 
+    private final Cache<String, Integer> countCache;
+
+    /**
+     * Enables writing offline messages to the database in batches, by a background thread. When disabled, messages are
+     * written to the database by the thread that stores them.
+     */
+    public static final SystemProperty<Boolean> STORE_ASYNC = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("xmpp.offline.store.async")
+        .setDefaultValue(true)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The maximum number of offline messages that are written to the database in one batch.
+     */
+    public static final SystemProperty<Integer> STORE_BATCH_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.offline.store.batch-size")
+        .setDefaultValue(500)
+        .setMinValue(1)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The maximum amount of time that an offline message is queued before it is written to the database.
+     */
+    public static final SystemProperty<Duration> STORE_BATCH_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.offline.store.batch-interval")
+        .setDefaultValue(Duration.ofSeconds(1))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The amount of time to wait for more offline messages to be queued, before a batch is written to the database.
+     */
+    public static final SystemProperty<Duration> STORE_BATCH_GRACE_PERIOD = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.offline.store.batch-grace-period")
+        .setDefaultValue(Duration.ofMillis(50))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The number of offline messages that are read from the database at a time, when the messages of a user are
+     * retrieved.
+     */
+    public static final SystemProperty<Integer> LOAD_PAGE_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.offline.load.page-size")
+        .setDefaultValue(100)
+        .setMinValue(1)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * Enables storing offline messages in a spool of memory-mapped files in the Openfire home directory, instead of in
+     * the database. The spool is local to a server, and is not used when clustering is enabled. Messages are not
+     * migrated between the database and the spool when this setting is changed.
+     */
+    public static final SystemProperty<Boolean> SPOOL_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("xmpp.offline.spool.enabled")
+        .setDefaultValue(false)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The size (in bytes) of the segment files of the offline message spool.
+     */
+    public static final SystemProperty<Integer> SPOOL_SEGMENT_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.offline.spool.segment-size")
+        .setDefaultValue(64 * 1024)
+        .setMinValue(4 * 1024)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The interval at which messages that are added to the offline message spool are forced to disk.
+     */
+    public static final SystemProperty<Duration> SPOOL_SYNC_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.offline.spool.sync-interval")
+        .setDefaultValue(Duration.ofSeconds(1))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The maximum amount of time to wait for queued messages to be written, before their deletion or retrieval.
+     */
+    private static final Duration STORE_AWAIT_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * The number of times that writing a queued offline message to the database is attempted, before the message is
+     * discarded.
+     */
+    static final int STORE_MAX_ATTEMPTS = 3;
+
+    /**
+     * Writes queued messages to the database. Null when messages are written synchronously.
+     */
+    private volatile OfflineMessageArchiver archiver;
+
+    /**
+     * Stores the messages instead of the database, when enabled. Null when the database is used.
+     */
+    private volatile OfflineMessageSpool spool;
+
+    private TimerTask spoolMaintenanceTask;
+
+    /**
+     * Messages, per user, that have been queued to be written to the database, and that have not yet been written.
+     */
+    private final ConcurrentMap<String, Queue<PendingMessage>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Messages (by ID, with their size) per user, that have been retrieved and are yet to be deleted from the database.
+     */
+    private final ConcurrentMap<String, Map<Long, Integer>> tombstones = new ConcurrentHashMap<>();
+
     /**
      * Members for automatic offline message cleaning
      * */
@@ -131,6 +263,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
     public OfflineMessageStore() {
         super("Offline Message Store");
         sizeCache = CacheFactory.createCache("Offline Message Size");
+        countCache = CacheFactory.createCache("Offline Message Count");
         OFFLINE_AUTOCLEAN_ENABLE.addListener( enabled -> {
                                                 if (enabled) {
                                                     setTimer();
@@ -153,6 +286,11 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * have 'no-store' hints, or for which the intended recipient is not a local user. When a message is discarded for
      * reasons like these, this method will return 'null'.
      *
+     * When {@link #STORE_ASYNC} is enabled, the message is queued to be written to the database in a batch, and this
+     * method returns before the message has been written. Messages that are queued are included in the results of the
+     * other methods of this store. Writing a message is retried when it fails. A message that still cannot be written
+     * after {@link #STORE_MAX_ATTEMPTS} attempts is logged as lost.
+     *
      * @param message the message to store.
      * @return OfflineMessage when data was stored, otherwise null.
      */
@@ -173,43 +311,50 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
             return null;
         }
 
-        long messageID = SequenceManager.nextID(JiveConstants.OFFLINE);
-
         // Get the message in XML format.
         String msgXML = message.getElement().asXML();
 
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        OfflineMessage offlineMessage = null;
-        try {
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(INSERT_OFFLINE);
+        final OfflineMessageSpool spool = this.spool;
+        if (spool != null) {
+            final Date creationDate = new Date();
+            return spool.add(username, creationDate, msgXML) ? new OfflineMessage(creationDate, message.getElement()) : null;
+        }
 
-            Date creationDate = new java.util.Date();
-            pstmt.setString(1, username);
-            pstmt.setLong(2, messageID);
-            pstmt.setString(3, StringUtils.dateToMillis(creationDate));
-            pstmt.setInt(4, msgXML.length());
-            pstmt.setString(5, msgXML);
-            pstmt.executeUpdate();
+        long messageID = SequenceManager.nextID(JiveConstants.OFFLINE);
 
-            offlineMessage = new OfflineMessage(creationDate, message.getElement());
-        }
-        catch (Exception e) {
-            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-            return null;
-        }
-        finally {
-            DbConnectionManager.closeConnection(pstmt, con);
+        final PendingMessage pendingMessage = new PendingMessage(username, messageID, new Date(), msgXML);
+        if (archiver == null) {
+            if (!insert(Collections.singletonList(pendingMessage))) {
+                return null;
+            }
+            // Update the cached totals if they exist.
+            adjustCachedTotals(username, 1, msgXML.length());
+        } else {
+            enqueue(pendingMessage);
         }
+        return new OfflineMessage(pendingMessage.creationDate, message.getElement());
+    }
 
-        // Update the cached size if it exists.
-        if (sizeCache.containsKey(username)) {
-            int size = sizeCache.get(username);
-            size += msgXML.length();
-            sizeCache.put(username, size);
+    /**
+     * Queues a message to be written to the database, and includes it in the cached totals of its user.
+     */
+    void enqueue(PendingMessage pendingMessage) {
+        final Lock lock = sizeCache.getLock(pendingMessage.username);
+        lock.lock();
+        try {
+            pending.compute(pendingMessage.username, (key, queue) -> {
+                final Queue<PendingMessage> result = queue == null ? new ConcurrentLinkedQueue<>() : queue;
+                result.add(pendingMessage);
+                return result;
+            });
+            adjustCachedTotals(pendingMessage.username, 1, pendingMessage.xml.length());
+        } finally {
+            lock.unlock();
+        }
+        final OfflineMessageArchiver archiver = this.archiver;
+        if (archiver != null) {
+            archiver.archive(pendingMessage);
         }
-        return offlineMessage;
     }
 
     /**
@@ -220,81 +365,138 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @param username the username of the user who's messages you'd like to receive.
      * @param delete true if the offline messages should be deleted.
      * @return An iterator of packets containing all offline messages.
+     * @see #processMessages(String, boolean, Consumer)
      */
     public Collection<OfflineMessage> getMessages(String username, boolean delete) {
         List<OfflineMessage> messages = new ArrayList<>();
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        try {
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(LOAD_OFFLINE);
-            pstmt.setString(1, username);
-            rs = pstmt.executeQuery();
-            while (rs.next()) {
-                String msgXML = rs.getString(1);
-                Date creationDate = new Date(Long.parseLong(rs.getString(2).trim()));
-                OfflineMessage message;
+        processMessages(username, delete, messages::add);
+        return messages;
+    }
+
+    /**
+     * Passes all messages in the store for a user, oldest first, to a consumer.
+     *
+     * Messages are read from the database in pages (of {@link #LOAD_PAGE_SIZE} messages), each of which is passed to
+     * the consumer before the next page is read. This avoids having to keep all messages of a user in memory, or to
+     * hold on to a database connection while the messages are being processed.
+     *
+     * When the messages are to be deleted, they are deleted from the database after they have been passed to the
+     * consumer, in a background task. Until that task completes, the messages are excluded from the results of this
+     * store. This guarantees that a message is passed to one consumer only, even when the messages of a user are
+     * processed concurrently (eg: when two resources log in at the same time). The cached totals of the user are
+     * updated when a message is marked as consumed, before it is passed to the consumer.
+     *
+     * @param username the username of the user who's messages you'd like to receive.
+     * @param delete true if the offline messages should be deleted.
+     * @param consumer receives the messages.
+     */
+    public void processMessages(String username, boolean delete, Consumer<? super OfflineMessage> consumer) {
+        final OfflineMessageSpool spool = this.spool;
+        if (spool != null) {
+            spool.process(username, delete, entry -> {
                 try {
-                    message = new OfflineMessage(creationDate, SAXReaderUtil.readRootElement(msgXML));
-                } catch (ExecutionException e) {
-                    // Try again after removing invalid XML chars (e.g. &#12;)
-                    Matcher matcher = pattern.matcher(msgXML);
-                    if (matcher.find()) {
-                        msgXML = matcher.replaceAll("");
+                    final OfflineMessage message = parse(entry.xml, entry.creationDate, true);
+                    if (message != null) {
+                        consumer.accept(message);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    Log.error("Offline Message retrieval interrupted", e);
+                }
+            });
+            return;
+        }
+
+        awaitClusterWrites();
+
+        // Take the snapshot of queued messages before the database is read. Messages that are written while the
+        // database is being read are then either found in the database, or in this snapshot.
+        final List<PendingMessage> queued = getPending(username);
+        final Set<Long> processed = new HashSet<>();
+        final Map<Long, Integer> consumed = new HashMap<>();
+        final List<PendingMessage> inFlight = new ArrayList<>();
+        try {
+            final int pageSize = LOAD_PAGE_SIZE.getValue();
+            String lastDate = null;
+            long lastID = -1;
+            List<StoredMessage> page;
+            do {
+                page = loadPage(username, lastDate, lastID, pageSize);
+                final List<StoredMessage> toProcess = new ArrayList<>(page.size());
+                for (final StoredMessage stored : page) {
+                    lastDate = stored.creationDate;
+                    lastID = stored.messageID;
+                    if (processed.add(stored.messageID) && !isTombstoned(username, stored.messageID)) {
+                        toProcess.add(stored);
                     }
+                }
+                if (delete) {
+                    final Lock lock = sizeCache.getLock(username);
+                    lock.lock();
                     try {
-                        message = new OfflineMessage(creationDate, SAXReaderUtil.readRootElement(msgXML));
-                    } catch (ExecutionException de) {
-                        Log.error("Failed to route packet (offline message): " + msgXML, de);
-                        continue; // skip and process remaining offline messages
-                    } catch (InterruptedException de) {
-                        Thread.currentThread().interrupt();
-                        Log.error("Offline Message retrieval interrupted", de);
-                        break; // Skip all further offline messages
+                        // Skip the messages that are being processed (and deleted) by someone else.
+                        toProcess.removeIf(stored -> !consume(username, stored.messageID, stored.xml.length()));
+                    } finally {
+                        lock.unlock();
                     }
+                    toProcess.forEach(stored -> consumed.put(stored.messageID, stored.xml.length()));
                 }
-                catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    Log.error("Offline Message retrieval interrupted", e);
-                    break; // Skip all further offline messages
+                for (final StoredMessage stored : toProcess) {
+                    final OfflineMessage message = parse(stored.xml, new Date(Long.parseLong(stored.creationDate.trim())), true);
+                    if (message != null) {
+                        consumer.accept(message);
+                    }
                 }
+            } while (page.size() == pageSize);
 
-                // if there is already a delay stamp, we shouldn't add another.
-                Element delaytest = message.getChildElement("delay", "urn:xmpp:delay");
-                if (delaytest == null) {
-                    // Add a delayed delivery (XEP-0203) element to the message.
-                    Element delay = message.addChildElement("delay", "urn:xmpp:delay");
-                    delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
-                    delay.addAttribute("stamp", XMPPDateTimeFormat.format(creationDate));
+            final List<PendingMessage> toProcess = new ArrayList<>(queued.size());
+            final Lock lock = sizeCache.getLock(username);
+            lock.lock();
+            try {
+                for (final PendingMessage pendingMessage : queued) {
+                    if (!processed.add(pendingMessage.messageID) || pendingMessage.state.get() == PendingMessage.CANCELLED
+                        || isTombstoned(username, pendingMessage.messageID)) {
+                        continue;
+                    }
+                    if (delete) {
+                        if (pendingMessage.state.compareAndSet(PendingMessage.QUEUED, PendingMessage.CANCELLED)) {
+                            // Never written to the database: nothing to delete.
+                            removePending(pendingMessage);
+                            adjustCachedTotals(username, -1, -pendingMessage.xml.length());
+                        } else if (pendingMessage.state.get() == PendingMessage.CANCELLED
+                            || !consume(username, pendingMessage.messageID, pendingMessage.xml.length())) {
+                            // Discarded, or being processed (and deleted) by someone else.
+                            continue;
+                        } else {
+                            // Being written, or already written, to the database.
+                            consumed.put(pendingMessage.messageID, pendingMessage.xml.length());
+                            inFlight.add(pendingMessage);
+                        }
+                    }
+                    toProcess.add(pendingMessage);
                 }
-                messages.add(message);
+            } finally {
+                lock.unlock();
             }
-            // Check if the offline messages loaded should be deleted, and that there are
-            // messages to delete.
-            if (delete && !messages.isEmpty()) {
-                PreparedStatement pstmt2 = null;
-                try {
-                    pstmt2 = con.prepareStatement(DELETE_OFFLINE);
-                    pstmt2.setString(1, username);
-                    pstmt2.executeUpdate();
-                    removeUsernameFromSizeCache(username);
+            for (final PendingMessage pendingMessage : toProcess) {
+                final OfflineMessage message = parse(pendingMessage.xml, pendingMessage.creationDate, true);
+                if (message != null) {
+                    consumer.accept(message);
                 }
-                catch (Exception e) {
-                    Log.error("Error deleting offline messages of username: " + username, e);
-                }
-                finally {
-                    DbConnectionManager.closeStatement(pstmt2);
-                } 
             }
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.error("Offline Message retrieval interrupted", e);
+        }
         catch (Exception e) {
             Log.error("Error retrieving offline messages of username: " + username, e);
         }
         finally {
-            DbConnectionManager.closeConnection(rs, pstmt, con);
+            if (!consumed.isEmpty()) {
+                TaskEngine.getInstance().submit(() -> deleteConsumed(username, consumed, inFlight));
+            }
         }
-        return messages;
     }
 
     /**
@@ -306,6 +508,31 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @return the offline message of the specified user with the given creation stamp.
      */
     public OfflineMessage getMessage(String username, Date creationDate) {
+        final OfflineMessageSpool spool = this.spool;
+        if (spool != null) {
+            OfflineMessage message = null;
+            try {
+                for (final OfflineMessageSpool.Entry entry : spool.get(username, creationDate)) {
+                    message = parse(entry.xml, creationDate, false);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return message;
+        }
+
+        for (final PendingMessage pendingMessage : getPending(username)) {
+            if (pendingMessage.creationDate.equals(creationDate) && pendingMessage.state.get() != PendingMessage.CANCELLED) {
+                try {
+                    return parse(pendingMessage.xml, creationDate, false);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+
+        awaitClusterWrites();
         OfflineMessage message = null;
         Connection con = null;
         PreparedStatement pstmt = null;
@@ -317,12 +544,11 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
             pstmt.setString(2, StringUtils.dateToMillis(creationDate));
             rs = pstmt.executeQuery();
             while (rs.next()) {
+                if (isTombstoned(username, rs.getLong(2))) {
+                    continue;
+                }
                 String msgXML = rs.getString(1);
-                message = new OfflineMessage(creationDate, SAXReaderUtil.readRootElement(msgXML));
-                // Add a delayed delivery (XEP-0203) element to the message.
-                Element delay = message.addChildElement("delay", "urn:xmpp:delay");
-                delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
-                delay.addAttribute("stamp", XMPPDateTimeFormat.format(creationDate));
+                message = parse(msgXML, creationDate, false);
             }
         }
         catch (Exception e) {
@@ -344,6 +570,23 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @param username the username of the user who's messages are going to be deleted.
      */
     public void deleteMessages(String username) {
+        final OfflineMessageSpool spool = this.spool;
+        if (spool != null) {
+            spool.delete(username);
+            return;
+        }
+
+        // Prevent queued messages from being written, and wait for those that are being written.
+        final List<PendingMessage> inFlight = new ArrayList<>();
+        for (final PendingMessage pendingMessage : getPending(username)) {
+            if (pendingMessage.state.compareAndSet(PendingMessage.QUEUED, PendingMessage.CANCELLED)) {
+                removePending(pendingMessage);
+            } else {
+                inFlight.add(pendingMessage);
+            }
+        }
+        awaitStored(inFlight);
+
         Connection con = null;
         PreparedStatement pstmt = null;
         try {
@@ -351,20 +594,26 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
             pstmt = con.prepareStatement(DELETE_OFFLINE);
             pstmt.setString(1, username);
             pstmt.executeUpdate();
-            
-            removeUsernameFromSizeCache(username);
         }
         catch (Exception e) {
             Log.error("Error deleting offline messages of username: " + username, e);
         }
         finally {
             DbConnectionManager.closeConnection(pstmt, con);
+            removeUsernameFromSizeCache(username);
         }
     }
 
     private void removeUsernameFromSizeCache(String username) {
-        // Update the cached size if it exists.
-        sizeCache.remove(username);
+        // Update the cached totals if they exist.
+        final Lock lock = sizeCache.getLock(username);
+        lock.lock();
+        try {
+            sizeCache.remove(username);
+            countCache.remove(username);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -375,6 +624,22 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @param creationDate the date when the offline message was stored in the database.
      */
     public void deleteMessage(String username, Date creationDate) {
+        final OfflineMessageSpool spool = this.spool;
+        if (spool != null) {
+            spool.delete(username, creationDate);
+            return;
+        }
+
+        for (final PendingMessage pendingMessage : getPending(username)) {
+            if (pendingMessage.creationDate.equals(creationDate)) {
+                if (pendingMessage.state.compareAndSet(PendingMessage.QUEUED, PendingMessage.CANCELLED)) {
+                    removePending(pendingMessage);
+                } else {
+                    awaitStored(Collections.singletonList(pendingMessage));
+                }
+            }
+        }
+
         Connection con = null;
         PreparedStatement pstmt = null;
         try {
@@ -383,11 +648,6 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
             pstmt.setString(1, username);
             pstmt.setString(2, StringUtils.dateToMillis(creationDate));
             pstmt.executeUpdate();
-            
-            // Force a refresh for next call to getSize(username),
-            // it's easier than loading the message to be deleted just
-            // to update the cache.
-            removeUsernameFromSizeCache(username);
         }
         catch (Exception e) {
             Log.error("Error deleting offline messages of username: " + username +
@@ -395,38 +655,32 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         }
         finally {
             DbConnectionManager.closeConnection(pstmt, con);
+            // Force a refresh for next call to getSize(username),
+            // it's easier than loading the message to be deleted just
+            // to update the cache.
+            removeUsernameFromSizeCache(username);
         }
     }
 
     /**
      * Returns the number of XML messages stored for a particular user.
      *
+     * The count is maintained in memory, as messages are added and removed. It is read from the database only when it
+     * is not yet known.
+     *
      * @param username the username of the user.
      * @return the amount of stored messages.
      */
     public int getCount(String username) {
-        // No cache: this needs to be more accurate than the 'size' method (that does have a cache).
-        // Maintaining a cache would likely add more overhead than that the cache would save.
-        int count = 0;
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        try {
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(SELECT_COUNT_OFFLINE);
-            pstmt.setString(1, username);
-            rs = pstmt.executeQuery();
-            if (rs.next()) {
-                count = rs.getInt(1);
-            }
-        }
-        catch (Exception e) {
-            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+        final OfflineMessageSpool spool = this.spool;
+        if (spool != null) {
+            return spool.getCount(username);
         }
-        finally {
-            DbConnectionManager.closeConnection(rs, pstmt, con);
+        final Integer cached = countCache.get(username);
+        if (cached != null) {
+            return cached;
         }
-        return count;
+        return loadTotals(username)[0];
     }
 
     /**
@@ -437,32 +691,114 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @return the approximate size of stored messages (in bytes).
      */
     public int getSize(String username) {
+        final OfflineMessageSpool spool = this.spool;
+        if (spool != null) {
+            return spool.getSize(username);
+        }
         // See if the size is cached.
-        if (sizeCache.containsKey(username)) {
-            return sizeCache.get(username);
+        final Integer cached = sizeCache.get(username);
+        if (cached != null) {
+            return cached;
         }
-        int size = 0;
+        return loadTotals(username)[1];
+    }
+
+    /**
+     * Reads the number and size of the messages of a user from the database, and caches the result after accounting
+     * for messages that are queued or are being deleted.
+     *
+     * The state transitions that change the totals of a user (queueing, consuming and discarding a message) are
+     * performed while holding the same lock as this method. The only transition that can occur while the database is
+     * read is the one in which a queued message is written. Messages are therefore counted by ID, so that a message
+     * that is both queued and written is counted once.
+     *
+     * @return the message count (at index 0) and size (at index 1).
+     */
+    private int[] loadTotals(String username) {
+        final Lock lock = sizeCache.getLock(username);
+        lock.lock();
+        try {
+            final Integer cachedCount = countCache.get(username);
+            final Integer cachedSize = sizeCache.get(username);
+            if (cachedCount != null && cachedSize != null) {
+                return new int[] { cachedCount, cachedSize };
+            }
+
+            // Take the snapshot of queued messages before the database is read, so that messages that are written
+            // while the database is being read are in the snapshot.
+            final List<PendingMessage> queued = getPending(username);
+            final Map<Long, Integer> counted;
+            try {
+                counted = loadSizes(username);
+            }
+            catch (Exception e) {
+                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+                return new int[] { 0, 0 };
+            }
+            for (final PendingMessage pendingMessage : queued) {
+                if (pendingMessage.state.get() != PendingMessage.CANCELLED) {
+                    counted.put(pendingMessage.messageID, pendingMessage.xml.length());
+                }
+            }
+            final Map<Long, Integer> deleting = tombstones.get(username);
+            if (deleting != null) {
+                counted.keySet().removeAll(deleting.keySet());
+            }
+            final int count = counted.size();
+            final int size = counted.values().stream().mapToInt(Integer::intValue).sum();
+
+            // Add the values to cache.
+            countCache.put(username, count);
+            sizeCache.put(username, size);
+            return new int[] { count, size };
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the size of each of the messages of a user from the database.
+     *
+     * @return the size of the messages, by message ID.
+     */
+    Map<Long, Integer> loadSizes(String username) throws SQLException {
+        final Map<Long, Integer> result = new HashMap<>();
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
         try {
             con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(SELECT_SIZE_OFFLINE);
+            pstmt = con.prepareStatement(SELECT_ID_SIZE_OFFLINE);
             pstmt.setString(1, username);
             rs = pstmt.executeQuery();
-            if (rs.next()) {
-                size = rs.getInt(1);
+            while (rs.next()) {
+                result.put(rs.getLong(1), rs.getInt(2));
             }
-            // Add the value to cache.
-            sizeCache.put(username, size);
-        }
-        catch (Exception e) {
-            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
         }
         finally {
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
-        return size;
+        return result;
+    }
+
+    /**
+     * Updates the cached number and size of the messages of a user, if these are cached.
+     */
+    private void adjustCachedTotals(String username, int countDelta, int sizeDelta) {
+        final Lock lock = sizeCache.getLock(username);
+        lock.lock();
+        try {
+            final Integer count = countCache.get(username);
+            if (count != null) {
+                countCache.put(username, Math.max(0, count + countDelta));
+            }
+            final Integer size = sizeCache.get(username);
+            if (size != null) {
+                sizeCache.put(username, Math.max(0, size + sizeDelta));
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -472,6 +808,10 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @return the approximate size of all stored messages (in bytes).
      */
     public int getSize() {
+        final OfflineMessageSpool spool = this.spool;
+        if (spool != null) {
+            return (int) Math.min(Integer.MAX_VALUE, spool.getSize());
+        }
         int size = 0;
         Connection con = null;
         PreparedStatement pstmt = null;
@@ -490,9 +830,346 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         finally {
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
+        for (final Queue<PendingMessage> queue : pending.values()) {
+            for (final PendingMessage pendingMessage : queue) {
+                if (pendingMessage.state.get() == PendingMessage.QUEUED) {
+                    size += pendingMessage.xml.length();
+                }
+            }
+        }
         return size;
     }
 
+    /**
+     * Reads a page of the messages of a user from the database, ordered by creation date and message ID.
+     *
+     * @param lastDate the creation date of the last message of the previous page, or null to read the first page.
+     * @param lastID the message ID of the last message of the previous page.
+     * @param pageSize the maximum number of messages to read.
+     */
+    List<StoredMessage> loadPage(String username, String lastDate, long lastID, int pageSize) throws SQLException {
+        final List<StoredMessage> result = new ArrayList<>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            if (lastDate == null) {
+                pstmt = con.prepareStatement(LOAD_OFFLINE);
+                pstmt.setString(1, username);
+            } else {
+                pstmt = con.prepareStatement(LOAD_OFFLINE_AFTER);
+                pstmt.setString(1, username);
+                pstmt.setString(2, lastDate);
+                pstmt.setString(3, lastDate);
+                pstmt.setLong(4, lastID);
+            }
+            DbConnectionManager.setMaxRows(pstmt, pageSize);
+            DbConnectionManager.setFetchSize(pstmt, pageSize);
+            rs = pstmt.executeQuery();
+            while (rs.next() && result.size() < pageSize) {
+                result.add(new StoredMessage(rs.getString(1), rs.getString(2), rs.getLong(3)));
+            }
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return result;
+    }
+
+    /**
+     * Parses the XML of a stored message.
+     *
+     * @param msgXML the stored XML.
+     * @param creationDate the date when the message was stored.
+     * @param retryInvalid true if parsing should be retried after removing invalid XML characters.
+     * @return the parsed message, or null if it could not be parsed.
+     */
+    private OfflineMessage parse(String msgXML, Date creationDate, boolean retryInvalid) throws InterruptedException {
+        OfflineMessage message;
+        try {
+            message = new OfflineMessage(creationDate, SAXReaderUtil.readRootElement(msgXML));
+        } catch (ExecutionException e) {
+            if (!retryInvalid) {
+                Log.error("Failed to parse offline message: " + msgXML, e);
+                return null;
+            }
+            // Try again after removing invalid XML chars (e.g. &#12;)
+            Matcher matcher = pattern.matcher(msgXML);
+            if (matcher.find()) {
+                msgXML = matcher.replaceAll("");
+            }
+            try {
+                message = new OfflineMessage(creationDate, SAXReaderUtil.readRootElement(msgXML));
+            } catch (ExecutionException de) {
+                Log.error("Failed to route packet (offline message): " + msgXML, de);
+                return null; // skip and process remaining offline messages
+            }
+        }
+
+        // if there is already a delay stamp, we shouldn't add another.
+        Element delaytest = message.getChildElement("delay", "urn:xmpp:delay");
+        if (delaytest == null) {
+            // Add a delayed delivery (XEP-0203) element to the message.
+            Element delay = message.addChildElement("delay", "urn:xmpp:delay");
+            delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
+            delay.addAttribute("stamp", XMPPDateTimeFormat.format(creationDate));
+        }
+        return message;
+    }
+
+    /**
+     * Returns the messages of a user that are queued to be written (or are being written) to the database, oldest
+     * first.
+     */
+    private List<PendingMessage> getPending(String username) {
+        final Queue<PendingMessage> queue = pending.get(username);
+        if (queue == null) {
+            return Collections.emptyList();
+        }
+        final List<PendingMessage> result = new ArrayList<>(queue);
+        result.sort(Comparator.comparing((PendingMessage m) -> m.creationDate).thenComparingLong(m -> m.messageID));
+        return result;
+    }
+
+    private void removePending(PendingMessage pendingMessage) {
+        pending.computeIfPresent(pendingMessage.username, (key, queue) -> {
+            queue.remove(pendingMessage);
+            return queue.isEmpty() ? null : queue;
+        });
+    }
+
+    private boolean addTombstone(String username, long messageID, int size) {
+        return tombstones.computeIfAbsent(username, key -> new ConcurrentHashMap<>()).putIfAbsent(messageID, size) == null;
+    }
+
+    /**
+     * Marks a message as consumed, and removes it from the cached totals of its user. Must be invoked while holding
+     * the lock of those totals.
+     *
+     * @return false if the message was already consumed by someone else, otherwise true.
+     */
+    private boolean consume(String username, long messageID, int size) {
+        if (!addTombstone(username, messageID, size)) {
+            return false;
+        }
+        adjustCachedTotals(username, -1, -size);
+        return true;
+    }
+
+    private boolean isTombstoned(String username, long messageID) {
+        final Map<Long, Integer> deleting = tombstones.get(username);
+        return deleting != null && deleting.containsKey(messageID);
+    }
+
+    /**
+     * Deletes messages that have been consumed from the database, after the messages that were still being written
+     * have been written.
+     */
+    private void deleteConsumed(String username, Map<Long, Integer> consumed, List<PendingMessage> inFlight) {
+        awaitStored(inFlight);
+        final boolean deleted = delete(username, consumed.keySet());
+        tombstones.computeIfPresent(username, (key, deleting) -> {
+            deleting.keySet().removeAll(consumed.keySet());
+            return deleting.isEmpty() ? null : deleting;
+        });
+        if (!deleted) {
+            // The messages will be delivered again: have the totals reloaded to reflect that.
+            removeUsernameFromSizeCache(username);
+        }
+    }
+
+    /**
+     * Deletes messages of a user from the database, in one transaction.
+     *
+     * @return true if the messages were deleted, otherwise false.
+     */
+    boolean delete(String username, Collection<Long> messageIDs) {
+        boolean abortTransaction = false;
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(DELETE_OFFLINE_MESSAGE_ID);
+            final boolean batch = DbConnectionManager.isBatchUpdatesSupported();
+            for (final Long messageID : messageIDs) {
+                pstmt.setString(1, username);
+                pstmt.setLong(2, messageID);
+                if (batch) {
+                    pstmt.addBatch();
+                } else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+            return true;
+        }
+        catch (Exception e) {
+            abortTransaction = true;
+            Log.error("Error deleting offline messages of username: " + username, e);
+            return false;
+        }
+        finally {
+            DbConnectionManager.closeStatement(pstmt);
+            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+        }
+    }
+
+    /**
+     * Writes messages to the database, in one transaction.
+     *
+     * @return true if the messages were written, otherwise false.
+     */
+    boolean insert(List<PendingMessage> messages) {
+        boolean abortTransaction = false;
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(INSERT_OFFLINE);
+            final boolean batch = messages.size() > 1 && DbConnectionManager.isBatchUpdatesSupported();
+            for (final PendingMessage message : messages) {
+                pstmt.setString(1, message.username);
+                pstmt.setLong(2, message.messageID);
+                pstmt.setString(3, StringUtils.dateToMillis(message.creationDate));
+                pstmt.setInt(4, message.xml.length());
+                pstmt.setString(5, message.xml);
+                if (batch) {
+                    pstmt.addBatch();
+                } else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+            return true;
+        }
+        catch (Exception e) {
+            abortTransaction = true;
+            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+            return false;
+        }
+        finally {
+            DbConnectionManager.closeStatement(pstmt);
+            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+        }
+    }
+
+    /**
+     * Writes a batch of queued messages to the database. Messages that have been cancelled in the meantime are skipped.
+     * Messages that fail to be written are queued again, until {@link #STORE_MAX_ATTEMPTS} attempts have been made.
+     */
+    void store(List<PendingMessage> batch) {
+        final List<PendingMessage> claimed = new ArrayList<>(batch.size());
+        for (final PendingMessage message : batch) {
+            if (message.state.compareAndSet(PendingMessage.QUEUED, PendingMessage.CLAIMED)) {
+                claimed.add(message);
+            }
+        }
+        if (claimed.isEmpty()) {
+            return;
+        }
+        final List<PendingMessage> failed = new ArrayList<>();
+        if (!insert(claimed)) {
+            if (claimed.size() == 1) {
+                failed.addAll(claimed);
+            } else {
+                // Retry one by one, to prevent one faulty message from causing all others to fail.
+                for (final PendingMessage message : claimed) {
+                    if (!insert(Collections.singletonList(message))) {
+                        failed.add(message);
+                    }
+                }
+            }
+        }
+        for (final PendingMessage message : claimed) {
+            if (failed.contains(message)) {
+                retryOrDiscard(message);
+            } else {
+                complete(message);
+            }
+        }
+    }
+
+    /**
+     * Queues a message that failed to be written to the database again, or discards it when it can no longer be
+     * retried (because the maximum number of attempts was reached, or because this store is stopping).
+     */
+    private void retryOrDiscard(PendingMessage message) {
+        final OfflineMessageArchiver archiver = this.archiver;
+        message.failedAttempts++;
+        if (archiver != null && message.failedAttempts < STORE_MAX_ATTEMPTS) {
+            Log.debug("Unable to store offline message {} for user '{}' (attempt {} of {}). It will be retried.", message.messageID, message.username, message.failedAttempts, STORE_MAX_ATTEMPTS);
+            message.state.set(PendingMessage.QUEUED);
+            archiver.archive(message);
+            return;
+        }
+        final Lock lock = sizeCache.getLock(message.username);
+        lock.lock();
+        try {
+            message.state.set(PendingMessage.CANCELLED);
+            if (isTombstoned(message.username, message.messageID)) {
+                // Already retrieved, which removed it from the totals.
+                Log.debug("Unable to store offline message {} for user '{}', which has already been retrieved.", message.messageID, message.username);
+            } else {
+                Log.warn("Unable to store offline message {} for user '{}'. The message is lost.", message.messageID, message.username);
+                adjustCachedTotals(message.username, -1, -message.xml.length());
+            }
+        } finally {
+            lock.unlock();
+        }
+        removePending(message);
+        message.stored.complete(null);
+    }
+
+    private void complete(PendingMessage message) {
+        message.state.set(PendingMessage.DONE);
+        removePending(message);
+        message.stored.complete(null);
+    }
+
+    /**
+     * Waits (for a bounded amount of time) until messages that are being written to the database have been written.
+     */
+    private void awaitStored(Collection<PendingMessage> messages) {
+        final long deadline = System.nanoTime() + STORE_AWAIT_TIMEOUT.toNanos();
+        for (final PendingMessage message : messages) {
+            try {
+                message.stored.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                Log.warn("Offline message {} for user '{}' was not stored within {}.", message.messageID, message.username, STORE_AWAIT_TIMEOUT);
+                return;
+            }
+        }
+    }
+
+    /**
+     * When clustering, waits (for a bounded amount of time) until the messages that were queued on any cluster node
+     * have been written to the database, as these are not otherwise visible to this cluster node.
+     */
+    private void awaitClusterWrites() {
+        final OfflineMessageArchiver archiver = this.archiver;
+        if (archiver == null || !ClusterManager.isClusteringStarted()) {
+            return;
+        }
+        final Instant now = Instant.now();
+        final long deadline = System.nanoTime() + STORE_AWAIT_TIMEOUT.toNanos();
+        try {
+            Duration eta;
+            while (!(eta = archiver.availabilityETA(now)).isZero() && System.nanoTime() < deadline) {
+                Thread.sleep(Math.max(1, Math.min(eta.toMillis(), TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public void userCreated(User user, Map<String, Object> params) {
         //Do nothing
@@ -516,6 +1193,17 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         // Add this module as a user event listener so we can delete
         // all offline messages when a user is deleted
         UserEventDispatcher.addListener(this);
+        if (SPOOL_ENABLED.getValue()) {
+            if (ClusterManager.isClusteringEnabled()) {
+                Log.warn("The offline message spool is enabled, but cannot be used when clustering. Offline messages are stored in the database instead.");
+            } else {
+                startSpool();
+            }
+        }
+        if (spool == null && STORE_ASYNC.getValue()) {
+            archiver = new OfflineMessageArchiver(STORE_BATCH_SIZE.getValue(), STORE_BATCH_INTERVAL.getValue(), STORE_BATCH_GRACE_PERIOD.getValue());
+            XMPPServer.getInstance().getArchiveManager().add(archiver);
+        }
         //start timer if enabled
         if (OFFLINE_AUTOCLEAN_ENABLE.getValue())
         {
@@ -530,6 +1218,47 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         UserEventDispatcher.removeListener(this);
         //stop timer if started
         cancelTimer();
+        final OfflineMessageSpool spool = this.spool;
+        if (spool != null) {
+            this.spool = null;
+            TaskEngine.getInstance().cancelScheduledTask(spoolMaintenanceTask);
+            spoolMaintenanceTask = null;
+            spool.close();
+        }
+        final OfflineMessageArchiver archiver = this.archiver;
+        if (archiver != null) {
+            this.archiver = null;
+            XMPPServer.getInstance().getArchiveManager().remove(archiver);
+            // Write the messages that the archiver did not get to.
+            final List<PendingMessage> remaining = new ArrayList<>();
+            pending.values().forEach(remaining::addAll);
+            store(remaining);
+        }
+    }
+
+    private void startSpool() {
+        final OfflineMessageSpool spool = new OfflineMessageSpool(Paths.get(JiveGlobals.getHomeDirectory(), "spool", "offline"), SPOOL_SEGMENT_SIZE.getValue());
+        try {
+            spool.open();
+        } catch (IOException e) {
+            Log.error("Unable to open the offline message spool. Offline messages are stored in the database instead.", e);
+            return;
+        }
+        this.spool = spool;
+        final long interval = SPOOL_SYNC_INTERVAL.getValue().toMillis();
+        spoolMaintenanceTask = new TimerTask() {
+            @Override
+            public void run() {
+                maintainSpool(spool, null);
+            }
+        };
+        TaskEngine.getInstance().scheduleAtFixedRate(spoolMaintenanceTask, interval, interval);
+    }
+
+    private static int maintainSpool(OfflineMessageSpool spool, Long expiryCutoff) {
+        // Release the writers of users that did not receive messages for a while, as each holds a mapping.
+        final long idleCutoff = System.currentTimeMillis() - Math.max(60000, SPOOL_SYNC_INTERVAL.getValue().toMillis() * 10);
+        return spool.maintain(idleCutoff, expiryCutoff);
     }
 
     /**
@@ -605,7 +1334,15 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
             @Override
             public void run() {
                 try {
-                    if (ClusterManager.isClusteringStarted())
+                    final OfflineMessageSpool spool = OfflineMessageStore.this.spool;
+                    if (spool != null)
+                    {
+                        // The spool expires messages by compacting its segments, and maintains its totals in memory.
+                        final long cutoff = Instant.now().minus(OFFLINE_AUTOCLEAN_DAYSTOLIVE.getValue()).toEpochMilli();
+                        final int removed = maintainSpool(spool, cutoff);
+                        Log.info("Offline message cleaning - Cleaning successful. Removed {} message(s) from the spool.", removed);
+                    }
+                    else if (ClusterManager.isClusteringStarted())
                     {
                         if (ClusterManager.isSeniorClusterMember())
                         {
@@ -645,6 +1382,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
     public void readSizeForAllUsers() {
         // See if the size is cached.
         sizeCache.clear();
+        countCache.clear();
 
         int size = 0;
         String username = null;
@@ -697,4 +1435,75 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
             DbConnectionManager.closeConnection(pstmt, con);
         }
     }
+
+    /**
+     * An offline message that is queued to be written to the database.
+     */
+    static final class PendingMessage {
+        static final int QUEUED = 0;
+        static final int CLAIMED = 1;
+        static final int CANCELLED = 2;
+        static final int DONE = 3;
+
+        final String username;
+        final long messageID;
+        final Date creationDate;
+        final String xml;
+
+        /**
+         * Transitions from QUEUED to either CANCELLED (when it is retrieved or deleted before it is written), or
+         * CLAIMED (when it is being written), after which it becomes DONE, or QUEUED again when writing failed, or
+         * CANCELLED when writing can no longer be retried. A CANCELLED message is not in the database, while a DONE
+         * message is. Transitions to CANCELLED update the cached totals of the user while holding their lock.
+         */
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+
+        /**
+         * The number of times that writing the message to the database failed. Only accessed by the thread that
+         * claimed the message.
+         */
+        int failedAttempts;
+
+        /**
+         * Completes after the message was written to the database (or failed to be written).
+         */
+        final CompletableFuture<Void> stored = new CompletableFuture<>();
+
+        PendingMessage(String username, long messageID, Date creationDate, String xml) {
+            this.username = username;
+            this.messageID = messageID;
+            this.creationDate = creationDate;
+            this.xml = xml;
+        }
+    }
+
+    /**
+     * An offline message as read from the database.
+     */
+    static final class StoredMessage {
+        final String xml;
+        final String creationDate;
+        final long messageID;
+
+        StoredMessage(String xml, String creationDate, long messageID) {
+            this.xml = xml;
+            this.creationDate = creationDate;
+            this.messageID = messageID;
+        }
+    }
+
+    /**
+     * Writes queued offline messages to the database, in batches.
+     */
+    private class OfflineMessageArchiver extends Archiver<PendingMessage> {
+
+        OfflineMessageArchiver(int maxWorkQueueSize, Duration maxPurgeInterval, Duration gracePeriod) {
+            super("Offline Message Store", maxWorkQueueSize, maxPurgeInterval, gracePeriod);
+        }
+
+        @Override
+        protected void store(List<PendingMessage> batch) {
+            OfflineMessageStore.this.store(batch);
+        }
+    }
 }
@@ -102,6 +102,17 @@ public interface PresenceManager {
      */
     boolean canProbePresence( JID prober, String probee ) throws UserNotFoundException;
 
+    /**
+     * Loads the last unavailable presence and last activity of local users, in preparation of
+     * probing the presence of many of them, such as the contacts in a roster of a user that logs
+     * in. This is an optimization: users of which the data is not preloaded are looked up when
+     * they are probed.
+     *
+     * @param usernames the usernames of the local users that are about to be probed.
+     */
+    default void preloadOfflinePresences( Collection<String> usernames ) {
+    }
+
     /**
      * Sends unavailable presence from all of the user's available resources to the remote user.
      * When a remote user unsubscribes from the presence of a local user then the server should
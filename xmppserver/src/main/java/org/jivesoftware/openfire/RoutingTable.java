@@ -149,6 +149,22 @@ public interface RoutingTable {
      */
     void routePacket(JID jid, Packet packet, boolean fromServer) throws PacketException;
 
+    /**
+     * Routes packets to their recipients, in order. Each packet is routed to the address that is
+     * defined by its 'to' value, as if {@link #routePacket(JID, Packet, boolean)} was invoked for
+     * each of them. Implementations can deliver consecutive packets that share a sender and a
+     * remote domain as one batch, which saves looking up the route to that domain for every packet.
+     *
+     * @param packets the packets to route.
+     * @param fromServer true if the packets were created by the server.
+     * @throws PacketException thrown if a packet is malformed.
+     */
+    default void routePackets(List<? extends Packet> packets, boolean fromServer) throws PacketException {
+        for (Packet packet : packets) {
+            routePacket(packet.getTo(), packet, fromServer);
+        }
+    }
+
     /**
      * Returns true if a registered user or anonymous user with the specified full JID is
      * currently logged. When running inside of a cluster a true value will be returned
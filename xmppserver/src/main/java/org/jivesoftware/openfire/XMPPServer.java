@@ -41,6 +41,7 @@ import org.apache.logging.log4j.LogManager;
 import org.dom4j.Document;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.database.JNDIDataSourceProvider;
+import org.jivesoftware.database.StatementMetrics;
 import org.jivesoftware.openfire.admin.AdminManager;
 import org.jivesoftware.openfire.audit.AuditManager;
 import org.jivesoftware.openfire.audit.spi.AuditManagerImpl;
@@ -87,6 +88,8 @@ import org.jivesoftware.openfire.handler.PresenceUpdateHandler;
 import org.jivesoftware.openfire.keystore.CertificateStoreManager;
 import org.jivesoftware.openfire.keystore.IdentityStore;
 import org.jivesoftware.openfire.lockout.LockOutManager;
+import org.jivesoftware.openfire.mbean.DatabaseStatistics;
+import org.jivesoftware.openfire.mbean.DatabaseStatisticsMBean;
 import org.jivesoftware.openfire.mediaproxy.MediaProxyService;
 import org.jivesoftware.openfire.muc.MultiUserChatManager;
 import org.jivesoftware.openfire.net.MulticastDNSService;
@@ -1064,6 +1067,10 @@ public class XMPPServer {
         finally {
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
+
+        if (JMXManager.isEnabled()) {
+            JMXManager.tryRegister(new DatabaseStatistics(StatementMetrics.getInstance()), DatabaseStatisticsMBean.OBJECT_NAME);
+        }
     }
 
     /**
@@ -18,6 +18,8 @@ package org.jivesoftware.openfire.archive;
 import org.jivesoftware.openfire.JMXManager;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.container.BasicModule;
+import org.jivesoftware.openfire.mbean.ArchiverStatistics;
+import org.jivesoftware.openfire.mbean.ArchiverStatisticsMBean;
 import org.jivesoftware.openfire.mbean.ThreadPoolExecutorDelegate;
 import org.jivesoftware.openfire.mbean.ThreadPoolExecutorDelegateMBean;
 import org.jivesoftware.util.NamedThreadFactory;
@@ -81,6 +83,11 @@ public class ArchiveManager extends BasicModule
      */
     private final ConcurrentMap<String, Archiver> tasks = new ConcurrentHashMap<>();
 
+    /**
+     * Object names used to register the statistics MBeans (JMX) of the currently running tasks.
+     */
+    private final ConcurrentMap<String, ObjectName> taskObjectNames = new ConcurrentHashMap<>();
+
     public ArchiveManager()
     {
         super( "ArchiveManager" );
@@ -123,6 +130,8 @@ public class ArchiveManager extends BasicModule
             JMXManager.tryUnregister(objectName);
             objectName = null;
         }
+        taskObjectNames.values().forEach(JMXManager::tryUnregister);
+        taskObjectNames.clear();
 
         if ( executor != null )
         {
@@ -145,6 +154,14 @@ public class ArchiveManager extends BasicModule
 
         executor.submit( archiver );
         tasks.put( archiver.getId(), archiver );
+
+        if (JMXManager.isEnabled()) {
+            final ArchiverStatisticsMBean mBean = new ArchiverStatistics(archiver);
+            final ObjectName taskObjectName = JMXManager.tryRegister(mBean, ArchiverStatisticsMBean.BASE_OBJECT_NAME + ObjectName.quote(archiver.getId()));
+            if (taskObjectName != null) {
+                taskObjectNames.put(archiver.getId(), taskObjectName);
+            }
+        }
     }
 
     /**
@@ -165,6 +182,11 @@ public class ArchiveManager extends BasicModule
     public synchronized void remove( final String id )
     {
         final Archiver task = tasks.remove( id );
+        final ObjectName taskObjectName = taskObjectNames.remove( id );
+        if ( taskObjectName != null )
+        {
+            JMXManager.tryUnregister( taskObjectName );
+        }
         if ( task != null )
         {
             task.stop();
@@ -28,6 +28,7 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -72,6 +73,11 @@ public abstract class Archiver<E> implements Runnable
 
     private Instant lastProcessed = null;
 
+    // Metrics that can be used to detect that storage is not keeping up with the rate at which work is produced.
+    private final AtomicLong storedCount = new AtomicLong();
+    private volatile Duration lastStoreDuration = Duration.ZERO;
+    private volatile Duration lastStoreLag = Duration.ZERO;
+
     final List<ArchiveCandidate<E>> workQueue = Collections.synchronizedList(new ArrayList<>());
 
     /**
@@ -151,9 +157,13 @@ public abstract class Archiver<E> implements Runnable
                 final List<E> batch = workQueue.stream()
                     .map( ArchiveCandidate::getElement )
                     .collect( Collectors.toList() );
+                final Instant storeStart = Instant.now();
                 store( batch );
                 lastProcessed = workQueue.get( workQueue.size() -1 ).createdAt();
-                Log.trace( "Stored all produced work in the database. Work size: {}", workQueue.size() );
+                lastStoreDuration = Duration.between( storeStart, Instant.now() );
+                lastStoreLag = Duration.between( workQueue.get( 0 ).createdAt(), storeStart );
+                storedCount.addAndGet( batch.size() );
+                Log.trace( "Stored all produced work in the database. Work size: {}, duration: {}, remaining queue size: {}", workQueue.size(), lastStoreDuration, queue.size() );
                 workQueue.clear();
             }
         }
@@ -251,6 +261,48 @@ public abstract class Archiver<E> implements Runnable
         }
     }
 
+    /**
+     * Returns the amount of data that has been provided to this archiver, but that has not yet been picked up to be
+     * stored. A value that keeps growing indicates that storage does not keep up with the rate at which data is being
+     * archived.
+     *
+     * @return the number of queued elements.
+     */
+    public int getQueueSize()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Returns the total amount of data that has been stored by this archiver since it was instantiated.
+     *
+     * @return the number of stored elements.
+     */
+    public long getStoredCount()
+    {
+        return storedCount.get();
+    }
+
+    /**
+     * Returns the time it took to store the most recent batch of data.
+     *
+     * @return a duration, zero when no data has been stored yet.
+     */
+    public Duration getLastStoreDuration()
+    {
+        return lastStoreDuration;
+    }
+
+    /**
+     * Returns the time that the oldest element of the most recently stored batch of data was waiting to be stored.
+     *
+     * @return a duration, zero when no data has been stored yet.
+     */
+    public Duration getLastStoreLag()
+    {
+        return lastStoreLag;
+    }
+
     public int getMaxWorkQueueSize()
     {
         return maxWorkQueueSize;
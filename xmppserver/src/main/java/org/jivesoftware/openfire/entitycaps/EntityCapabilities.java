@@ -25,6 +25,7 @@ import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -59,6 +60,12 @@ public class EntityCapabilities implements Cacheable, Externalizable {
      * The hash algorithm that was used to create the hash string.
      */
     private String hashAttribute;
+
+    /**
+     * The IDs of the nodes for which the entity wants to receive notifications (based on the '+notify' features).
+     * Computed on first use, and shared by all entities that advertise the same 'ver' hash.
+     */
+    private transient volatile Set<String> notifyNodes;
     
     /**
      * Adds an identity to the entity capabilities.
@@ -79,6 +86,7 @@ public class EntityCapabilities implements Cacheable, Externalizable {
      *         feature
      */
     boolean addFeature(String feature) {
+        notifyNodes = null;
         return features.add(feature);
     }
 
@@ -125,6 +133,27 @@ public class EntityCapabilities implements Cacheable, Externalizable {
         return features.contains(feature);
     }
 
+    /**
+     * Returns the IDs of the pubsub nodes for which the entity is interested in receiving notifications, as expressed
+     * by the '+notify' features of these entity capabilities (see XEP-0163, section 4).
+     *
+     * @return an unmodifiable set of node IDs (possibly empty).
+     */
+    public Set<String> getNotifyNodes() {
+        Set<String> result = notifyNodes;
+        if (result == null) {
+            final Set<String> nodes = new HashSet<>();
+            for (final String feature : features) {
+                if (feature.endsWith("+notify")) {
+                    nodes.add(feature.substring(0, feature.length() - "+notify".length()));
+                }
+            }
+            result = Collections.unmodifiableSet(nodes);
+            notifyNodes = result;
+        }
+        return result;
+    }
+
     void setVerAttribute(String verAttribute) {
         this.verAttribute = verAttribute;
     }
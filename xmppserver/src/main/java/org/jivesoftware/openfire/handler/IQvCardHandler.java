@@ -139,8 +139,6 @@ public class IQvCardHandler extends IQHandler {
                         Element filter = packet.getChildElement()
                                 .element(QName.get("filter", "vcard-temp-filter"));
                         if (filter != null) {
-                            // Create a copy so we don't modify the original vCard
-                            userVCard = userVCard.createCopy();
                             // Ignore fields requested by the user
                             for (Iterator toFilter = filter.elementIterator(); toFilter.hasNext();)
                             {
@@ -17,7 +17,6 @@
 package org.jivesoftware.openfire.handler;
 
 import org.jivesoftware.openfire.ChannelHandler;
-import org.jivesoftware.openfire.OfflineMessage;
 import org.jivesoftware.openfire.OfflineMessageStore;
 import org.jivesoftware.openfire.PacketDeliverer;
 import org.jivesoftware.openfire.PacketException;
@@ -45,7 +44,6 @@ import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
-import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 import org.xmpp.packet.PacketError;
 import org.xmpp.packet.Presence;
@@ -265,6 +263,17 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
             // Send pending subscription requests to user if roster service is enabled
             if (RosterManager.isRosterServiceEnabled()) {
                 Roster roster = rosterManager.getRoster(username);
+                // Load the offline presence of the local contacts that are about to be probed at once
+                final List<String> probees = new ArrayList<>();
+                for (RosterItem item : roster.getRosterItems()) {
+                    if ((item.getSubStatus() == RosterItem.SUB_TO || item.getSubStatus() == RosterItem.SUB_BOTH)
+                            && item.getJid().getNode() != null && localServer.isLocal(item.getJid())) {
+                        probees.add(item.getJid().getNode());
+                    }
+                }
+                if (probees.size() > 1) {
+                    presenceManager.preloadOfflinePresences(probees);
+                }
                 for (RosterItem item : roster.getRosterItems()) {
                     if (item.getRecvStatus() == RosterItem.RecvType.SUBSCRIBE) {
                         Presence presence = item.getSubscribeStanza();
@@ -282,10 +291,7 @@ public class PresenceUpdateHandler extends BasicModule implements ChannelHandler
             }
             if (session.canFloodOfflineMessages()) {
                 // deliver offline messages if any
-                Collection<OfflineMessage> messages = messageStore.getMessages(username, true);
-                for (Message message : messages) {
-                    session.process(message);
-                }
+                messageStore.processMessages(username, true, session::process);
             }
         }
     }
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.mbean;
+
+import org.jivesoftware.openfire.archive.Archiver;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Exposes the metrics of an {@link Archiver} as an MBean (as defined by {@link ArchiverStatisticsMBean}).
+ */
+public class ArchiverStatistics implements ArchiverStatisticsMBean
+{
+    private final Archiver<?> archiver;
+
+    public ArchiverStatistics(@Nonnull final Archiver<?> archiver) {
+        this.archiver = archiver;
+    }
+
+    @Override
+    public int getQueueSize() {
+        return archiver.getQueueSize();
+    }
+
+    @Override
+    public long getStoredCount() {
+        return archiver.getStoredCount();
+    }
+
+    @Override
+    public long getLastStoreDurationMillis() {
+        return archiver.getLastStoreDuration().toMillis();
+    }
+
+    @Override
+    public long getLastStoreLagMillis() {
+        return archiver.getLastStoreLag().toMillis();
+    }
+}
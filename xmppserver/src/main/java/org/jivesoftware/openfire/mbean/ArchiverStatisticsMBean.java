@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.mbean;
+
+/**
+ * MBean definition for the metrics of a task that stores data in the database (@link {@link org.jivesoftware.openfire.archive.Archiver}).
+ *
+ * A queue size that keeps growing, or a store lag that keeps increasing, indicates that the database does not keep up
+ * with the rate at which data is being archived.
+ */
+public interface ArchiverStatisticsMBean
+{
+    String BASE_OBJECT_NAME = "org.igniterealtime.openfire:type=Archiver,name=";
+
+    /**
+     * Returns the amount of data that has been provided to the archiver, but that has not yet been picked up to be
+     * stored.
+     *
+     * @return the number of queued elements.
+     */
+    int getQueueSize();
+
+    /**
+     * Returns the total amount of data that has been stored by the archiver since it was instantiated.
+     *
+     * @return the number of stored elements.
+     */
+    long getStoredCount();
+
+    /**
+     * Returns the time it took to store the most recent batch of data.
+     *
+     * @return a duration in milliseconds.
+     */
+    long getLastStoreDurationMillis();
+
+    /**
+     * Returns the time that the oldest element of the most recently stored batch of data was waiting to be stored.
+     *
+     * @return a duration in milliseconds.
+     */
+    long getLastStoreLagMillis();
+}
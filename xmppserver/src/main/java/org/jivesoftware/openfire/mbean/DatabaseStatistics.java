@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.mbean;
+
+import org.jivesoftware.database.LatencyHistogram;
+import org.jivesoftware.database.StatementMetrics;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Exposes {@link StatementMetrics} as an MBean (as defined by {@link DatabaseStatisticsMBean}).
+ */
+public class DatabaseStatistics implements DatabaseStatisticsMBean
+{
+    /**
+     * The maximum number of templates that is returned by {@link #getTopTemplates()}.
+     */
+    private static final int TOP_TEMPLATES = 25;
+
+    private final StatementMetrics metrics;
+
+    public DatabaseStatistics(@Nonnull final StatementMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public long getExecutionCount() {
+        return metrics.getTemplates().stream().mapToLong(template -> template.getHistogram().getCount()).sum();
+    }
+
+    @Override
+    public long getSlowQueryCount() {
+        return metrics.getSlowQueryCount();
+    }
+
+    @Override
+    public double getPoolWait99thPercentileMillis() {
+        return metrics.getPoolWait().getPercentileMillis(99);
+    }
+
+    @Override
+    public double getHoldTime99thPercentileMillis() {
+        return metrics.getHoldTime().getPercentileMillis(99);
+    }
+
+    @Override
+    public String[] getTopTemplates() {
+        final List<StatementMetrics.Template> templates = metrics.getTemplates();
+        final String[] result = new String[Math.min(TOP_TEMPLATES, templates.size())];
+        for (int i = 0; i < result.length; i++) {
+            final StatementMetrics.Template template = templates.get(i);
+            final LatencyHistogram histogram = template.getHistogram();
+            result[i] = String.format("count=%d errors=%d total=%.1fms mean=%.3fms p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms %s",
+                histogram.getCount(), template.getErrorCount(), histogram.getTotalMillis(), histogram.getMeanMillis(),
+                histogram.getPercentileMillis(50), histogram.getPercentileMillis(99), histogram.getPercentileMillis(99.9),
+                histogram.getMaxMillis(), template.getSql());
+        }
+        return result;
+    }
+
+    @Override
+    public String[] getSlowQueries() {
+        return metrics.getSlowQueries().stream().map(StatementMetrics.SlowQuery::toString).toArray(String[]::new);
+    }
+
+    @Override
+    public void reset() {
+        metrics.reset();
+    }
+}
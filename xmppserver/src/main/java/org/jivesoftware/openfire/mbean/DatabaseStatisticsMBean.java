@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.mbean;
+
+/**
+ * MBean definition for the database statement metrics (@link {@link org.jivesoftware.database.StatementMetrics}).
+ */
+public interface DatabaseStatisticsMBean
+{
+    String OBJECT_NAME = "org.igniterealtime.openfire:type=Database,name=statements";
+
+    /**
+     * Returns the total number of statement executions.
+     *
+     * @return an execution count.
+     */
+    long getExecutionCount();
+
+    /**
+     * Returns the number of statement executions that exceeded the slow query threshold.
+     *
+     * @return an execution count.
+     */
+    long getSlowQueryCount();
+
+    /**
+     * Returns the 99th percentile of the time spent waiting for a connection from the connection pool.
+     *
+     * @return a duration in milliseconds.
+     */
+    double getPoolWait99thPercentileMillis();
+
+    /**
+     * Returns the 99th percentile of the time for which a connection is held.
+     *
+     * @return a duration in milliseconds.
+     */
+    double getHoldTime99thPercentileMillis();
+
+    /**
+     * Returns a description of the SQL templates that took the most time to execute, including the number of
+     * executions and latency percentiles.
+     *
+     * @return one description per template, most expensive first.
+     */
+    String[] getTopTemplates();
+
+    /**
+     * Returns a description of the most recent executions that exceeded the slow query threshold, including the code
+     * that executed the statement.
+     *
+     * @return one description per execution, most recent first.
+     */
+    String[] getSlowQueries();
+
+    /**
+     * Discards all collected metrics.
+     */
+    void reset();
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.mbean;
+
+import org.jivesoftware.openfire.roster.PresenceBroadcaster;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Exposes the metrics of a {@link PresenceBroadcaster} as an MBean (as defined by {@link PresenceBroadcastStatisticsMBean}).
+ */
+public class PresenceBroadcastStatistics implements PresenceBroadcastStatisticsMBean
+{
+    private final PresenceBroadcaster broadcaster;
+
+    public PresenceBroadcastStatistics(@Nonnull final PresenceBroadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    @Override
+    public long getBroadcastCount() {
+        return broadcaster.getBroadcastCount();
+    }
+
+    @Override
+    public long getParallelBroadcastCount() {
+        return broadcaster.getParallelBroadcastCount();
+    }
+
+    @Override
+    public long getDeliveryCount() {
+        return broadcaster.getDeliveryCount();
+    }
+
+    @Override
+    public long getRemoteDomainBatchCount() {
+        return broadcaster.getRemoteDomainBatchCount();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        return broadcaster.getLatency().getMeanMillis();
+    }
+
+    @Override
+    public double getLatency99thPercentileMillis() {
+        return broadcaster.getLatency().getPercentileMillis(99);
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+        return broadcaster.getLatency().getMaxMillis();
+    }
+
+    @Override
+    public void reset() {
+        broadcaster.reset();
+    }
+}
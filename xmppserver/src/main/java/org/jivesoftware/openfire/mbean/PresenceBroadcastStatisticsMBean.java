@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.mbean;
+
+/**
+ * MBean definition for the metrics of presence broadcasts to roster contacts (@link {@link org.jivesoftware.openfire.roster.PresenceBroadcaster}).
+ */
+public interface PresenceBroadcastStatisticsMBean
+{
+    String OBJECT_NAME = "org.igniterealtime.openfire:type=Roster,name=presenceBroadcast";
+
+    /**
+     * Returns the total number of presence broadcasts.
+     *
+     * @return a broadcast count.
+     */
+    long getBroadcastCount();
+
+    /**
+     * Returns the number of presence broadcasts of which the updates were delivered in parallel.
+     *
+     * @return a broadcast count.
+     */
+    long getParallelBroadcastCount();
+
+    /**
+     * Returns the total number of addresses to which presence updates were delivered.
+     *
+     * @return a delivery count.
+     */
+    long getDeliveryCount();
+
+    /**
+     * Returns the total number of batches in which presence updates were routed to remote domains.
+     *
+     * @return a batch count.
+     */
+    long getRemoteDomainBatchCount();
+
+    /**
+     * Returns the average duration of a presence broadcast.
+     *
+     * @return a duration in milliseconds.
+     */
+    double getMeanLatencyMillis();
+
+    /**
+     * Returns the 99th percentile of the duration of a presence broadcast.
+     *
+     * @return a duration in milliseconds.
+     */
+    double getLatency99thPercentileMillis();
+
+    /**
+     * Returns the longest duration of a presence broadcast.
+     *
+     * @return a duration in milliseconds.
+     */
+    double getMaxLatencyMillis();
+
+    /**
+     * Discards all collected metrics.
+     */
+    void reset();
+}
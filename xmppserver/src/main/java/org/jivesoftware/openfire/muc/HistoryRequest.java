@@ -17,12 +17,16 @@
 package org.jivesoftware.openfire.muc;
 
 import java.text.ParseException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.ListIterator;
 
 import org.dom4j.Element;
+import org.jivesoftware.openfire.muc.spi.MUCPersistenceManager;
+import org.jivesoftware.util.SystemProperty;
 import org.jivesoftware.util.XMPPDateTimeFormat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,7 +40,13 @@ import org.xmpp.packet.Message;
  * 
  * A user may combine any of these four methods. The idea is that the user will receive the smallest 
  * amount of traffic so the amount of history to collect will stop as soon as any of the requested 
- * method has reached its limit.
+ * method has reached its limit.<p>
+ *
+ * The most recent messages are served from the history that the room keeps in memory. When that history does not
+ * reach back far enough to satisfy the request and {@link #ARCHIVE_ENABLED} is set, older messages are read from the
+ * conversation log of the room. This is done by {@link #prepare(MUCRoom)}, which is to be invoked before the room is
+ * locked to process the join, so that other stanzas of the room do not wait for the database. Note that messages that
+ * are still queued to be written to the conversation log are only available from the in-memory history.
  * 
  * @author Gaston Dombiak
  */
@@ -45,11 +55,41 @@ public class HistoryRequest {
     private static final Logger Log = LoggerFactory.getLogger(HistoryRequest.class);
     private static final XMPPDateTimeFormat xmppDateTime = new XMPPDateTimeFormat();
 
+    /**
+     * Controls if history requests that are not satisfied by the history that is kept in memory are complemented with
+     * older messages from the conversation log (for rooms that have logging enabled).
+     */
+    public static final SystemProperty<Boolean> ARCHIVE_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("xmpp.muc.history.archive.enabled")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * The maximum amount of messages that is loaded from the conversation log to satisfy one history request.
+     */
+    public static final SystemProperty<Integer> ARCHIVE_MAX_STANZAS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.muc.history.archive.max-stanzas")
+        .setDefaultValue(500)
+        .setMinValue(0)
+        .setDynamic(true)
+        .build();
+
     private int maxChars = -1;
     private int maxStanzas = -1;
     private int seconds = -1;
     private Date since;
 
+    /**
+     * The ID of the room for which messages were read from the conversation log, or null if none were read.
+     */
+    private Long preparedRoomID;
+
+    /**
+     * Messages that were read from the conversation log, most recent first.
+     */
+    private List<Message> archivedHistory = Collections.emptyList();
+
     public HistoryRequest(Element userFragment) {
         Element history = userFragment.element("history");
         if (history != null) {
@@ -124,8 +164,56 @@ public class HistoryRequest {
         return maxChars > -1 || maxStanzas > -1 || seconds > -1 || since != null;
     }
 
+    /**
+     * Reads the messages from the conversation log of the room that are needed to satisfy this request, if the history
+     * that the room keeps in memory does not.
+     *
+     * This queries the database. It is to be invoked before the room is locked to process the join, after which the
+     * history, including the messages that were read here, is sent by {@link #sendHistory(MUCRole, MUCRoomHistory)}.
+     * As messages can be sent to the room in the mean time, the most recent messages of the conversation log are read,
+     * including those that are also kept in memory.
+     *
+     * @param room the room that is being joined.
+     */
+    public void prepare(MUCRoom room) {
+        preparedRoomID = null;
+        archivedHistory = Collections.emptyList();
+        final MUCRoomHistory roomHistory = room.getRoomHistory();
+        if (!isConfigured() || getMaxChars() == 0 || !isArchiveApplicable(roomHistory)) {
+            return;
+        }
+
+        final Collector collector = collectInMemory(roomHistory);
+        if (collector.isLimitReached()) {
+            return;
+        }
+
+        Date from = new Date(0);
+        if (getSince() != null) {
+            from = getSince();
+        }
+        if (getSeconds() > -1) {
+            final Date secondsAgo = new Date(System.currentTimeMillis() - getSeconds() * 1000L);
+            if (secondsAgo.after(from)) {
+                from = secondsAgo;
+            }
+        }
+        final Date until = new Date();
+        int maxResults = ARCHIVE_MAX_STANZAS.getValue() + collector.getAccumulatedStanzas();
+        if (getMaxStanzas() > -1) {
+            maxResults = Math.min(maxResults, getMaxStanzas());
+        }
+        Log.trace("Loading up to {} messages sent between {} and {} from the conversation log of room {}.", maxResults, from, until, room.getJID());
+        archivedHistory = loadArchivedHistory(room, from, until, maxResults);
+        preparedRoomID = room.getID();
+    }
+
     /**
      * Sends the smallest amount of traffic that meets any combination of the requested criteria.
+     *
+     * When the history that is kept in memory does not satisfy the request, it is complemented with the older messages
+     * that were read from the conversation log by {@link #prepare(MUCRoom)}. If that was not invoked for this room,
+     * the conversation log is read now.
      * 
      * @param joinRole the user that will receive the history.
      * @param roomHistory the history of the room.
@@ -137,68 +225,184 @@ public class HistoryRequest {
                 // OF-2163: Create a defensive copy of the message, to prevent the address that it is sent to to leak back into the archive.
                 joinRole.send(history.next().createCopy());
             }
+            return;
+        }
+
+        if (getMaxChars() == 0) {
+            // The user requested to receive no history
+            return;
         }
-        else {
-            if (getMaxChars() == 0) {
-                // The user requested to receive no history
-                return;
-            }
-            int accumulatedChars = 0;
-            int accumulatedStanzas = 0;
-            Element delayInformation;
-            LinkedList<Message> historyToSend = new LinkedList<>();
-            ListIterator<Message> iterator = roomHistory.getReverseMessageHistory();
-            while (iterator.hasPrevious()) {
-                Message message = iterator.previous();
-                // Update number of characters to send
-                String text = message.getBody() == null ? message.getSubject() : message.getBody();
-                if (text == null) {
-                    // Skip this message since it has no body and no subject  
+
+        // The in-memory history holds the most recent messages of the room. Serve from it for as long as it lasts.
+        final Collector collector = collectInMemory(roomHistory);
+
+        // When the in-memory history did not satisfy the request, older messages are obtained from the conversation log.
+        if (!collector.isLimitReached() && isArchiveApplicable(roomHistory)) {
+            final MUCRoom room = roomHistory.getRoom();
+            if (preparedRoomID == null || preparedRoomID != room.getID()) {
+                prepare(room);
+            }
+            final Date oldestSeen = collector.getOldestSeen();
+            for (final Message message : archivedHistory) {
+                // Skip the messages that were also obtained from memory.
+                final Date date = getDelayedDate(message);
+                if (oldestSeen != null && date != null && !date.before(oldestSeen)) {
                     continue;
                 }
-                accumulatedChars += text.length();
-                if (getMaxChars() > -1 && accumulatedChars > getMaxChars()) {
-                    // Stop collecting history since we have exceded a limit
-                    break;
-                }
-                // Update number of messages to send
-                accumulatedStanzas ++;
-                if (getMaxStanzas() > -1 && accumulatedStanzas > getMaxStanzas()) {
-                    // Stop collecting history since we have exceded a limit
+                if (!collector.offer(message)) {
                     break;
                 }
+            }
+        }
 
-                if (getSeconds() > -1 || getSince() != null) {
-                    delayInformation = message.getChildElement("delay", "urn:xmpp:delay");
-                    try {
-                        // Get the date when the historic message was sent
-                        Date delayedDate = xmppDateTime.parseString(delayInformation.attributeValue("stamp"));
-                        if (getSince() != null && delayedDate != null && delayedDate.before(getSince())) {
-                            // Stop collecting history since we have exceded a limit
-                            break;
-                        }
-                        if (getSeconds() > -1) {
-                            Date current = new Date();
-                            long diff = (current.getTime() - delayedDate.getTime()) / 1000;
-                            if (getSeconds() <= diff) {
-                                // Stop collecting history since we have exceded a limit
-                                break;
-                            }
-                        }
-                    }
-                    catch (Exception e) {
-                        Log.error("Error parsing date from historic message", e);
-                    }
+        send(joinRole, collector.getHistoryToSend());
+    }
 
-                }
+    private boolean isArchiveApplicable(MUCRoomHistory roomHistory) {
+        return ARCHIVE_ENABLED.getValue() && roomHistory.isHistoryEnabled() && roomHistory.getRoom().isLogEnabled();
+    }
+
+    /**
+     * Collects messages from the history that the room keeps in memory, most recent first, until any of the limits of
+     * this request is exceeded.
+     */
+    private Collector collectInMemory(MUCRoomHistory roomHistory) {
+        final Collector collector = new Collector();
+        ListIterator<Message> iterator = roomHistory.getReverseMessageHistory();
+        while (iterator.hasPrevious()) {
+            if (!collector.offer(iterator.previous())) {
+                break;
+            }
+        }
+        return collector;
+    }
 
-                historyToSend.addFirst(message);
+    /**
+     * Returns the date at which a historic message was sent, or null if it cannot be determined.
+     */
+    private static Date getDelayedDate(Message message) {
+        final Element delayInformation = message.getChildElement("delay", "urn:xmpp:delay");
+        if (delayInformation != null) {
+            try {
+                return xmppDateTime.parseString(delayInformation.attributeValue("stamp"));
             }
-            // Send the smallest amount of traffic to the user
-            for (final Message aHistoryToSend : historyToSend) {
-                // OF-2163: Create a defensive copy of the message, to prevent the address that it is sent to to leak back into the archive.
-                joinRole.send(aHistoryToSend.createCopy());
+            catch (Exception e) {
+                Log.error("Error parsing date from historic message", e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads messages from the conversation log of a room that were sent in a particular period, most recent first.
+     *
+     * @param room the room for which to load messages.
+     * @param from the earliest date (inclusive) of messages to be returned.
+     * @param until the latest date (exclusive) of messages to be returned.
+     * @param maxResults the maximum amount of messages to return.
+     * @return messages, ordered from most to least recent.
+     */
+    List<Message> loadArchivedHistory(MUCRoom room, Date from, Date until, int maxResults) {
+        return MUCPersistenceManager.loadHistory(room, from, until, maxResults);
+    }
+
+    private static void send(MUCRole joinRole, List<Message> historyToSend) {
+        // Send the smallest amount of traffic to the user
+        for (final Message aHistoryToSend : historyToSend) {
+            // OF-2163: Create a defensive copy of the message, to prevent the address that it is sent to to leak back into the archive.
+            joinRole.send(aHistoryToSend.createCopy());
+        }
+    }
+
+    /**
+     * Collects history messages, most recent first, until any of the limits of the request is exceeded.
+     */
+    private class Collector {
+
+        private int accumulatedChars = 0;
+        private int accumulatedStanzas = 0;
+        private boolean limitReached = false;
+        private Date oldestSeen;
+        private final LinkedList<Message> historyToSend = new LinkedList<>();
+
+        /**
+         * Adds a message that is older than all messages that were offered before.
+         *
+         * @param message the message to add.
+         * @return false if a limit was exceeded (the message was not added, and no further messages should be offered).
+         */
+        boolean offer(Message message) {
+            // Get the date when the historic message was sent
+            final Date delayedDate = getDelayedDate(message);
+            if (delayedDate != null) {
+                oldestSeen = delayedDate;
+            }
+
+            // Update number of characters to send
+            String text = message.getBody() == null ? message.getSubject() : message.getBody();
+            if (text == null) {
+                // Skip this message since it has no body and no subject
+                return true;
+            }
+            accumulatedChars += text.length();
+            if (getMaxChars() > -1 && accumulatedChars > getMaxChars()) {
+                // Stop collecting history since we have exceded a limit
+                limitReached = true;
+                return false;
+            }
+            // Update number of messages to send
+            accumulatedStanzas ++;
+            if (getMaxStanzas() > -1 && accumulatedStanzas > getMaxStanzas()) {
+                // Stop collecting history since we have exceded a limit
+                limitReached = true;
+                return false;
             }
+
+            if (delayedDate != null) {
+                if (getSince() != null && delayedDate.before(getSince())) {
+                    // Stop collecting history since we have exceded a limit
+                    limitReached = true;
+                    return false;
+                }
+                if (getSeconds() > -1) {
+                    Date current = new Date();
+                    long diff = (current.getTime() - delayedDate.getTime()) / 1000;
+                    if (getSeconds() <= diff) {
+                        // Stop collecting history since we have exceded a limit
+                        limitReached = true;
+                        return false;
+                    }
+                }
+            }
+
+            historyToSend.addFirst(message);
+            return true;
+        }
+
+        /**
+         * Returns true if collection stopped because one of the limits of the request was exceeded, or if the requested
+         * amount of messages has been collected, which implies that no older messages are to be sent.
+         */
+        boolean isLimitReached() {
+            return limitReached || (getMaxStanzas() > -1 && accumulatedStanzas >= getMaxStanzas());
+        }
+
+        /**
+         * Returns the date of the oldest message that was offered, or null if no dated message was offered.
+         */
+        Date getOldestSeen() {
+            return oldestSeen;
+        }
+
+        int getAccumulatedStanzas() {
+            return accumulatedStanzas;
+        }
+
+        /**
+         * Returns the collected messages, least recent first.
+         */
+        List<Message> getHistoryToSend() {
+            return historyToSend;
         }
     }
 }
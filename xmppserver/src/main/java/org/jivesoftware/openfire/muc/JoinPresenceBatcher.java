@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.muc;
+
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects the presence stanzas of occupants that join a room, and delivers them to the other occupants of that room
+ * in the background, after a short delay.
+ *
+ * During a burst of joins (for example, when many users reconnect after a network interruption), this takes the
+ * fan-out of join presences out of the join procedure. That procedure is executed while the room is locked, which
+ * otherwise causes every join to wait for the distribution of the presence of all preceding joins.
+ *
+ * The joining occupant itself is not affected: it receives the presences of existing occupants and its own
+ * self-presence immediately. To maintain the order in which stanzas are received by other occupants, pending join
+ * presences are delivered before any other stanza is broadcast in the room (see {@link #flush(JID)}).
+ *
+ * As room instances are not guaranteed to be retained between usages (eg: when running in a cluster), instances of
+ * this class are kept per room address, rather than on the room itself. An instance is discarded as soon as all of its
+ * pending presences have been delivered.
+ */
+class JoinPresenceBatcher
+{
+    private static final Logger Log = LoggerFactory.getLogger(JoinPresenceBatcher.class);
+
+    private static final ConcurrentMap<JID, JoinPresenceBatcher> BATCHERS = new ConcurrentHashMap<>();
+
+    /**
+     * A join presence that is pending delivery.
+     */
+    private static class Pending
+    {
+        final Presence nonAnonPresence;
+        final Presence anonPresence;
+        final boolean canAnyoneDiscoverJID;
+        final List<MUCRole> recipients;
+
+        Pending(@Nonnull final Presence nonAnonPresence, @Nonnull final Presence anonPresence, final boolean canAnyoneDiscoverJID, @Nonnull final Collection<MUCRole> recipients)
+        {
+            this.nonAnonPresence = nonAnonPresence;
+            this.anonPresence = anonPresence;
+            this.canAnyoneDiscoverJID = canAnyoneDiscoverJID;
+            this.recipients = new ArrayList<>(recipients);
+        }
+    }
+
+    private final JID roomJID;
+
+    /**
+     * Join presences that are pending delivery, in order of arrival. Guarded by 'this'.
+     */
+    private List<Pending> pending = new ArrayList<>();
+
+    /**
+     * Indicates if a task has been scheduled to deliver the pending presences. Guarded by 'this'.
+     */
+    private boolean scheduled = false;
+
+    /**
+     * Serializes deliveries, so that a flush does not return before presences that were drained by a concurrent flush
+     * have been delivered.
+     */
+    private final Object deliveryMutex = new Object();
+
+    private JoinPresenceBatcher(@Nonnull final JID roomJID)
+    {
+        this.roomJID = roomJID;
+    }
+
+    /**
+     * Queues a join presence for delivery to the other occupants of a room.
+     *
+     * @param roomJID The address of the room.
+     * @param nonAnonPresence The presence to send to occupants that are allowed to see the real JID of the joining occupant.
+     * @param anonPresence The presence to send to occupants that are not allowed to see the real JID of the joining occupant.
+     * @param canAnyoneDiscoverJID True if the room is non-anonymous.
+     * @param recipients The occupants to which the presence is to be sent (which should exclude the joining occupant).
+     * @param delayMillis The delay (in milliseconds) after which pending presences are delivered, if that did not happen earlier.
+     */
+    static void add(@Nonnull final JID roomJID, @Nonnull final Presence nonAnonPresence, @Nonnull final Presence anonPresence, final boolean canAnyoneDiscoverJID, @Nonnull final Collection<MUCRole> recipients, final long delayMillis)
+    {
+        final Pending presence = new Pending(nonAnonPresence, anonPresence, canAnyoneDiscoverJID, recipients);
+
+        // Adding under the lock of the map prevents the presence to be added to an instance that is concurrently being discarded.
+        BATCHERS.compute(roomJID, (jid, batcher) -> {
+            if (batcher == null) {
+                batcher = new JoinPresenceBatcher(jid);
+            }
+            batcher.add(presence, delayMillis);
+            return batcher;
+        });
+    }
+
+    /**
+     * Delivers all join presences that are pending for a room. Returns after the presences have been delivered.
+     *
+     * @param roomJID The address of the room.
+     */
+    static void flush(@Nonnull final JID roomJID)
+    {
+        final JoinPresenceBatcher batcher = BATCHERS.get(roomJID);
+        if (batcher != null) {
+            batcher.flush();
+        }
+    }
+
+    /**
+     * Prevents join presences that are pending for a room to be delivered to an occupant that has left the room.
+     *
+     * @param roomJID The address of the room.
+     * @param occupant The occupant that left the room.
+     */
+    static void removeRecipient(@Nonnull final JID roomJID, @Nonnull final MUCRole occupant)
+    {
+        final JoinPresenceBatcher batcher = BATCHERS.get(roomJID);
+        if (batcher != null) {
+            batcher.removeRecipient(occupant);
+        }
+    }
+
+    /**
+     * Checks if join presences are pending delivery for a room.
+     *
+     * @param roomJID The address of the room.
+     * @return true if presences are pending delivery, or are being delivered.
+     */
+    static boolean hasPending(@Nonnull final JID roomJID)
+    {
+        return BATCHERS.containsKey(roomJID);
+    }
+
+    /**
+     * Delivers all join presences that are pending for a room, and stops tracking the room.
+     *
+     * @param roomJID The address of the room.
+     */
+    static void remove(@Nonnull final JID roomJID)
+    {
+        final JoinPresenceBatcher batcher = BATCHERS.remove(roomJID);
+        if (batcher != null) {
+            batcher.flush();
+        }
+    }
+
+    private synchronized void add(@Nonnull final Pending presence, final long delayMillis)
+    {
+        pending.add(presence);
+        if (!scheduled) {
+            scheduled = true;
+            TaskEngine.getInstance().schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, delayMillis);
+        }
+    }
+
+    private void flush()
+    {
+        synchronized (deliveryMutex) {
+            final List<Pending> toDeliver;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                toDeliver = pending;
+                pending = new ArrayList<>();
+                scheduled = false;
+            }
+
+            Log.trace("Delivering {} pending join presence(s) in room {}", toDeliver.size(), roomJID);
+            for (final Pending presence : toDeliver) {
+                deliver(presence);
+            }
+
+            // Discard this instance when no new presences were queued during delivery. This is done after delivery, so
+            // that a concurrent flush of the room waits for the delivery to finish.
+            BATCHERS.computeIfPresent(roomJID, (jid, batcher) -> batcher == this && batcher.isIdle() ? null : batcher);
+        }
+    }
+
+    private synchronized boolean isIdle()
+    {
+        return pending.isEmpty();
+    }
+
+    private synchronized void removeRecipient(@Nonnull final MUCRole occupant)
+    {
+        for (final Pending presence : pending) {
+            presence.recipients.remove(occupant);
+        }
+    }
+
+    private void deliver(@Nonnull final Pending presence)
+    {
+        for (final MUCRole occupant : presence.recipients) {
+            try {
+                // Do not send broadcast presence to occupants hosted in other FMUC nodes.
+                if (occupant.isRemoteFmuc()) {
+                    continue;
+                }
+                if (!presence.canAnyoneDiscoverJID && MUCRole.Role.moderator != occupant.getRole()) {
+                    occupant.send(presence.anonPresence);
+                } else {
+                    occupant.send(presence.nonAnonPresence);
+                }
+            }
+            catch (Exception e) {
+                Log.warn("An unexpected exception prevented a join presence from {} to be delivered to {}.", presence.nonAnonPresence.getFrom(), occupant.getUserAddress(), e);
+            }
+        }
+    }
+}
@@ -70,6 +70,17 @@ public class MUCRoom implements GroupEventListener, Externalizable, Result, Cach
         .setDefaultValue(true)
         .build();
 
+    /**
+     * The period during which the presences of occupants that join a room are collected, before they are delivered to
+     * the other occupants of the room. A value of zero causes these presences to be delivered immediately.
+     */
+    public static final SystemProperty<Duration> JOIN_PRESENCE_COALESCE_WINDOW = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.muc.join.presence.coalesce-window")
+        .setDynamic(true)
+        .setDefaultValue(Duration.ZERO)
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .build();
+
     private static final SystemProperty<Duration> SELF_PRESENCE_TIMEOUT = SystemProperty.Builder.ofType(Duration.class)
         .setKey("xmpp.muc.join.self-presence-timeout")
         .setDynamic(true)
@@ -1280,6 +1291,7 @@ public class MUCRoom implements GroupEventListener, Externalizable, Result, Cach
     public void removeOccupantRole(@Nonnull final MUCRole leaveRole) {
         Log.trace( "Remove occupant from room {}: {}", this.getJID(), leaveRole );
         occupants.remove(leaveRole);
+        JoinPresenceBatcher.removeRecipient(getJID(), leaveRole);
         MUCEventDispatcher.occupantLeft(leaveRole.getRoleAddress(), leaveRole.getUserAddress(), leaveRole.getNickname());
     }
 
@@ -1309,6 +1321,7 @@ public class MUCRoom implements GroupEventListener, Externalizable, Result, Cach
         isDestroyed = true;
         // Removes the room from the list of rooms hosted in the service
         mucService.removeChatRoom(name);
+        JoinPresenceBatcher.remove(getJID());
 
         // Send an unavailable presence to each removed occupant
         for (MUCRole removedRole : removedRoles) {
@@ -1563,6 +1576,13 @@ public class MUCRoom implements GroupEventListener, Externalizable, Result, Cach
         final Presence anonPresence = createAnonCopy(presence);
         final Presence selfPresence = createSelfPresenceCopy(presence, isJoinPresence);
 
+        final long coalesceWindow = isJoinPresence ? JOIN_PRESENCE_COALESCE_WINDOW.getValue().toMillis() : 0;
+        if (coalesceWindow <= 0) {
+            // Deliver join presences that are still pending, so that they are received before this presence.
+            JoinPresenceBatcher.flush(getJID());
+        }
+        final List<MUCRole> coalescedRecipients = new ArrayList<>();
+
         for (final MUCRole occupant : getOccupants())
         {
             try
@@ -1581,6 +1601,10 @@ public class MUCRoom implements GroupEventListener, Externalizable, Result, Cach
                     // This occupant is the subject of the stanza. Send the 'self-presence' stanza.
                     Log.trace( "Sending self-presence of '{}' to {}", presence.getFrom(), occupant.getUserAddress() );
                     toSend = selfPresence;
+                } else if ( coalesceWindow > 0 ) {
+                    Log.trace( "Queueing join presence of '{}' for delivery to {}", presence.getFrom(), occupant.getUserAddress() );
+                    coalescedRecipients.add(occupant);
+                    continue;
                 } else if ( !canAnyoneDiscoverJID && MUCRole.Role.moderator != occupant.getRole() ) {
                     Log.trace( "Sending anonymized presence of '{}' to {}: The room is semi-anon, and this occupant is not a moderator.", presence.getFrom(), occupant.getUserAddress() );
                     toSend = anonPresence;
@@ -1597,6 +1621,10 @@ public class MUCRoom implements GroupEventListener, Externalizable, Result, Cach
                 Log.warn( "An unexpected exception prevented a presence update from {} to be broadcasted to {}.", presence.getFrom(), occupant.getUserAddress(), e );
             }
         }
+
+        if (!coalescedRecipients.isEmpty()) {
+            JoinPresenceBatcher.add(getJID(), nonAnonPresence, anonPresence, canAnyoneDiscoverJID, coalescedRecipients, coalesceWindow);
+        }
     }
 
     /**
@@ -1705,6 +1733,9 @@ public class MUCRoom implements GroupEventListener, Externalizable, Result, Cach
             throw new IllegalArgumentException("Broadcasted message stanza's 'from' JID " + message.getFrom() + " does not match room JID: " + this.getJID());
         }
 
+        // Deliver join presences that are still pending, so that they are received before this message.
+        JoinPresenceBatcher.flush(getJID());
+
         // Add message to the room history
         roomHistory.addMessage(message);
         // Send message to occupants connected to this JVM
@@ -165,6 +165,24 @@ public final class MUCRoomHistory implements Externalizable {
      */
     public void addOldMessage(String senderJID, String nickname, Date sentDate, String subject,
             String body, String stanza)
+    {
+        historyStrategy.addMessage(createOldMessage(senderJID, nickname, sentDate, subject, body, stanza));
+    }
+
+    /**
+     * Creates a new message based on the provided information, without adding it to the history. This information
+     * will likely come from the database, when loading messages from the conversation log.
+     *
+     * @param senderJID the sender's JID of the message.
+     * @param nickname the sender's nickname of the message.
+     * @param sentDate the date when the message was sent to the room.
+     * @param subject the subject included in the message.
+     * @param body the body of the message.
+     * @param stanza the stanza (as stored in the database) on which the message is based.
+     * @return a message, including delay information.
+     */
+    public Message createOldMessage(String senderJID, String nickname, Date sentDate, String subject,
+            String body, String stanza)
     {
         Message message = new Message();
         message.setType(Message.Type.groupchat);
@@ -222,7 +240,16 @@ public final class MUCRoomHistory implements Externalizable {
             // Set the Room JID as the "from" attribute
             delayInformation.addAttribute("from", getRoom().getRole().getRoleAddress().toString());
         }
-        historyStrategy.addMessage(message);
+        return message;
+    }
+
+    /**
+     * Returns true if the history strategy of the room allows for messages to be kept as history.
+     *
+     * @return true if history is enabled for the room.
+     */
+    boolean isHistoryEnabled() {
+        return historyStrategy.isHistoryEnabled();
     }
 
     /**
@@ -22,6 +22,7 @@ import org.jivesoftware.openfire.archive.Archiver;
 import org.jivesoftware.openfire.handler.IQHandler;
 import org.jivesoftware.openfire.muc.spi.LocalMUCRoomManager;
 import org.jivesoftware.openfire.muc.spi.MUCPersistenceManager;
+import org.jivesoftware.openfire.muc.spi.MUCRoomSearchIndex;
 import org.jivesoftware.openfire.muc.spi.MUCRoomSearchInfo;
 import org.jivesoftware.openfire.muc.spi.OccupantManager;
 import org.jivesoftware.util.JiveConstants;
@@ -456,6 +457,20 @@ public interface MultiUserChatService extends Component {
         return getChatRooms().stream().map(MUCRoomSearchInfo::new).collect(Collectors.toList());
     }
 
+    /**
+     * Returns an index of all rooms of this service, that can be used to efficiently search for rooms. Implementations
+     * that do not maintain such an index return null, in which case {@link #getAllRoomSearchInfo()} is to be used.
+     *
+     * An index that is returned by this method contains all rooms of the service, including rooms that are not
+     * actively loaded in memory.
+     *
+     * @return An index of all rooms, or null.
+     */
+    @Nullable
+    default MUCRoomSearchIndex getRoomSearchIndex() {
+        return null;
+    }
+
     /**
      * Returns true if the server includes a chatroom with the requested name.
      * 
@@ -220,7 +220,7 @@ public class IQMUCSearchHandler
 
         // search for chatrooms matching the request params.
         final List<MUCRoomSearchInfo> mucs = new ArrayList<>();
-        for (MUCRoomSearchInfo room : mucService.getAllRoomSearchInfo())
+        for (MUCRoomSearchInfo room : getCandidates(names, subject))
         {
             boolean find = false;
 
@@ -230,7 +230,7 @@ public class IQMUCSearchHandler
                 {
                     if (nameIsExactMatch)
                     {
-                        if (name.equalsIgnoreCase(room.getNaturalLanguageName()))
+                        if (MUCRoomSearchIndex.normalize(name).equals(MUCRoomSearchIndex.normalize(room.getNaturalLanguageName())))
                         {
                             find = true;
                             break;
@@ -238,8 +238,8 @@ public class IQMUCSearchHandler
                     }
                     else
                     {
-                        if (room.getNaturalLanguageName().toLowerCase().indexOf(
-                            name.toLowerCase()) != -1)
+                        if (MUCRoomSearchIndex.normalize(room.getNaturalLanguageName()).contains(
+                            MUCRoomSearchIndex.normalize(name)))
                         {
                             find = true;
                             break;
@@ -249,8 +249,8 @@ public class IQMUCSearchHandler
             }
 
             if (subject != null && subject.trim().length()>0
-                    && room.getSubject().toLowerCase().indexOf(
-                        subject.toLowerCase()) != -1)
+                    && MUCRoomSearchIndex.normalize(room.getSubject()).contains(
+                        MUCRoomSearchIndex.normalize(subject)))
             {
                 find = true;
             }
@@ -353,6 +353,50 @@ public class IQMUCSearchHandler
         return reply;
     }
 
+    /**
+     * Returns the rooms that possibly match a search request. When the MUC service maintains an index of its rooms, that
+     * is used to select only those rooms that contain the requested name or subject. Otherwise, all rooms are returned.
+     *
+     * Rooms in the returned collection still need to be matched against the search parameters.
+     *
+     * @param names
+     *            The (partial) names that were searched for.
+     * @param subject
+     *            The (partial) subject that was searched for (can be null).
+     * @return Rooms that possibly match the search request.
+     */
+    private Collection<MUCRoomSearchInfo> getCandidates(final Set<String> names, final String subject)
+    {
+        final MUCRoomSearchIndex index = mucService.getRoomSearchIndex();
+        if (index == null)
+        {
+            return mucService.getAllRoomSearchInfo();
+        }
+
+        final Set<MUCRoomSearchInfo> result = new HashSet<>();
+        for (final String name : names)
+        {
+            final Set<MUCRoomSearchInfo> candidates = index.findCandidates(MUCRoomSearchIndex.Field.naturalLanguageName, name);
+            if (candidates == null)
+            {
+                // Search term too short to use the index.
+                return index.getAll();
+            }
+            result.addAll(candidates);
+        }
+
+        if (subject != null && subject.trim().length()>0)
+        {
+            final Set<MUCRoomSearchInfo> candidates = index.findCandidates(MUCRoomSearchIndex.Field.subject, subject);
+            if (candidates == null)
+            {
+                return index.getAll();
+            }
+            result.addAll(candidates);
+        }
+        return result;
+    }
+
     private String determineMaxUsersDisplay(int maxUsers) {
         return (maxUsers == 0) ? "unlimited" : String.valueOf(maxUsers);
      }
@@ -119,8 +119,8 @@ public class IQMUCvCardHandler extends IQHandler
                                     sendConfigChangeNotification(room);
 
                                     // Mimic a client that broadcasts a vCard update. Converse seems to need this.
-                                    final String hash = calculatePhotoHash(vcard);
-                                    sendVCardUpdateNotification(room, hash);
+                                    final String hash = VCardManager.getInstance().getPhotoHash(room.getJID().toString());
+                                    sendVCardUpdateNotification(room, hash == null ? "" : hash);
                                     Log.debug("vCard update request from: '{}', for: '{}' processed successfully.", packet.getFrom(), packet.getTo());
                                 }
                                 catch ( UnsupportedOperationException e )
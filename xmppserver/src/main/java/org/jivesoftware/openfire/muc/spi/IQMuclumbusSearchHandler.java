@@ -33,8 +33,13 @@ import org.xmpp.resultsetmanagement.ResultSetImpl;
 
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class adds support for the search functionality for MUC rooms as identified by
@@ -323,7 +328,7 @@ public class IQMuclumbusSearchHandler
         Log.debug( "Searching for rooms based on search parameters." );
 
         List<MUCRoomSearchInfo> mucs = new ArrayList<>();
-        for ( MUCRoomSearchInfo room : mucService.getAllRoomSearchInfo() )
+        for ( MUCRoomSearchInfo room : getCandidates( params ) )
         {
             boolean find = false;
 
@@ -379,6 +384,72 @@ public class IQMuclumbusSearchHandler
         return mucs;
     }
 
+    /**
+     * Returns the rooms that possibly match the search parameters. When the MUC service maintains an index of its rooms,
+     * that is used to select only rooms that have enough occupants, and that contain all search terms in at least one of
+     * the fields that are searched in. Otherwise, all rooms are returned.
+     *
+     * Rooms in the returned collection still need to be matched against the search parameters.
+     *
+     * @param params The search parameters.
+     * @return Rooms that possibly match the search parameters.
+     */
+    protected Collection<MUCRoomSearchInfo> getCandidates( final SearchParameters params )
+    {
+        final MUCRoomSearchIndex index = mucService.getRoomSearchIndex();
+        if ( index == null )
+        {
+            return mucService.getAllRoomSearchInfo();
+        }
+
+        if ( params.getQ() == null || params.getQ().isEmpty() )
+        {
+            return index.getByOccupantsCount( params.getMinUsers() );
+        }
+
+        final List<String> qs = StringUtils.shellSplit( params.getQ() );
+        final Set<MUCRoomSearchInfo> result = new HashSet<>();
+        final Map<MUCRoomSearchIndex.Field, Boolean> fields = new EnumMap<>( MUCRoomSearchIndex.Field.class );
+        fields.put( MUCRoomSearchIndex.Field.naturalLanguageName, params.isSinname() );
+        fields.put( MUCRoomSearchIndex.Field.description, params.isSindescription() );
+        fields.put( MUCRoomSearchIndex.Field.address, params.isSinaddr() );
+        for ( final Map.Entry<MUCRoomSearchIndex.Field, Boolean> field : fields.entrySet() )
+        {
+            if ( !field.getValue() )
+            {
+                continue;
+            }
+
+            // All terms need to be present in the field.
+            Set<MUCRoomSearchInfo> matches = null;
+            for ( final String q : qs )
+            {
+                final Set<MUCRoomSearchInfo> candidates = index.findCandidates( field.getKey(), q );
+                if ( candidates == null )
+                {
+                    // Search term too short to use the index.
+                    continue;
+                }
+                if ( matches == null )
+                {
+                    matches = candidates;
+                }
+                else
+                {
+                    matches.retainAll( candidates );
+                }
+            }
+
+            if ( matches == null )
+            {
+                // None of the terms could be used to narrow down the search.
+                return index.getByOccupantsCount( params.getMinUsers() );
+            }
+            result.addAll( matches );
+        }
+        return result;
+    }
+
     static Element generateResultElement( final List<MUCRoomSearchInfo> rooms )
     {
         Log.debug( "Generating result element." );
@@ -85,6 +85,12 @@ public class LocalMUCRoomManager
      */
     private final Map<String, MUCRoom> localRooms = new HashMap<>();
 
+    /**
+     * An index of the rooms in #ROOM_CACHE (and of rooms that were unloaded from it), used to answer search and
+     * discovery requests.
+     */
+    private final MUCRoomSearchIndex searchIndex = new MUCRoomSearchIndex();
+
     /**
      * Creates a new instance, specific for the provided MUC service.
      *
@@ -140,6 +146,7 @@ public class LocalMUCRoomManager
             Log.trace("Adding room '{}' of service '{}'", room.getName(), serviceName);
             ROOM_CACHE.put(room.getName(), room);
             localRooms.put(room.getName(), room);
+            searchIndex.update(new MUCRoomSearchInfo(room));
         } finally {
             lock.unlock();
         }
@@ -162,9 +169,11 @@ public class LocalMUCRoomManager
             if (room.isDestroyed) {
                 ROOM_CACHE.remove(room.getName());
                 localRooms.remove(room.getName());
+                searchIndex.remove(room.getName());
             } else {
                 ROOM_CACHE.put(room.getName(), room);
                 localRooms.put(room.getName(), room);
+                searchIndex.update(new MUCRoomSearchInfo(room));
             }
         } finally {
             lock.unlock();
@@ -180,6 +189,18 @@ public class LocalMUCRoomManager
         return ROOM_CACHE.values();
     }
 
+    /**
+     * Returns an index of all rooms that are currently managed by this instance, which is kept up-to-date with changes
+     * to rooms as they are added, synced or removed.
+     *
+     * @return An index of the rooms of this service.
+     */
+    @Nonnull
+    MUCRoomSearchIndex getSearchIndex()
+    {
+        return searchIndex;
+    }
+
     /**
      * Retrieve a specific room, if one is currently managed by this instance.
      *
@@ -218,6 +239,7 @@ public class LocalMUCRoomManager
                 GroupEventDispatcher.removeListener(room);
             }
             localRooms.remove(roomName);
+            searchIndex.remove(roomName);
             return room;
         } finally {
             lock.unlock();
@@ -226,8 +248,9 @@ public class LocalMUCRoomManager
 
     /**
      * Removes rooms that have only been inactive since a certain date from memory. This does not destroy the room: it
-     * can be reloaded from the database on-demand. Note that this method is expected to operate on persistent rooms
-     * only, as non-persistent rooms will be destroyed immediately after the last occupant leaves.
+     * can be reloaded from the database on-demand, and remains part of the search index. Note that this method is
+     * expected to operate on persistent rooms only, as non-persistent rooms will be destroyed immediately after the last
+     * occupant leaves.
      *
      * @param cleanUpDate The cut-off date.
      * @return The total amount of time that the removed rooms had 'chat-time'.
@@ -244,6 +267,8 @@ public class LocalMUCRoomManager
                 if (room != null && room.getEmptyDate() != null && room.getEmptyDate().before(cleanUpDate)) {
                     Log.info("Unloading chat room (due to inactivity):" + roomName + "|" + room.getClass().getName());
                     remove(roomName);
+                    // The room continues to exist: keep it searchable.
+                    searchIndex.update(new MUCRoomSearchInfo(room));
                     totalChatTime = totalChatTime.plus(Duration.ofMillis(room.getChatLength()));
                 }
             } finally {
@@ -386,6 +411,9 @@ public class LocalMUCRoomManager
             @Override
             public void entryRemoved(@Nonnull String key, @Nullable MUCRoom oldValue, @Nonnull NodeID nodeID) {
                 localRooms.remove(key);
+                // The room might have been unloaded rather than destroyed. Have the index be reconciled with the database.
+                searchIndex.remove(key);
+                searchIndex.setComplete(false);
                 final MultiUserChatService service = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService(serviceName);
                 if (service != null) {
                     service.getOccupantManager().roomDestroyed(new JID(key, service.getServiceDomain(), null));
@@ -399,6 +427,9 @@ public class LocalMUCRoomManager
             @Override
             public void entryEvicted(@Nonnull String key, @Nullable MUCRoom oldValue, @Nonnull NodeID nodeID) {
                 localRooms.remove(key);
+                // The room might have been unloaded rather than destroyed. Have the index be reconciled with the database.
+                searchIndex.remove(key);
+                searchIndex.setComplete(false);
                 final MultiUserChatService service = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService(serviceName);
                 if (service != null) {
                     service.getOccupantManager().roomDestroyed(new JID(key, service.getServiceDomain(), null));
@@ -414,6 +445,44 @@ public class LocalMUCRoomManager
             }
         }, false, false);
 
+        // Keep the search index up-to-date with changes that are applied to rooms by other cluster nodes.
+        ROOM_CACHE.addClusteredCacheEntryListener(new ClusteredCacheEntryListener<String, MUCRoom>() {
+            @Override
+            public void entryAdded(@Nonnull String key, @Nullable MUCRoom newValue, @Nonnull NodeID nodeID) {
+                if (newValue != null) {
+                    searchIndex.update(new MUCRoomSearchInfo(newValue));
+                }
+            }
+
+            @Override
+            public void entryRemoved(@Nonnull String key, @Nullable MUCRoom oldValue, @Nonnull NodeID nodeID) {
+            }
+
+            @Override
+            public void entryUpdated(@Nonnull String key, @Nullable MUCRoom oldValue, @Nullable MUCRoom newValue, @Nonnull NodeID nodeID) {
+                if (newValue != null) {
+                    searchIndex.update(new MUCRoomSearchInfo(newValue));
+                }
+            }
+
+            @Override
+            public void entryEvicted(@Nonnull String key, @Nullable MUCRoom oldValue, @Nonnull NodeID nodeID) {
+            }
+
+            @Override
+            public void mapCleared(@Nonnull NodeID nodeID) {
+                rebuildSearchIndex();
+            }
+
+            @Override
+            public void mapEvicted(@Nonnull NodeID nodeID) {
+                rebuildSearchIndex();
+            }
+        }, true, false);
+
+        // The cache now also contains rooms provided by other cluster nodes.
+        rebuildSearchIndex();
+
         return occupantsToRetain;
     }
 
@@ -496,6 +565,21 @@ public class LocalMUCRoomManager
                 lock.unlock();
             }
         }
+
+        // Rooms that were provided by other cluster nodes are no longer available.
+        rebuildSearchIndex();
+    }
+
+    /**
+     * Replaces the content of the search index with the rooms that are currently in the room cache.
+     */
+    private void rebuildSearchIndex()
+    {
+        // Take the snapshots while holding the lock of the index, so that a concurrent update of a room is either part
+        // of the snapshots, or applied after the rebuild.
+        synchronized (searchIndex) {
+            searchIndex.rebuild(ROOM_CACHE.values().stream().map(MUCRoomSearchInfo::new).collect(Collectors.toList()));
+        }
     }
 
     /**
@@ -526,6 +610,7 @@ public class LocalMUCRoomManager
         } else {
             Log.info("Found {} rooms that we know locally, but are not (no longer) in the cache. This can occur when a cluster node fails, but should not occur otherwise. Missing rooms: {}", roomNamesNotInCache.size(), String.join(", ", roomNamesNotInCache));
             localRooms.keySet().removeAll(roomNamesNotInCache);
+            roomNamesNotInCache.forEach(searchIndex::remove);
         }
         return roomNamesNotInCache;
     }
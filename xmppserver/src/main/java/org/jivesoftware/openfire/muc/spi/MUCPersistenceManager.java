@@ -22,9 +22,11 @@ import org.jivesoftware.openfire.group.GroupJID;
 import org.jivesoftware.openfire.muc.*;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.SystemProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
 
 import java.math.BigInteger;
 import java.sql.*;
@@ -54,6 +56,28 @@ public class MUCPersistenceManager {
     // property name for optional number of days to limit persistent MUC history during reload (OF-764)
     private static final String MUC_HISTORY_RELOAD_LIMIT = "xmpp.muc.history.reload.limit";
 
+    /**
+     * The maximum amount of conversation log entries that are inserted in the database using one (multi-row) INSERT
+     * statement. Multi-row statements are only used with databases that are known to support them.
+     */
+    public static final SystemProperty<Integer> CONVERSATION_LOG_ROWS_PER_STATEMENT = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.muc.tasks.log.rows-per-statement")
+        .setMinValue(1)
+        .setDefaultValue(100)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * The number of columns in a row of ofMucConversationLog, as inserted by {@link #ADD_CONVERSATION_LOG}.
+     */
+    private static final int CONVERSATION_LOG_COLUMN_COUNT = 8;
+
+    /**
+     * Upper bound for the amount of parameters in one prepared statement (the most restrictive supported database,
+     * SQL Server, allows for 2100).
+     */
+    private static final int MAX_STATEMENT_PARAMETERS = 2000;
+
     private static final String GET_RESERVED_NAME =
         "SELECT nickname FROM ofMucMember WHERE roomID=? AND jid=?";
     private static final String LOAD_ROOM =
@@ -70,6 +94,10 @@ public class MUCPersistenceManager {
     private static final String LOAD_HISTORY =
         "SELECT sender, nickname, logTime, subject, body, stanza FROM ofMucConversationLog " +
         "WHERE logTime>? AND roomID=? AND (nickname IS NOT NULL OR subject IS NOT NULL) ORDER BY logTime";
+    private static final String LOAD_HISTORY_RANGE =
+        "SELECT sender, nickname, logTime, subject, body, stanza FROM ofMucConversationLog " +
+        "WHERE roomID=? AND logTime>=? AND logTime<? AND (nickname IS NOT NULL OR subject IS NOT NULL) " +
+        "ORDER BY logTime DESC";
     private static final String RELOAD_ALL_ROOMS_WITH_RECENT_ACTIVITY =
         "SELECT roomID, creationDate, modificationDate, name, naturalName, description, " +
         "lockedDate, emptyDate, canChangeSubject, maxUsers, publicRoom, moderated, membersOnly, " +
@@ -143,6 +171,7 @@ public class MUCPersistenceManager {
         "DELETE FROM ofMucAffiliation WHERE jid=?";
     private static final String ADD_CONVERSATION_LOG =
         "INSERT INTO ofMucConversationLog (roomID,messageID,sender,nickname,logTime,subject,body,stanza) VALUES (?,?,?,?,?,?,?,?)";
+    private static final String ADD_CONVERSATION_LOG_ROW = ",(?,?,?,?,?,?,?,?)";
 
     /* Map of subdomains to their associated properties */
     private static ConcurrentHashMap<String,MUCServiceProperties> propertyMaps = new ConcurrentHashMap<>();
@@ -917,6 +946,53 @@ public class MUCPersistenceManager {
         }
     }
 
+    /**
+     * Loads messages from the conversation log of a room that were sent in a particular period, most recent first.
+     *
+     * The query is expected to be satisfied by the index on the room ID and log time of the conversation log, which
+     * makes it suitable to serve history that reaches further back than what is kept in memory.
+     *
+     * @param room the room for which to load messages (which is expected to have logging enabled).
+     * @param from the earliest date (inclusive) of messages to be returned.
+     * @param until the latest date (exclusive) of messages to be returned.
+     * @param maxResults the maximum amount of messages to return.
+     * @return messages, including delay information, ordered from most to least recent.
+     */
+    public static List<Message> loadHistory(MUCRoom room, Date from, Date until, int maxResults) {
+        final List<Message> result = new ArrayList<>();
+        if (maxResults <= 0 || !from.before(until)) {
+            return result;
+        }
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(LOAD_HISTORY_RANGE);
+            DbConnectionManager.limitRowsAndFetchSize(pstmt, 0, maxResults);
+            pstmt.setLong(1, room.getID());
+            pstmt.setString(2, StringUtils.dateToMillis(from));
+            pstmt.setString(3, StringUtils.dateToMillis(until));
+            rs = pstmt.executeQuery();
+            while (rs.next() && result.size() < maxResults) {
+                String senderJID = rs.getString("sender");
+                String nickname = rs.getString("nickname");
+                Date sentDate = new Date(Long.parseLong(rs.getString("logTime").trim()));
+                String subject = rs.getString("subject");
+                String body = rs.getString("body");
+                String stanza = rs.getString("stanza");
+                result.add(room.getRoomHistory().createOldMessage(senderJID, nickname, sentDate, subject, body, stanza));
+            }
+        }
+        catch (SQLException e) {
+            Log.error("A database exception prevented history of room {} to be loaded from the conversation log.", room.getJID(), e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return result;
+    }
+
     /**
      * Updates the room's subject in the database. 
      * 
@@ -1245,10 +1321,18 @@ public class MUCPersistenceManager {
     /**
      * Saves the conversation log entry batch to the database.
      *
+     * When the database is known to support it, entries are inserted using multi-row INSERT statements, which requires
+     * significantly fewer round-trips than inserting rows one-by-one.
+     *
      * @param batch a list of ConversationLogEntry to save to the database.
      * @return true if the batch was saved successfully to the database.
      */
     public static boolean saveConversationLogBatch(List<ConversationLogEntry> batch) {
+        final int rowsPerStatement = getConversationLogRowsPerStatement();
+        if (rowsPerStatement > 1 && batch.size() > 1) {
+            return saveConversationLogBatchMultiRow(batch, rowsPerStatement);
+        }
+
         Connection con = null;
         PreparedStatement pstmt = null;
 
@@ -1258,14 +1342,7 @@ public class MUCPersistenceManager {
             con.setAutoCommit(false);
 
             for(ConversationLogEntry entry : batch) {
-                pstmt.setLong(1, entry.getRoomID());
-                pstmt.setLong(2, entry.getMessageID());
-                pstmt.setString(3, entry.getSender().toString());
-                pstmt.setString(4, entry.getNickname());
-                pstmt.setString(5, StringUtils.dateToMillis(entry.getDate()));
-                pstmt.setString(6, entry.getSubject());
-                pstmt.setString(7, entry.getBody());
-                pstmt.setString(8, entry.getStanza());
+                setConversationLogParameters(pstmt, 0, entry);
                 pstmt.addBatch();
             }
 
@@ -1287,6 +1364,106 @@ public class MUCPersistenceManager {
         }
     }
 
+    /**
+     * Saves the conversation log entry batch to the database, using INSERT statements that each insert up to the
+     * provided amount of rows. All entries are inserted in one transaction.
+     *
+     * @param batch a list of ConversationLogEntry to save to the database.
+     * @param rowsPerStatement the maximum amount of rows to insert with one statement.
+     * @return true if the batch was saved successfully to the database.
+     */
+    static boolean saveConversationLogBatchMultiRow(List<ConversationLogEntry> batch, int rowsPerStatement) {
+        Connection con = null;
+        boolean abortTransaction = false;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+
+            // All but the last statement insert the same number of rows. Reuse the statement for those.
+            PreparedStatement pstmt = null;
+            try {
+                for (int offset = 0; offset < batch.size(); offset += rowsPerStatement) {
+                    final List<ConversationLogEntry> rows = batch.subList(offset, Math.min(offset + rowsPerStatement, batch.size()));
+                    if (pstmt == null || rows.size() != rowsPerStatement) {
+                        DbConnectionManager.closeStatement(pstmt);
+                        pstmt = con.prepareStatement(getMultiRowConversationLogInsert(rows.size()));
+                    }
+                    for (int i = 0; i < rows.size(); i++) {
+                        setConversationLogParameters(pstmt, i * CONVERSATION_LOG_COLUMN_COUNT, rows.get(i));
+                    }
+                    pstmt.executeUpdate();
+                }
+            } finally {
+                DbConnectionManager.closeStatement(pstmt);
+            }
+            return true;
+        }
+        catch (SQLException sqle) {
+            Log.error("Error saving conversation log batch", sqle);
+            abortTransaction = true;
+            return false;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+        }
+    }
+
+    /**
+     * Returns the amount of conversation log rows to insert with one statement, based on configuration and on the
+     * capabilities of the database that is in use.
+     *
+     * @return the amount of rows per INSERT statement. A value of 1 indicates that multi-row inserts are not to be used.
+     */
+    private static int getConversationLogRowsPerStatement() {
+        return getConversationLogRowsPerStatement(DbConnectionManager.getDatabaseType());
+    }
+
+    /**
+     * Returns the amount of conversation log rows to insert with one statement, based on configuration and on the
+     * capabilities of the provided type of database.
+     *
+     * @param databaseType the type of database that is used.
+     * @return the amount of rows per INSERT statement. A value of 1 indicates that multi-row inserts are not to be used.
+     */
+    static int getConversationLogRowsPerStatement(DbConnectionManager.DatabaseType databaseType) {
+        switch (databaseType) {
+            case postgresql:
+            case mysql:
+            case hsqldb:
+            case db2:
+            case sqlserver:
+                return Math.min(CONVERSATION_LOG_ROWS_PER_STATEMENT.getValue(), MAX_STATEMENT_PARAMETERS / CONVERSATION_LOG_COLUMN_COUNT);
+            default:
+                // Oracle and others do not support (standard) multi-row VALUES lists.
+                return 1;
+        }
+    }
+
+    /**
+     * Returns an INSERT statement that inserts the provided amount of rows in ofMucConversationLog.
+     *
+     * @param rows the amount of rows to insert (must be positive).
+     * @return an SQL statement.
+     */
+    static String getMultiRowConversationLogInsert(int rows) {
+        final StringBuilder sql = new StringBuilder(ADD_CONVERSATION_LOG.length() + (rows - 1) * ADD_CONVERSATION_LOG_ROW.length());
+        sql.append(ADD_CONVERSATION_LOG);
+        for (int i = 1; i < rows; i++) {
+            sql.append(ADD_CONVERSATION_LOG_ROW);
+        }
+        return sql.toString();
+    }
+
+    private static void setConversationLogParameters(PreparedStatement pstmt, int offset, ConversationLogEntry entry) throws SQLException {
+        pstmt.setLong(offset + 1, entry.getRoomID());
+        pstmt.setLong(offset + 2, entry.getMessageID());
+        pstmt.setString(offset + 3, entry.getSender().toString());
+        pstmt.setString(offset + 4, entry.getNickname());
+        pstmt.setString(offset + 5, StringUtils.dateToMillis(entry.getDate()));
+        pstmt.setString(offset + 6, entry.getSubject());
+        pstmt.setString(offset + 7, entry.getBody());
+        pstmt.setString(offset + 8, entry.getStanza());
+    }
+
     /**
      * Returns an integer based on the binary representation of the roles to broadcast.
      * 
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.muc.spi;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/**
+ * An in-memory index of {@link MUCRoomSearchInfo} snapshots of the rooms of one MUC service, that is used to answer
+ * room searches (jabber:iq:search, muclumbus) and service discovery requests without having to inspect every room.
+ *
+ * The index is maintained by {@link LocalMUCRoomManager}, which updates it whenever a room is added, synced or removed.
+ * As every change to a room is expected to be followed by a sync, the snapshots in this index reflect the same state as
+ * the rooms in the room cache. Rooms that are unloaded from memory because of inactivity remain in the index, so that
+ * they can be found without reloading every room from the database.
+ *
+ * Free-text fields are indexed by lower-cased trigrams. A lookup returns a superset of the rooms that contain a search
+ * term: callers are expected to apply their own (exact) matching rules to the returned candidates. Callers that match
+ * text regardless of case should use {@link #normalize(String)}, so that they fold case in the same way as the index.
+ *
+ * Changes to the index are serialized: a rebuild cannot overwrite an update of a room that happens concurrently.
+ */
+public class MUCRoomSearchIndex
+{
+    private static final Logger Log = LoggerFactory.getLogger(MUCRoomSearchIndex.class);
+
+    /**
+     * Length of the character sequences that are used to index text.
+     */
+    static final int GRAM_LENGTH = 3;
+
+    /**
+     * Orders rooms by occupant count (most occupants first), then by address.
+     */
+    static final Comparator<MUCRoomSearchInfo> BY_OCCUPANTS_COUNT = Comparator.comparingInt(MUCRoomSearchInfo::getOccupantsCount).reversed()
+        .thenComparing(MUCRoomSearchInfo::getUID);
+
+    /**
+     * The room properties that can be searched using text.
+     */
+    public enum Field
+    {
+        name(MUCRoomSearchInfo::getName),
+        naturalLanguageName(MUCRoomSearchInfo::getNaturalLanguageName),
+        description(MUCRoomSearchInfo::getDescription),
+        subject(MUCRoomSearchInfo::getSubject),
+        address(info -> info.getJID().toString());
+
+        private final Function<MUCRoomSearchInfo, String> getter;
+
+        Field(@Nonnull final Function<MUCRoomSearchInfo, String> getter) {
+            this.getter = getter;
+        }
+
+        @Nullable
+        String valueOf(@Nonnull final MUCRoomSearchInfo info) {
+            return getter.apply(info);
+        }
+    }
+
+    /**
+     * Most recent snapshot of every indexed room, by room name.
+     */
+    private final ConcurrentMap<String, MUCRoomSearchInfo> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * All indexed rooms, ordered by occupant count.
+     */
+    private final ConcurrentSkipListSet<MUCRoomSearchInfo> byOccupantsCount = new ConcurrentSkipListSet<>(BY_OCCUPANTS_COUNT);
+
+    /**
+     * Per text field, the names of the rooms that contain a particular trigram.
+     */
+    private final EnumMap<Field, ConcurrentMap<String, Set<String>>> grams = new EnumMap<>(Field.class);
+
+    /**
+     * Indicates if all rooms of the service (including those that were never loaded in memory) are known to this index.
+     */
+    private volatile boolean complete = false;
+
+    public MUCRoomSearchIndex()
+    {
+        for (final Field field : Field.values()) {
+            grams.put(field, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Adds a room to the index, or replaces the previously indexed state of that room.
+     *
+     * @param info A snapshot of the room.
+     */
+    synchronized void update(@Nonnull final MUCRoomSearchInfo info)
+    {
+        final MUCRoomSearchInfo old = rooms.put(info.getName(), info);
+        if (old != null) {
+            byOccupantsCount.remove(old);
+        }
+        byOccupantsCount.add(info);
+
+        for (final Field field : Field.values()) {
+            final String oldValue = old == null ? null : field.valueOf(old);
+            final String newValue = field.valueOf(info);
+            if (!Objects.equals(oldValue, newValue)) {
+                final Set<String> oldGrams = gramsOf(oldValue);
+                final Set<String> newGrams = gramsOf(newValue);
+                final Set<String> removed = new HashSet<>(oldGrams);
+                removed.removeAll(newGrams);
+                newGrams.removeAll(oldGrams);
+                removeGrams(field, info.getName(), removed);
+                addGrams(field, info.getName(), newGrams);
+            }
+        }
+    }
+
+    /**
+     * Removes a room from the index.
+     *
+     * @param roomName The name of the room to remove.
+     */
+    synchronized void remove(@Nonnull final String roomName)
+    {
+        final MUCRoomSearchInfo old = rooms.remove(roomName);
+        if (old == null) {
+            return;
+        }
+        byOccupantsCount.remove(old);
+        for (final Field field : Field.values()) {
+            removeGrams(field, roomName, gramsOf(field.valueOf(old)));
+        }
+    }
+
+    /**
+     * Replaces the content of the index with snapshots of the provided rooms.
+     *
+     * @param infos Snapshots of all rooms that are to be indexed.
+     */
+    synchronized void rebuild(@Nonnull final Collection<MUCRoomSearchInfo> infos)
+    {
+        Log.debug("Rebuilding index with {} rooms.", infos.size());
+        rooms.clear();
+        byOccupantsCount.clear();
+        grams.values().forEach(Map::clear);
+        complete = false;
+        infos.forEach(this::update);
+    }
+
+    /**
+     * Indicates if all rooms of the service, including those that are not loaded in memory, are known to this index.
+     *
+     * @return true if the index is known to contain all rooms of the service.
+     */
+    public boolean isComplete()
+    {
+        return complete;
+    }
+
+    /**
+     * Marks this index as containing (or no longer containing) all rooms of the service.
+     *
+     * @param complete true if the index contains all rooms of the service.
+     */
+    void setComplete(final boolean complete)
+    {
+        this.complete = complete;
+    }
+
+    /**
+     * Returns the number of rooms in this index.
+     *
+     * @return a room count.
+     */
+    public int size()
+    {
+        return rooms.size();
+    }
+
+    /**
+     * Returns the indexed state of a room.
+     *
+     * @param roomName The name of the room.
+     * @return The room snapshot, or null if the room is not indexed.
+     */
+    @Nullable
+    public MUCRoomSearchInfo get(@Nonnull final String roomName)
+    {
+        return rooms.get(roomName);
+    }
+
+    /**
+     * Returns all indexed rooms, in no particular order.
+     *
+     * @return An unmodifiable view of the room snapshots.
+     */
+    @Nonnull
+    public Collection<MUCRoomSearchInfo> getAll()
+    {
+        return Collections.unmodifiableCollection(rooms.values());
+    }
+
+    /**
+     * Returns the indexed rooms that have at least the specified amount of occupants, ordered by occupant count (rooms
+     * with the most occupants first).
+     *
+     * @param minimum The minimum amount of occupants (inclusive).
+     * @return The room snapshots.
+     */
+    @Nonnull
+    public List<MUCRoomSearchInfo> getByOccupantsCount(final int minimum)
+    {
+        final List<MUCRoomSearchInfo> result = new ArrayList<>();
+        for (final MUCRoomSearchInfo info : byOccupantsCount) {
+            if (info.getOccupantsCount() < minimum) {
+                break;
+            }
+            result.add(info);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the rooms of which the value of the specified field might contain the provided term (ignoring case).
+     *
+     * The result is a superset of the rooms that contain the term: callers should verify each result. When the term is
+     * too short to benefit from the index, null is returned, signalling that all rooms are candidates.
+     *
+     * @param field The field to search in.
+     * @param term The text to search for.
+     * @return Candidate room snapshots, or null when the index cannot narrow down the search.
+     */
+    @Nullable
+    public Set<MUCRoomSearchInfo> findCandidates(@Nonnull final Field field, @Nonnull final String term)
+    {
+        final Set<String> termGrams = gramsOf(term);
+        if (termGrams.isEmpty()) {
+            return null;
+        }
+
+        // Intersect the posting lists, starting with the smallest one.
+        final ConcurrentMap<String, Set<String>> index = grams.get(field);
+        final List<Set<String>> postings = new ArrayList<>(termGrams.size());
+        for (final String gram : termGrams) {
+            final Set<String> posting = index.get(gram);
+            if (posting == null) {
+                return Collections.emptySet();
+            }
+            postings.add(posting);
+        }
+        postings.sort(Comparator.comparingInt(Set::size));
+
+        final Set<String> names = new HashSet<>(postings.get(0));
+        for (int i = 1; i < postings.size() && !names.isEmpty(); i++) {
+            names.retainAll(postings.get(i));
+        }
+
+        final Set<MUCRoomSearchInfo> result = new HashSet<>();
+        for (final String name : names) {
+            final MUCRoomSearchInfo info = rooms.get(name);
+            if (info != null) {
+                result.add(info);
+            }
+        }
+        return result;
+    }
+
+    private void addGrams(@Nonnull final Field field, @Nonnull final String roomName, @Nonnull final Set<String> toAdd)
+    {
+        final ConcurrentMap<String, Set<String>> index = grams.get(field);
+        for (final String gram : toAdd) {
+            index.computeIfAbsent(gram, k -> ConcurrentHashMap.newKeySet()).add(roomName);
+        }
+    }
+
+    private void removeGrams(@Nonnull final Field field, @Nonnull final String roomName, @Nonnull final Set<String> toRemove)
+    {
+        final ConcurrentMap<String, Set<String>> index = grams.get(field);
+        for (final String gram : toRemove) {
+            index.computeIfPresent(gram, (k, names) -> {
+                names.remove(roomName);
+                return names.isEmpty() ? null : names;
+            });
+        }
+    }
+
+    /**
+     * Splits text in lower-cased, overlapping character sequences of {@link #GRAM_LENGTH}.
+     *
+     * @param text the text to split (can be null).
+     * @return All distinct sequences, or an empty set when the text is shorter than {@link #GRAM_LENGTH}.
+     */
+    @Nonnull
+    static Set<String> gramsOf(@Nullable final String text)
+    {
+        if (text == null || text.length() < GRAM_LENGTH) {
+            return new HashSet<>();
+        }
+        final String lower = normalize(text);
+        final Set<String> result = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= lower.length(); i++) {
+            result.add(lower.substring(i, i + GRAM_LENGTH));
+        }
+        return result;
+    }
+
+    /**
+     * Lower-cases text in the way that it is indexed.
+     *
+     * Text is lower-cased character by character, without regard for the default locale, so that offsets in the text
+     * and in search terms correspond. Unlike {@link String#toLowerCase()}, this never changes the length of the text.
+     *
+     * @param text the text to lower-case.
+     * @return the lower-cased text.
+     */
+    @Nonnull
+    public static String normalize(@Nonnull final String text)
+    {
+        final char[] lower = new char[text.length()];
+        for (int i = 0; i < lower.length; i++) {
+            lower[i] = Character.toLowerCase(text.charAt(i));
+        }
+        return new String(lower);
+    }
+}
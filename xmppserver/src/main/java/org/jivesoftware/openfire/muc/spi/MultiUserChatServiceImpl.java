@@ -63,6 +63,7 @@ import org.jivesoftware.util.AutoCloseableReentrantLock;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.JiveProperties;
 import org.jivesoftware.util.LocaleUtils;
+import org.jivesoftware.util.NamedThreadFactory;
 import org.jivesoftware.util.NotFoundException;
 import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.XMPPDateTimeFormat;
@@ -88,8 +89,11 @@ import javax.annotation.Nullable;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -157,6 +161,12 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      */
     private Duration logBatchGracePeriod;
 
+    /**
+     * The number of concurrent database writers used to store conversation logs. Log entries are distributed over the
+     * writers by room.
+     */
+    private int logWriterLanes;
+
     /**
      * the chat service's hostname (subdomain)
      */
@@ -608,6 +618,24 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
 
         StanzaIDUtil.ensureUniqueAndStableStanzaID(packet, packet.getTo().asBareJID());
 
+        // Read any history that a joining user requests from the conversation log before the room is locked, so that
+        // other stanzas of the room do not wait for the database. The history is sent while the room is locked, which
+        // ensures that it reaches the occupant before any messages that are sent to the room after the join.
+        HistoryRequest historyRequest = null;
+        if ( packet instanceof Presence )
+        {
+            final Element mucInfo = ((Presence) packet).getChildElement("x", "http://jabber.org/protocol/muc");
+            if ( mucInfo != null && mucInfo.element("history") != null )
+            {
+                historyRequest = new HistoryRequest(mucInfo);
+                final MUCRoom localRoom = localMUCRoomManager.getLocalRooms().get(roomName);
+                if ( localRoom != null )
+                {
+                    historyRequest.prepare(localRoom);
+                }
+            }
+        }
+
         final Lock lock = getChatRoomLock(roomName);
         lock.lock();
         try {
@@ -634,7 +662,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
             else if ( packet instanceof Presence )
             {
                 // Return value is non-null while argument is, in case this is a request to create a new room.
-                room = process((Presence) packet, roomName, room, preExistingRole);
+                room = process((Presence) packet, roomName, room, preExistingRole, historyRequest);
 
             }
 
@@ -1087,6 +1115,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      * @param roomName        The name of the room that the stanza was addressed to.
      * @param room            The room that the stanza was addressed to, if it exists.
      * @param preExistingRole The role of this user in the addressed room prior to processing of this stanza, if any.
+     * @param historyRequest  The history that is requested by the stanza, if any.
      * @return the room that handled the request
      */
     @Nullable
@@ -1094,7 +1123,8 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         @Nonnull final Presence packet,
         @Nonnull final String roomName,
         @Nullable final MUCRoom room,
-        @Nullable MUCRole preExistingRole )
+        @Nullable MUCRole preExistingRole,
+        @Nullable final HistoryRequest historyRequest )
     {
         final Element mucInfo = packet.getChildElement("x", "http://jabber.org/protocol/muc"); // only sent in initial presence
         final String nickname = packet.getTo().getResource() == null
@@ -1121,7 +1151,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         {
             // If we're not already in a room (role == null), we either are joining it or it's not properly addressed and we drop it silently.
             // Alternative is that mucInfo is not null, in which case the client thinks it isn't in the room, so we should join anyway.
-            return processRoomJoinRequest(packet, roomName, room, nickname);
+            return processRoomJoinRequest(packet, roomName, room, nickname, historyRequest);
         }
         else
         {
@@ -1171,13 +1201,15 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      * @param roomName The name of the room that the stanza was addressed to.
      * @param room     The room that the stanza was addressed to, if it exists.
      * @param nickname The requested nickname.
+     * @param historyRequest The history that is requested by the stanza, if any.
      * @return the room that handled the request
      */
     private MUCRoom processRoomJoinRequest(
         @Nonnull final Presence packet,
         @Nonnull final String roomName,
         @Nullable MUCRoom room,
-        @Nullable String nickname )
+        @Nullable String nickname,
+        @Nullable final HistoryRequest historyRequest )
     {
         Log.trace("Processing join request from '{}' for room '{}'", packet.getFrom(), roomName);
 
@@ -1218,18 +1250,13 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         try
         {
             // User must support MUC in order to create a room
-            HistoryRequest historyRequest = null;
             String password = null;
 
-            // Check for password & requested history if client supports MUC
+            // Check for password if client supports MUC
             final Element mucInfo = packet.getChildElement("x", "http://jabber.org/protocol/muc");
             if ( mucInfo != null )
             {
                 password = mucInfo.elementTextTrim("password");
-                if ( mucInfo.element("history") != null )
-                {
-                    historyRequest = new HistoryRequest(mucInfo);
-                }
             }
 
             // The user joins the room
@@ -1601,14 +1628,26 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     }
 
     /**
-     * Iterates over the local occupants of MUC rooms (users connected to the local cluster node), to determine if an
+     * Inspects the idle local occupants of MUC rooms (users connected to the local cluster node), to determine if an
      * action needs to be taken based on their (lack of) activity. Depending on the configuration of Openfire, inactive
      * users (users that are connected, but have not typed anything) are kicked from the room, and/or are explicitly
      * asked for a proof of life (connectivity), removing them if this proof is not given.
      */
     private void checkForTimedOutUsers()
     {
-        for (final OccupantManager.Occupant occupant : occupantManager.getLocalOccupants())
+        // Only occupants that have been idle for at least the shortest of the configured durations need to be inspected.
+        final Duration idleThreshold;
+        if (userIdleKick != null && userIdlePing != null) {
+            idleThreshold = userIdleKick.compareTo(userIdlePing) < 0 ? userIdleKick : userIdlePing;
+        } else if (userIdleKick != null) {
+            idleThreshold = userIdleKick;
+        } else if (userIdlePing != null) {
+            idleThreshold = userIdlePing;
+        } else {
+            return;
+        }
+
+        for (final OccupantManager.Occupant occupant : occupantManager.localOccupantsInactiveSince(Instant.now().minus(idleThreshold)))
         {
             try
             {
@@ -1753,12 +1792,23 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
 
     /**
      * Stores Conversations in the database.
+     *
+     * When configured to use more than one writer lane, each batch is partitioned by room, and the partitions are
+     * written to the database concurrently. All entries of a particular room are always written by the same lane, which
+     * retains their order. A batch is completely stored before the next batch is processed. Batches that are stored
+     * after the archiver has been stopped are written by the thread of the archiver.
      */
-    private static class ConversationLogEntryArchiver extends Archiver<ConversationLogEntry>
+    static class ConversationLogEntryArchiver extends Archiver<ConversationLogEntry>
     {
-        ConversationLogEntryArchiver( String id, int maxWorkQueueSize, Duration maxPurgeInterval, Duration gracePeriod )
+        private final int lanes;
+
+        private final ExecutorService laneExecutor;
+
+        ConversationLogEntryArchiver( String id, int maxWorkQueueSize, Duration maxPurgeInterval, Duration gracePeriod, int lanes )
         {
             super( id, maxWorkQueueSize, maxPurgeInterval, gracePeriod );
+            this.lanes = Math.max( 1, lanes );
+            this.laneExecutor = this.lanes > 1 ? Executors.newFixedThreadPool( this.lanes, new NamedThreadFactory( "muc-conversation-log-writer-", null, true, null ) ) : null;
         }
 
         @Override
@@ -1769,7 +1819,54 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
                 return;
             }
 
-            MUCPersistenceManager.saveConversationLogBatch( batch );
+            if ( laneExecutor == null || batch.size() == 1 )
+            {
+                MUCPersistenceManager.saveConversationLogBatch( batch );
+                return;
+            }
+
+            final Map<Integer, List<ConversationLogEntry>> partitions = batch.stream()
+                .collect( Collectors.groupingBy( entry -> (int) Math.floorMod( entry.getRoomID(), (long) lanes ) ) );
+
+            final List<Future<Boolean>> results = new ArrayList<>( partitions.size() );
+            for ( final List<ConversationLogEntry> partition : partitions.values() )
+            {
+                try
+                {
+                    results.add( laneExecutor.submit( () -> MUCPersistenceManager.saveConversationLogBatch( partition ) ) );
+                }
+                catch ( final RejectedExecutionException e )
+                {
+                    // The archiver has been stopped, but it still stores the batch that it was working on.
+                    MUCPersistenceManager.saveConversationLogBatch( partition );
+                }
+            }
+            for ( final Future<Boolean> result : results )
+            {
+                try
+                {
+                    result.get();
+                }
+                catch ( final InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                catch ( final ExecutionException e )
+                {
+                    Log.error( "An unexpected exception occurred while storing conversation log entries.", e );
+                }
+            }
+        }
+
+        @Override
+        public void stop()
+        {
+            super.stop();
+            if ( laneExecutor != null )
+            {
+                laneExecutor.shutdown();
+            }
         }
     }
 
@@ -1966,9 +2063,27 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     // method would have to lock _every_ room, the cost of acquiring all locks seem to outweigh the benefit.
     @Override
     public Collection<MUCRoomSearchInfo> getAllRoomSearchInfo() {
-        // Base the result for all rooms that are in memory, then complement with rooms in the database that haven't
-        // been added yet (to catch all non-active rooms);
-        return getActiveAndInactiveRooms().stream().map(MUCRoomSearchInfo::new).collect(Collectors.toList());
+        return new ArrayList<>(getRoomSearchIndex().getAll());
+    }
+
+    /**
+     * Returns an index of all rooms of this service. The first time that this method is invoked (or after the index
+     * has been reset, for example by a cluster event), all rooms that are in the database but not in memory are loaded,
+     * so that these become part of the index.
+     *
+     * @return An index of all rooms of this service.
+     */
+    @Nonnull
+    @Override
+    public MUCRoomSearchIndex getRoomSearchIndex() {
+        final MUCRoomSearchIndex index = localMUCRoomManager.getSearchIndex();
+        if (!index.isComplete()) {
+            // Base the index on all rooms that are in memory, then complement with rooms in the database that haven't
+            // been added yet (to catch all non-active rooms).
+            index.setComplete(true);
+            getActiveAndInactiveRooms();
+        }
+        return index;
     }
 
     /**
@@ -2507,6 +2622,16 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
                 Log.error("Wrong number format of property tasks.log.batchgrace for service "+chatServiceName, e);
             }
         }
+        value = MUCPersistenceManager.getProperty(chatServiceName, "tasks.log.lanes");
+        logWriterLanes = 1;
+        if (value != null) {
+            try {
+                logWriterLanes = Integer.parseInt(value);
+            }
+            catch (final NumberFormatException e) {
+                Log.error("Wrong number format of property tasks.log.lanes for service "+chatServiceName, e);
+            }
+        }
         value = MUCPersistenceManager.getProperty(chatServiceName, "unload.empty_days");
         emptyLimit = 30 * 24;
         if (value != null) {
@@ -2645,7 +2770,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
             synchronized (this) {
                 result = this.archiver;
                 if (result == null) {
-                    result = new ConversationLogEntryArchiver("MUC Service " + this.getAddress().toString(), logMaxConversationBatchSize, logMaxBatchInterval, logBatchGracePeriod);
+                    result = new ConversationLogEntryArchiver("MUC Service " + this.getAddress().toString(), logMaxConversationBatchSize, logMaxBatchInterval, logBatchGracePeriod, logWriterLanes);
                     XMPPServer.getInstance().getArchiveManager().add(result);
                     this.archiver = result;
                 }
@@ -3102,16 +3227,21 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         final Set<DiscoItem> answer = new HashSet<>();
         if (name == null && node == null)
         {
-            // Before returning the items, ensure that all rooms are properly loaded in memory
-            getActiveAndInactiveRooms();
-
-            // Answer all the public rooms as items
-            for (final MUCRoom room : localMUCRoomManager.getAll())
+            // Answer all the public rooms as items. The index includes rooms that are not loaded in memory.
+            for (final MUCRoomSearchInfo info : getRoomSearchIndex().getAll())
             {
-                if (canDiscoverRoom(room, senderJID))
-                {
-                    answer.add(new DiscoItem(room.getRole().getRoleAddress(),
-                        room.getNaturalLanguageName(), null, null));
+                if (!allowToDiscoverLockedRooms && info.isLocked()) {
+                    continue;
+                }
+                if (info.isPublicRoom()) {
+                    answer.add(new DiscoItem(info.getJID(), info.getNaturalLanguageName(), null, null));
+                } else if (allowToDiscoverMembersOnlyRooms || !info.isMembersOnly()) {
+                    // Discoverability of non-public rooms depends on the affiliation of the requester.
+                    final MUCRoom room = getChatRoom(info.getName());
+                    if (room != null && canDiscoverRoom(room, senderJID)) {
+                        answer.add(new DiscoItem(room.getRole().getRoleAddress(),
+                            room.getNaturalLanguageName(), null, null));
+                    }
                 }
             }
         }
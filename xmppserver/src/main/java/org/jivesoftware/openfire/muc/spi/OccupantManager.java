@@ -42,6 +42,7 @@ import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.stream.Collectors;
 
 /**
@@ -108,6 +109,33 @@ public class OccupantManager implements MUCEventListener
     @Nonnull
     private final ConcurrentMap<Occupant, Set<NodeID>> nodesByOccupant = new ConcurrentHashMap<>();
 
+    /**
+     * Lookup table for finding occupants (on any node) by their real JID.
+     *
+     * The occupants in this table are the same instances as the ones in {@link #occupantsByNode}: for every distinct
+     * occupant, exactly one instance is used in all lookup tables.
+     */
+    @Nonnull
+    private final ConcurrentMap<JID, Set<Occupant>> occupantsByRealJID = new ConcurrentHashMap<>();
+
+    /**
+     * Lookup table for finding occupants (on any node) by the name of the room that they are in.
+     */
+    @Nonnull
+    private final ConcurrentMap<String, Set<Occupant>> occupantsByRoom = new ConcurrentHashMap<>();
+
+    /**
+     * Occupants of the local cluster node, grouped in slots of {@link #ACTIVITY_SLOT_MILLIS} by the time of their last
+     * activity (a timer wheel). This allows idle occupants to be found without inspecting all occupants.
+     */
+    @Nonnull
+    private final ConcurrentSkipListMap<Long, Set<Occupant>> localOccupantsByActivitySlot = new ConcurrentSkipListMap<>();
+
+    /**
+     * The granularity (in milliseconds) of {@link #localOccupantsByActivitySlot}.
+     */
+    static final long ACTIVITY_SLOT_MILLIS = 10_000;
+
     /**
      * Creates a new instance, specific for the provided MUC service.
      *
@@ -145,8 +173,12 @@ public class OccupantManager implements MUCEventListener
 
                 // Step 2: add new occupant, if there is any
                 if (newOccupant != null) {
-                    occupantsByNode.computeIfAbsent(nodeID, (n) -> new HashSet<>()).add(newOccupant);
-                    nodesByOccupant.computeIfAbsent(newOccupant, (n) -> new HashSet<>()).add(nodeID);
+                    final Occupant registered = registerInIndexes(newOccupant);
+                    final boolean added = occupantsByNode.computeIfAbsent(nodeID, (n) -> new HashSet<>()).add(registered);
+                    nodesByOccupant.computeIfAbsent(registered, (n) -> new HashSet<>()).add(nodeID);
+                    if (added && nodeID.equals(XMPPServer.getInstance().getNodeID())) {
+                        updateActivitySlot(registered, null, registered.getLastActive());
+                    }
                 }
 
                 Log.debug("Replaced occupant {} with {} for node {}", oldOccupant, newOccupant, nodeID);
@@ -159,17 +191,21 @@ public class OccupantManager implements MUCEventListener
     private void deleteOccupantFromNode(Occupant oldOccupant, NodeID nodeID) {
         if (oldOccupant != null) {
             if (occupantsByNode.containsKey(nodeID)) {
-                occupantsByNode.get(nodeID).remove(oldOccupant);
+                final boolean removed = occupantsByNode.get(nodeID).remove(oldOccupant);
                 if (occupantsByNode.get(nodeID).isEmpty()) {
                     // Clean up, don't leave behind empty set
                     occupantsByNode.remove(nodeID);
                 }
+                if (removed && nodeID.equals(XMPPServer.getInstance().getNodeID())) {
+                    removeFromActivitySlot(findRegistered(oldOccupant));
+                }
             }
             if (nodesByOccupant.containsKey(oldOccupant)) {
                 nodesByOccupant.get(oldOccupant).remove(nodeID);
                 if (nodesByOccupant.get(oldOccupant).isEmpty()) {
                     // Clean up, don't leave behind empty set
                     nodesByOccupant.remove(oldOccupant);
+                    unregisterFromIndexes(oldOccupant);
                 }
             }
 
@@ -183,6 +219,117 @@ public class OccupantManager implements MUCEventListener
         }
     }
 
+    /**
+     * Adds an occupant to the lookup tables by real JID and by room, unless an equal occupant already is registered.
+     *
+     * @param occupant The occupant to register.
+     * @return The instance that is registered for the occupant (which is the argument, or an equal instance that was registered before).
+     */
+    @Nonnull
+    private Occupant registerInIndexes(@Nonnull final Occupant occupant)
+    {
+        final Occupant[] result = new Occupant[1];
+        occupantsByRealJID.compute(occupant.getRealJID(), (jid, occupants) -> {
+            if (occupants == null) {
+                occupants = ConcurrentHashMap.newKeySet();
+            }
+            for (final Occupant existing : occupants) {
+                if (existing.equals(occupant)) {
+                    result[0] = existing;
+                    return occupants;
+                }
+            }
+            occupants.add(occupant);
+            result[0] = occupant;
+            return occupants;
+        });
+        occupantsByRoom.computeIfAbsent(occupant.getRoomName(), (n) -> ConcurrentHashMap.newKeySet()).add(result[0]);
+        return result[0];
+    }
+
+    /**
+     * Removes an occupant from the lookup tables by real JID and by room.
+     *
+     * @param occupant The occupant to unregister.
+     */
+    private void unregisterFromIndexes(@Nonnull final Occupant occupant)
+    {
+        if (nodesByOccupant.containsKey(occupant)) {
+            // Still (or again) registered for a node.
+            return;
+        }
+        occupantsByRealJID.computeIfPresent(occupant.getRealJID(), (jid, occupants) -> {
+            occupants.remove(occupant);
+            return occupants.isEmpty() ? null : occupants;
+        });
+        occupantsByRoom.computeIfPresent(occupant.getRoomName(), (name, occupants) -> {
+            occupants.remove(occupant);
+            return occupants.isEmpty() ? null : occupants;
+        });
+    }
+
+    /**
+     * Returns the instance that is registered for an occupant.
+     *
+     * @param occupant The occupant to look up.
+     * @return The registered instance, or the argument if no equal instance is registered.
+     */
+    @Nonnull
+    private Occupant findRegistered(@Nonnull final Occupant occupant)
+    {
+        final Set<Occupant> occupants = occupantsByRealJID.get(occupant.getRealJID());
+        if (occupants != null) {
+            for (final Occupant existing : occupants) {
+                if (existing.equals(occupant)) {
+                    return existing;
+                }
+            }
+        }
+        return occupant;
+    }
+
+    private static long activitySlot(@Nonnull final Instant instant)
+    {
+        return instant.toEpochMilli() / ACTIVITY_SLOT_MILLIS;
+    }
+
+    /**
+     * Records a new 'last activity' timestamp for an occupant of the local node, moving it to a different slot of the
+     * timer wheel when needed.
+     *
+     * @param occupant The (registered instance of the) occupant.
+     * @param oldLastActive The previously recorded timestamp, or null if the occupant was not yet in the timer wheel.
+     * @param newLastActive The new timestamp.
+     */
+    private void updateActivitySlot(@Nonnull final Occupant occupant, @Nullable final Instant oldLastActive, @Nonnull final Instant newLastActive)
+    {
+        final long newSlot = activitySlot(newLastActive);
+        if (oldLastActive != null) {
+            final long oldSlot = activitySlot(oldLastActive);
+            if (oldSlot == newSlot) {
+                return;
+            }
+            localOccupantsByActivitySlot.computeIfPresent(oldSlot, (slot, occupants) -> {
+                occupants.remove(occupant);
+                return occupants.isEmpty() ? null : occupants;
+            });
+        }
+        localOccupantsByActivitySlot.computeIfAbsent(newSlot, (slot) -> ConcurrentHashMap.newKeySet()).add(occupant);
+    }
+
+    /**
+     * Removes an occupant from the timer wheel.
+     *
+     * @param occupant The (registered instance of the) occupant.
+     */
+    private void removeFromActivitySlot(@Nonnull final Occupant occupant)
+    {
+        localOccupantsByActivitySlot.computeIfPresent(activitySlot(occupant.getLastActive()), (slot, occupants) -> {
+            occupants.remove(occupant);
+            return occupants.isEmpty() ? null : occupants;
+        });
+    }
+
     /**
      * Verifies that a JID relates to the service for which this instance is operating, by comparing its domain part.
      *
@@ -367,10 +514,8 @@ public class OccupantManager implements MUCEventListener
         Log.debug("Processing task to remove everyone with nick {} from room {}", task.getNickname(), task.getRoomName());
 
 //        logOccupantData("Almost processing task to remove everyone with nick " + task.getNickname(), LocalTime.now(), null);
-        final Set<Occupant> occupantsToKick = occupantsByNode.values().stream()
-            .flatMap(Collection::stream)
+        final Set<Occupant> occupantsToKick = occupantsByRoom.getOrDefault(task.getRoomName(), Collections.emptySet()).stream()
             .filter(o -> o.getNickname().equals(task.getNickname()))
-            .filter(o -> o.getRoomName().equals(task.getRoomName()))
             .collect(Collectors.toSet());
 
         occupantsToKick.forEach(o -> replaceOccupant(o, null, null));
@@ -421,8 +566,7 @@ public class OccupantManager implements MUCEventListener
      */
     @Nonnull
     public Set<String> roomNamesForAddress(@Nonnull final JID realJID) {
-        return nodesByOccupant.keySet().stream()
-            .filter(occupant -> realJID.equals(occupant.getRealJID()))
+        return occupantsByRealJID.getOrDefault(realJID, Collections.emptySet()).stream()
             .map(occupant -> occupant.roomName)
             .collect(Collectors.toSet());
     }
@@ -447,9 +591,19 @@ public class OccupantManager implements MUCEventListener
     public void registerActivity(@Nonnull final JID userJid) {
 
         // Only tracking it for the local cluster node, as those are the only users for which this node will monitor activity anyway
-        getLocalOccupants().stream()
-            .filter(occupant -> userJid.equals(occupant.getRealJID()))
-            .forEach(o -> o.setLastActive(Instant.now()));
+        final Set<Occupant> occupants = occupantsByRealJID.get(userJid);
+        if (occupants == null) {
+            return;
+        }
+        final Set<Occupant> localOccupants = getLocalOccupants();
+        final Instant now = Instant.now();
+        for (final Occupant occupant : occupants) {
+            if (localOccupants.contains(occupant)) {
+                final Instant oldLastActive = occupant.getLastActive();
+                occupant.setLastActive(now);
+                updateActivitySlot(occupant, oldLastActive, now);
+            }
+        }
     }
 
     /**
@@ -461,13 +615,38 @@ public class OccupantManager implements MUCEventListener
      */
     @Nullable
     public Instant lastActivityOnLocalNode(@Nonnull final JID userJid) {
-        return getLocalOccupants().stream()
-            .filter(occupant -> userJid.equals(occupant.getRealJID()))
+        final Set<Occupant> localOccupants = getLocalOccupants();
+        return occupantsByRealJID.getOrDefault(userJid, Collections.emptySet()).stream()
+            .filter(localOccupants::contains)
             .map(Occupant::getLastActive)
             .max(java.util.Comparator.naturalOrder())
             .orElse(null);
     }
 
+    /**
+     * Returns the occupants of the local cluster node that have not had any activity since a particular moment.
+     *
+     * This uses a timer wheel that groups occupants by their last activity, which avoids the need to inspect occupants
+     * that have had recent activity.
+     *
+     * @param cutoff The moment in time after which occupants are considered to be active.
+     * @return All occupants of the local cluster node that have not been active after the cutoff.
+     */
+    @Nonnull
+    public Set<Occupant> localOccupantsInactiveSince(@Nonnull final Instant cutoff)
+    {
+        final Set<Occupant> localOccupants = getLocalOccupants();
+        final Set<Occupant> result = new HashSet<>();
+        for (final Set<Occupant> occupants : localOccupantsByActivitySlot.headMap(activitySlot(cutoff), true).values()) {
+            for (final Occupant occupant : occupants) {
+                if (occupant.getLastActive().isBefore(cutoff) && localOccupants.contains(occupant)) {
+                    result.add(occupant);
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Counts all users that are in at least one room.
      *
@@ -494,17 +673,15 @@ public class OccupantManager implements MUCEventListener
 
     @Nonnull
     public Set<Occupant> occupantsForRoomByNode(@Nonnull final String roomName, @Nonnull final NodeID nodeID) {
-        return occupantsByNode.getOrDefault(nodeID, Collections.emptySet()).stream()
-            .filter(occupant -> occupant.getRoomName().equals(roomName))
+        return occupantsByRoom.getOrDefault(roomName, Collections.emptySet()).stream()
+            .filter(occupant -> nodesByOccupant.getOrDefault(occupant, Collections.emptySet()).contains(nodeID))
             .collect(Collectors.toSet());
     }
 
     @Nonnull
     public Set<Occupant> occupantsForRoomExceptForNode(@Nonnull final String roomName, @Nonnull final NodeID nodeID) {
-        return occupantsByNode.entrySet().stream().filter(e -> !e.getKey().equals(nodeID))
-            .map(Map.Entry::getValue)
-            .flatMap(Collection::stream)
-            .filter(occupant -> occupant.getRoomName().equals(roomName))
+        return occupantsByRoom.getOrDefault(roomName, Collections.emptySet()).stream()
+            .filter(occupant -> nodesByOccupant.getOrDefault(occupant, Collections.emptySet()).stream().anyMatch(n -> !n.equals(nodeID)))
             .collect(Collectors.toSet());
     }
 
@@ -556,6 +733,8 @@ public class OccupantManager implements MUCEventListener
             nodesByOccupant.clear();
             occupantsLeftOnThisNode.forEach(o -> nodesByOccupant.computeIfAbsent(o, (n) -> new HashSet<>()).add(ownNodeID));
 
+            occupantsRemoved.forEach(this::unregisterFromIndexes);
+
             Log.debug("Reset occupants because we left the cluster");
 
             return occupantsRemoved;
@@ -580,9 +759,13 @@ public class OccupantManager implements MUCEventListener
     @Override
     public void roomDestroyed(JID roomJID) {
         // When a room is destroyed, remove all registered occupants for that room.
-        getNodesByOccupant().entrySet().stream()
-            .filter(entry -> entry.getKey().getRoomName().equals(roomJID.getNode()))
-            .forEach(entry -> entry.getValue().forEach(nodeID -> replaceOccupant(entry.getKey(), null, nodeID)));
+        final Set<Occupant> occupants = new HashSet<>(occupantsByRoom.getOrDefault(roomJID.getNode(), Collections.emptySet()));
+        for (final Occupant occupant : occupants) {
+            final Set<NodeID> nodeIDs = nodesByOccupant.get(occupant);
+            if (nodeIDs != null) {
+                new HashSet<>(nodeIDs).forEach(nodeID -> replaceOccupant(occupant, null, nodeID));
+            }
+        }
     }
 
     @Override
@@ -216,7 +216,7 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
      *
      * @param session the session that read more bytes from the socket.
      */
-    private void updateReadBytesCounter(IoSession session) {
+    static void updateReadBytesCounter(IoSession session) {
         long currentBytes = session.getReadBytes();
         Long prevBytes = (Long) session.getAttribute("_read_bytes");
         long delta;
@@ -236,7 +236,7 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
      *
      * @param session the session that wrote more bytes to the socket.
      */
-    private void updateWrittenBytesCounter(IoSession session) {
+    static void updateWrittenBytesCounter(IoSession session) {
         long currentBytes = session.getWrittenBytes();
         Long prevBytes = (Long) session.getAttribute("_written_bytes");
         long delta;
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.nio;
+
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IdleStatus;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.FilterEvent;
+import org.apache.mina.filter.ssl.SslEvent;
+import org.jivesoftware.openfire.PacketDeliverer;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.spi.ConnectionConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Handles the events of the connections that are established by {@link OutgoingServerConnector}, by passing them on
+ * to the negotiation that the connection was established for.
+ */
+class OutgoingServerConnectionHandler extends IoHandlerAdapter
+{
+    private static final Logger Log = LoggerFactory.getLogger(OutgoingServerConnectionHandler.class);
+
+    static final String NEGOTIATION = "OUTGOING-NEGOTIATION";
+    static final String CONNECT_FUTURE = "OUTGOING-CONNECT-FUTURE";
+
+    private final ConnectionConfiguration configuration;
+
+    OutgoingServerConnectionHandler(final ConnectionConfiguration configuration)
+    {
+        this.configuration = configuration;
+    }
+
+    @Override
+    public void sessionOpened(final IoSession session) throws Exception
+    {
+        // Create a new XML parser for the new connection. The parser will be used by the XMPPDecoder filter.
+        session.setAttribute(ConnectionHandler.XML_PARSER, new XMLLightweightParser(StandardCharsets.UTF_8));
+        final PacketDeliverer backupDeliverer = ServerConnectionHandler.BACKUP_PACKET_DELIVERY_ENABLED.getValue() ? XMPPServer.getInstance().getPacketDeliverer() : null;
+        final NIOConnection connection = new NIOConnection(session, backupDeliverer, configuration);
+        session.setAttribute(ConnectionHandler.CONNECTION, connection);
+        final OutgoingServerNegotiation negotiation = getNegotiation(session);
+        if (negotiation != null) {
+            negotiation.onOpened(session, connection);
+        }
+    }
+
+    @Override
+    public void sessionClosed(final IoSession session) throws Exception
+    {
+        final OutgoingServerNegotiation negotiation = getNegotiation(session);
+        if (negotiation != null) {
+            negotiation.onClosed(session);
+        }
+    }
+
+    @Override
+    public void sessionIdle(final IoSession session, final IdleStatus status) throws Exception
+    {
+        final OutgoingServerNegotiation negotiation = getNegotiation(session);
+        if (negotiation != null) {
+            negotiation.onIdle(session);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(final IoSession session, final Throwable cause) throws Exception
+    {
+        final OutgoingServerNegotiation negotiation = getNegotiation(session);
+        if (negotiation != null) {
+            negotiation.onException(session, cause);
+        }
+    }
+
+    @Override
+    public void messageReceived(final IoSession session, final Object message) throws Exception
+    {
+        // Update counter of read bytes
+        ConnectionHandler.updateReadBytesCounter(session);
+        final OutgoingServerNegotiation negotiation = getNegotiation(session);
+        if (negotiation == null) {
+            return;
+        }
+        try {
+            negotiation.onReceived(session, (String) message);
+        } catch (Throwable e) { // Make sure to catch Throwable, not (only) Exception! See OF-2367
+            negotiation.onException(session, e);
+        }
+    }
+
+    @Override
+    public void event(final IoSession session, final FilterEvent event) throws Exception
+    {
+        if (event == SslEvent.SECURED) {
+            final OutgoingServerNegotiation negotiation = getNegotiation(session);
+            if (negotiation != null) {
+                negotiation.onSecured(session);
+            }
+        }
+    }
+
+    @Override
+    public void messageSent(final IoSession session, final Object message) throws Exception
+    {
+        super.messageSent(session, message);
+        // Update counter of written bytes
+        ConnectionHandler.updateWrittenBytesCounter(session);
+    }
+
+    private static OutgoingServerNegotiation getNegotiation(final IoSession session)
+    {
+        final OutgoingServerNegotiation negotiation = (OutgoingServerNegotiation) session.getAttribute(NEGOTIATION);
+        if (negotiation == null) {
+            Log.warn("Closing connection that is not associated with an outgoing server session negotiation: {}", session);
+            session.closeNow();
+        }
+        return negotiation;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.nio;
+
+import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.net.StalledSessionsFilter;
+import org.jivesoftware.openfire.server.RemoteServerManager;
+import org.jivesoftware.openfire.session.DomainPair;
+import org.jivesoftware.openfire.session.LocalOutgoingServerSession;
+import org.jivesoftware.openfire.spi.ConnectionConfiguration;
+import org.jivesoftware.openfire.spi.ConnectionManagerImpl;
+import org.jivesoftware.openfire.spi.ConnectionType;
+import org.jivesoftware.util.NamedThreadFactory;
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Establishes outgoing server-to-server connections using Apache MINA, the framework that is also used to accept
+ * incoming connections.
+ *
+ * Establishing a session does not occupy a thread while waiting for the remote server. Hosts of the remote domain are
+ * resolved (using DNS) by a small pool of threads. Connections to the resulting addresses are raced: attempts are
+ * started one after the other, a short delay apart, and the first connection that is established is used. After
+ * that, every stage (opening the stream,
+ * STARTTLS, SASL EXTERNAL and server dialback) is driven by the events of the connection. Once established, stanzas
+ * that are received on the connection are processed by the same threads that process the events of other
+ * connections, rather than by a thread that is dedicated to the connection.
+ *
+ * @see OutgoingServerNegotiation
+ */
+public class OutgoingServerConnector
+{
+    private static final Logger Log = LoggerFactory.getLogger(OutgoingServerConnector.class);
+
+    /**
+     * Determines if outgoing server-to-server sessions are established using Apache MINA. When disabled (the default),
+     * each session is established, and read from, by a dedicated thread that uses blocking IO.
+     *
+     * This remains disabled by default until the negotiation of {@link OutgoingServerNegotiation} has been used against
+     * the range of remote server implementations that the blocking implementation has been used with. Note that, when
+     * clustering is started, a thread still waits for each session to be established, as the cluster-wide lock of the
+     * domain pair is to be released by the thread that acquired it.
+     */
+    public static final SystemProperty<Boolean> ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("xmpp.server.outgoing.nio.enabled")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * The maximum number of threads that resolve the hosts of remote domains.
+     */
+    public static final SystemProperty<Integer> RESOLVER_THREADS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.server.outgoing.nio.resolver-threads")
+        .setMinValue(1)
+        .setDefaultValue(4)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The delay after which a connection attempt is made to the next address of a remote domain, while earlier attempts
+     * have not yet completed (the "Connection Attempt Delay" of RFC 8305).
+     */
+    public static final SystemProperty<Duration> CONNECTION_ATTEMPT_DELAY = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.server.outgoing.nio.connection-attempt-delay")
+        .setDefaultValue(Duration.ofMillis(250))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setMinValue(Duration.ofMillis(10))
+        .setDynamic(true)
+        .build();
+
+    /**
+     * How long an address of a remote server, to which a connection could not be established, is tried only after
+     * the other addresses of the remote domain.
+     */
+    public static final SystemProperty<Duration> UNREACHABLE_HOST_RETENTION = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.server.outgoing.nio.unreachable-host-retention")
+        .setDefaultValue(Duration.ofMinutes(5))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setMinValue(Duration.ZERO)
+        .setDynamic(true)
+        .build();
+
+    private static final OutgoingServerConnector INSTANCE = new OutgoingServerConnector();
+
+    public static OutgoingServerConnector getInstance()
+    {
+        return INSTANCE;
+    }
+
+    private final UnreachableHosts unreachableHosts = new UnreachableHosts();
+
+    private NioSocketConnector socketConnector;
+    private ThreadPoolExecutor eventExecutor;
+    private ThreadPoolExecutor resolver;
+    private ConnectionConfiguration configuration;
+
+    private OutgoingServerConnector()
+    {
+    }
+
+    /**
+     * Starts the connector. This is invoked when the first session is to be established.
+     */
+    private synchronized void start()
+    {
+        if (socketConnector != null) {
+            return;
+        }
+        final ConnectionManagerImpl connectionManager = (ConnectionManagerImpl) XMPPServer.getInstance().getConnectionManager();
+        configuration = connectionManager.getListener(ConnectionType.SOCKET_S2S, false).generateConnectionConfiguration();
+
+        final int initialSize = (configuration.getMaxThreadPoolSize() / 4) + 1;
+        final ExecutorFilter executorFilter = new ExecutorFilter(initialSize, configuration.getMaxThreadPoolSize(), 60, TimeUnit.SECONDS);
+        eventExecutor = (ThreadPoolExecutor) executorFilter.getExecutor();
+        final ThreadFactory threadFactory = new NamedThreadFactory("server_out-thread-", eventExecutor.getThreadFactory(), true, null);
+        eventExecutor.setThreadFactory(threadFactory);
+
+        socketConnector = new NioSocketConnector();
+        socketConnector.setConnectTimeoutMillis(RemoteServerManager.getSocketTimeout());
+        final DefaultIoFilterChainBuilder filterChain = socketConnector.getFilterChain();
+        filterChain.addFirst(ConnectionManagerImpl.EXECUTOR_FILTER_NAME, executorFilter);
+        filterChain.addAfter(ConnectionManagerImpl.EXECUTOR_FILTER_NAME, ConnectionManagerImpl.XMPP_CODEC_FILTER_NAME, new ProtocolCodecFilter(new XMPPCodecFactory()));
+        filterChain.addAfter(ConnectionManagerImpl.XMPP_CODEC_FILTER_NAME, ConnectionManagerImpl.CAPACITY_FILTER_NAME, new StalledSessionsFilter());
+        if (configuration.getMaxBufferSize() > 0) {
+            socketConnector.getSessionConfig().setMaxReadBufferSize(configuration.getMaxBufferSize());
+        }
+        socketConnector.setHandler(new OutgoingServerConnectionHandler(configuration));
+
+        resolver = new ThreadPoolExecutor(RESOLVER_THREADS.getValue(), RESOLVER_THREADS.getValue(), 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), new NamedThreadFactory("server_out-resolver-", null, true, null));
+        resolver.allowCoreThreadTimeOut(true);
+        Log.debug("Started the connector for outgoing server-to-server connections.");
+    }
+
+    /**
+     * Closes all connections that were established by this connector, and stops it.
+     */
+    public synchronized void stop()
+    {
+        if (socketConnector != null) {
+            socketConnector.dispose();
+            socketConnector = null;
+        }
+        if (eventExecutor != null) {
+            // Disposing the connector does not stop the threads of its executor filter.
+            eventExecutor.shutdown();
+            eventExecutor = null;
+        }
+        if (resolver != null) {
+            resolver.shutdown();
+            resolver = null;
+        }
+    }
+
+    /**
+     * Establishes a new session from the local to the remote domain of a domain pair. The returned future completes
+     * with the session once the local domain has been authenticated, or with null if no session could be established.
+     *
+     * @param domainPair the local and remote domain for which a session is to be established.
+     * @param port the port to connect to when DNS does not provide one.
+     * @return a future session.
+     */
+    @Nonnull
+    public CompletableFuture<LocalOutgoingServerSession> createOutgoingSession(@Nonnull final DomainPair domainPair, final int port)
+    {
+        start();
+        return new OutgoingServerNegotiation(this, domainPair, port).start();
+    }
+
+    /**
+     * Connects to an address, on behalf of a negotiation, which is notified of the events of the connection.
+     */
+    ConnectFuture connect(@Nonnull final OutgoingServerNegotiation.Attempt attempt, @Nonnull final OutgoingServerNegotiation negotiation)
+    {
+        final NioSocketConnector socketConnector;
+        synchronized (this) {
+            socketConnector = this.socketConnector;
+        }
+        if (socketConnector == null) {
+            throw new IllegalStateException("The connector for outgoing server-to-server connections has been stopped.");
+        }
+        return socketConnector.connect(attempt.getAddress(), (session, future) -> {
+            session.setAttribute(OutgoingServerConnectionHandler.NEGOTIATION, negotiation);
+            session.setAttribute(OutgoingServerConnectionHandler.CONNECT_FUTURE, future);
+        });
+    }
+
+    UnreachableHosts getUnreachableHosts()
+    {
+        return unreachableHosts;
+    }
+
+    synchronized Executor getResolver()
+    {
+        if (resolver == null) {
+            throw new IllegalStateException("The connector for outgoing server-to-server connections has been stopped.");
+        }
+        return resolver;
+    }
+
+    synchronized ConnectionConfiguration getConfiguration()
+    {
+        return configuration;
+    }
+}
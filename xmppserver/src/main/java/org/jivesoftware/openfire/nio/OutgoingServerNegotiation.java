@@ -0,0 +1,823 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.nio;
+
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.session.IdleStatus;
+import org.apache.mina.core.session.IoSession;
+import org.dom4j.Element;
+import org.dom4j.io.XMPPPacketReader;
+import org.jivesoftware.openfire.Connection;
+import org.jivesoftware.openfire.net.DNSUtil;
+import org.jivesoftware.openfire.net.MXParser;
+import org.jivesoftware.openfire.net.SASLAuthentication;
+import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
+import org.jivesoftware.openfire.server.RemoteServerManager;
+import org.jivesoftware.openfire.server.ServerDialback;
+import org.jivesoftware.openfire.session.ConnectionSettings;
+import org.jivesoftware.openfire.session.DomainPair;
+import org.jivesoftware.openfire.session.LocalOutgoingServerSession;
+import org.jivesoftware.openfire.spi.BasicStreamIDFactory;
+import org.jivesoftware.openfire.spi.ConnectionConfiguration;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.StreamError;
+
+import javax.annotation.Nonnull;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Establishes one outgoing server-to-server session, on a connection of {@link OutgoingServerConnector}.
+ *
+ * This implements the same negotiation as {@link LocalOutgoingServerSession#authenticateDomain(DomainPair)} does using
+ * blocking IO. On the first connection that can be established to the remote domain, an XMPP 1.0 stream is opened,
+ * which is secured using TLS (either directly or by using STARTTLS) when possible. The local domain is then
+ * authenticated using SASL EXTERNAL or server dialback. When that fails, and unless TLS is required, a new connection
+ * is established to authenticate the local domain using server dialback on a stream that does not declare a version
+ * (as was done before XMPP 1.0).
+ *
+ * Connections are established in the manner of RFC 8305 ("Happy Eyeballs"). The hosts of the remote domain are
+ * resolved to all of their addresses, alternating between address families. Connection attempts to these addresses
+ * are started in order, each after a short delay or as soon as the previous attempt failed, without waiting for
+ * earlier attempts to time out. The first connection that is established is used, and all other attempts are
+ * abandoned. As hosts that offer direct TLS and hosts that offer STARTTLS are in one list (ordered by their priority
+ * in DNS), connections of both kinds are attempted in parallel. Addresses to which a connection recently failed are
+ * tried last.
+ *
+ * Instead of waiting for the response of the remote server, every step is taken when an event of the connection is
+ * received. Events of connections that are no longer used by this negotiation are ignored.
+ */
+class OutgoingServerNegotiation
+{
+    private static final Logger Log = LoggerFactory.getLogger(OutgoingServerNegotiation.class);
+
+    /**
+     * Provides the context in which elements that are received on the stream are parsed.
+     */
+    private static final String STREAM_CONTEXT = "<stream:stream xmlns:stream=\"http://etherx.jabber.org/streams\" xmlns=\"jabber:server\" xmlns:db=\"jabber:server:dialback\">";
+
+    private enum State
+    {
+        RESOLVING, CONNECTING, TLS_HANDSHAKE, STREAM, FEATURES, STARTTLS, SASL, SASL_RESTART, DIALBACK, ESTABLISHED, FAILED
+    }
+
+    /**
+     * An address to connect to, and the way in which the connection is to be secured.
+     */
+    static final class Attempt
+    {
+        private final InetSocketAddress address;
+        private final boolean directTLS;
+
+        Attempt(@Nonnull final InetSocketAddress address, final boolean directTLS)
+        {
+            this.address = address;
+            this.directTLS = directTLS;
+        }
+
+        InetSocketAddress getAddress()
+        {
+            return address;
+        }
+
+        boolean isDirectTLS()
+        {
+            return directTLS;
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final Attempt that = (Attempt) o;
+            return directTLS == that.directTLS && address.equals(that.address);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(address, directTLS);
+        }
+
+        @Override
+        public String toString()
+        {
+            return address + (directTLS ? " (direct TLS)" : "");
+        }
+    }
+
+    /**
+     * Resolves a hostname to its addresses.
+     */
+    interface AddressResolver
+    {
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+
+    private final OutgoingServerConnector connector;
+    private final DomainPair domainPair;
+    private final int port;
+    private final Logger log;
+    private final CompletableFuture<LocalOutgoingServerSession> result = new CompletableFuture<>();
+    private final XMPPPacketReader reader = new XMPPPacketReader();
+
+    private State state = State.RESOLVING;
+    private List<Attempt> attempts;
+    private int nextAttempt;
+    /**
+     * The connection attempts that have not yet completed. These are keyed by the future of their connection, rather
+     * than by their address, as the same address can be attempted again (by the fallback to server dialback) while a
+     * connection of an earlier attempt is still being closed.
+     */
+    private final Map<ConnectFuture, Attempt> pending = new HashMap<>();
+    private TimerTask attemptDelay;
+    private InetSocketAddress address;
+    private boolean directTLS;
+    private boolean dialbackOnly;
+    private boolean secured;
+
+    private IoSession ioSession;
+    private NIOConnection connection;
+    private String streamID;
+    private OutgoingServerSocketReader socketReader;
+
+    OutgoingServerNegotiation(@Nonnull final OutgoingServerConnector connector, @Nonnull final DomainPair domainPair, final int port)
+    {
+        this.connector = connector;
+        this.domainPair = domainPair;
+        this.port = port;
+        this.log = LoggerFactory.getLogger(Log.getName() + "[Create outgoing session for: " + domainPair + "]");
+    }
+
+    /**
+     * Starts the negotiation by resolving the hosts of the remote domain.
+     *
+     * @return the session, once established, or null if no session could be established.
+     */
+    @Nonnull
+    CompletableFuture<LocalOutgoingServerSession> start()
+    {
+        log.debug("Creating new session...");
+        try {
+            connector.getResolver().execute(this::resolve);
+        } catch (Exception e) {
+            log.warn("Unable to create a new session: the hosts of the remote domain cannot be resolved.", e);
+            result.complete(null);
+        }
+        return result;
+    }
+
+    private void resolve()
+    {
+        log.debug("Use DNS to resolve remote hosts for the remote domain (default port: {}) ...", port);
+        final List<DNSUtil.HostAddress> hosts = new ArrayList<>();
+        final List<Attempt> resolved;
+        try {
+            for (final DNSUtil.HostAddress host : DNSUtil.resolveXMPPDomain(domainPair.getRemote(), port)) {
+                if (!JiveGlobals.getBooleanProperty(ConnectionSettings.Server.ENABLE_OLD_SSLPORT, true) && host.isDirectTLS()) {
+                    log.debug("Skipping directTLS host {}, as we're ourselves not accepting directTLS S2S", host);
+                    continue;
+                }
+                if (!JiveGlobals.getBooleanProperty(ConnectionSettings.Server.SOCKET_ACTIVE, true) && !host.isDirectTLS()) {
+                    log.debug("Skipping non direct TLS host {}, as we're ourselves not accepting non direct S2S", host);
+                    continue;
+                }
+                hosts.add(host);
+            }
+            resolved = getAttempts(hosts, InetAddress::getAllByName, connector.getUnreachableHosts());
+        } catch (Exception e) {
+            log.warn("Unable to create new session: the hosts of the remote domain cannot be resolved.", e);
+            synchronized (this) {
+                fail();
+            }
+            return;
+        }
+        log.debug("Found {} applicable address(es) on {} host(s) for the remote domain: {}", resolved.size(), hosts.size(), resolved);
+        onResolved(resolved);
+    }
+
+    /**
+     * Starts attempting to connect to the addresses to which the hosts of the remote domain were resolved.
+     *
+     * @param resolved the connection attempts, in order.
+     */
+    synchronized void onResolved(@Nonnull final List<Attempt> resolved)
+    {
+        attempts = resolved;
+        startAttempts();
+    }
+
+    /**
+     * Determines the order in which connections to the addresses of the hosts of a remote domain are to be attempted.
+     *
+     * The hosts are kept in the order in which they are provided. The addresses of each host alternate between
+     * address families, starting with the family of the first address that the host resolves to. Addresses that are
+     * known to be unreachable are moved to the end.
+     *
+     * @param hosts the hosts of the remote domain, in order of preference.
+     * @param resolver resolves the hostnames of the hosts.
+     * @param unreachableHosts addresses to which connections recently failed.
+     * @return the connection attempts, in order.
+     */
+    @Nonnull
+    static List<Attempt> getAttempts(@Nonnull final List<DNSUtil.HostAddress> hosts, @Nonnull final AddressResolver resolver, @Nonnull final UnreachableHosts unreachableHosts)
+    {
+        final Set<Attempt> reachable = new LinkedHashSet<>();
+        final Set<Attempt> unreachable = new LinkedHashSet<>();
+        for (final DNSUtil.HostAddress host : hosts) {
+            final InetAddress[] addresses;
+            try {
+                addresses = resolver.resolve(host.getHost());
+            } catch (UnknownHostException e) {
+                Log.debug("Unable to resolve host {} of a remote domain.", host.getHost(), e);
+                continue;
+            }
+            for (final InetAddress address : interleave(addresses)) {
+                final Attempt attempt = new Attempt(new InetSocketAddress(address, host.getPort()), host.isDirectTLS());
+                if (unreachableHosts.contains(attempt.getAddress())) {
+                    unreachable.add(attempt);
+                } else {
+                    reachable.add(attempt);
+                }
+            }
+        }
+        final List<Attempt> result = new ArrayList<>(reachable);
+        result.addAll(unreachable);
+        return result;
+    }
+
+    /**
+     * Orders addresses so that they alternate between address families (RFC 8305, section 4).
+     */
+    private static List<InetAddress> interleave(@Nonnull final InetAddress[] addresses)
+    {
+        final List<InetAddress> result = new ArrayList<>(addresses.length);
+        if (addresses.length == 0) {
+            return result;
+        }
+        final Class<?> firstFamily = addresses[0].getClass();
+        final Queue<InetAddress> first = new ArrayDeque<>();
+        final Queue<InetAddress> other = new ArrayDeque<>();
+        for (final InetAddress address : addresses) {
+            (address.getClass() == firstFamily ? first : other).add(address);
+        }
+        while (!first.isEmpty() || !other.isEmpty()) {
+            if (!first.isEmpty()) {
+                result.add(first.poll());
+            }
+            if (!other.isEmpty()) {
+                result.add(other.poll());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Starts attempting to connect to the addresses of the remote domain, from the first address.
+     */
+    private void startAttempts()
+    {
+        state = State.CONNECTING;
+        nextAttempt = 0;
+        startNextAttempt();
+    }
+
+    /**
+     * Starts an attempt to connect to the next address, and schedules the attempt after that. When there are no more
+     * addresses, the negotiation fails once all pending attempts have failed.
+     */
+    private void startNextAttempt()
+    {
+        cancelAttemptDelay();
+        if (nextAttempt >= attempts.size()) {
+            if (pending.isEmpty()) {
+                log.info("Unable to create new session: Cannot create a plain socket connection with any applicable remote host.");
+                fail();
+            }
+            return;
+        }
+        startAttempt(attempts.get(nextAttempt++));
+        if (state == State.CONNECTING && nextAttempt < attempts.size()) {
+            final TimerTask task = new TimerTask() {
+                @Override
+                public void run() {
+                    onAttemptDelayElapsed(this);
+                }
+            };
+            attemptDelay = task;
+            TaskEngine.getInstance().schedule(task, OutgoingServerConnector.CONNECTION_ATTEMPT_DELAY.getValue().toMillis());
+        }
+    }
+
+    private void startAttempt(@Nonnull final Attempt attempt)
+    {
+        log.debug("Trying to create a connection to {} {} ...", attempt.getAddress(), attempt.isDirectTLS() ? "using directTLS" : "that is initially not encrypted");
+        final ConnectFuture future;
+        try {
+            future = connector.connect(attempt, this);
+        } catch (Exception e) {
+            log.warn("Unable to create new session: the connector has been stopped.", e);
+            fail();
+            return;
+        }
+        pending.put(future, attempt);
+        future.addListener(connectFuture -> onConnectComplete((ConnectFuture) connectFuture, attempt));
+    }
+
+    private synchronized void onAttemptDelayElapsed(@Nonnull final TimerTask task)
+    {
+        if (task == attemptDelay && state == State.CONNECTING) {
+            log.debug("No connection was established yet. Starting the next attempt in parallel.");
+            startNextAttempt();
+        }
+    }
+
+    private synchronized void onConnectComplete(@Nonnull final ConnectFuture future, @Nonnull final Attempt attempt)
+    {
+        if (future.isConnected()) {
+            // Remains pending until the session is opened (if it wasn't opened already).
+            connector.getUnreachableHosts().remove(attempt.getAddress());
+            return;
+        }
+        pending.remove(future);
+        if (future.isCanceled()) {
+            return;
+        }
+        final Throwable cause = future.getException();
+        connector.getUnreachableHosts().add(attempt.getAddress(), OutgoingServerConnector.UNREACHABLE_HOST_RETENTION.getValue());
+        if (state != State.CONNECTING) {
+            return;
+        }
+        log.warn("Unable to create a connection to {}. Cause: {} (a full stacktrace is logged on debug level)", attempt, cause == null ? null : cause.getMessage());
+        log.debug("An exception occurred while trying to create a connection to {}", attempt, cause);
+        startNextAttempt();
+    }
+
+    /**
+     * Removes the pending attempt of a connection, returning the attempt if the negotiation should use the connection,
+     * or null if it should not.
+     */
+    private Attempt completeAttempt(@Nonnull final IoSession session)
+    {
+        final ConnectFuture future = (ConnectFuture) session.getAttribute(OutgoingServerConnectionHandler.CONNECT_FUTURE);
+        final Attempt attempt = future == null ? null : pending.remove(future);
+        return state == State.CONNECTING && ioSession == null ? attempt : null;
+    }
+
+    private void cancelAttemptDelay()
+    {
+        if (attemptDelay != null) {
+            attemptDelay.cancel();
+            attemptDelay = null;
+        }
+    }
+
+    synchronized void onOpened(@Nonnull final IoSession session, @Nonnull final NIOConnection connection)
+    {
+        final Attempt attempt = completeAttempt(session);
+        if (attempt == null) {
+            session.closeNow();
+            return;
+        }
+        this.address = attempt.getAddress();
+        this.directTLS = attempt.isDirectTLS();
+        log.debug("Opened a new connection to {}.", attempt);
+
+        cancelAttemptDelay();
+        // Abandon all other attempts. Connections that were already established are closed once they are opened.
+        pending.keySet().forEach(ConnectFuture::cancel);
+        pending.clear();
+
+        this.ioSession = session;
+        this.connection = connection;
+        final ConnectionConfiguration configuration = connector.getConfiguration();
+        if (configuration != null) {
+            connection.setTlsPolicy(configuration.getTlsPolicy());
+        }
+        // Do not keep waiting forever for the remote server to respond.
+        session.getConfig().setIdleTime(IdleStatus.READER_IDLE, Math.max(1, RemoteServerManager.getSocketTimeout() / 1000));
+        if (directTLS) {
+            startTLS();
+        } else {
+            openStream();
+        }
+    }
+
+    synchronized void onSecured(@Nonnull final IoSession session)
+    {
+        if (session != ioSession || state != State.TLS_HANDSHAKE) {
+            return;
+        }
+        secured = true;
+        if (!directTLS && !dialbackOnly) {
+            log.debug("TLS negotiation was successful. Connection secured. Proceeding with authentication...");
+            if (!SASLAuthentication.verifyCertificates(connection.getPeerCertificates(), domainPair.getRemote(), true)) {
+                if (ServerDialback.isEnabled() || ServerDialback.isEnabledForSelfSigned()) {
+                    log.debug("SASL authentication failed. Will continue with dialback.");
+                } else {
+                    log.warn("Unable to authenticated the connection: SASL authentication failed (and dialback is not available).");
+                    abandon(true);
+                    return;
+                }
+            }
+        }
+        openStream();
+    }
+
+    synchronized void onReceived(@Nonnull final IoSession session, @Nonnull final String stanza) throws Exception
+    {
+        if (session != ioSession) {
+            return;
+        }
+        if (stanza.startsWith("<?xml")) {
+            return;
+        }
+        if (stanza.equals("</stream:stream>")) {
+            if (state == State.ESTABLISHED) {
+                log.debug("Closing session as an end-of-stream was received.");
+                connection.close();
+            } else {
+                log.debug("The remote server closed the stream while the session was being negotiated.");
+                abandon(false);
+            }
+            return;
+        }
+        if (stanza.startsWith("<stream:stream")) {
+            onStreamHeader(stanza);
+            return;
+        }
+
+        final Element root = reader.read(new StringReader(STREAM_CONTEXT + stanza + "</stream:stream>")).getRootElement();
+        if (root.elements().isEmpty()) {
+            return;
+        }
+        final Element element = root.elements().get(0);
+        element.detach();
+        if (state == State.ESTABLISHED) {
+            socketReader.queue(element);
+            return;
+        }
+        if ("error".equals(element.getName()) && "stream".equals(element.getNamespacePrefix())) {
+            log.debug("The remote server sent a stream error: {}", element.asXML());
+            abandon(false);
+            return;
+        }
+        switch (state) {
+            case FEATURES:
+                if ("features".equals(element.getName())) {
+                    onFeatures(element);
+                } else {
+                    log.debug("Error! No data from the remote server (expected a 'feature' element).");
+                    abandon(false);
+                }
+                break;
+            case STARTTLS:
+                if ("proceed".equals(element.getName())) {
+                    log.debug("Received 'proceed' from remote server. Negotiating TLS...");
+                    startTLS();
+                } else {
+                    log.debug("Failed to secure and authenticate connection: <proceed> was not received!");
+                    abandon(false);
+                }
+                break;
+            case SASL:
+                if ("success".equals(element.getName())) {
+                    log.debug("EXTERNAL SASL was successful.");
+                    state = State.SASL_RESTART;
+                    openStream();
+                } else {
+                    log.debug("Failed to authenticate with EXTERNAL SASL.");
+                    startDialbackOverTLS();
+                }
+                break;
+            case DIALBACK:
+                if ("db".equals(element.getNamespacePrefix()) && "result".equals(element.getName())) {
+                    if ("valid".equals(element.attributeValue("type"))) {
+                        log.debug("Successfully authenticated the connection with dialback!");
+                        establish(true);
+                    } else {
+                        log.debug("Failed to authenticate domain: the validation response was received, but did not grant authentication.");
+                        abandon(false);
+                    }
+                } else {
+                    log.warn("Ignoring unexpected answer while waiting for dialback validation: {}", element.asXML());
+                }
+                break;
+            default:
+                log.debug("Ignoring unexpected data while the session is being negotiated: {}", stanza);
+        }
+    }
+
+    synchronized void onIdle(@Nonnull final IoSession session)
+    {
+        if (session != ioSession || state == State.ESTABLISHED) {
+            return;
+        }
+        log.debug("Failed to create new session: time out waiting for a response of the remote server.");
+        abandon(false);
+    }
+
+    synchronized void onException(@Nonnull final IoSession session, final Throwable cause)
+    {
+        if (session != ioSession) {
+            session.closeNow();
+            return;
+        }
+        if (state == State.ESTABLISHED) {
+            log.warn("Closing connection due to exception in session: {}", session, cause);
+            connection.close();
+            return;
+        }
+        final SSLException sslException = findSSLException(cause);
+        if (sslException != null && directTLS && !secured
+            && JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_ON_PLAIN_DETECTION_ALLOW_NONDIRECTTLS_FALLBACK, true)
+            && sslException.getMessage() != null && sslException.getMessage().contains("plaintext connection?")) {
+            log.warn("Plaintext detected on a new connection that is was started in DirectTLS mode (socket address: {}). Attempting to restart the connection in non-DirectTLS mode.", address);
+            ioSession = null;
+            session.closeNow();
+            state = State.CONNECTING;
+            startAttempt(new Attempt(address, false));
+            return;
+        }
+        if (sslException instanceof SSLHandshakeException) {
+            // RFC 6120, section 5.4.3.2 "STARTTLS Failure": the receiving entity is expected to close the socket without
+            // sending any more data. It is probably (see OF-794) best if we, as the initiating entity, don't either.
+            log.info("{} negotiation failed. Closing connection (without sending any data such as <failure/> or </stream>).", directTLS ? "Direct TLS" : "StartTLS", cause);
+            abandon(true);
+            return;
+        }
+        log.warn("An exception occurred while creating a session. Closing connection.", cause);
+        abandon(false);
+    }
+
+    synchronized void onClosed(@Nonnull final IoSession session)
+    {
+        if (session != ioSession) {
+            if (completeAttempt(session) != null) {
+                // A connection of a pending attempt was closed before it could be used.
+                startNextAttempt();
+            }
+            return;
+        }
+        if (state == State.ESTABLISHED) {
+            connection.close();
+        } else {
+            log.debug("The connection was closed while the session was being negotiated.");
+            ioSession = null;
+            fallback();
+        }
+    }
+
+    private void startTLS()
+    {
+        state = State.TLS_HANDSHAKE;
+        try {
+            // In client mode the handshake is started as soon as the filter is added, so no data is to be exchanged
+            // without encryption (as the second argument would otherwise arrange).
+            connection.startTLS(true, true);
+        } catch (Exception e) {
+            log.warn("Unable to start TLS on the connection to {}.", address, e);
+            abandon(false);
+        }
+    }
+
+    private void openStream()
+    {
+        final StringBuilder openingStream = new StringBuilder();
+        openingStream.append("<stream:stream");
+        openingStream.append(" xmlns:db=\"jabber:server:dialback\"");
+        openingStream.append(" xmlns:stream=\"http://etherx.jabber.org/streams\"");
+        openingStream.append(" xmlns=\"jabber:server\"");
+        openingStream.append(" from=\"").append(domainPair.getLocal()).append("\""); // OF-673
+        openingStream.append(" to=\"").append(domainPair.getRemote()).append("\"");
+        if (!dialbackOnly) {
+            openingStream.append(" version=\"1.0\"");
+        }
+        openingStream.append(">");
+        if (state != State.SASL_RESTART) {
+            state = State.STREAM;
+        }
+        log.debug("Send the stream header and wait for response...");
+        connection.deliverRawText(openingStream.toString());
+    }
+
+    private void onStreamHeader(@Nonnull final String header) throws Exception
+    {
+        final MXParser parser = reader.getXPPParser();
+        parser.setInput(new StringReader(header));
+        for (int eventType = parser.getEventType(); eventType != XmlPullParser.START_TAG;) {
+            eventType = parser.next();
+        }
+        final String version = parser.getAttributeValue("", "version");
+        final String id = parser.getAttributeValue("", "id");
+        log.debug("Got a response (stream ID: {}, version: {}).", id, version);
+
+        if (state == State.SASL_RESTART) {
+            streamID = id;
+            establish(false);
+        } else if (state != State.STREAM) {
+            log.debug("Ignoring unexpected stream header while the session is being negotiated: {}", header);
+        } else if (dialbackOnly) {
+            if ("jabber:server:dialback".equals(parser.getNamespace("db"))) {
+                log.debug("Dialback seems to be supported by the remote server.");
+                streamID = id;
+                startDialback();
+            } else {
+                log.debug("Error! Invalid namespace in stream header: '{}'. Closing connection.", header);
+                connection.deliverRawText(new StreamError(StreamError.Condition.invalid_namespace).toXML());
+                abandon(false);
+            }
+        } else if (version != null && getMajorVersion(version) >= 1) {
+            log.debug("The remote server is XMPP 1.0 compliant (or at least reports to be). Waiting for stream features...");
+            streamID = id;
+            state = State.FEATURES;
+        } else {
+            log.debug("The remote server is not XMPP 1.0 compliant.");
+            abandon(false);
+        }
+    }
+
+    private void onFeatures(@Nonnull final Element features)
+    {
+        if (!secured) {
+            log.debug("Check if both us as well as the remote server have enabled STARTTLS and/or dialback ...");
+            final boolean useTLS = JiveGlobals.getBooleanProperty(ConnectionSettings.Server.TLS_ENABLED, true);
+            if (useTLS && features.element("starttls") != null) {
+                log.debug("Both us and the remote server support the STARTTLS feature. Indicating we want TLS and wait for response.");
+                state = State.STARTTLS;
+                connection.deliverRawText("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+            } else if (connection.getTlsPolicy() == Connection.TLSPolicy.required) {
+                log.debug("I have no StartTLS yet I must TLS");
+                abandon(false);
+            } else if (ServerDialback.isEnabled() && features.element("dialback") != null) {
+                log.debug("Both us and the remote server support the 'dialback' feature. Authenticate the connection with dialback...");
+                startDialback();
+            } else {
+                abandon(false);
+            }
+            return;
+        }
+
+        boolean saslEXTERNALoffered = false;
+        if (features.element("mechanisms") != null) {
+            final Iterator<Element> it = features.element("mechanisms").elementIterator();
+            while (it.hasNext()) {
+                if ("EXTERNAL".equals(it.next().getTextTrim())) {
+                    saslEXTERNALoffered = true;
+                    break;
+                }
+            }
+        }
+        log.debug("Remote server is offering dialback: {}, EXTERNAL SASL: {}", features.element("dialback") != null, saslEXTERNALoffered);
+        if (saslEXTERNALoffered) {
+            log.debug("Trying to authenticate with EXTERNAL SASL.");
+            state = State.SASL;
+            connection.deliverRawText("<auth xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\" mechanism=\"EXTERNAL\">" + StringUtils.encodeBase64(domainPair.getLocal()) + "</auth>");
+        } else {
+            startDialbackOverTLS();
+        }
+    }
+
+    private void startDialbackOverTLS()
+    {
+        if (ServerDialback.isEnabled() || ServerDialback.isEnabledForSelfSigned()) {
+            log.debug("Trying to authenticate with dialback over TLS.");
+            startDialback();
+        } else {
+            log.debug("Skipping server dialback attempt as it has been disabled by local configuration.");
+            abandon(false);
+        }
+    }
+
+    private void startDialback()
+    {
+        log.debug("Sending dialback key and wait for the validation response...");
+        state = State.DIALBACK;
+        connection.deliverRawText("<db:result from=\"" + domainPair.getLocal() + "\" to=\"" + domainPair.getRemote() + "\">" + ServerDialback.createKey(streamID) + "</db:result>");
+    }
+
+    private void establish(final boolean usingServerDialback)
+    {
+        state = State.ESTABLISHED;
+        // Idle outgoing sessions are closed by the session manager, as the remote server is not expected to send data.
+        ioSession.getConfig().setIdleTime(IdleStatus.READER_IDLE, 0);
+        socketReader = new OutgoingServerSocketReader();
+        final LocalOutgoingServerSession session = new LocalOutgoingServerSession(domainPair.getLocal(), connection, socketReader, BasicStreamIDFactory.createStreamID(streamID), usingServerDialback);
+        connection.init(session);
+        // Set the remote domain name as the address of the session.
+        session.setAddress(new JID(null, domainPair.getRemote(), null));
+        log.debug("Successfully created new session!");
+        complete(session);
+    }
+
+    /**
+     * Closes the connection that is being negotiated, after which the negotiation is retried using server dialback on
+     * a stream without a version, if that is possible.
+     *
+     * @param forceClose true if the connection is to be closed without sending any data.
+     */
+    private void abandon(final boolean forceClose)
+    {
+        final IoSession session = ioSession;
+        ioSession = null;
+        if (forceClose) {
+            session.closeNow();
+        } else {
+            connection.close();
+        }
+        fallback();
+    }
+
+    private void fallback()
+    {
+        if (connection != null && connection.getTlsPolicy() == Connection.TLSPolicy.required) {
+            log.debug("I have no StartTLS yet I must TLS");
+            fail();
+        } else if (!dialbackOnly && ServerDialback.isEnabled()) {
+            log.debug("Unable to create a new session. Going to try connecting using server dialback as a fallback.");
+            dialbackOnly = true;
+            secured = false;
+            startAttempts();
+        } else {
+            log.warn("Unable to create a new session: exhausted all options.");
+            fail();
+        }
+    }
+
+    private void fail()
+    {
+        state = State.FAILED;
+        complete(null);
+    }
+
+    /**
+     * Completes the negotiation. This is done by another thread, as the thread that processes the events of the
+     * connection should not be used by whatever was waiting for the session (which might wait for the remote server
+     * to respond on that same connection).
+     */
+    private void complete(final LocalOutgoingServerSession session)
+    {
+        TaskEngine.getInstance().submit(() -> result.complete(session));
+    }
+
+    private static SSLException findSSLException(Throwable cause)
+    {
+        while (cause != null) {
+            if (cause instanceof SSLException) {
+                return (SSLException) cause;
+            }
+            cause = cause.getCause();
+        }
+        return null;
+    }
+
+    private static int getMajorVersion(@Nonnull final String version)
+    {
+        final int dot = version.indexOf('.');
+        try {
+            return Integer.parseInt(dot < 0 ? version : version.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
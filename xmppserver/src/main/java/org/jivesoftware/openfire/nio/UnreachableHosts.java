@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.nio;
+
+import javax.annotation.Nonnull;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the addresses of remote servers to which a connection recently could not be established, so that
+ * connection attempts to other addresses of the same remote domain can be made first.
+ */
+final class UnreachableHosts
+{
+    /**
+     * The number of addresses above which addresses of which the retention expired are removed.
+     */
+    private static final int PRUNE_THRESHOLD = 1000;
+
+    private final Map<InetSocketAddress, Long> unreachableUntil = new ConcurrentHashMap<>();
+
+    /**
+     * Returns true if a connection to an address recently failed.
+     *
+     * @param address the address of a remote server.
+     * @return true if the address is unreachable.
+     */
+    boolean contains(@Nonnull final InetSocketAddress address)
+    {
+        final Long until = unreachableUntil.get(address);
+        if (until == null) {
+            return false;
+        }
+        if (until <= System.currentTimeMillis()) {
+            unreachableUntil.remove(address, until);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records that a connection to an address could not be established.
+     *
+     * @param address the address of a remote server.
+     * @param retention how long the address is to be considered unreachable.
+     */
+    void add(@Nonnull final InetSocketAddress address, @Nonnull final Duration retention)
+    {
+        if (retention.isZero() || retention.isNegative()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        if (unreachableUntil.size() >= PRUNE_THRESHOLD) {
+            unreachableUntil.values().removeIf(until -> until <= now);
+        }
+        unreachableUntil.put(address, now + retention.toMillis());
+    }
+
+    /**
+     * Records that a connection to an address was established.
+     *
+     * @param address the address of a remote server.
+     */
+    void remove(@Nonnull final InetSocketAddress address)
+    {
+        unreachableUntil.remove(address);
+    }
+}
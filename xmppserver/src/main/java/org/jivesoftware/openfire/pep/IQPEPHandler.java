@@ -28,6 +28,7 @@ import org.jivesoftware.openfire.IQHandlerInfo;
 import org.jivesoftware.openfire.JMXManager;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.disco.*;
+import org.jivesoftware.openfire.entitycaps.EntityCapabilities;
 import org.jivesoftware.openfire.event.UserEventDispatcher;
 import org.jivesoftware.openfire.event.UserEventListener;
 import org.jivesoftware.openfire.handler.IQHandler;
@@ -832,13 +833,28 @@ public class IQPEPHandler extends IQHandler implements ServerIdentitiesProvider,
             // Send the last published items for the contacts on availableSessionJID's roster.
             try {
                 final XMPPServer server = XMPPServer.getInstance();
+
+                // When the capabilities of the session are known, only the nodes that it expressed interest in are
+                // of concern. Without known capabilities, notifications of all nodes are sent.
+                final EntityCapabilities caps = server.getEntityCapabilitiesManager().getEntityCapabilities(availableSessionJID);
+                final Set<String> nodeIdFilter = caps == null ? null : caps.getNotifyNodes();
+                if (nodeIdFilter != null && nodeIdFilter.isEmpty()) {
+                    Log.trace("Session '{}' is not interested in notifications of any node. Skipping last published items of contacts.", availableSessionJID);
+                    return;
+                }
+
                 final Roster roster = server.getRosterManager().getRoster(availableSessionJID.getNode());
                 for (final RosterItem item : roster.getRosterItems()) {
                     if (server.isLocal(item.getJid()) && (item.getSubStatus() == RosterItem.SUB_BOTH ||
                             item.getSubStatus() == RosterItem.SUB_TO)) {
-                        PEPService pepService = pepServiceManager.getPEPService(item.getJid().asBareJID());
+                        final JID contact = item.getJid().asBareJID();
+                        if (nodeIdFilter != null && nodeIdFilter.stream().noneMatch(nodeId -> pepServiceManager.mightHaveNode(contact, nodeId))) {
+                            // The service of the contact is known to have none of the nodes of interest: don't load it.
+                            continue;
+                        }
+                        PEPService pepService = pepServiceManager.getPEPService(contact);
                         if (pepService != null) {
-                            pepService.sendLastPublishedItems(availableSessionJID);
+                            pepService.sendLastPublishedItems(availableSessionJID, nodeIdFilter);
                         }
                     }
                 }
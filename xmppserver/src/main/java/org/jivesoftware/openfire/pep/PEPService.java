@@ -84,14 +84,19 @@ public class PEPService implements PubSubService, Cacheable {
     private final PacketRouter router;
 
     /**
-     * Default configuration to use for newly created leaf nodes.
+     * Default configuration to use for newly created leaf nodes. Loaded on first use.
      */
-    private DefaultNodeConfiguration leafDefaultConfiguration;
+    private volatile DefaultNodeConfiguration leafDefaultConfiguration;
 
     /**
-     * Default configuration to use for newly created collection nodes.
+     * Default configuration to use for newly created collection nodes. Loaded on first use.
      */
-    private DefaultNodeConfiguration collectionDefaultConfiguration;
+    private volatile DefaultNodeConfiguration collectionDefaultConfiguration;
+
+    /**
+     * Compact representation of this service, that outlives this instance when it is evicted from memory.
+     */
+    private final PEPServiceSummary summary = new PEPServiceSummary();
 
     /**
      * Keep a registry of the presence's show value of users that subscribed to
@@ -139,48 +144,70 @@ public class PEPService implements PubSubService, Cacheable {
         // Initialize the ad-hoc commands manager to use for this pep service
         adHocCommandManager = new AdHocCommandManager();
         adHocCommandManager.addCommand(new PendingSubscriptionsCommand(this));
+    }
 
-        // Load default configuration for leaf nodes
+    /**
+     * Loads the default configuration for leaf nodes of this service from the database, creating and saving it
+     * when it does not yet exist.
+     */
+    private synchronized DefaultNodeConfiguration loadLeafDefaultConfiguration() {
+        if (leafDefaultConfiguration != null) {
+            return leafDefaultConfiguration;
+        }
         final PubSubPersistenceProvider persistenceProvider = XMPPServer.getInstance().getPubSubModule().getPersistenceProvider();
-        leafDefaultConfiguration = persistenceProvider.loadDefaultConfiguration(this.getUniqueIdentifier(), true);
-        if (leafDefaultConfiguration == null) {
+        DefaultNodeConfiguration configuration = persistenceProvider.loadDefaultConfiguration(this.getUniqueIdentifier(), true);
+        if (configuration == null) {
             // Create and save default configuration for leaf nodes;
-            leafDefaultConfiguration = new DefaultNodeConfiguration(true);
-            leafDefaultConfiguration.setAccessModel(AccessModel.presence);
-            leafDefaultConfiguration.setPublisherModel(PublisherModel.publishers);
-            leafDefaultConfiguration.setDeliverPayloads(true);
-            leafDefaultConfiguration.setLanguage("English");
-            leafDefaultConfiguration.setMaxPayloadSize(10 * 1024 * 1024); // Probably should not be larger than the max read buffer for stanzas!
-            leafDefaultConfiguration.setNotifyConfigChanges(true);
-            leafDefaultConfiguration.setNotifyDelete(true);
-            leafDefaultConfiguration.setNotifyRetract(true);
-            leafDefaultConfiguration.setPersistPublishedItems(true);
-            leafDefaultConfiguration.setMaxPublishedItems(1);
-            leafDefaultConfiguration.setPresenceBasedDelivery(false);
-            leafDefaultConfiguration.setSendItemSubscribe(true);
-            leafDefaultConfiguration.setSubscriptionEnabled(true);
-            leafDefaultConfiguration.setReplyPolicy(null);
-            persistenceProvider.createDefaultConfiguration(this.getUniqueIdentifier(), leafDefaultConfiguration);
+            configuration = new DefaultNodeConfiguration(true);
+            configuration.setAccessModel(AccessModel.presence);
+            configuration.setPublisherModel(PublisherModel.publishers);
+            configuration.setDeliverPayloads(true);
+            configuration.setLanguage("English");
+            configuration.setMaxPayloadSize(10 * 1024 * 1024); // Probably should not be larger than the max read buffer for stanzas!
+            configuration.setNotifyConfigChanges(true);
+            configuration.setNotifyDelete(true);
+            configuration.setNotifyRetract(true);
+            configuration.setPersistPublishedItems(true);
+            configuration.setMaxPublishedItems(1);
+            configuration.setPresenceBasedDelivery(false);
+            configuration.setSendItemSubscribe(true);
+            configuration.setSubscriptionEnabled(true);
+            configuration.setReplyPolicy(null);
+            persistenceProvider.createDefaultConfiguration(this.getUniqueIdentifier(), configuration);
         }
-        // Load default configuration for collection nodes
-        collectionDefaultConfiguration = persistenceProvider.loadDefaultConfiguration(this.getUniqueIdentifier(), false);
-        if (collectionDefaultConfiguration == null) {
+        leafDefaultConfiguration = configuration;
+        return configuration;
+    }
+
+    /**
+     * Loads the default configuration for collection nodes of this service from the database, creating and saving
+     * it when it does not yet exist.
+     */
+    private synchronized DefaultNodeConfiguration loadCollectionDefaultConfiguration() {
+        if (collectionDefaultConfiguration != null) {
+            return collectionDefaultConfiguration;
+        }
+        final PubSubPersistenceProvider persistenceProvider = XMPPServer.getInstance().getPubSubModule().getPersistenceProvider();
+        DefaultNodeConfiguration configuration = persistenceProvider.loadDefaultConfiguration(this.getUniqueIdentifier(), false);
+        if (configuration == null) {
             // Create and save default configuration for collection nodes;
-            collectionDefaultConfiguration = new DefaultNodeConfiguration(false);
-            collectionDefaultConfiguration.setAccessModel(AccessModel.presence);
-            collectionDefaultConfiguration.setPublisherModel(PublisherModel.publishers);
-            collectionDefaultConfiguration.setDeliverPayloads(false);
-            collectionDefaultConfiguration.setLanguage("English");
-            collectionDefaultConfiguration.setNotifyConfigChanges(true);
-            collectionDefaultConfiguration.setNotifyDelete(true);
-            collectionDefaultConfiguration.setNotifyRetract(true);
-            collectionDefaultConfiguration.setPresenceBasedDelivery(false);
-            collectionDefaultConfiguration.setSubscriptionEnabled(true);
-            collectionDefaultConfiguration.setReplyPolicy(null);
-            collectionDefaultConfiguration.setAssociationPolicy(CollectionNode.LeafNodeAssociationPolicy.all);
-            collectionDefaultConfiguration.setMaxLeafNodes(-1);
-            persistenceProvider.createDefaultConfiguration(this.getUniqueIdentifier(), collectionDefaultConfiguration);
+            configuration = new DefaultNodeConfiguration(false);
+            configuration.setAccessModel(AccessModel.presence);
+            configuration.setPublisherModel(PublisherModel.publishers);
+            configuration.setDeliverPayloads(false);
+            configuration.setLanguage("English");
+            configuration.setNotifyConfigChanges(true);
+            configuration.setNotifyDelete(true);
+            configuration.setNotifyRetract(true);
+            configuration.setPresenceBasedDelivery(false);
+            configuration.setSubscriptionEnabled(true);
+            configuration.setReplyPolicy(null);
+            configuration.setAssociationPolicy(CollectionNode.LeafNodeAssociationPolicy.all);
+            configuration.setMaxLeafNodes(-1);
+            persistenceProvider.createDefaultConfiguration(this.getUniqueIdentifier(), configuration);
         }
+        collectionDefaultConfiguration = configuration;
+        return configuration;
     }
 
     public void initialize() {
@@ -189,7 +216,7 @@ public class PEPService implements PubSubService, Cacheable {
         // Ensure that we have a root collection node
         if (nodes.isEmpty()) {
             // Create root collection node
-            rootCollectionNode = new CollectionNode(this.getUniqueIdentifier(), null, this.serviceOwner.toString(), this.serviceOwner, collectionDefaultConfiguration);
+            rootCollectionNode = new CollectionNode(this.getUniqueIdentifier(), null, this.serviceOwner.toString(), this.serviceOwner, getDefaultNodeConfiguration(false));
 
             // Save new root node
             rootCollectionNode.saveToDB();
@@ -205,11 +232,15 @@ public class PEPService implements PubSubService, Cacheable {
     @Override
     public void addNode(Node node) {
         nodes.put(node.getUniqueIdentifier(), node);
+        if (!serviceOwner.toString().equals(node.getUniqueIdentifier().getNodeId())) {
+            summary.addNode(node.getUniqueIdentifier().getNodeId());
+        }
     }
 
     @Override
     public void removeNode(Node.UniqueIdentifier nodeID) {
         nodes.remove(nodeID);
+        summary.removeNode(nodeID.getNodeId());
     }
 
     @Override
@@ -241,9 +272,21 @@ public class PEPService implements PubSubService, Cacheable {
     @Override
     public DefaultNodeConfiguration getDefaultNodeConfiguration(boolean leafType) {
         if (leafType) {
-            return leafDefaultConfiguration;
+            final DefaultNodeConfiguration configuration = leafDefaultConfiguration;
+            return configuration != null ? configuration : loadLeafDefaultConfiguration();
         }
-        return collectionDefaultConfiguration;
+        final DefaultNodeConfiguration configuration = collectionDefaultConfiguration;
+        return configuration != null ? configuration : loadCollectionDefaultConfiguration();
+    }
+
+    /**
+     * Returns a compact representation of this service, that remains valid after this service is evicted from
+     * memory.
+     *
+     * @return the summary of this service.
+     */
+    public PEPServiceSummary getSummary() {
+        return summary;
     }
 
     @Override
@@ -414,7 +457,7 @@ public class PEPService implements PubSubService, Cacheable {
                 // the notification.
                 EntityCapabilities entityCaps = entityCapsManager.getEntityCapabilities(deliveryAddress);
                 if (entityCaps != null) {
-                    if (!entityCaps.containsFeature(nodeID + "+notify")) {
+                    if (!entityCaps.getNotifyNodes().contains(nodeID)) {
                         Log.trace( "Recipient '{}': Not sending notification to address '{}' that does not have CAPS {}+notify", recipientJID, deliveryAddress, nodeID );
                         continue;
                     }
@@ -16,11 +16,15 @@
 package org.jivesoftware.openfire.pep;
 
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.entitycaps.EntityCapabilities;
 import org.jivesoftware.openfire.entitycaps.EntityCapabilitiesListener;
 import org.jivesoftware.openfire.pubsub.*;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.util.CacheableOptional;
+import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.SystemProperty;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
@@ -29,8 +33,12 @@ import org.xmpp.packet.IQ;
 import org.xmpp.packet.JID;
 
 import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.TimerTask;
 import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 
@@ -46,14 +54,34 @@ public class PEPServiceManager implements EntityCapabilitiesListener {
     public static final Logger Log = LoggerFactory
             .getLogger(PEPServiceManager.class);
 
+    /**
+     * The period of inactivity after which a PEP service is evicted from memory. A compact summary of the service is
+     * retained. Use a zero or negative duration to only evict services based on the configuration of the cache.
+     */
+    public static final SystemProperty<Duration> IDLE_TIMEOUT = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.pep.service.idle-timeout")
+        .setDefaultValue(Duration.ofMinutes(10))
+        .setChronoUnit(ChronoUnit.MINUTES)
+        .setDynamic(true)
+        .build();
+
     /**
      * Cache of PEP services. Table, Key: bare JID; Value: PEPService
      */
     private final Cache<JID, CacheableOptional<PEPService>> pepServices = CacheFactory
         .createLocalCache("PEPServiceManager");
 
+    /**
+     * Compact representations of PEP services, that are retained after the service itself has been evicted from
+     * {@link #pepServices}. Table, Key: bare JID; Value: PEPServiceSummary
+     */
+    private final Cache<JID, PEPServiceSummary> pepServiceSummaries = CacheFactory
+        .createLocalCache("PEP Service Summaries");
+
     private PubSubEngine pubSubEngine = null;
 
+    private TimerTask idleEvictionTask = null;
+
     public void initialize() {
         XMPPServer.getInstance().getEntityCapabilitiesManager().addListener(this);
     }
@@ -141,7 +169,11 @@ public class PEPServiceManager implements EntityCapabilitiesListener {
                     // needs auto-create despite negative cache.
                     pepService = null;
                 } else {
-                    return pepServices.get(jid).get();
+                    pepService = pepServices.get(jid).get();
+                    if ( pepService != null ) {
+                        pepService.getSummary().touch();
+                    }
+                    return pepService;
                 }
             } else {
                 // lookup in database.
@@ -149,6 +181,7 @@ public class PEPServiceManager implements EntityCapabilitiesListener {
                 pepServices.put(jid, CacheableOptional.of(pepService));
                 if ( pepService != null ) {
                     pepService.initialize();
+                    pepServiceSummaries.put(jid, pepService.getSummary());
                 }
             }
 
@@ -231,6 +264,7 @@ public class PEPServiceManager implements EntityCapabilitiesListener {
                 pepService = new PEPService(XMPPServer.getInstance(), bareJID);
                 pepServices.put(bareJID, CacheableOptional.of(pepService));
                 pepService.initialize();
+                pepServiceSummaries.put(bareJID, pepService.getSummary());
 
                 Log.debug("PEPService created for: '{}'", bareJID);
             }
@@ -278,6 +312,7 @@ public class PEPServiceManager implements EntityCapabilitiesListener {
 
             // Remove from cache if it was in.
             pepServices.remove(address).get();
+            pepServiceSummaries.remove(address);
             Log.debug("PEPService destroyed for: '{}'", address);
         } finally {
             lock.unlock();
@@ -291,10 +326,22 @@ public class PEPServiceManager implements EntityCapabilitiesListener {
     public void start() {
         Log.debug("Starting...");
         pubSubEngine = new PubSubEngine(XMPPServer.getInstance().getPacketRouter());
+
+        idleEvictionTask = new TimerTask() {
+            @Override
+            public void run() {
+                evictIdleServices();
+            }
+        };
+        TaskEngine.getInstance().schedule(idleEvictionTask, JiveConstants.MINUTE, JiveConstants.MINUTE);
     }
 
     public void stop() {
         Log.debug("Stopping...");
+        if (idleEvictionTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(idleEvictionTask);
+            idleEvictionTask = null;
+        }
         for (final CacheableOptional<PEPService> service : pepServices.values()) {
             if (service.isPresent()) {
                 pubSubEngine.shutdown(service.get());
@@ -312,6 +359,57 @@ public class PEPServiceManager implements EntityCapabilitiesListener {
         return pepServices.get(owner.asBareJID()) != null;
     }
 
+    /**
+     * Checks if the PEP service of a user might have a node with a particular ID. This method does not materialize
+     * the service: it uses the summary that was retained for the service, if there is one.
+     *
+     * When no summary of the service is available (eg: the service has never been loaded, or the summary was evicted)
+     * or when clustering is enabled (in which case nodes can be added through other cluster nodes), this method
+     * returns true.
+     *
+     * @param owner the owner of the PEP service.
+     * @param nodeId the ID of the node.
+     * @return false if the service is known to not have the node, otherwise true.
+     */
+    public boolean mightHaveNode(@Nonnull final JID owner, @Nonnull final String nodeId)
+    {
+        if (ClusterManager.isClusteringEnabled()) {
+            return true;
+        }
+        final PEPServiceSummary summary = pepServiceSummaries.get(owner.asBareJID());
+        return summary == null || summary.hasNode(nodeId);
+    }
+
+    /**
+     * Removes PEP services that have not been used for a period longer than {@link #IDLE_TIMEOUT} from memory. The
+     * summaries of these services are retained.
+     */
+    void evictIdleServices()
+    {
+        final Duration timeout = IDLE_TIMEOUT.getValue();
+        if (timeout.isZero() || timeout.isNegative()) {
+            return;
+        }
+        final long cutoff = System.currentTimeMillis() - timeout.toMillis();
+        int evicted = 0;
+        for (final JID owner : new ArrayList<>(pepServices.keySet())) {
+            final Lock lock = pepServices.getLock(owner);
+            lock.lock();
+            try {
+                final CacheableOptional<PEPService> cached = pepServices.get(owner);
+                if (cached != null && cached.isPresent() && cached.get().getSummary().getLastAccessed() < cutoff) {
+                    pepServices.remove(owner);
+                    evicted++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (evicted > 0) {
+            Log.debug("Evicted {} PEP service(s) that were idle for more than {}.", evicted, timeout);
+        }
+    }
+
     @Override
     public void entityCapabilitiesChanged( @Nonnull final JID entity,
                                            @Nonnull final EntityCapabilities updatedEntityCapabilities,
@@ -336,7 +434,8 @@ public class PEPServiceManager implements EntityCapabilitiesListener {
         for ( final String nodeID : nodeIDs ) {
             nodesToBeProcessed.addAll(findSubscribedNodes(entity, nodeID));
         }
-        if (XMPPServer.getInstance().isLocal( entity ) && UserManager.getInstance().isRegisteredUser( entity.getNode() ) ) {
+        if (XMPPServer.getInstance().isLocal( entity ) && UserManager.getInstance().isRegisteredUser( entity.getNode() )
+            && nodeIDs.stream().anyMatch( nodeID -> mightHaveNode( entity, nodeID ) ) ) {
             final PEPService service = getPEPService( entity );
             for ( final String nodeID : nodeIDs ) {
                 final Node node = service.getNode( nodeID );
@@ -383,6 +482,15 @@ public class PEPServiceManager implements EntityCapabilitiesListener {
         // entity has a subscription to that node (which recursively looks at its parents).
         final Set<PubSubService.UniqueIdentifier> relatedServiceUIDs = directlySubscribedNodes.stream().map(Node.UniqueIdentifier::getServiceIdentifier).collect(Collectors.toSet());
         for( final PubSubService.UniqueIdentifier relatedServiceUID : relatedServiceUIDs ) {
+            // Avoid loading services that are known to not have the node.
+            try {
+                if ( !mightHaveNode( new JID( relatedServiceUID.getServiceId() ), nodeId ) ) {
+                    continue;
+                }
+            } catch ( IllegalArgumentException ex ) {
+                continue; // Not a PEP service.
+            }
+
             // Here, we're only interested in PEP services, not generic Pubsub services.
             final PEPService service = getPEPService( relatedServiceUID, false );
             if ( service != null ) {
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.pep;
+
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+
+/**
+ * A compact representation of a {@link PEPService}, that remains available after the service itself has been evicted
+ * from memory.
+ *
+ * The summary is maintained by the service that it represents, for as long as that service is in memory. It is used
+ * to determine if a service has a node with a particular ID without materializing the service. The node IDs that are
+ * used in PEP are typically namespaces that are shared by all users (eg: 'urn:xmpp:avatar:metadata'). These are
+ * interned, which causes the summaries of all users to share the same String instances. The ID of the root node of a
+ * service (which is equal to the address of its owner) is not recorded.
+ */
+public class PEPServiceSummary implements Cacheable
+{
+    private static final String[] EMPTY = new String[0];
+
+    /**
+     * The IDs of all nodes of the service, except for its root node, sorted. Replaced (never modified) on change.
+     */
+    private volatile String[] nodeIds = EMPTY;
+
+    /**
+     * The instant (in milliseconds since the epoch) at which the service was last obtained from the service manager.
+     */
+    private volatile long lastAccessed = System.currentTimeMillis();
+
+    /**
+     * Records that the service has a node.
+     *
+     * @param nodeId the ID of the node.
+     */
+    synchronized void addNode(@Nonnull final String nodeId)
+    {
+        final String[] current = nodeIds;
+        if (Arrays.binarySearch(current, nodeId) >= 0) {
+            return;
+        }
+        final String[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = nodeId.intern();
+        Arrays.sort(updated);
+        nodeIds = updated;
+    }
+
+    /**
+     * Records that the service no longer has a node.
+     *
+     * @param nodeId the ID of the node.
+     */
+    synchronized void removeNode(@Nonnull final String nodeId)
+    {
+        final String[] current = nodeIds;
+        final int index = Arrays.binarySearch(current, nodeId);
+        if (index < 0) {
+            return;
+        }
+        final String[] updated = new String[current.length - 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        System.arraycopy(current, index + 1, updated, index, updated.length - index);
+        nodeIds = updated;
+    }
+
+    /**
+     * Checks if the service has a (non-root) node with a particular ID.
+     *
+     * @param nodeId the ID of the node.
+     * @return true if the service has the node, otherwise false.
+     */
+    public boolean hasNode(@Nonnull final String nodeId)
+    {
+        return Arrays.binarySearch(nodeIds, nodeId) >= 0;
+    }
+
+    /**
+     * Returns the number of (non-root) nodes of the service.
+     *
+     * @return a node count.
+     */
+    public int getNodeCount()
+    {
+        return nodeIds.length;
+    }
+
+    /**
+     * Records that the service was used.
+     */
+    void touch()
+    {
+        lastAccessed = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the instant (in milliseconds since the epoch) at which the service was last obtained from the service
+     * manager.
+     *
+     * @return a timestamp.
+     */
+    public long getLastAccessed()
+    {
+        return lastAccessed;
+    }
+
+    @Override
+    public int getCachedSize()
+    {
+        // The node IDs are interned, and therefore not accounted for.
+        return CacheSizes.sizeOfObject() + CacheSizes.sizeOfObject() + nodeIds.length * 4 + CacheSizes.sizeOfLong();
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.privacy;
+
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The items of a privacy list, compiled into a structure that determines which item applies to a stanza without
+ * evaluating the items one by one.
+ *
+ * Items are indexed by the value that they match (a full JID, a bare JID, a domain, a roster group or a subscription
+ * status) and by the direction in which they apply (to the sender of stanzas that are received, or to the recipient of
+ * presences that are sent). For every value, the index holds the position of the first item for each kind of stanza.
+ * The item that applies to a stanza is the item with the lowest position among those that are found for its sender or
+ * recipient, and the items without a type.
+ *
+ * The result for an address that depends on the roster of the owner of the list is determined once for every contact,
+ * and is reused until the roster is modified (see {@link Roster#getModificationCount()}). Instances are immutable,
+ * apart from that, and are to be replaced when the privacy list is modified.
+ */
+final class CompiledPrivacyList
+{
+    /**
+     * The kinds of stanza that items of a privacy list distinguish, used as indices in the arrays of positions.
+     */
+    private static final int MESSAGE = 0;
+    private static final int IQ_STANZA = 1;
+    private static final int PRESENCE_IN = 2;
+    private static final int PRESENCE_OUT = 3;
+    private static final int OTHER = 4;
+    private static final int KINDS = 5;
+
+    /**
+     * The directions in which an item applies: to the sender of a stanza that is received by the owner of the list,
+     * or to the recipient of a presence that is sent by the owner.
+     */
+    private static final int FROM = 0;
+    private static final int TO = 1;
+
+    /**
+     * The position that denotes that no item applies.
+     */
+    private static final int NONE = Integer.MAX_VALUE;
+
+    private final String userBareJID;
+    private final boolean[] allow;
+    private final int[] fallThrough = empty();
+    private final Direction[] directions = { new Direction(), new Direction() };
+    private final boolean rosterRequired;
+    private volatile RosterState rosterState;
+
+    /**
+     * Compiles the items of a privacy list.
+     *
+     * @param userJID the owner of the privacy list.
+     * @param items the items of the privacy list, in the order in which they are to be evaluated.
+     */
+    CompiledPrivacyList(@Nonnull final JID userJID, @Nonnull final List<PrivacyItem> items)
+    {
+        this.userBareJID = userJID.toBareJID();
+        this.allow = new boolean[items.size()];
+        boolean rosterRequired = false;
+        for (int position = 0; position < items.size(); position++) {
+            final PrivacyItem item = items.get(position);
+            allow[position] = item.isAllow();
+            final int kinds = kindsOf(item);
+            if (item.getType() == null) {
+                add(fallThrough, kinds, position);
+                continue;
+            }
+            rosterRequired |= item.isRosterRequired();
+            if (item.isFilterEverything() || item.isFilterPresenceIn() || item.isFilterIQ() || item.isFilterMessage()) {
+                directions[FROM].add(item, kinds, position);
+            }
+            if (item.isFilterEverything() || item.isFilterPresenceOut()) {
+                directions[TO].add(item, kinds, position);
+            }
+        }
+        this.rosterRequired = rosterRequired;
+    }
+
+    /**
+     * Returns true if the roster of the owner of the list is needed to evaluate stanzas.
+     *
+     * @return true if the list has items that are based on roster groups or subscription statuses.
+     */
+    boolean isRosterRequired()
+    {
+        return rosterRequired;
+    }
+
+    /**
+     * Returns true if a stanza must be blocked, which is the case when the first item that applies to it denies it.
+     *
+     * @param packet the stanza to evaluate.
+     * @param roster the roster of the owner of the list (can be null when the roster is not required or not found).
+     * @return true if the stanza must be blocked.
+     */
+    boolean shouldBlockPacket(@Nonnull final Packet packet, @Nullable final Roster roster)
+    {
+        final JID from = packet.getFrom();
+        if (from == null) {
+            // Sender is the server so it's not denied
+            return false;
+        }
+        final int kind = kindOf(packet);
+        int position = fallThrough[kind];
+
+        // Items with a type apply to the sender of a stanza that is received, or to the recipient of a presence that is
+        // sent. Other stanzas that are sent are only subject to items without a type.
+        final JID address;
+        final int direction;
+        if (!userBareJID.equals(from.toBareJID())) {
+            address = from;
+            direction = FROM;
+        } else if (packet.getClass().equals(Presence.class)) {
+            address = packet.getTo();
+            direction = TO;
+        } else {
+            address = null;
+            direction = FROM;
+        }
+        if (address != null) {
+            position = Math.min(position, directions[direction].lookup(address, kind));
+            if (rosterRequired) {
+                position = Math.min(position, getRosterState(roster).lookup(address, direction, kind));
+            }
+        }
+        return position != NONE && !allow[position];
+    }
+
+    /**
+     * Returns the kind of a stanza. Presences of a type other than available or unavailable are not distinguished by
+     * items of a privacy list, and are of the same kind as stanzas that are not messages, IQs or presences.
+     */
+    private int kindOf(@Nonnull final Packet packet)
+    {
+        final Class<? extends Packet> packetClass = packet.getClass();
+        if (Message.class.equals(packetClass)) {
+            return MESSAGE;
+        } else if (IQ.class.equals(packetClass)) {
+            return IQ_STANZA;
+        } else if (Presence.class.equals(packetClass)) {
+            final Presence.Type type = ((Presence) packet).getType();
+            if (type == null || type == Presence.Type.unavailable) {
+                final JID to = packet.getTo();
+                return to != null && to.toBareJID().equals(userBareJID) ? PRESENCE_IN : PRESENCE_OUT;
+            }
+        }
+        return OTHER;
+    }
+
+    /**
+     * Returns a bitmask of the kinds of stanza to which an item applies.
+     */
+    private static int kindsOf(@Nonnull final PrivacyItem item)
+    {
+        if (item.isFilterEverything()) {
+            return (1 << KINDS) - 1;
+        }
+        int result = 0;
+        if (item.isFilterMessage()) {
+            result |= 1 << MESSAGE;
+        }
+        if (item.isFilterIQ()) {
+            result |= 1 << IQ_STANZA;
+        }
+        if (item.isFilterPresenceIn()) {
+            result |= 1 << PRESENCE_IN;
+        }
+        if (item.isFilterPresenceOut()) {
+            result |= 1 << PRESENCE_OUT;
+        }
+        return result;
+    }
+
+    private static int[] empty()
+    {
+        final int[] positions = new int[KINDS];
+        Arrays.fill(positions, NONE);
+        return positions;
+    }
+
+    /**
+     * Records the position of an item for the kinds of stanza to which it applies, unless an item at a lower position
+     * was recorded before.
+     */
+    private static void add(@Nonnull final int[] positions, final int kinds, final int position)
+    {
+        for (int kind = 0; kind < KINDS; kind++) {
+            if ((kinds & (1 << kind)) != 0 && position < positions[kind]) {
+                positions[kind] = position;
+            }
+        }
+    }
+
+    private static void merge(@Nonnull final int[] positions, @Nullable final int[] other, final int offset)
+    {
+        if (other != null) {
+            for (int kind = 0; kind < KINDS; kind++) {
+                positions[offset + kind] = Math.min(positions[offset + kind], other[kind]);
+            }
+        }
+    }
+
+    private static int lookup(@Nullable final int[] positions, final int kind)
+    {
+        return positions == null ? NONE : positions[kind];
+    }
+
+    private RosterState getRosterState(@Nullable final Roster roster)
+    {
+        RosterState state = rosterState;
+        if (state == null || !state.isCurrent(roster)) {
+            state = new RosterState(roster);
+            rosterState = state;
+        }
+        return state;
+    }
+
+    /**
+     * The items that apply in one direction, indexed by the value that they match.
+     */
+    private static final class Direction
+    {
+        private final Map<JID, int[]> fullJIDs = new HashMap<>();
+        private final Map<String, int[]> bareJIDs = new HashMap<>();
+        private final Map<String, int[]> domains = new HashMap<>();
+        private final Map<String, int[]> groups = new HashMap<>();
+        private final Map<RosterItem.SubType, int[]> subscriptions = new EnumMap<>(RosterItem.SubType.class);
+
+        void add(@Nonnull final PrivacyItem item, final int kinds, final int position)
+        {
+            final int[] positions;
+            switch (item.getType()) {
+                case jid:
+                    final JID jid = item.getJID();
+                    if (jid.getResource() != null) {
+                        positions = fullJIDs.computeIfAbsent(jid, k -> empty());
+                    } else if (jid.getNode() != null) {
+                        positions = bareJIDs.computeIfAbsent(jid.toBareJID(), k -> empty());
+                    } else {
+                        positions = domains.computeIfAbsent(jid.getDomain(), k -> empty());
+                    }
+                    break;
+                case group:
+                    positions = groups.computeIfAbsent(item.getGroup(), k -> empty());
+                    break;
+                default:
+                    positions = subscriptions.computeIfAbsent(item.getSubscription(), k -> empty());
+                    break;
+            }
+            CompiledPrivacyList.add(positions, kinds, position);
+        }
+
+        /**
+         * Returns the position of the first item that matches an address without the use of the roster.
+         */
+        int lookup(@Nonnull final JID address, final int kind)
+        {
+            int result = NONE;
+            if (!fullJIDs.isEmpty()) {
+                result = CompiledPrivacyList.lookup(fullJIDs.get(address), kind);
+            }
+            if (!bareJIDs.isEmpty()) {
+                result = Math.min(result, CompiledPrivacyList.lookup(bareJIDs.get(address.toBareJID()), kind));
+            }
+            if (!domains.isEmpty()) {
+                result = Math.min(result, CompiledPrivacyList.lookup(domains.get(address.getDomain()), kind));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The positions of the items that are based on roster groups or subscription statuses, determined per contact for
+     * one revision of a roster.
+     */
+    private final class RosterState
+    {
+        private final Roster roster;
+        private final int modificationCount;
+        private final ConcurrentMap<String, int[]> contacts = new ConcurrentHashMap<>();
+
+        /**
+         * The positions for addresses that are not in the roster, for both directions.
+         */
+        private final int[] strangers;
+
+        RosterState(@Nullable final Roster roster)
+        {
+            this.roster = roster;
+            this.modificationCount = roster == null ? 0 : roster.getModificationCount();
+            this.strangers = compute(RosterItem.SUB_NONE, null);
+        }
+
+        boolean isCurrent(@Nullable final Roster roster)
+        {
+            return this.roster == roster && (roster == null || roster.getModificationCount() == modificationCount);
+        }
+
+        int lookup(@Nonnull final JID address, final int direction, final int kind)
+        {
+            int[] positions = strangers;
+            if (roster != null) {
+                final String bareJID = address.toBareJID();
+                positions = contacts.get(bareJID);
+                if (positions == null) {
+                    positions = strangers;
+                    if (roster.isRosterItem(address)) {
+                        try {
+                            final RosterItem item = roster.getRosterItem(address);
+                            positions = compute(item.getSubStatus(), item.getGroups());
+                            contacts.put(bareJID, positions);
+                        } catch (UserNotFoundException e) {
+                            // Removed from the roster in the meantime.
+                        }
+                    }
+                }
+            }
+            return positions[direction * KINDS + kind];
+        }
+
+        /**
+         * Returns the positions of the items that apply to a contact, for both directions.
+         */
+        private int[] compute(@Nonnull final RosterItem.SubType subscription, @Nullable final List<String> contactGroups)
+        {
+            final int[] result = new int[2 * KINDS];
+            Arrays.fill(result, NONE);
+            for (final int direction : new int[] { FROM, TO }) {
+                final Direction items = directions[direction];
+                merge(result, items.subscriptions.get(subscription), direction * KINDS);
+                if (contactGroups != null && !items.groups.isEmpty()) {
+                    for (final String group : contactGroups) {
+                        merge(result, items.groups.get(group), direction * KINDS);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
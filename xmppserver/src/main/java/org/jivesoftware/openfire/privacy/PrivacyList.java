@@ -87,6 +87,10 @@ public class PrivacyList implements Cacheable, Externalizable {
     private String name;
     private boolean isDefault;
     private List<PrivacyItem> items = new ArrayList<>();
+    /**
+     * The items of this list, compiled for the evaluation of stanzas. Replaced whenever the items are replaced.
+     */
+    private volatile CompiledPrivacyList compiled;
 
     /**
      * Constructor added for Externalizable. Do not use this constructor.
@@ -148,29 +152,25 @@ public class PrivacyList implements Cacheable, Externalizable {
      * is matched then communication will be blocked or allowed based on that rule. No more
      * further analysis is going to be made.
      *
+     * The rules are evaluated in a compiled form (see {@link CompiledPrivacyList}), which finds the first matching
+     * rule through lookups rather than by evaluating every rule. The roster of the owner of the list is only retrieved
+     * when the list has rules that are based on roster groups or subscription statuses.
+     *
      * @param packet the packet to analyze if it must be blocked.
      * @return true if the specified packet must be blocked based on this privacy list rules.
      */
     public boolean shouldBlockPacket(Packet packet) {
-        if (packet.getFrom() == null) {
+        final CompiledPrivacyList compiled = this.compiled;
+        if (packet.getFrom() == null || compiled == null) {
             // Sender is the server so it's not denied
             return false;
         }
-        // Iterate over the rules and check each rule condition
-        Roster roster = getRoster();
-        for (PrivacyItem item : items) {
-            if (item.matchesCondition(packet, roster, userJID)) {
-                if (item.isAllow()) {
-                    return false;
-                }
-                if (Log.isDebugEnabled()) {
-                    Log.debug("PrivacyList: Packet was blocked: " + packet);
-                }
-                return true;
-            }
+        final Roster roster = compiled.isRosterRequired() ? getRoster() : null;
+        final boolean blocked = compiled.shouldBlockPacket(packet, roster);
+        if (blocked && Log.isDebugEnabled()) {
+            Log.debug("PrivacyList: Packet was blocked: " + packet);
         }
-        // If no rule blocked the communication then allow the packet to flow
-        return false;
+        return blocked;
     }
 
     /**
@@ -260,6 +260,7 @@ public class PrivacyList implements Cacheable, Externalizable {
         }
         // Sort items collections
         Collections.sort(items);
+        compiled = new CompiledPrivacyList(userJID, items);
         if (notify) {
             // Trigger event that this list has been modified
             PrivacyListManager.getInstance().dispatchModifiedEvent(this);
@@ -3,6 +3,7 @@ package org.jivesoftware.openfire.pubsub;
 import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.pep.PEPService;
 import org.jivesoftware.openfire.pubsub.cluster.FlushTask;
+import org.jivesoftware.util.CacheableOptional;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.SystemProperty;
 import org.jivesoftware.util.TaskEngine;
@@ -13,6 +14,10 @@ import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
 
 import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
@@ -31,8 +36,109 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
         .setDynamic(false)
         .build();
 
+    /**
+     * Enables a local, memory-mapped journal in which changes to published items are recorded before they are written
+     * to the database. When enabled, pending changes survive a restart of the server, and are written to the database
+     * continuously, rather than periodically.
+     */
+    public static final SystemProperty<Boolean> JOURNAL_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("xmpp.pubsub.journal.enabled")
+        .setDefaultValue(false)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The size of each file of the journal of changes to published items. Should not be changed while the journal
+     * holds changes that have not been written to the database.
+     */
+    public static final SystemProperty<Integer> JOURNAL_SEGMENT_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.pubsub.journal.segment-size")
+        .setDefaultValue(16 * 1024 * 1024)
+        .setMinValue(64 * 1024)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * Forces every change that is recorded in the journal to the storage device. Without this, changes survive a
+     * crash of the server process, but not necessarily a crash of the operating system.
+     */
+    public static final SystemProperty<Boolean> JOURNAL_SYNC = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("xmpp.pubsub.journal.sync")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * The interval in which journaled changes are written to the database.
+     */
+    public static final SystemProperty<Duration> JOURNAL_DRAIN_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.pubsub.journal.drain-interval")
+        .setDefaultValue(Duration.ofSeconds(1))
+        .setMinValue(Duration.ofMillis(10))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The maximum number of changes to published items that is written to the database in one transaction, when the
+     * journal is enabled.
+     */
+    public static final SystemProperty<Integer> JOURNAL_BATCH_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.pubsub.journal.batch-size")
+        .setDefaultValue(500)
+        .setMinValue(1)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * The largest 'max items' configuration of a node, for which the items of that node are kept in an in-memory ring
+     * that is written to the database as a periodic snapshot, instead of being written item by item. A value of zero
+     * (the default) disables this. Rings are not used when the journal is enabled, or when clustering is enabled.
+     */
+    public static final SystemProperty<Integer> RING_MAX_ITEMS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.pubsub.ring.max-items")
+        .setDefaultValue(0)
+        .setMinValue(0)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * The interval at which modified in-memory rings of published items are written to the database.
+     */
+    public static final SystemProperty<Duration> RING_SNAPSHOT_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.pubsub.ring.snapshot-interval")
+        .setDefaultValue(Duration.ofSeconds(30))
+        .setMinValue(Duration.ofSeconds(1))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The interval at which identifiers of items that are no longer in the item cache (eg: because they were evicted)
+     * are removed from the index of cached items per node.
+     */
+    public static final SystemProperty<Duration> ITEM_INDEX_PRUNE_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.pubsub.item-index.prune-interval")
+        .setDefaultValue(Duration.ofMinutes(5))
+        .setMinValue(Duration.ofSeconds(1))
+        .setChronoUnit(ChronoUnit.SECONDS)
+        .setDynamic(false)
+        .build();
+
     private PubSubPersistenceProvider delegate;
 
+    /**
+     * Journal in which changes to published items are recorded until they have been written to the database. Null
+     * when the journal is disabled.
+     */
+    private PublishedItemJournal journal;
+
+    /**
+     * The journal positions of changes to published items that have not yet been written to the database, which
+     * determine up to which position the journal can be checkpointed. Guarded by the lock on {@link #itemsPending}.
+     */
+    private final UnwrittenJournalChanges unwrittenChanges = new UnwrittenJournalChanges();
+
     /**
      * Pseudo-random number generator is used to offset timing for scheduled tasks
      * within a cluster (so they don't run at the same time on all members).
@@ -78,16 +184,63 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
      */
     private final Cache<PublishedItem.UniqueIdentifier, PublishedItem> itemCache = CacheFactory.createCache( ITEM_CACHE );
 
+    /**
+     * Identifiers of the items that were added to {@link #itemCache} by this cluster node, grouped by node, in the order
+     * in which they were added. This allows the cached items of one node to be found without inspecting the entire
+     * cache.
+     *
+     * As entries can be evicted from the cache without notice, this index can contain identifiers of items that are no
+     * longer cached. These are removed periodically (see {@link #ITEM_INDEX_PRUNE_INTERVAL}).
+     *
+     * The sets that are the values of this map are modified only while computing the corresponding entry of the map.
+     */
+    private final ConcurrentMap<Node.UniqueIdentifier, Set<PublishedItem.UniqueIdentifier>> cachedItemsByNode = new ConcurrentHashMap<>();
+
+    /**
+     * Cache name for the last published item of nodes.
+     */
+    private static final String LAST_ITEM_CACHE = "Last Published Items";
+
+    /**
+     * Cache for the last published item of nodes. An absent value denotes a node that is known to have no items. This
+     * cache is kept up to date when items are published, retracted or purged, which allows the last published item of
+     * a node to be obtained without first writing pending changes to the database.
+     */
+    private final Cache<Node.UniqueIdentifier, CacheableOptional<PublishedItem>> lastItemCache = CacheFactory.createCache( LAST_ITEM_CACHE );
+
+    /**
+     * In-memory rings that hold the items of nodes with a small 'max items' configuration, by node.
+     *
+     * @see #RING_MAX_ITEMS
+     */
+    private final ConcurrentMap<Node.UniqueIdentifier, PublishedItemRing> rings = new ConcurrentHashMap<>();
+
     private TimerTask flushTask;
 
+    private TimerTask ringSnapshotTask;
+
+    private TimerTask itemIndexPruneTask;
+
     @Override
     public void initialize()
     {
         log.debug( "Initializing" );
 
         initDelegate();
+        if (JOURNAL_ENABLED.getValue()) {
+            initJournal();
+        }
         try {
-            if (MAX_ITEMS_FLUSH > 0) {
+            if (journal != null) {
+                flushTask = new TimerTask()
+                {
+                    @Override
+                    public void run() { drainPendingChanges(); }
+                };
+                final long interval = JOURNAL_DRAIN_INTERVAL.getValue().toMillis();
+                TaskEngine.getInstance().schedule(flushTask, interval, interval);
+            }
+            else if (MAX_ITEMS_FLUSH > 0) {
                 flushTask = new TimerTask()
                 {
                     @Override
@@ -96,11 +249,245 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
                 TaskEngine.getInstance().schedule(flushTask, Math.abs(prng.nextLong())%flushTimerDelay, flushTimerDelay);
             }
 
+            ringSnapshotTask = new TimerTask()
+            {
+                @Override
+                public void run() { writeRings(); }
+            };
+            final long snapshotInterval = RING_SNAPSHOT_INTERVAL.getValue().toMillis();
+            TaskEngine.getInstance().schedule(ringSnapshotTask, snapshotInterval, snapshotInterval);
+
+            itemIndexPruneTask = new TimerTask()
+            {
+                @Override
+                public void run() { pruneCachedItemIndex(); }
+            };
+            final long pruneInterval = ITEM_INDEX_PRUNE_INTERVAL.getValue().toMillis();
+            TaskEngine.getInstance().schedule(itemIndexPruneTask, pruneInterval, pruneInterval);
+
         } catch (Exception ex) {
             log.error("Failed to initialize pubsub maintentence tasks", ex);
         }
     }
 
+    private void initJournal()
+    {
+        try {
+            journal = PublishedItemJournal.open(Paths.get(JiveGlobals.getHomeDirectory(), "pubsub-journal"), JOURNAL_SEGMENT_SIZE.getValue());
+        } catch (IOException e) {
+            log.error("Unable to open the pubsub item journal. Changes to published items will be written to the database periodically instead.", e);
+            return;
+        }
+
+        // Queue recovered changes again. This records them in the journal again, which allows older segments to be removed.
+        final long start = journal.getPosition();
+        final List<PublishedItemJournal.Record> recovered = journal.getRecovered();
+        synchronized (itemsPending) {
+            for (final PublishedItemJournal.Record record : recovered) {
+                final PublishedItem item = record.toPublishedItem();
+                if (record.operation == PublishedItemJournal.Operation.ADD) {
+                    final PublishedItem replaced = itemsPending.put(item.getUniqueIdentifier(), item);
+                    if (replaced != null && itemsToAdd.remove(replaced)) {
+                        unwrittenChanges.discarded(replaced, true);
+                    }
+                    itemsToAdd.addLast(item);
+                    unwrittenChanges.queued(item, true, journal(PublishedItemJournal.Record.add(item)));
+                } else {
+                    final PublishedItem pending = itemsPending.remove(item.getUniqueIdentifier());
+                    if (pending != null && itemsToAdd.remove(pending)) {
+                        unwrittenChanges.discarded(pending, true); // do not re-add the item after it has been deleted
+                    }
+                    itemsToDelete.addLast(item);
+                    unwrittenChanges.queued(item, false, journal(PublishedItemJournal.Record.delete(item)));
+                }
+            }
+        }
+        journal.checkpoint(start);
+    }
+
+    /**
+     * Records a change in the journal (if enabled). Must be invoked while holding the lock on {@link #itemsPending}, to
+     * guarantee that changes are recorded in the order in which they are queued.
+     *
+     * @param record the change to record.
+     * @return the position of the record in the journal, or -1 if the change was not recorded.
+     */
+    private long journal( final PublishedItemJournal.Record record )
+    {
+        if (journal == null) {
+            return -1;
+        }
+        try {
+            final long position = journal.getPosition();
+            return journal.append(record, JOURNAL_SYNC.getValue()) < 0 ? -1 : position;
+        } catch (IOException e) {
+            log.error("Unable to record a change to published items in the journal. The change is queued, but will be lost if the server stops before it is written to the database.", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Changes to published items that are taken from the queues to be written to the database in one operation.
+     */
+    private final class Batch
+    {
+        final List<PublishedItem> additions = new ArrayList<>();
+        final List<Long> additionPositions = new ArrayList<>();
+        final List<PublishedItem> deletions = new ArrayList<>();
+        final List<Long> deletionPositions = new ArrayList<>();
+
+        /**
+         * Adds an item that was taken from {@link #itemsToAdd}. Must be invoked while holding the lock on {@link #itemsPending}.
+         */
+        void addition( final PublishedItem item )
+        {
+            additions.add(item);
+            additionPositions.add(unwrittenChanges.taken(item, true));
+        }
+
+        /**
+         * Adds an item that was taken from {@link #itemsToDelete}. Must be invoked while holding the lock on {@link #itemsPending}.
+         */
+        void deletion( final PublishedItem item )
+        {
+            deletions.add(item);
+            deletionPositions.add(unwrittenChanges.taken(item, false));
+        }
+
+        boolean isEmpty()
+        {
+            return additions.isEmpty() && deletions.isEmpty();
+        }
+
+        int size()
+        {
+            return additions.size() + deletions.size();
+        }
+    }
+
+    /**
+     * Writes a batch of changes to the database.
+     *
+     * When the journal is enabled, the journal is checkpointed up to the oldest change that has not been written after
+     * a successful write. When the write fails, the changes are queued again (unless they are superseded by changes
+     * that were queued in the mean time), to be retried. Without the journal, changes that fail to be written are lost.
+     *
+     * @param batch the changes to write.
+     * @return true if the changes were written.
+     */
+    private boolean write( final Batch batch )
+    {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        boolean written;
+        try {
+            // The delegate can modify the lists, which are still needed when the changes are to be queued again.
+            written = delegate.bulkPublishedItems(new ArrayList<>(batch.additions), new ArrayList<>(batch.deletions));
+        } catch (Exception e) {
+            log.error("An exception occurred while writing changes to published items to the database.", e);
+            written = false;
+        }
+
+        final PublishedItemJournal journal = this.journal;
+        if (journal == null) {
+            if (!written) {
+                log.error("Writing {} change(s) to published items to the database failed. Data is lost.", batch.size());
+            }
+            return written;
+        }
+
+        final long checkpoint;
+        synchronized (itemsPending) {
+            if (written) {
+                batch.additionPositions.forEach(unwrittenChanges::written);
+                batch.deletionPositions.forEach(unwrittenChanges::written);
+            } else {
+                requeue(batch);
+            }
+            checkpoint = unwrittenChanges.getCheckpoint(journal.getPosition());
+        }
+        journal.checkpoint(checkpoint);
+        return written;
+    }
+
+    /**
+     * Queues changes that failed to be written again, ahead of changes that were queued later. Additions that have been
+     * superseded by later changes to the same item are dropped. Must be invoked while holding the lock on
+     * {@link #itemsPending}.
+     *
+     * @param batch the changes that failed to be written.
+     */
+    private void requeue( final Batch batch )
+    {
+        log.warn("Writing {} change(s) to published items to the database failed. They will be retried.", batch.size());
+
+        // Check for later changes before deletions of the batch are queued again, as those are not later changes.
+        for (int i = batch.additions.size() - 1; i >= 0; i--) {
+            final PublishedItem item = batch.additions.get(i);
+            final long position = batch.additionPositions.get(i);
+            final PublishedItem.UniqueIdentifier key = item.getUniqueIdentifier();
+            if (itemsPending.containsKey(key) || itemsToDelete.stream().anyMatch(deletion -> key.equals(deletion.getUniqueIdentifier()))) {
+                unwrittenChanges.written(position);
+                continue;
+            }
+            itemsToAdd.addFirst(item);
+            itemsPending.put(key, item);
+            unwrittenChanges.requeued(item, true, position);
+        }
+        for (int i = batch.deletions.size() - 1; i >= 0; i--) {
+            final PublishedItem item = batch.deletions.get(i);
+            itemsToDelete.addFirst(item);
+            unwrittenChanges.requeued(item, false, batch.deletionPositions.get(i));
+        }
+    }
+
+    /**
+     * Writes pending changes to the database, in batches of at most {@link #JOURNAL_BATCH_SIZE} changes. Used instead
+     * of periodic flushes when the journal is enabled.
+     *
+     * Only the changes that are queued when this method is invoked are written, so that it returns under sustained
+     * load. When a batch fails to be written, the remaining changes are left for the next invocation.
+     */
+    private void drainPendingChanges()
+    {
+        try {
+            flushPendingNodes();
+
+            int remaining = itemsToAdd.size() + itemsToDelete.size();
+            while (remaining > 0) {
+                final int batchSize = Math.min(remaining, JOURNAL_BATCH_SIZE.getValue());
+                final Batch batch = new Batch();
+                synchronized (itemsPending) {
+                    // Deletions are applied before additions by the delegate, so take those first to retain their order.
+                    PublishedItem item;
+                    while (batch.size() < batchSize && (item = itemsToDelete.pollFirst()) != null) {
+                        batch.deletion(item);
+                    }
+                    while (batch.size() < batchSize && (item = itemsToAdd.pollFirst()) != null) {
+                        batch.addition(item);
+                        final PublishedItem.UniqueIdentifier key = item.getUniqueIdentifier();
+                        if (itemsPending.remove(key, item) && !itemCache.containsKey(key)) {
+                            // Ensure that the item remains available via the item read cache.
+                            itemCache.put(key, item);
+                            indexCachedItem(key, -1);
+                        }
+                    }
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                log.trace("Draining {} addition(s) and {} deletion(s) of published items.", batch.additions.size(), batch.deletions.size());
+                if (!write(batch)) {
+                    break;
+                }
+                remaining -= batch.size();
+            }
+        } catch (Exception e) {
+            log.error("An exception occurred while writing changes to published items to the database.", e);
+        }
+    }
+
     private void initDelegate()
     {
         // Check if we need to reset the provider class
@@ -129,6 +516,12 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
         // OF-2086: Persist cached pubsub data prior to shutdown
         flushPendingChanges( false );
         TaskEngine.getInstance().cancelScheduledTask( flushTask );
+        TaskEngine.getInstance().cancelScheduledTask( ringSnapshotTask );
+        TaskEngine.getInstance().cancelScheduledTask( itemIndexPruneTask );
+        if ( journal != null ) {
+            journal.close();
+            journal = null;
+        }
         delegate.shutdown();
     }
 
@@ -216,6 +609,7 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
         if ( node instanceof LeafNode ) {
             purgeNode( (LeafNode) node );
         }
+        lastItemCache.remove( node.getUniqueIdentifier() );
 
         final List<NodeOperation> operations = nodesToProcess.computeIfAbsent( node.getUniqueIdentifier(), id -> new ArrayList<>() );
         operations.clear(); // Any previously recorded, but as of yet unsaved operations, can be skipped.
@@ -412,24 +806,49 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
     @Override
     public void purgeNode( final LeafNode leafNode )
     {
+        final PublishedItemRing ring = rings.remove( leafNode.getUniqueIdentifier() );
+        if ( ring != null ) {
+            ring.discard();
+        }
+
         // If there are any pending items for this node, don't bother processing them.
         synchronized (itemsPending) {
-            itemsPending.values().removeIf( publishedItem -> leafNode.getUniqueIdentifier().equals( publishedItem.getNode().getUniqueIdentifier() ) );
-            itemsToAdd.removeIf( publishedItem -> leafNode.getUniqueIdentifier().equals( publishedItem.getNode().getUniqueIdentifier() ) );
-            itemsToDelete.removeIf( publishedItem -> leafNode.getUniqueIdentifier().equals( publishedItem.getNode().getUniqueIdentifier() ) );
+            journal( PublishedItemJournal.Record.purge( leafNode.getUniqueIdentifier() ) );
+            itemsPending.values().removeIf( publishedItem -> leafNode.getUniqueIdentifier().equals( publishedItem.getUniqueIdentifier().getNodeIdentifier() ) );
+            for ( final Iterator<PublishedItem> iter = itemsToAdd.iterator(); iter.hasNext(); ) {
+                final PublishedItem publishedItem = iter.next();
+                if ( leafNode.getUniqueIdentifier().equals( publishedItem.getUniqueIdentifier().getNodeIdentifier() ) ) {
+                    iter.remove();
+                    unwrittenChanges.discarded( publishedItem, true );
+                }
+            }
+            for ( final Iterator<PublishedItem> iter = itemsToDelete.iterator(); iter.hasNext(); ) {
+                final PublishedItem publishedItem = iter.next();
+                if ( leafNode.getUniqueIdentifier().equals( publishedItem.getUniqueIdentifier().getNodeIdentifier() ) ) {
+                    iter.remove();
+                    unwrittenChanges.discarded( publishedItem, false );
+                }
+            }
         }
 
         // drop cached items for purged node
-        synchronized (itemCache)
+        final Set<PublishedItem.UniqueIdentifier> cachedItems = cachedItemsByNode.remove( leafNode.getUniqueIdentifier() );
+        if ( cachedItems != null )
         {
-            for (PublishedItem item : itemCache.values())
+            cachedItems.forEach( itemCache::remove );
+        }
+        if ( ClusterManager.isClusteringStarted() )
+        {
+            // Other cluster nodes can have added items to the cache that are not in the local index.
+            for ( final PublishedItem.UniqueIdentifier key : new ArrayList<>( itemCache.keySet() ) )
             {
-                if (leafNode.getUniqueIdentifier().equals(item.getNode().getUniqueIdentifier()))
+                if ( leafNode.getUniqueIdentifier().equals( key.getNodeIdentifier() ) )
                 {
-                    itemCache.remove(item.getUniqueIdentifier());
+                    itemCache.remove( key );
                 }
             }
         }
+        lastItemCache.put( leafNode.getUniqueIdentifier(), CacheableOptional.of( null ) );
         delegate.purgeNode( leafNode );
     }
 
@@ -437,19 +856,33 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
     public void savePublishedItem(PublishedItem item) {
         log.debug( "Saving published item {} {}", item.getNode().getUniqueIdentifier(), item.getID() );
 
+        PublishedItemRing ring;
+        while ((ring = getRing(item.getNode(), true)) != null) {
+            if (ring.add(item)) {
+                log.debug("Added new (inbound) item to ring");
+                updateLastItem(item);
+                return;
+            }
+        }
+
         PublishedItem.UniqueIdentifier itemKey = item.getUniqueIdentifier();
         itemCache.put(itemKey, item);
+        indexCachedItem(itemKey, item.getNode().getMaxPublishedItems());
         log.debug("Added new (inbound) item to cache");
+        updateLastItem(item);
         synchronized (itemsPending) {
+            final long position = journal(PublishedItemJournal.Record.add(item));
             PublishedItem itemToReplace = itemsPending.remove(itemKey);
-            if (itemToReplace != null) {
-                itemsToAdd.remove(itemToReplace); // remove duplicate from itemsToAdd linked list
+            if (itemToReplace != null && itemsToAdd.remove(itemToReplace)) { // remove duplicate from itemsToAdd linked list
+                unwrittenChanges.discarded(itemToReplace, true);
             }
             itemsToAdd.addLast(item);
+            unwrittenChanges.queued(item, true, position);
             itemsPending.put(itemKey, item);
         }
 
-        if (itemsPending.size() > MAX_ITEMS_FLUSH) {
+        // When journaled, pending items are drained continuously instead.
+        if (journal == null && itemsPending.size() > MAX_ITEMS_FLUSH) {
             TaskEngine.getInstance().submit(new Runnable() {
                 @Override
                 public void run() { flushPendingChanges(false); }
@@ -472,12 +905,16 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
         // TODO: figure out if it's required to first flush pending nodes, cluster-wide, synchronously, before flushing items.
         flushPendingNode(nodeUniqueId);
 
+        final PublishedItemRing ring = rings.get(nodeUniqueId);
+        if (ring != null) {
+            ring.writeTo(delegate);
+        }
+
         if (itemsToAdd.isEmpty() && itemsToDelete.isEmpty()) {
             return;	 // nothing left to do for this cluster member.
         }
 
-        List<PublishedItem> addList;
-        List<PublishedItem> delList;
+        final Batch batch = new Batch();
 
         // Swap pending items so we can parse and save the contents from this point in time
         // while not blocking new entries from being cached.
@@ -487,16 +924,16 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
 
             // Split the to-do list in two parts: one that contains items for the node of interest, and the rest.
             final Map<Boolean, List<PublishedItem>> partsToAdd = itemsToAdd.stream().collect(
-                    Collectors.partitioningBy( publishedItem -> nodeUniqueId.equals( publishedItem.getNode().getUniqueIdentifier() ) )
+                    Collectors.partitioningBy( publishedItem -> nodeUniqueId.equals( publishedItem.getUniqueIdentifier().getNodeIdentifier() ) )
             );
-            addList = new ArrayList<>( partsToAdd.get( true ) ); // All elements that match must be processed.
+            partsToAdd.get( true ).forEach( batch::addition ); // All elements that match must be processed.
             itemsToAdd.retainAll( partsToAdd.get(false) ); // Non-matching elements remain on the to-do list.
 
             // Split the to-do list in two parts: one that contains items for the node of interest, and the rest.
             final Map<Boolean, List<PublishedItem>> partsToDelete = itemsToDelete.stream().collect(
-                    Collectors.partitioningBy( publishedItem -> nodeUniqueId.equals( publishedItem.getNode().getUniqueIdentifier() ) )
+                    Collectors.partitioningBy( publishedItem -> nodeUniqueId.equals( publishedItem.getUniqueIdentifier().getNodeIdentifier() ) )
             );
-            delList = new ArrayList<>( partsToDelete.get( true ) ); // All elements that match must be processed.
+            partsToDelete.get( true ).forEach( batch::deletion ); // All elements that match must be processed.
             itemsToDelete.retainAll( partsToDelete.get(false) ); // Non-matching elements remain on the to-do list.
 
             // Ensure pending items are available via the item read cache;
@@ -509,6 +946,7 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
                 if (!itemCache.containsKey(key)) {
                     itemsPending.remove( key );
                     itemCache.put(key, itemToAdd);
+                    indexCachedItem(key, -1);
                     copied++;
                 }
             }
@@ -517,7 +955,7 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
             }
         }
 
-        delegate.bulkPublishedItems( addList, delList );
+        write( batch );
     }
 
     /**
@@ -538,20 +976,20 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
 
         // TODO: figure out if it's required to first flush pending nodes, cluster-wide, synchronously, before flushing items.
         flushPendingNodes();
+        writeRings();
 
         if (itemsToAdd.isEmpty() && itemsToDelete.isEmpty()) {
             return;	 // Nothing left to do for this cluster member.
         }
 
-        List<PublishedItem> addList;
-        List<PublishedItem> delList;
+        final Batch batch = new Batch();
 
         // Swap pending items so we can parse and save the contents from this point in time
         // while not blocking new entries from being cached.
         synchronized(itemsPending)
         {
-            addList = new ArrayList<>( itemsToAdd );
-            delList = new ArrayList<>( itemsToDelete );
+            itemsToAdd.forEach( batch::addition );
+            itemsToDelete.forEach( batch::deletion );
 
             itemsToAdd = new ConcurrentLinkedDeque<>();
             itemsToDelete = new ConcurrentLinkedDeque<>();
@@ -564,6 +1002,7 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
             for ( PublishedItem.UniqueIdentifier key : itemsPending.keySet()) {
                 if (!itemCache.containsKey(key)) {
                     itemCache.put(key, itemsPending.get(key));
+                    indexCachedItem(key, -1);
                     copied++;
                 }
             }
@@ -573,18 +1012,156 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
             itemsPending.clear();
         }
 
-        delegate.bulkPublishedItems( addList, delList );
-        flushPendingChanges( sendToCluster );
+        // Changes that fail to be written are queued again when journaled; retry those with the next flush instead.
+        if ( write( batch ) ) {
+            flushPendingChanges( sendToCluster );
+        }
+    }
+
+    /**
+     * Returns the in-memory ring that holds the items of a node.
+     *
+     * When the node is no longer eligible for a ring (eg: because its configuration changed), a ring that exists for
+     * it is written to the database and discarded.
+     *
+     * @param node the node for which to return the ring.
+     * @param create true if a ring is to be created (from the items in the database) if none exists.
+     * @return the ring of the node, or null if the node has no ring.
+     */
+    private PublishedItemRing getRing( final LeafNode node, final boolean create )
+    {
+        final Node.UniqueIdentifier nodeKey = node.getUniqueIdentifier();
+        PublishedItemRing ring = rings.get( nodeKey );
+        final int maxItems = node.getMaxPublishedItems();
+        if ( journal != null || !node.isPersistPublishedItems() || maxItems <= 0 || maxItems > RING_MAX_ITEMS.getValue() || ClusterManager.isClusteringEnabled() )
+        {
+            if ( ring != null && rings.remove( nodeKey, ring ) ) {
+                log.debug( "Node {} is no longer eligible for an in-memory ring.", nodeKey );
+                if ( !ring.writeTo( delegate ) ) {
+                    log.error( "Unable to write the in-memory ring of node {} to the database before discarding it. Changes to its items are lost.", nodeKey );
+                }
+            }
+            return null;
+        }
+        if ( ring != null && ring.isRetired() ) {
+            rings.remove( nodeKey, ring );
+            ring = null;
+        }
+        if ( ring == null ) {
+            if ( !create ) {
+                return null;
+            }
+            final List<PublishedItem> existing = new ArrayList<>();
+            if ( maxItems > 1 ) {
+                // A ring that holds only one item is fully defined by the item that is being added: its existing content is irrelevant.
+                flushPendingChanges( nodeKey );
+                existing.addAll( delegate.getPublishedItems( node, maxItems ) );
+                existing.sort( Comparator.comparing( PublishedItem::getCreationDate ) );
+            }
+            final PublishedItemRing created = new PublishedItemRing( node, maxItems, existing );
+            ring = rings.putIfAbsent( nodeKey, created );
+            if ( ring == null ) {
+                ring = created;
+
+                // Items of this node are no longer served from the item cache.
+                final Set<PublishedItem.UniqueIdentifier> cachedItems = cachedItemsByNode.remove( nodeKey );
+                if ( cachedItems != null ) {
+                    cachedItems.forEach( itemCache::remove );
+                }
+            }
+        }
+        ring.setNode( node );
+        if ( ring.getCapacity() != maxItems ) {
+            ring.resize( maxItems );
+        }
+        return ring;
+    }
+
+    /**
+     * Writes all modified in-memory rings to the database, and discards the rings that have not been used for a while.
+     */
+    private void writeRings()
+    {
+        final long cutoff = System.currentTimeMillis() - RING_SNAPSHOT_INTERVAL.getValue().toMillis() * 10;
+        for ( final Map.Entry<Node.UniqueIdentifier, PublishedItemRing> entry : rings.entrySet() )
+        {
+            final PublishedItemRing ring = entry.getValue();
+            try {
+                ring.writeTo( delegate );
+                if ( ring.retireIfIdle( cutoff ) ) {
+                    rings.remove( entry.getKey(), ring );
+                }
+            } catch ( Exception e ) {
+                log.warn( "An exception occurred while writing the in-memory ring of node {} to the database.", entry.getKey(), e );
+            }
+        }
+    }
+
+    /**
+     * Orders items from a ring (which are oldest first) in the order in which the delegate returns items.
+     *
+     * @param items items, oldest first.
+     * @return the same list, in the configured order.
+     */
+    private static List<PublishedItem> inDeliveryOrder( final List<PublishedItem> items )
+    {
+        if ( JiveGlobals.getBooleanProperty( "xmpp.pubsub.order.descending", false ) ) {
+            Collections.reverse( items );
+        }
+        return items;
+    }
+
+    /**
+     * Records an item that is being saved as the last published item of its node, unless a more recent item is known.
+     *
+     * @param item the item that is being saved.
+     */
+    private void updateLastItem( final PublishedItem item )
+    {
+        final Node.UniqueIdentifier nodeKey = item.getUniqueIdentifier().getNodeIdentifier();
+        final Lock lock = lastItemCache.getLock( nodeKey );
+        lock.lock();
+        try {
+            final CacheableOptional<PublishedItem> current = lastItemCache.get( nodeKey );
+            if ( current == null || current.isAbsent() || !current.get().getCreationDate().after( item.getCreationDate() ) ) {
+                lastItemCache.put( nodeKey, CacheableOptional.of( item ) );
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void removePublishedItem(PublishedItem item) {
         PublishedItem.UniqueIdentifier itemKey = item.getUniqueIdentifier();
         itemCache.remove(itemKey);
+        unindexCachedItem(itemKey);
+
+        // The last item of the node is unknown when that item is removed. It will be reloaded when needed.
+        final Lock lock = lastItemCache.getLock(itemKey.getNodeIdentifier());
+        lock.lock();
+        try {
+            final CacheableOptional<PublishedItem> last = lastItemCache.get(itemKey.getNodeIdentifier());
+            if (last != null && last.isPresent() && last.get().getUniqueIdentifier().equals(itemKey)) {
+                lastItemCache.remove(itemKey.getNodeIdentifier());
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        final PublishedItemRing ring = rings.get(itemKey.getNodeIdentifier());
+        if (ring != null && ring.remove(item.getID())) {
+            return;
+        }
         synchronized (itemsPending)
         {
+            final long position = journal(PublishedItemJournal.Record.delete(item));
             itemsToDelete.addLast(item);
-            itemsPending.remove(itemKey);
+            unwrittenChanges.queued(item, false, position);
+            final PublishedItem pending = itemsPending.remove(itemKey);
+            if (pending != null && itemsToAdd.remove(pending)) { // do not re-add the item after it has been deleted
+                unwrittenChanges.discarded(pending, true);
+            }
         }
     }
 
@@ -595,11 +1172,12 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
     }
 
     @Override
-    public void bulkPublishedItems( final List<PublishedItem> addList, final List<PublishedItem> delList )
+    public boolean bulkPublishedItems( final List<PublishedItem> addList, final List<PublishedItem> delList )
     {
         addList.removeAll( delList );
         delList.forEach( this::removePublishedItem );
         addList.forEach( this::savePublishedItem );
+        return true;
     }
 
     @Override
@@ -644,6 +1222,10 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
     @Override
     public List<PublishedItem> getPublishedItems( final LeafNode node )
     {
+        final PublishedItemRing ring = getRing( node, false );
+        if ( ring != null ) {
+            return inDeliveryOrder( ring.getItems( -1 ) );
+        }
         flushPendingChanges( node.getUniqueIdentifier() );
         return delegate.getPublishedItems( node );
     }
@@ -651,6 +1233,10 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
     @Override
     public List<PublishedItem> getPublishedItems( final LeafNode node, final int maxRows )
     {
+        final PublishedItemRing ring = getRing( node, false );
+        if ( ring != null ) {
+            return inDeliveryOrder( ring.getItems( maxRows ) );
+        }
         flushPendingChanges( node.getUniqueIdentifier() );
         return delegate.getPublishedItems( node, maxRows );
     }
@@ -658,13 +1244,41 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
     @Override
     public PublishedItem getLastPublishedItem( final LeafNode node )
     {
-        flushPendingChanges( node.getUniqueIdentifier() );
-        return delegate.getLastPublishedItem( node );
+        final PublishedItemRing ring = getRing( node, false );
+        if ( ring != null ) {
+            return ring.getLast();
+        }
+
+        final CacheableOptional<PublishedItem> cached = lastItemCache.get( node.getUniqueIdentifier() );
+        if ( cached != null ) {
+            return cached.get();
+        }
+
+        final Lock lock = lastItemCache.getLock( node.getUniqueIdentifier() );
+        lock.lock();
+        try {
+            // Re-check the cache after acquiring the lock, as the item could have been published in the meantime.
+            final CacheableOptional<PublishedItem> recheck = lastItemCache.get( node.getUniqueIdentifier() );
+            if ( recheck != null ) {
+                return recheck.get();
+            }
+            flushPendingChanges( node.getUniqueIdentifier() );
+            final PublishedItem result = delegate.getLastPublishedItem( node );
+            lastItemCache.put( node.getUniqueIdentifier(), CacheableOptional.of( result ) );
+            return result;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public PublishedItem getPublishedItem( final LeafNode node, final PublishedItem.UniqueIdentifier itemIdentifier )
     {
+        final PublishedItemRing ring = getRing( node, false );
+        if ( ring != null ) {
+            return ring.get( itemIdentifier.getItemId() );
+        }
+
         flushPendingChanges( node.getUniqueIdentifier() );
 
         // try to fetch from cache first without locking
@@ -682,6 +1296,7 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
                     if (result != null) {
                         log.trace("Caching item obtained from delegate.");
                         itemCache.put(itemIdentifier, result);
+                        indexCachedItem(itemIdentifier, -1);
                     } else {
                         log.trace("Delegate doesn't have an item. It does not appear to exist.");
                     }
@@ -699,6 +1314,70 @@ public class CachingPubsubPersistenceProvider implements PubSubPersistenceProvid
         return result;
     }
 
+    /**
+     * Registers an item that was added to the item cache in the index of cached items per node.
+     *
+     * When the node is known to retain a maximum amount of items, the entries in excess of that amount that were cached
+     * the longest ago are evicted from the cache. These entries are likely to be removed from the node (and should not
+     * take up cache space), but as eviction does not affect persisted data, doing this for items that are retained only
+     * causes them to be re-read from the delegate when needed.
+     *
+     * @param itemKey Identifier of the cached item.
+     * @param maxPublishedItems The maximum amount of items retained by the node, or a negative value if unknown or unlimited.
+     */
+    private void indexCachedItem( final PublishedItem.UniqueIdentifier itemKey, final int maxPublishedItems )
+    {
+        final List<PublishedItem.UniqueIdentifier> evicted = new ArrayList<>();
+        cachedItemsByNode.compute( itemKey.getNodeIdentifier(), ( id, cachedItems ) -> {
+            if ( cachedItems == null ) {
+                cachedItems = new LinkedHashSet<>();
+            }
+            cachedItems.remove( itemKey ); // Re-adding moves the item to the end of the insertion order.
+            cachedItems.add( itemKey );
+            if ( maxPublishedItems > 0 && cachedItems.size() > maxPublishedItems )
+            {
+                final Iterator<PublishedItem.UniqueIdentifier> iter = cachedItems.iterator();
+                while ( cachedItems.size() > maxPublishedItems && iter.hasNext() )
+                {
+                    evicted.add( iter.next() );
+                    iter.remove();
+                }
+            }
+            return cachedItems;
+        } );
+
+        // Modify the cache outside of the computation, as cache modifications can be expensive.
+        evicted.forEach( itemCache::remove );
+    }
+
+    /**
+     * Removes an item from the index of cached items per node.
+     *
+     * @param itemKey Identifier of the item that was removed from the cache.
+     */
+    private void unindexCachedItem( final PublishedItem.UniqueIdentifier itemKey )
+    {
+        cachedItemsByNode.computeIfPresent( itemKey.getNodeIdentifier(), ( id, cachedItems ) -> {
+            cachedItems.remove( itemKey );
+            return cachedItems.isEmpty() ? null : cachedItems;
+        } );
+    }
+
+    /**
+     * Removes identifiers of items that are no longer in the item cache from the index of cached items per node.
+     */
+    void pruneCachedItemIndex()
+    {
+        for ( final Node.UniqueIdentifier nodeKey : new ArrayList<>( cachedItemsByNode.keySet() ) )
+        {
+            // Checking the cache while computing the entry prevents removal of an item that is concurrently re-cached.
+            cachedItemsByNode.computeIfPresent( nodeKey, ( id, cachedItems ) -> {
+                cachedItems.removeIf( itemKey -> !itemCache.containsKey( itemKey ) );
+                return cachedItems.isEmpty() ? null : cachedItems;
+            } );
+        }
+    }
+
     static class NodeOperation {
 
         enum Action {
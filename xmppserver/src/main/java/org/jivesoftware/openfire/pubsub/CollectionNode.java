@@ -350,7 +350,7 @@ public class CollectionNode extends Node {
      */
     private Collection<NodeSubscription> getSubscriptions(Node child) {
         Collection<NodeSubscription> subscriptions = new ArrayList<>();
-        for (NodeSubscription subscription : getSubscriptions()) {
+        for (NodeSubscription subscription : getDeliverySubscriptions()) {
             if (subscription.canSendChildNodeEvent(child)) {
                 subscriptions.add(subscription);
             }
@@ -25,6 +25,7 @@ import org.jivesoftware.openfire.pubsub.models.AccessModel;
 import org.jivesoftware.openfire.pubsub.models.PublisherModel;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.SystemProperty;
 import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
@@ -40,7 +41,6 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.locks.Lock;
-import java.util.stream.Collectors;
 
 /**
  * A manager responsible for ensuring node persistence.
@@ -51,6 +51,21 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
 
     private static final Logger log = LoggerFactory.getLogger( DefaultPubSubPersistenceProvider.class);
 
+    /**
+     * The minimum number of nodes of a service, for the nodes to be assembled in parallel when they are loaded.
+     */
+    public static final SystemProperty<Integer> LOAD_PARALLEL_THRESHOLD = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.pubsub.load.parallel-threshold")
+        .setDefaultValue(1000)
+        .setMinValue(1)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * The number of rows that is requested from the database per round-trip when loading nodes.
+     */
+    private static final int LOAD_FETCH_SIZE = 1000;
+
     private static final String PERSISTENT_NODES = "SELECT DISTINCT serviceID, nodeID, maxItems " +
     		"FROM ofPubsubNode WHERE leaf=1 AND persistItems=1 AND maxItems > 0";
     
@@ -541,10 +556,14 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
         PreparedStatement pstmt = null;
         ResultSet rs = null;
         Map<Node.UniqueIdentifier, Node> nodes = new HashMap<>();
+        Map<String, Node> nodesById = Collections.emptyMap();
+        final Map<String, List<AffiliationRow>> affiliationRows = new HashMap<>();
+        final Map<String, List<SubscriptionRow>> subscriptionRows = new HashMap<>();
         try {
             con = DbConnectionManager.getConnection();
             // Get all non-leaf nodes (to ensure parent nodes are loaded before their children)
 			pstmt = con.prepareStatement(LOAD_NODES);
+            DbConnectionManager.setFetchSize(pstmt, LOAD_FETCH_SIZE);
             pstmt.setString(1, service.getServiceID());
             rs = pstmt.executeQuery();
             
@@ -572,43 +591,49 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
                     child.changeParent(parent);
             	}
             }
+            nodesById = indexByNodeId(nodes);
+
             // Get JIDs associated with all nodes
             pstmt = con.prepareStatement(LOAD_NODES_JIDS);
+            DbConnectionManager.setFetchSize(pstmt, LOAD_FETCH_SIZE);
             pstmt.setString(1, service.getServiceID());
             rs = pstmt.executeQuery();
             // Add to each node the associated JIDs
             while(rs.next()) {
-                loadAssociatedJIDs(nodes, rs);
+                loadAssociatedJIDs(nodesById, rs);
             }
             DbConnectionManager.fastcloseStmt(rs, pstmt);
 
             // Get roster groups associateds with all nodes
             pstmt = con.prepareStatement(LOAD_NODES_GROUPS);
+            DbConnectionManager.setFetchSize(pstmt, LOAD_FETCH_SIZE);
             pstmt.setString(1, service.getServiceID());
             rs = pstmt.executeQuery();
             // Add to each node the associated Groups
             while(rs.next()) {
-                loadAssociatedGroups(nodes, rs);
+                loadAssociatedGroups(nodesById, rs);
             }
             DbConnectionManager.fastcloseStmt(rs, pstmt);
 
-            // Get affiliations of all nodes
+            // Get affiliations of all nodes. These are applied to the nodes after the database connection is released.
             pstmt = con.prepareStatement(LOAD_AFFILIATIONS);
+            DbConnectionManager.setFetchSize(pstmt, LOAD_FETCH_SIZE);
             pstmt.setString(1, service.getServiceID());
             rs = pstmt.executeQuery();
-            // Add to each node the correspondiding affiliates
             while(rs.next()) {
-                loadAffiliations(nodes, rs);
+                final AffiliationRow row = new AffiliationRow(rs);
+                affiliationRows.computeIfAbsent(row.nodeID, k -> new ArrayList<>()).add(row);
             }
             DbConnectionManager.fastcloseStmt(rs, pstmt);
 
-            // Get subscriptions to all nodes
+            // Get subscriptions to all nodes. These are applied to the nodes after the database connection is released.
             pstmt = con.prepareStatement(LOAD_SUBSCRIPTIONS);
+            DbConnectionManager.setFetchSize(pstmt, LOAD_FETCH_SIZE);
             pstmt.setString(1, service.getServiceID());
             rs = pstmt.executeQuery();
-            // Add to each node the correspondiding subscriptions
             while(rs.next()) {
-                loadSubscriptions(nodes, rs);
+                final SubscriptionRow row = new SubscriptionRow(rs);
+                subscriptionRows.computeIfAbsent(row.nodeID, k -> new ArrayList<>()).add(row);
             }
             DbConnectionManager.fastcloseStmt(rs, pstmt);
         }
@@ -619,6 +644,28 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
 
+        for (final String nodeID : affiliationRows.keySet()) {
+            if (!nodesById.containsKey(nodeID)) {
+                log.warn("Affiliations found for a non-existent node: " + nodeID);
+            }
+        }
+        for (final String nodeID : subscriptionRows.keySet()) {
+            if (!nodesById.containsKey(nodeID)) {
+                log.warn("Subscription found for a non-existent node: " + nodeID);
+            }
+        }
+
+        // Each node is modified by one thread only, which allows the nodes to be assembled in parallel.
+        final Collection<Node> loaded = nodesById.values();
+        (loaded.size() >= LOAD_PARALLEL_THRESHOLD.getValue() ? loaded.parallelStream() : loaded.stream()).forEach(node -> {
+            for (final AffiliationRow row : affiliationRows.getOrDefault(node.getNodeID(), Collections.emptyList())) {
+                applyAffiliation(node, row);
+            }
+            for (final SubscriptionRow row : subscriptionRows.getOrDefault(node.getNodeID(), Collections.emptyList())) {
+                applySubscription(node, row);
+            }
+        });
+
         for (Node node : nodes.values()) {
             // Set now that the node is persistent in the database. Note: We need to
             // set this now since otherwise the node's affiliations will be saved to the database
@@ -660,6 +707,7 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
 			if (parentId != null) {
                 nodes.get(nodeIdentifier).changeParent((CollectionNode)nodes.get(parentId));
 			}
+			final Map<String, Node> nodesById = indexByNodeId(nodes);
 				
 			// Get JIDs associated with all nodes
 			pstmt = con.prepareStatement(LOAD_NODE_JIDS);
@@ -669,7 +717,7 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
 			// Add to each node the associated JIDs
 			while (rs.next())
 			{
-				loadAssociatedJIDs(nodes, rs);
+				loadAssociatedJIDs(nodesById, rs);
 			}
 			DbConnectionManager.fastcloseStmt(rs, pstmt);
 
@@ -681,7 +729,7 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
 			// Add to each node the associated Groups
 			while (rs.next())
 			{
-				loadAssociatedGroups(nodes, rs);
+				loadAssociatedGroups(nodesById, rs);
 			}
 			DbConnectionManager.fastcloseStmt(rs, pstmt);
 
@@ -693,7 +741,7 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
 			// Add to each node the corresponding affiliates
 			while (rs.next())
 			{
-				loadAffiliations(nodes, rs);
+				loadAffiliations(nodesById, rs);
 			}
 			DbConnectionManager.fastcloseStmt(rs, pstmt);
 
@@ -705,7 +753,7 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
 			// Add to each node the corresponding subscriptions
 			while (rs.next())
 			{
-				loadSubscriptions(nodes, rs);
+				loadSubscriptions(nodesById, rs);
 			}
 			DbConnectionManager.fastcloseStmt(rs, pstmt);
 		}
@@ -791,22 +839,24 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
         }
     }
 
-    private static Node lookupNode(Map<Node.UniqueIdentifier, Node> nodes, String nodeID) {
-        Set<Node> matchingNodes = nodes.values().stream().filter(n -> n.getNodeID().equals(nodeID)).collect(Collectors.toSet());
-        if (matchingNodes.isEmpty()) {
-            return null;
-        }
-        if (matchingNodes.size() > 1) {
-            // This is a coding error.
-            throw new IllegalStateException( "Identifier does not uniquely identify node in provided map: " + nodeID );
+    /**
+     * Indexes nodes by their node ID. All nodes are expected to belong to the same service.
+     */
+    private static Map<String, Node> indexByNodeId(Map<Node.UniqueIdentifier, Node> nodes) {
+        final Map<String, Node> result = new HashMap<>(nodes.size() * 4 / 3 + 1);
+        for (final Node node : nodes.values()) {
+            if (result.put(node.getNodeID(), node) != null) {
+                // This is a coding error.
+                throw new IllegalStateException( "Identifier does not uniquely identify node in provided map: " + node.getNodeID() );
+            }
         }
-        return matchingNodes.iterator().next();
+        return result;
     }
 
-    private void loadAssociatedJIDs(Map<Node.UniqueIdentifier, Node> nodes, ResultSet rs) {
+    private void loadAssociatedJIDs(Map<String, Node> nodes, ResultSet rs) {
         try {
             String nodeID = decodeNodeID(rs.getString(1));
-            Node node = lookupNode(nodes, nodeID);
+            Node node = nodes.get(nodeID);
             if (node == null) {
                 log.warn("JID associated to a non-existent node: {}", nodeID);
                 return;
@@ -831,10 +881,10 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
         }
     }
 
-    private void loadAssociatedGroups(Map<Node.UniqueIdentifier, Node> nodes, ResultSet rs) {
+    private void loadAssociatedGroups(Map<String, Node> nodes, ResultSet rs) {
         try {
             String nodeID = decodeNodeID(rs.getString(1));
-            Node node = lookupNode(nodes, nodeID);
+            Node node = nodes.get(nodeID);
             if (node == null) {
                 log.warn("Roster Group associated to a non-existent node: " + nodeID);
                 return;
@@ -846,31 +896,50 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
         }
     }
 
-    private void loadAffiliations(Map<Node.UniqueIdentifier, Node> nodes, ResultSet rs) {
+    private void loadAffiliations(Map<String, Node> nodes, ResultSet rs) {
         try {
-            String nodeID = decodeNodeID(rs.getString(1));
-            Node node = lookupNode(nodes, nodeID);
+            final AffiliationRow row = new AffiliationRow(rs);
+            Node node = nodes.get(row.nodeID);
             if (node == null) {
-                log.warn("Affiliations found for a non-existent node: " + nodeID);
+                log.warn("Affiliations found for a non-existent node: " + row.nodeID);
                 return;
             }
-            NodeAffiliate affiliate = new NodeAffiliate(node, new JID(rs.getString(2)));
-            affiliate.setAffiliation(NodeAffiliate.Affiliation.valueOf(rs.getString(3)));
-            node.addAffiliate(affiliate);
+            applyAffiliation(node, row);
         }
         catch (SQLException sqle) {
             log.error("An exception occurred while loading affiliations for nodes from the database.", sqle);
         }
     }
 
+    private static void applyAffiliation(Node node, AffiliationRow row) {
+        NodeAffiliate affiliate = new NodeAffiliate(node, new JID(row.jid));
+        affiliate.setAffiliation(NodeAffiliate.Affiliation.valueOf(row.affiliation));
+        node.addAffiliate(affiliate);
+    }
+
+    /**
+     * The values of a row of the ofPubsubAffiliation table, as obtained by {@link #LOAD_AFFILIATIONS} and similar
+     * queries.
+     */
+    private static final class AffiliationRow {
+        final String nodeID;
+        final String jid;
+        final String affiliation;
+
+        AffiliationRow(ResultSet rs) throws SQLException {
+            nodeID = decodeNodeID(rs.getString(1));
+            jid = rs.getString(2);
+            affiliation = rs.getString(3);
+        }
+    }
+
     @Override
 	public void loadSubscription(Node node, String subId)
 	{
 	    Connection con = null;
 		PreparedStatement pstmt = null;
 		ResultSet rs = null;
-		Map<Node.UniqueIdentifier, Node> nodes = new HashMap<>();
-		nodes.put(node.getUniqueIdentifier(), node);
+		Map<String, Node> nodes = Collections.singletonMap(node.getNodeID(), node);
 
 		try
 		{
@@ -951,44 +1020,85 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
         return result;
     }
 
-    private void loadSubscriptions(Map<Node.UniqueIdentifier, Node> nodes, ResultSet rs) {
+    private void loadSubscriptions(Map<String, Node> nodes, ResultSet rs) {
         try {
-            String nodeID = decodeNodeID(rs.getString(1));
-            Node node = lookupNode(nodes, nodeID);
+            final SubscriptionRow row = new SubscriptionRow(rs);
+            Node node = nodes.get(row.nodeID);
             if (node == null) {
-                log.warn("Subscription found for a non-existent node: " + nodeID);
+                log.warn("Subscription found for a non-existent node: " + row.nodeID);
                 return;
             }
-            String subID = rs.getString(2);
-            JID subscriber = new JID(rs.getString(3));
-            JID owner = new JID(rs.getString(4));
-            if (node.getAffiliate(owner) == null) {
-                log.warn("Subscription found for a non-existent affiliate: " + owner +
-                        " in node: " + node.getUniqueIdentifier());
-                return;
-            }
-            NodeSubscription.State state = NodeSubscription.State.valueOf(rs.getString(5));
-			NodeSubscription subscription = new NodeSubscription(node, owner, subscriber, state, subID);
-            subscription.setShouldDeliverNotifications(rs.getInt(6) == 1);
-            subscription.setUsingDigest(rs.getInt(7) == 1);
-            subscription.setDigestFrequency(rs.getInt(8));
-            if (rs.getString(9) != null) {
-                subscription.setExpire(new Date(Long.parseLong(rs.getString(9).trim())));
-            }
-            subscription.setIncludingBody(rs.getInt(10) == 1);
-            subscription.setPresenceStates(decodeWithComma(rs.getString(11)));
-            subscription.setType(NodeSubscription.Type.valueOf(rs.getString(12)));
-            subscription.setDepth(rs.getInt(13));
-            subscription.setKeyword(rs.getString(14));
-            // Indicate the subscription that is has already been saved to the database
-            subscription.setSavedToDB(true);
-            node.addSubscription(subscription);
+            applySubscription(node, row);
         }
         catch (SQLException sqle) {
             log.error("An exception occurred while loading a subscriptions for nodes of a service from the database.", sqle);
         }
     }
 
+    private static void applySubscription(Node node, SubscriptionRow row) {
+        JID subscriber = new JID(row.jid);
+        JID owner = new JID(row.owner);
+        if (node.getAffiliate(owner) == null) {
+            log.warn("Subscription found for a non-existent affiliate: " + owner +
+                    " in node: " + node.getUniqueIdentifier());
+            return;
+        }
+        NodeSubscription.State state = NodeSubscription.State.valueOf(row.state);
+        NodeSubscription subscription = new NodeSubscription(node, owner, subscriber, state, row.subID);
+        subscription.setShouldDeliverNotifications(row.deliver);
+        subscription.setUsingDigest(row.digest);
+        subscription.setDigestFrequency(row.digestFrequency);
+        if (row.expire != null) {
+            subscription.setExpire(new Date(Long.parseLong(row.expire.trim())));
+        }
+        subscription.setIncludingBody(row.includeBody);
+        subscription.setPresenceStates(decodeWithComma(row.showValues));
+        subscription.setType(NodeSubscription.Type.valueOf(row.type));
+        subscription.setDepth(row.depth);
+        subscription.setKeyword(row.keyword);
+        // Indicate the subscription that is has already been saved to the database
+        subscription.setSavedToDB(true);
+        node.addSubscription(subscription);
+    }
+
+    /**
+     * The values of a row of the ofPubsubSubscription table, as obtained by {@link #LOAD_SUBSCRIPTIONS} and similar
+     * queries.
+     */
+    private static final class SubscriptionRow {
+        final String nodeID;
+        final String subID;
+        final String jid;
+        final String owner;
+        final String state;
+        final boolean deliver;
+        final boolean digest;
+        final int digestFrequency;
+        final String expire;
+        final boolean includeBody;
+        final String showValues;
+        final String type;
+        final int depth;
+        final String keyword;
+
+        SubscriptionRow(ResultSet rs) throws SQLException {
+            nodeID = decodeNodeID(rs.getString(1));
+            subID = rs.getString(2);
+            jid = rs.getString(3);
+            owner = rs.getString(4);
+            state = rs.getString(5);
+            deliver = rs.getInt(6) == 1;
+            digest = rs.getInt(7) == 1;
+            digestFrequency = rs.getInt(8);
+            expire = rs.getString(9);
+            includeBody = rs.getInt(10) == 1;
+            showValues = rs.getString(11);
+            type = rs.getString(12);
+            depth = rs.getInt(13);
+            keyword = rs.getString(14);
+        }
+    }
+
     /**
      * Update the DB with the new affiliation of the user in the node.
      *
@@ -1276,7 +1386,7 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
             boolean hasBatchItems = false;
             for ( final PublishedItem item : addList)
             {
-                pstmt.setString(1, item.getNode().getUniqueIdentifier().getServiceIdentifier().getServiceId());
+                pstmt.setString(1, item.getUniqueIdentifier().getServiceIdentifier().getServiceId());
                 pstmt.setString(2, encodeNodeID(item.getNodeID()));
                 pstmt.setString(3, item.getID());
                 pstmt.setString(4, item.getPublisher().toString());
@@ -1328,8 +1438,8 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
             boolean hasBatchItems = false;
             for ( final PublishedItem item : delList )
             {
-                pstmt.setString(1, item.getNode().getUniqueIdentifier().getServiceIdentifier().getServiceId());
-                pstmt.setString(2, encodeNodeID(item.getNode().getNodeID()));
+                pstmt.setString(1, item.getUniqueIdentifier().getServiceIdentifier().getServiceId());
+                pstmt.setString(2, encodeNodeID(item.getNodeID()));
                 pstmt.setString(3, item.getID());
                 if ( batch ) {
                     hasBatchItems = true;
@@ -1362,9 +1472,10 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
      *
      * @param addList A list of items to be added to the database.
      * @param delList A list of items to be removed from the database.
+     * @return true if all changes were written, false if the transaction was rolled back (or could not be started).
      */
     @Override
-    public void bulkPublishedItems( List<PublishedItem> addList, List<PublishedItem> delList )
+    public boolean bulkPublishedItems( List<PublishedItem> addList, List<PublishedItem> delList )
     {
         // TODO Consider re-instating 'xmpp.pubsub.item.retry' property, to allow for retries of failed database
         // writes for items. Note that this behavior was first introduced when the work load was cached. As that's
@@ -1383,7 +1494,7 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
 
         if ( addList.isEmpty() && delList.isEmpty() )
         {
-            return;
+            return true;
         }
 
         log.debug( "Processing collection of changes to published items. Additions: {}, deletes: {}", addList.size(), delList.size() );
@@ -1400,7 +1511,7 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
         catch ( SQLException e )
         {
             log.error( "Failed to obtain a database connection, to process a batch of changes to published items from DB.", e );
-            return;
+            return false;
         }
 
         try
@@ -1421,7 +1532,7 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
             catch ( SQLException e2 )
             {
                 // Individual retries also failed. Roll back.
-                log.error( "Failed to process a collection of changes both as a database batch as wel as individual changes. Rolling back transaction and giving up. Data is lost.", e2 );
+                log.error( "Failed to process a collection of changes both as a database batch as wel as individual changes. Rolling back transaction.", e2 );
                 rollback = true;
             }
         }
@@ -1429,6 +1540,39 @@ public class DefaultPubSubPersistenceProvider implements PubSubPersistenceProvid
         {
             DbConnectionManager.closeTransactionConnection(con, rollback);
         }
+        return !rollback;
+    }
+
+    /**
+     * Replaces all published items of a node with the provided items, in one transaction.
+     *
+     * @param leafNode the node of which to replace the items.
+     * @param items the items that the node has (possibly empty).
+     * @return true if the items were written, false if the transaction was rolled back (or could not be started).
+     */
+    @Override
+    public boolean replacePublishedItems( LeafNode leafNode, List<PublishedItem> items )
+    {
+        log.debug( "Replacing the published items of node {} with {} item(s).", leafNode.getUniqueIdentifier(), items.size() );
+
+        boolean rollback = false;
+        Connection con = null;
+        try
+        {
+            con = DbConnectionManager.getTransactionConnection();
+            purgeNode( leafNode, con );
+            savePublishedItems( con, items, true );
+        }
+        catch ( SQLException e )
+        {
+            log.error( "Failed to replace the published items of node {}. Rolling back transaction.", leafNode.getUniqueIdentifier(), e );
+            rollback = true;
+        }
+        finally
+        {
+            DbConnectionManager.closeTransactionConnection(con, rollback);
+        }
+        return !rollback;
     }
 
     private static String getDefaultNodeConfigurationCacheKey( PubSubService.UniqueIdentifier uniqueIdentifier, boolean isLeafType )
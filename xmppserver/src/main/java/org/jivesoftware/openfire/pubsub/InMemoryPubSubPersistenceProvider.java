@@ -441,10 +441,11 @@ public class InMemoryPubSubPersistenceProvider implements PubSubPersistenceProvi
     }
 
     @Override
-    public void bulkPublishedItems( final List<PublishedItem> addList, final List<PublishedItem> delList )
+    public boolean bulkPublishedItems( final List<PublishedItem> addList, final List<PublishedItem> delList )
     {
         addList.removeAll( delList );
         delList.forEach( this::removePublishedItem );
         addList.forEach( this::savePublishedItem );
+        return true;
     }
 }
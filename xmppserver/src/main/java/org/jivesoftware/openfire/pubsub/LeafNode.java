@@ -266,7 +266,12 @@ public class LeafNode extends Node {
         // Broadcast event notification to subscribers and parent node subscribers
         Set<NodeAffiliate> affiliatesToNotify = getAffiliatesToNotify();
 
-        // TODO Use another thread for this (if # of subscribers is > X)????
+        final NotificationDeliveryPipeline pipeline = NotificationDeliveryPipeline.getInstance();
+        if (pipeline.isApplicable(this, affiliatesToNotify.size())) {
+            // Don't keep the publisher waiting for notifications to be delivered to many affiliates.
+            pipeline.publish(this, affiliatesToNotify, newPublishedItems);
+            return;
+        }
         for (NodeAffiliate affiliate : affiliatesToNotify) {
             affiliate.sendPublishedNotifications(message, event, this, newPublishedItems);
         }
@@ -281,7 +286,7 @@ public class LeafNode extends Node {
         Set<NodeAffiliate> affiliatesToNotify = new HashSet<>(affiliates);
         // Get affiliates that are subscribed to a parent in the hierarchy of parent nodes
         for (CollectionNode parentNode : getParents()) {
-            for (NodeSubscription subscription : parentNode.getSubscriptions()) {
+            for (NodeSubscription subscription : parentNode.getDeliverySubscriptions()) {
                 // OF-2365: Prevent sending notifications to subscribers that are not allowed to access this node.
                 if (parentNode.getAccessModel().canAccessItems(this, subscription.getOwner(), subscription.getJID() )
                     && accessModel.canAccessItems(this, subscription.getOwner(), subscription.getJID()))
@@ -319,42 +324,59 @@ public class LeafNode extends Node {
             }
         }
         if (isNotifiedOfRetract()) {
+            // Send notification that items have been deleted to subscribers and parent node
+            // subscribers
+            Set<NodeAffiliate> affiliatesToNotify = getAffiliatesToNotify();
+
+            final NotificationDeliveryPipeline pipeline = NotificationDeliveryPipeline.getInstance();
+            if (pipeline.isApplicable(this, affiliatesToNotify.size())) {
+                // Deliver in the background, ordered with respect to notifications of earlier publications.
+                pipeline.retract(this, affiliatesToNotify, toDelete);
+                return;
+            }
+
             // Broadcast notification deletion to subscribers
             // Build packet to broadcast to subscribers
             Message message = new Message();
             Element event =
                     message.addChildElement("event", "http://jabber.org/protocol/pubsub#event");
-            // Send notification that items have been deleted to subscribers and parent node
-            // subscribers
-            Set<NodeAffiliate> affiliatesToNotify = getAffiliatesToNotify();
-
-            // TODO Use another thread for this (if # of subscribers is > X)????
             for (NodeAffiliate affiliate : affiliatesToNotify) {
                 affiliate.sendDeletionNotifications(message, event, this, toDelete);
             }
+            sendOwnerDeletionNotifications(message, event, toDelete, NotificationSink.DIRECT);
+        }
+    }
+
+    /**
+     * Sends notifications of deleted items to all connected resources of the owner of the service, if the service is a
+     * PEP service, as specified by XEP-0136.
+     *
+     * @param message the message to send. The message will be completed with the items to include in each notification.
+     * @param event the event Element included in the notification message.
+     * @param toDelete list of items that were deleted from the node.
+     * @param sink receives every notification that is to be sent.
+     */
+    void sendOwnerDeletionNotifications(Message message, Element event, List<PublishedItem> toDelete, NotificationSink sink) {
+        if ( getService() instanceof PEPService )
+        {
+            final PEPService service = (PEPService) getService();
+            Element items = event.addElement("items");
+            items.addAttribute("node", getUniqueIdentifier().getNodeId());
+            for (PublishedItem publishedItem : toDelete) {
+                // Add retract information to the event notification
+                Element item = items.addElement("retract");
+                if (isItemRequired()) {
+                    item.addAttribute("id", publishedItem.getID());
+                }
 
-            // XEP-0136 specifies that all connected resources of the owner of the PEP service should also get a notification.
-            if ( getService() instanceof PEPService )
-            {
-                final PEPService service = (PEPService) getService();
-                Element items = event.addElement("items");
-                items.addAttribute("node", getUniqueIdentifier().getNodeId());
-                for (PublishedItem publishedItem : toDelete) {
-                    // Add retract information to the event notification
-                    Element item = items.addElement("retract");
-                    if (isItemRequired()) {
-                        item.addAttribute("id", publishedItem.getID());
-                    }
-
-                    // Send the notification
-                    final Collection<ClientSession> sessions = SessionManager.getInstance().getSessions(service.getAddress().getNode());
-                    for ( final ClientSession session : sessions ) {
-                        service.sendNotification( this, message, session.getAddress() );
-                    }
-
-                    // Remove the added items information
-                    event.remove(items);
+                // Send the notification
+                final Collection<ClientSession> sessions = SessionManager.getInstance().getSessions(service.getAddress().getNode());
+                for ( final ClientSession session : sessions ) {
+                    sink.send( this, message, session.getAddress() );
                 }
+
+                // Remove the added items information
+                event.remove(items);
             }
         }
     }
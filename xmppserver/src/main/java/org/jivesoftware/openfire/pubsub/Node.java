@@ -19,7 +19,7 @@ package org.jivesoftware.openfire.pubsub;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.dom4j.Element;
 import org.jivesoftware.openfire.SessionManager;
@@ -185,6 +185,31 @@ public abstract class Node implements Cacheable, Externalizable {
      */
     protected Map<String, NodeSubscription> subscriptionsByJID =
             new ConcurrentHashMap<>();
+    /**
+     * Index of all subscriptions in {@link #subscriptionsByID}, by the address of the owner of each subscription.
+     * Key: Subscription owner JID, Value: the subscriptions of that owner.
+     */
+    private final Map<JID, Set<NodeSubscription>> subscriptionsByOwner =
+            new ConcurrentHashMap<>();
+    /**
+     * Index of all subscriptions in {@link #subscriptionsByID}, by the (full) JID of the entity that receives the
+     * event notifications of each subscription. Unlike {@link #subscriptionsByJID}, this index also holds all
+     * subscriptions when multiple subscriptions are enabled.
+     * Key: Subscriber full JID, Value: the subscriptions of that subscriber.
+     */
+    private final Map<JID, Set<NodeSubscription>> subscriptionsBySubscriber =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Counter that is incremented whenever a subscription is added, removed or changed, or the node configuration
+     * changes. Used to detect that {@link #deliverySubscriptions} is stale.
+     */
+    private final AtomicLong subscriptionsVersion = new AtomicLong();
+    /**
+     * Lazily computed list of subscriptions that are in a state in which they can receive event notifications. Is
+     * recomputed after {@link #subscriptionsVersion} changes.
+     */
+    private transient volatile DeliverySubscriptions deliverySubscriptions;
 
     /**
      * A transient reference to the service that this node belongs to. Note that this value is lazily initialized in
@@ -412,15 +437,76 @@ public abstract class Node implements Cacheable, Externalizable {
      * @return the list of subscriptions owned by the specified user.
      */
     public Collection<NodeSubscription> getSubscriptions(JID owner) {
-        Collection<NodeSubscription> subscriptions = new ArrayList<>();
-        for (NodeSubscription subscription : subscriptionsByID.values()) {
-            if (owner.equals(subscription.getOwner())) {
-                subscriptions.add(subscription);
+        final Set<NodeSubscription> subscriptions = subscriptionsByOwner.get(owner);
+        return subscriptions == null ? new ArrayList<>() : new ArrayList<>(subscriptions);
+    }
+
+    /**
+     * Returns the subscriptions of which the event notifications are sent to the specified JID. Unlike
+     * {@link #getSubscription(JID)}, this method can be used regardless of {@link #isMultipleSubscriptionsEnabled()}.
+     *
+     * @param subscriberJID the JID of the entity that receives event notifications.
+     * @return the subscriptions that deliver event notifications to the specified JID (possibly empty).
+     */
+    public Collection<NodeSubscription> getSubscriptionsBySubscriber(JID subscriberJID) {
+        final Set<NodeSubscription> subscriptions = subscriptionsBySubscriber.get(subscriberJID);
+        return subscriptions == null ? new ArrayList<>() : new ArrayList<>(subscriptions);
+    }
+
+    /**
+     * Returns the subscriptions to the node that are in a state in which event notifications can be delivered: the
+     * subscription is approved and configured, and the subscriber did not disable the delivery of notifications.
+     *
+     * The returned list is computed once, and reused until a subscription is added, removed or reconfigured, or the
+     * configuration of the node changes. Conditions that depend on the moment of delivery (expiration of the
+     * subscription, presence of the subscriber) are not taken into account: callers should still verify those using
+     * methods like {@link NodeSubscription#canSendPublicationEvent(LeafNode, PublishedItem)}.
+     *
+     * @return an unmodifiable list of subscriptions (possibly empty).
+     */
+    List<NodeSubscription> getDeliverySubscriptions() {
+        final long version = subscriptionsVersion.get();
+        final DeliverySubscriptions cached = deliverySubscriptions;
+        if (cached != null && cached.version == version) {
+            return cached.subscriptions;
+        }
+        final List<NodeSubscription> result = new ArrayList<>();
+        for (final NodeSubscription subscription : subscriptionsByID.values()) {
+            if (subscription.getState() == NodeSubscription.State.subscribed && subscription.shouldDeliverNotifications()) {
+                result.add(subscription);
             }
         }
+        final List<NodeSubscription> subscriptions = Collections.unmodifiableList(result);
+        // When subscriptions changed while computing, the version that is stored causes the next invocation to recompute.
+        deliverySubscriptions = new DeliverySubscriptions(version, subscriptions);
         return subscriptions;
     }
 
+    /**
+     * Invalidates any state that was derived from the subscriptions to this node. Must be invoked whenever a
+     * subscription is added, removed or its state or configuration changes.
+     */
+    void subscriptionsChanged() {
+        subscriptionsVersion.incrementAndGet();
+    }
+
+    private static void index(final Map<JID, Set<NodeSubscription>> index, final JID key, final NodeSubscription subscription) {
+        index.compute(key, (k, subscriptions) -> {
+            if (subscriptions == null) {
+                subscriptions = ConcurrentHashMap.newKeySet();
+            }
+            subscriptions.add(subscription);
+            return subscriptions;
+        });
+    }
+
+    private static void unindex(final Map<JID, Set<NodeSubscription>> index, final JID key, final NodeSubscription subscription) {
+        index.computeIfPresent(key, (k, subscriptions) -> {
+            subscriptions.remove(subscription);
+            return subscriptions.isEmpty() ? null : subscriptions;
+        });
+    }
+
     /**
      * Returns all subscriptions to the node.
      *
@@ -726,6 +812,9 @@ public abstract class Node implements Cacheable, Externalizable {
             // was modified
             modificationDate = new Date();
 
+            // Subscriptions that can receive notifications may be affected by the new configuration
+            subscriptionsChanged();
+
             // Notify subscribers that the node configuration has changed
             nodeConfigurationChanged();
         }
@@ -1835,8 +1924,16 @@ public abstract class Node implements Cacheable, Externalizable {
 
     public void addSubscription(NodeSubscription subscription)
     {
-        subscriptionsByID.put(subscription.getID(), subscription);
+        final NodeSubscription previous = subscriptionsByID.put(subscription.getID(), subscription);
+        if (previous != null) {
+            // The subscription is being reloaded: replace the previous instance in the indexes.
+            unindex(subscriptionsByOwner, previous.getOwner(), previous);
+            unindex(subscriptionsBySubscriber, previous.getJID(), previous);
+        }
         subscriptionsByJID.put(subscription.getJID().toString(), subscription);
+        index(subscriptionsByOwner, subscription.getOwner(), subscription);
+        index(subscriptionsBySubscriber, subscription.getJID(), subscription);
+        subscriptionsChanged();
     }
 
     /**
@@ -1913,6 +2010,9 @@ public abstract class Node implements Cacheable, Externalizable {
         affiliates.clear();
         subscriptionsByID.clear();
         subscriptionsByJID.clear();
+        subscriptionsByOwner.clear();
+        subscriptionsBySubscriber.clear();
+        subscriptionsChanged();
     }
 
     /**
@@ -2041,13 +2141,18 @@ public abstract class Node implements Cacheable, Externalizable {
      */
     protected void broadcastNodeEvent(Message message, boolean includeAll) {
         Collection<JID> jids = new ArrayList<>();
-        for (NodeSubscription subscription : subscriptionsByID.values()) {
+        for (NodeSubscription subscription : includeAll ? subscriptionsByID.values() : getDeliverySubscriptions()) {
             if (includeAll || subscription.canSendNodeEvents()) {
                 jids.add(subscription.getJID());
             }
         }
         // Broadcast packet to subscribers
-        getService().broadcast(this, message, jids);
+        final NotificationDeliveryPipeline pipeline = NotificationDeliveryPipeline.getInstance();
+        if (pipeline.isApplicable(this, jids.size())) {
+            pipeline.broadcast(this, message, jids);
+        } else {
+            getService().broadcast(this, message, jids);
+        }
     }
 
     /**
@@ -2061,6 +2166,22 @@ public abstract class Node implements Cacheable, Externalizable {
      */
     protected void sendEventNotification(JID subscriberJID, Message notification,
             Collection<String> subIDs) {
+        sendEventNotification(subscriberJID, notification, subIDs, NotificationSink.DIRECT);
+    }
+
+    /**
+     * Composes an event notification to the specified subscriber, like
+     * {@link #sendEventNotification(JID, Message, Collection)}, but hands it to the provided sink rather than
+     * sending it immediately.
+     *
+     * @param subscriberJID the subscriber JID that will get the notification.
+     * @param notification the message to send to the subscriber.
+     * @param subIDs the list of affected subscription IDs or null when node does not
+     *        allow multiple subscriptions.
+     * @param sink receives the notification, if it is to be sent.
+     */
+    void sendEventNotification(JID subscriberJID, Message notification,
+            Collection<String> subIDs, NotificationSink sink) {
         Element headers = null;
         if (subIDs != null) {
             // Notate the event notification with the ID of the affected subscriptions
@@ -2088,7 +2209,7 @@ public abstract class Node implements Cacheable, Externalizable {
         //
         if (subscriberJID.getResource() == null ||
             SessionManager.getInstance().getSession(subscriberJID) != null) {
-            getService().sendNotification(this, notification, subscriberJID);
+            sink.send(this, notification, subscriberJID);
         }
 
         if (headers != null) {
@@ -2144,7 +2265,7 @@ public abstract class Node implements Cacheable, Externalizable {
         if ( subscription.isAuthorizationPending() ) {
             final Set<NodeSubscription> existing = new HashSet<>();
             existing.add( subscriptionsByJID.get( subscription.getJID().toString() ) ); // potentially null
-            existing.addAll( subscriptionsByID.values().stream().filter( s -> s.getJID().equals( subscription.getJID() ) ).collect( Collectors.toSet()) );
+            existing.addAll( getSubscriptionsBySubscriber( subscription.getJID() ) );
             if (existing.stream().anyMatch( s -> s != null && s.isAuthorizationPending() ) ) {
                 // This node already has a pending subscription for this JID. The XEP forbids this.
                 if (originalIQ != null ) {
@@ -2209,8 +2330,13 @@ public abstract class Node implements Cacheable, Externalizable {
      */
     public void cancelSubscription(NodeSubscription subscription, boolean sendToCluster) {
         // Remove subscription from memory
-        subscriptionsByID.remove(subscription.getID());
+        final NodeSubscription removed = subscriptionsByID.remove(subscription.getID());
         subscriptionsByJID.remove(subscription.getJID().toString());
+        if (removed != null) {
+            unindex(subscriptionsByOwner, removed.getOwner(), removed);
+            unindex(subscriptionsBySubscriber, removed.getJID(), removed);
+        }
+        subscriptionsChanged();
         // Check if user has affiliation of type "none" and there are no more subscriptions
         NodeAffiliate affiliate = subscription.getAffiliate();
         if (affiliate != null && affiliate.getAffiliation() == NodeAffiliate.Affiliation.none &&
@@ -2626,8 +2752,21 @@ public abstract class Node implements Cacheable, Externalizable {
             final String id = util.readSafeUTF( in );
             final NodeSubscription subscription = new NodeSubscription( node, owner, jid, state, id );
 
-            subscriptionsByID.put( subscription.getID(), subscription );
-            subscriptionsByJID.put( subscription.getJID().toString(), subscription );
+            addSubscription( subscription );
+        }
+    }
+
+    /**
+     * A list of subscriptions that can receive event notifications, and the version of the subscriptions of the node
+     * from which it was computed.
+     */
+    private static final class DeliverySubscriptions {
+        private final long version;
+        private final List<NodeSubscription> subscriptions;
+
+        private DeliverySubscriptions(final long version, final List<NodeSubscription> subscriptions) {
+            this.version = version;
+            this.subscriptions = subscriptions;
         }
     }
 }
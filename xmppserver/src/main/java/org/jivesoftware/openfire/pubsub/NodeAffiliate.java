@@ -95,6 +95,23 @@ public class NodeAffiliate implements Cacheable
      */
     void sendPublishedNotifications(Message notification, Element event, LeafNode leafNode,
             List<PublishedItem> publishedItems) {
+        sendPublishedNotifications(notification, event, leafNode, publishedItems, NotificationSink.DIRECT);
+    }
+
+    /**
+     * Composes event notifications for the published items to the affiliate, like
+     * {@link #sendPublishedNotifications(Message, Element, LeafNode, List)}, but hands them to the provided
+     * sink rather than sending them immediately.
+     *
+     * @param notification the message to sent to the subscribers. The message will be completed
+     *        with the items to include in each notification.
+     * @param event the event Element included in the notification message.
+     * @param leafNode the leaf node where the items where published.
+     * @param publishedItems the list of items that were published. Could be an empty list.
+     * @param sink receives every notification that is to be sent.
+     */
+    void sendPublishedNotifications(Message notification, Element event, LeafNode leafNode,
+            List<PublishedItem> publishedItems, NotificationSink sink) {
 
         if (!publishedItems.isEmpty()) {
             Map<List<NodeSubscription>, List<PublishedItem>> itemsBySubs =
@@ -129,7 +146,7 @@ public class NodeAffiliate implements Cacheable
                     }
                 }
                 // Send the event notification
-                sendEventNotification(notification, nodeSubscriptions);
+                sendEventNotification(notification, nodeSubscriptions, sink);
                 // Remove the added items information
                 event.remove(items);
             }
@@ -146,7 +163,7 @@ public class NodeAffiliate implements Cacheable
             Element items = event.addElement("items");
             items.addAttribute("node", leafNode.getUniqueIdentifier().getNodeId());
             // Send the event notification
-            sendEventNotification(notification, affectedSubscriptions);
+            sendEventNotification(notification, affectedSubscriptions, sink);
             // Remove the added items information
             event.remove(items);
         }
@@ -186,7 +203,7 @@ public class NodeAffiliate implements Cacheable
                 }
 
                 // Send the event notification
-                service.sendNotification(leafNode, notification, session.getAddress());
+                sink.send(leafNode, notification, session.getAddress());
                 // Remove the added items information
                 event.remove(items);
             }
@@ -209,6 +226,23 @@ public class NodeAffiliate implements Cacheable
      */
     void sendDeletionNotifications(Message notification, Element event, LeafNode leafNode,
             List<PublishedItem> publishedItems) {
+        sendDeletionNotifications(notification, event, leafNode, publishedItems, NotificationSink.DIRECT);
+    }
+
+    /**
+     * Composes event notifications for the deleted items to the affiliate, like
+     * {@link #sendDeletionNotifications(Message, Element, LeafNode, List)}, but hands them to the provided
+     * sink rather than sending them immediately.
+     *
+     * @param notification the message to sent to the subscribers. The message will be completed
+     *        with the items to include in each notification.
+     * @param event the event Element included in the notification message.
+     * @param leafNode the leaf node where the items where deleted from.
+     * @param publishedItems the list of items that were deleted.
+     * @param sink receives every notification that is to be sent.
+     */
+    void sendDeletionNotifications(Message notification, Element event, LeafNode leafNode,
+            List<PublishedItem> publishedItems, NotificationSink sink) {
 
         if (!publishedItems.isEmpty()) {
             Map<List<NodeSubscription>, List<PublishedItem>> itemsBySubs =
@@ -227,7 +261,7 @@ public class NodeAffiliate implements Cacheable
                     }
                 }
                 // Send the event notification
-                sendEventNotification(notification, nodeSubscriptions);
+                sendEventNotification(notification, nodeSubscriptions, sink);
                 // Remove the added items information
                 event.remove(items);
             }
@@ -249,9 +283,10 @@ public class NodeAffiliate implements Cacheable
      * @param notification the message to send containing the event notification.
      * @param notifySubscriptions list of subscriptions that were affected and are going to be
      *        included in the notification message. The list should not be empty.
+     * @param sink receives every notification that is to be sent.
      */
     private void sendEventNotification(Message notification,
-            List<NodeSubscription> notifySubscriptions) {
+            List<NodeSubscription> notifySubscriptions, NotificationSink sink) {
         if (node.isMultipleSubscriptionsEnabled()) {
             // Group subscriptions with the same subscriber JID
             Map<JID, Collection<String>> groupedSubs = new HashMap<>();
@@ -268,7 +303,7 @@ public class NodeAffiliate implements Cacheable
                 // Get ID of affected subscriptions
                 Collection<String> subIDs = groupedSubs.get(subscriberJID);
                 // Send the notification to the subscriber
-                node.sendEventNotification(subscriberJID, notification, subIDs);
+                node.sendEventNotification(subscriberJID, notification, subIDs, sink);
             }
         }
         else {
@@ -278,7 +313,7 @@ public class NodeAffiliate implements Cacheable
                 for(NodeSubscription subscription: notifySubscriptions) {
                     JID sub = subscription.getJID();
                     if (!subs.contains(sub)) {
-                        node.sendEventNotification(sub, notification, null);
+                        node.sendEventNotification(sub, notification, null, sink);
                         subs.add(sub);
                     }
                 }
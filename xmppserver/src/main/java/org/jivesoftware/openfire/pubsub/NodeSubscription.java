@@ -333,6 +333,7 @@ public class NodeSubscription {
 
     void setShouldDeliverNotifications(boolean deliverNotifications) {
         this.deliverNotifications = deliverNotifications;
+        node.subscriptionsChanged();
     }
 
     void setUsingDigest(boolean usingDigest) {
@@ -487,6 +488,7 @@ public class NodeSubscription {
                 }
             }
         }
+        node.subscriptionsChanged();
         if (savedToDB) {
             // Update the subscription in the backend store
             XMPPServer.getInstance().getPubSubModule().getPersistenceProvider().updateSubscription(node, this);
@@ -859,6 +861,7 @@ public class NodeSubscription {
             return;
         }
         state = State.subscribed;
+        node.subscriptionsChanged();
 
         if (savedToDB) {
             // Update the subscription in the backend store
@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.pubsub;
+
+import org.dom4j.Element;
+import org.jivesoftware.openfire.JMXManager;
+import org.jivesoftware.openfire.mbean.ThreadPoolExecutorDelegate;
+import org.jivesoftware.openfire.mbean.ThreadPoolExecutorDelegateMBean;
+import org.jivesoftware.util.NamedThreadFactory;
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+import javax.annotation.Nonnull;
+import javax.management.ObjectName;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Delivers event notifications of pubsub nodes with many affiliates in the background, so that the entity that caused
+ * the event (eg: the publisher of an item) does not have to wait for all notifications to be sent.
+ *
+ * Delivery is performed in stages, that run on a dedicated thread pool:
+ * <ol>
+ *     <li><em>filter</em>: the affiliates are divided in chunks, that are processed in parallel. For each affiliate,
+ *     the subscriptions that are to receive a notification are determined (evaluating subscription state, keyword
+ *     filters, presence-based delivery, etc.) and the notifications are composed.</li>
+ *     <li><em>batch</em>: the notifications are grouped by the domain of their recipient.</li>
+ *     <li><em>route</em>: the groups are routed in parallel. Notifications to the same domain are routed in order.</li>
+ * </ol>
+ *
+ * Events of the same node are delivered in the order in which they occurred: delivery of an event starts only after
+ * delivery of the previous event of that node has finished. While delivery of events of a node is in progress, later
+ * events of that node are delivered by this pipeline as well, regardless of their number of recipients. The duration of each stage is recorded, and can be
+ * obtained through {@link #getMetrics(Stage)}.
+ */
+public class NotificationDeliveryPipeline
+{
+    private static final Logger Log = LoggerFactory.getLogger(NotificationDeliveryPipeline.class);
+
+    /**
+     * Enables delivery of event notifications in the background, for nodes that have at least
+     * {@link #MIN_AFFILIATES} affiliates.
+     */
+    public static final SystemProperty<Boolean> ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("xmpp.pubsub.notification.pipeline.enabled")
+        .setDefaultValue(false)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * The minimum number of recipients of an event for its notifications to be delivered in the background. Events
+     * with fewer recipients are delivered by the thread that caused the event.
+     */
+    public static final SystemProperty<Integer> MIN_AFFILIATES = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.pubsub.notification.pipeline.min-affiliates")
+        .setDefaultValue(100)
+        .setMinValue(0)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * The number of affiliates that is processed by one task of the filter stage.
+     */
+    public static final SystemProperty<Integer> CHUNK_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.pubsub.notification.pipeline.chunk-size")
+        .setDefaultValue(250)
+        .setMinValue(1)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * The maximum number of threads that deliver event notifications.
+     */
+    public static final SystemProperty<Integer> THREADS = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.pubsub.notification.pipeline.threads")
+        .setDefaultValue(Math.max(2, Runtime.getRuntime().availableProcessors()))
+        .setMinValue(1)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The maximum number of tasks that can be queued for the threads that deliver event notifications. When the queue
+     * is full, the thread that queues a task executes it.
+     */
+    public static final SystemProperty<Integer> QUEUE_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.pubsub.notification.pipeline.queue-size")
+        .setDefaultValue(10000)
+        .setMinValue(1)
+        .setDynamic(false)
+        .build();
+
+    private static final NotificationDeliveryPipeline INSTANCE = new NotificationDeliveryPipeline();
+
+    public static NotificationDeliveryPipeline getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The stages in which notifications are delivered.
+     */
+    public enum Stage
+    {
+        filter,
+        batch,
+        route
+    }
+
+    /**
+     * Statistics of the invocations of one stage of the pipeline.
+     */
+    public static final class StageMetrics
+    {
+        private final LongAdder invocations = new LongAdder();
+        private final LongAdder items = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(final int itemCount, final long elapsedNanos)
+        {
+            invocations.increment();
+            items.add(itemCount);
+            nanos.add(elapsedNanos);
+            maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+        }
+
+        /**
+         * @return the number of times that the stage was executed.
+         */
+        public long getInvocations() { return invocations.sum(); }
+
+        /**
+         * @return the number of elements processed by the stage (affiliates for the filter stage, notifications for the other stages).
+         */
+        public long getItems() { return items.sum(); }
+
+        /**
+         * @return the cumulative duration of all executions of the stage.
+         */
+        public long getTotalNanos() { return nanos.sum(); }
+
+        /**
+         * @return the duration of the longest execution of the stage.
+         */
+        public long getMaxNanos() { return maxNanos.get(); }
+    }
+
+    /**
+     * A notification that is ready to be routed.
+     */
+    private static final class Delivery
+    {
+        final Node node;
+        final Message notification;
+        final JID recipient;
+
+        Delivery(@Nonnull final Node node, @Nonnull final Message notification, @Nonnull final JID recipient)
+        {
+            this.node = node;
+            this.notification = notification;
+            this.recipient = recipient;
+        }
+    }
+
+    private final Map<Stage, StageMetrics> metrics = new EnumMap<>(Stage.class);
+
+    /**
+     * Per node, the completion of the last event that is queued for delivery.
+     */
+    private final ConcurrentMap<Node.UniqueIdentifier, CompletableFuture<Void>> lanes = new ConcurrentHashMap<>();
+
+    private final AtomicInteger pendingEvents = new AtomicInteger();
+
+    private ThreadPoolExecutor executor;
+    private ObjectName objectName;
+
+    private NotificationDeliveryPipeline()
+    {
+        for (final Stage stage : Stage.values()) {
+            metrics.put(stage, new StageMetrics());
+        }
+    }
+
+    /**
+     * Checks if the notifications of an event of a node with the specified number of recipients should be delivered by
+     * this pipeline. This is the case when the event has enough recipients, or when notifications of earlier events of
+     * the node are still being delivered by this pipeline (as the notifications of the event would otherwise overtake
+     * those).
+     *
+     * @param node the node that generated the event.
+     * @param recipientCount the number of affiliates or subscribers that are to be notified.
+     * @return true if the notifications should be delivered in the background.
+     */
+    public boolean isApplicable(@Nonnull final Node node, final int recipientCount)
+    {
+        return lanes.containsKey(node.getUniqueIdentifier()) || (ENABLED.getValue() && recipientCount >= MIN_AFFILIATES.getValue());
+    }
+
+    /**
+     * Returns statistics of a stage of this pipeline.
+     *
+     * @param stage the stage.
+     * @return statistics.
+     */
+    @Nonnull
+    public StageMetrics getMetrics(@Nonnull final Stage stage)
+    {
+        return metrics.get(stage);
+    }
+
+    /**
+     * Returns the number of events of which the notifications have not yet been delivered completely.
+     *
+     * @return an event count.
+     */
+    public int getPendingEvents()
+    {
+        return pendingEvents.get();
+    }
+
+    /**
+     * Queues delivery of notifications of items that were published to a node.
+     *
+     * @param leafNode the node to which the items were published.
+     * @param affiliates the affiliates that are to be notified (see {@link LeafNode#getAffiliatesToNotify()}).
+     * @param publishedItems the published items (possibly empty).
+     */
+    void publish(@Nonnull final LeafNode leafNode, @Nonnull final Collection<NodeAffiliate> affiliates, @Nonnull final List<PublishedItem> publishedItems)
+    {
+        final List<NodeAffiliate> recipients = new ArrayList<>(affiliates);
+        enqueue(leafNode, () -> deliver(leafNode, recipients,
+            (affiliate, message, event, sink) -> affiliate.sendPublishedNotifications(message, event, leafNode, publishedItems, sink),
+            null));
+    }
+
+    /**
+     * Queues delivery of notifications of items that were deleted from a node.
+     *
+     * @param leafNode the node from which the items were deleted.
+     * @param affiliates the affiliates that are to be notified (see {@link LeafNode#getAffiliatesToNotify()}).
+     * @param deletedItems the deleted items.
+     */
+    void retract(@Nonnull final LeafNode leafNode, @Nonnull final Collection<NodeAffiliate> affiliates, @Nonnull final List<PublishedItem> deletedItems)
+    {
+        final List<NodeAffiliate> recipients = new ArrayList<>(affiliates);
+        final List<PublishedItem> items = new ArrayList<>(deletedItems);
+        enqueue(leafNode, () -> deliver(leafNode, recipients,
+            (affiliate, message, event, sink) -> affiliate.sendDeletionNotifications(message, event, leafNode, items, sink),
+            (message, event, sink) -> leafNode.sendOwnerDeletionNotifications(message, event, items, sink)));
+    }
+
+    /**
+     * Queues delivery of the notification of an event of a node (eg: a configuration change) to a collection of
+     * recipients.
+     *
+     * @param node the node that generated the event.
+     * @param message the notification. This instance is not modified.
+     * @param jids the addresses of the recipients.
+     */
+    void broadcast(@Nonnull final Node node, @Nonnull final Message message, @Nonnull final Collection<JID> jids)
+    {
+        final Message notification = message.createCopy();
+        final List<JID> recipients = new ArrayList<>(jids);
+        enqueue(node, () -> {
+            final long start = System.nanoTime();
+            final Map<String, List<JID>> byDomain = new LinkedHashMap<>();
+            for (final JID recipient : recipients) {
+                byDomain.computeIfAbsent(recipient.getDomain(), domain -> new ArrayList<>()).add(recipient);
+            }
+            metrics.get(Stage.batch).record(recipients.size(), System.nanoTime() - start);
+
+            final List<CompletableFuture<Void>> routed = new ArrayList<>();
+            for (final List<JID> group : byDomain.values()) {
+                routed.add(CompletableFuture.runAsync(() -> {
+                    final long routeStart = System.nanoTime();
+                    node.getService().broadcast(node, notification.createCopy(), group);
+                    metrics.get(Stage.route).record(group.size(), System.nanoTime() - routeStart);
+                }, getExecutor()));
+            }
+            return CompletableFuture.allOf(routed.toArray(new CompletableFuture<?>[0]));
+        });
+    }
+
+    /**
+     * Stops the threads of this pipeline, after delivering notifications that are queued.
+     */
+    public synchronized void shutdown()
+    {
+        if (executor == null) {
+            return;
+        }
+        if (objectName != null) {
+            JMXManager.tryUnregister(objectName);
+            objectName = null;
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                Log.warn("Not all pending pubsub notifications were delivered before shutdown.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+    }
+
+    private synchronized Executor getExecutor()
+    {
+        if (executor == null) {
+            final int threads = THREADS.getValue();
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(QUEUE_SIZE.getValue()), new NamedThreadFactory("pubsub-notification-", null, true, null), new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut(true);
+            if (JMXManager.isEnabled()) {
+                final ThreadPoolExecutorDelegateMBean mBean = new ThreadPoolExecutorDelegate(executor);
+                objectName = JMXManager.tryRegister(mBean, ThreadPoolExecutorDelegateMBean.BASE_OBJECT_NAME + "pubsub-notification");
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Queues the delivery of an event of a node, to start after delivery of previously queued events of that node has
+     * finished.
+     */
+    private void enqueue(@Nonnull final Node node, @Nonnull final Supplier<CompletableFuture<Void>> delivery)
+    {
+        final Executor executor = getExecutor();
+        final Node.UniqueIdentifier key = node.getUniqueIdentifier();
+        pendingEvents.incrementAndGet();
+
+        // The lane is updated before delivery is scheduled, as the executor can run the delivery on this thread.
+        final CompletableFuture<Void> next = new CompletableFuture<>();
+        final CompletableFuture<Void> previous = lanes.put(key, next);
+        final CompletableFuture<Void> after = previous == null ? CompletableFuture.completedFuture(null) : previous;
+        next.whenComplete((v, t) -> {
+            pendingEvents.decrementAndGet();
+            lanes.remove(key, next);
+        });
+        after.thenComposeAsync(v -> delivery.get(), executor).whenComplete((v, t) -> {
+            // Failures are logged, but should not prevent the delivery of later events.
+            if (t != null) {
+                Log.warn("An unexpected exception occurred while delivering notifications of node {}.", key, t);
+            }
+            next.complete(null);
+        });
+    }
+
+    /**
+     * Composes the notifications of an event for one affiliate.
+     */
+    @FunctionalInterface
+    private interface AffiliateComposer
+    {
+        void compose(NodeAffiliate affiliate, Message message, Element event, NotificationSink sink);
+    }
+
+    /**
+     * Composes notifications of an event that are not specific to an affiliate.
+     */
+    @FunctionalInterface
+    private interface Composer
+    {
+        void compose(Message message, Element event, NotificationSink sink);
+    }
+
+    private CompletableFuture<Void> deliver(@Nonnull final LeafNode leafNode, @Nonnull final List<NodeAffiliate> affiliates, @Nonnull final AffiliateComposer composer, final Composer extra)
+    {
+        final Executor executor = getExecutor();
+        final int chunkSize = CHUNK_SIZE.getValue();
+        final List<CompletableFuture<List<Delivery>>> filtered = new ArrayList<>();
+        for (int i = 0; i < affiliates.size(); i += chunkSize) {
+            final List<NodeAffiliate> chunk = affiliates.subList(i, Math.min(i + chunkSize, affiliates.size()));
+            filtered.add(CompletableFuture.supplyAsync(() -> filter(leafNode, chunk, composer), executor));
+        }
+        if (extra != null) {
+            filtered.add(CompletableFuture.supplyAsync(() -> filter(leafNode, extra), executor));
+        }
+
+        return CompletableFuture.allOf(filtered.toArray(new CompletableFuture<?>[0])).thenComposeAsync(v -> {
+            final List<CompletableFuture<Void>> routed = new ArrayList<>();
+            for (final List<Delivery> group : batch(filtered)) {
+                routed.add(CompletableFuture.runAsync(() -> route(group), executor));
+            }
+            return CompletableFuture.allOf(routed.toArray(new CompletableFuture<?>[0]));
+        }, executor);
+    }
+
+    private List<Delivery> filter(@Nonnull final LeafNode leafNode, @Nonnull final Composer composer)
+    {
+        final List<Delivery> deliveries = new ArrayList<>();
+        final NotificationSink collector = (node, notification, recipient) -> deliveries.add(new Delivery(node, notification.createCopy(), recipient));
+        final Message message = new Message();
+        final Element event = message.addChildElement("event", "http://jabber.org/protocol/pubsub#event");
+        try {
+            composer.compose(message, event, collector);
+        } catch (Exception e) {
+            Log.warn("An unexpected exception occurred while composing notifications of node {}.", leafNode.getUniqueIdentifier(), e);
+        }
+        return deliveries;
+    }
+
+    private List<Delivery> filter(@Nonnull final LeafNode leafNode, @Nonnull final List<NodeAffiliate> affiliates, @Nonnull final AffiliateComposer composer)
+    {
+        final long start = System.nanoTime();
+        final List<Delivery> deliveries = new ArrayList<>();
+        // The notification is modified while it is being composed for each recipient, so it is copied when collected.
+        final NotificationSink collector = (node, notification, recipient) -> deliveries.add(new Delivery(node, notification.createCopy(), recipient));
+
+        final Message message = new Message();
+        final Element event = message.addChildElement("event", "http://jabber.org/protocol/pubsub#event");
+        for (final NodeAffiliate affiliate : affiliates) {
+            try {
+                composer.compose(affiliate, message, event, collector);
+            } catch (Exception e) {
+                Log.warn("An unexpected exception occurred while composing notifications of node {} for {}.", leafNode.getUniqueIdentifier(), affiliate.getJID(), e);
+            }
+        }
+        metrics.get(Stage.filter).record(affiliates.size(), System.nanoTime() - start);
+        return deliveries;
+    }
+
+    private Collection<List<Delivery>> batch(@Nonnull final List<CompletableFuture<List<Delivery>>> filtered)
+    {
+        final long start = System.nanoTime();
+        int count = 0;
+        final Map<String, List<Delivery>> byDomain = new LinkedHashMap<>();
+        for (final CompletableFuture<List<Delivery>> future : filtered) {
+            for (final Delivery delivery : future.join()) {
+                byDomain.computeIfAbsent(delivery.recipient.getDomain(), domain -> new ArrayList<>()).add(delivery);
+                count++;
+            }
+        }
+        metrics.get(Stage.batch).record(count, System.nanoTime() - start);
+        return byDomain.values();
+    }
+
+    private void route(@Nonnull final List<Delivery> deliveries)
+    {
+        final long start = System.nanoTime();
+        for (final Delivery delivery : deliveries) {
+            try {
+                delivery.node.getService().sendNotification(delivery.node, delivery.notification, delivery.recipient);
+            } catch (Exception e) {
+                Log.warn("An unexpected exception occurred while routing a notification of node {} to {}.", delivery.node.getUniqueIdentifier(), delivery.recipient, e);
+            }
+        }
+        metrics.get(Stage.route).record(deliveries.size(), System.nanoTime() - start);
+    }
+}
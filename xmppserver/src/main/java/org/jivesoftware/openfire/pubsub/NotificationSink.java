@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.pubsub;
+
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+/**
+ * Receives event notifications that are ready to be sent to a recipient.
+ *
+ * Implementations must not retain a reference to the notification after returning, as the caller can modify it to
+ * compose the next notification.
+ */
+@FunctionalInterface
+interface NotificationSink
+{
+    /**
+     * Sends notifications immediately, using the service of the node.
+     */
+    NotificationSink DIRECT = (node, notification, recipient) -> node.getService().sendNotification(node, notification, recipient);
+
+    /**
+     * Processes an event notification.
+     *
+     * @param node the node that generated the notification.
+     * @param notification the notification to send.
+     * @param recipient the address of the entity that is to receive the notification.
+     */
+    void send(Node node, Message notification, JID recipient);
+}
@@ -514,6 +514,7 @@ public class PubSubModule extends BasicModule implements ServerItemsProvider, Di
         XMPPServer.getInstance().getEntityCapabilitiesManager().removeListener(this);
 
         super.destroy();
+        NotificationDeliveryPipeline.getInstance().shutdown();
         if (persistenceProviderManager!= null) {
             persistenceProviderManager.shutdown();
         }
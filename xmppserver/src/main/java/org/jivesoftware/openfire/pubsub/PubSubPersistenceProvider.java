@@ -20,6 +20,7 @@ import org.xmpp.packet.JID;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -289,6 +290,21 @@ public interface PubSubPersistenceProvider
      *
      * @param addList A list of items to be added.
      * @param delList A list of items to be removed.
+     * @return true if all changes were written, false if (some of) the changes failed to be written.
      */
-    void bulkPublishedItems( List<PublishedItem> addList, List<PublishedItem> delList );
+    boolean bulkPublishedItems( List<PublishedItem> addList, List<PublishedItem> delList );
+
+    /**
+     * Replaces all published items of a node with the provided items, as one operation when possible. This is used to
+     * write a compacted snapshot of the items of a node.
+     *
+     * @param leafNode the node of which to replace the items.
+     * @param items the items that the node has (possibly empty).
+     * @return true if the items were written, false if writing them failed.
+     */
+    default boolean replacePublishedItems( LeafNode leafNode, List<PublishedItem> items )
+    {
+        purgeNode( leafNode );
+        return bulkPublishedItems( new ArrayList<>( items ), new ArrayList<>() );
+    }
 }
@@ -97,6 +97,24 @@ public class PublishedItem implements Serializable {
         this.creationDate = creationDate;
     }
 
+    /**
+     * Creates a published item for a node that is identified by its service and node ID. The node itself is looked up
+     * when it is first needed.
+     *
+     * @param serviceId The ID of the service of the node the published item is created in
+     * @param nodeId The ID of the node the published item is created in
+     * @param publisher The JID of the account creating the item
+     * @param id The unique ID of the item
+     * @param creationDate The date it was created
+     */
+    PublishedItem(String serviceId, String nodeId, JID publisher, String id, Date creationDate) {
+        this.nodeId = nodeId;
+        this.serviceId = serviceId;
+        this.publisher = publisher;
+        this.id = id;
+        this.creationDate = creationDate;
+    }
+
     /**
      * Returns the id for the {@link LeafNode} where this item was published.
      *
@@ -306,7 +324,7 @@ public class PublishedItem implements Serializable {
      * @return Unique identifier for this item
      */
     public UniqueIdentifier getUniqueIdentifier() {
-        return getUniqueIdentifier( getNode(), id );
+        return getUniqueIdentifier( serviceId, nodeId, id );
     }
 
     /**
@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.pubsub;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, memory-mapped journal of changes to published items that have not yet been written to the database.
+ *
+ * The journal consists of fixed-size segment files. Every change is appended as a record that consists of the length
+ * of its data, a checksum and the data itself. As the segment files are memory-mapped, appending a record does not
+ * involve a system call: the record survives a crash of the process as soon as it has been appended. Optionally, every
+ * append can be forced to the storage device, which also protects against a crash of the operating system, at the
+ * expense of latency.
+ *
+ * Every record is located at a position, which is an offset in the (ever-growing) virtual address space of the journal.
+ * After changes have been written to the database, the journal can be {@link #checkpoint(long) checkpointed}: records
+ * before the checkpoint are no longer needed, and segments that only hold such records are deleted.
+ *
+ * When a journal is opened, the records after the last checkpoint are read. Changes to the same item are reduced to the
+ * last change of that item. These can be obtained through {@link #getRecovered()}. New records are always appended to
+ * a new segment.
+ *
+ * Instances of this class are thread-safe.
+ */
+class PublishedItemJournal implements Closeable
+{
+    private static final Logger Log = LoggerFactory.getLogger(PublishedItemJournal.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    /**
+     * Size of the header of each record: the length of the data, followed by its checksum.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The type of change that is recorded in the journal.
+     */
+    enum Operation
+    {
+        /**
+         * An item was published (or replaced).
+         */
+        ADD,
+
+        /**
+         * An item was removed.
+         */
+        DELETE,
+
+        /**
+         * All items of a node were removed. This is written to the database immediately, but needs to be recorded, to
+         * prevent earlier records of items of that node to be applied after a restart.
+         */
+        PURGE
+    }
+
+    /**
+     * A change to one published item, or to all items of a node.
+     */
+    static final class Record
+    {
+        final Operation operation;
+        final String serviceId;
+        final String nodeId;
+        final String itemId;
+        final JID publisher;
+        final long creationDate;
+        final String payloadXML;
+
+        private Record(@Nonnull final Operation operation, @Nonnull final String serviceId, @Nonnull final String nodeId, @Nullable final String itemId, @Nullable final JID publisher, final long creationDate, @Nullable final String payloadXML)
+        {
+            this.operation = operation;
+            this.serviceId = serviceId;
+            this.nodeId = nodeId;
+            this.itemId = itemId;
+            this.publisher = publisher;
+            this.creationDate = creationDate;
+            this.payloadXML = payloadXML;
+        }
+
+        static Record add(@Nonnull final PublishedItem item)
+        {
+            final PublishedItem.UniqueIdentifier id = item.getUniqueIdentifier();
+            return new Record(Operation.ADD, id.getServiceIdentifier().getServiceId(), id.getNodeIdentifier().getNodeId(), id.getItemId(), item.getPublisher(), item.getCreationDate().getTime(), item.getPayloadXML());
+        }
+
+        static Record delete(@Nonnull final PublishedItem item)
+        {
+            final PublishedItem.UniqueIdentifier id = item.getUniqueIdentifier();
+            return new Record(Operation.DELETE, id.getServiceIdentifier().getServiceId(), id.getNodeIdentifier().getNodeId(), id.getItemId(), null, 0, null);
+        }
+
+        static Record purge(@Nonnull final Node.UniqueIdentifier nodeIdentifier)
+        {
+            return new Record(Operation.PURGE, nodeIdentifier.getServiceIdentifier().getServiceId(), nodeIdentifier.getNodeId(), null, null, 0, null);
+        }
+
+        /**
+         * Recreates the published item that was recorded. Not applicable to {@link Operation#PURGE} records.
+         *
+         * @return a published item.
+         */
+        @Nonnull
+        PublishedItem toPublishedItem()
+        {
+            if (operation == Operation.PURGE) {
+                throw new IllegalStateException("A purge record does not represent a published item.");
+            }
+            final PublishedItem item = new PublishedItem(serviceId, nodeId, publisher, itemId, new Date(creationDate));
+            item.setPayloadXML(payloadXML);
+            return item;
+        }
+
+        byte[] toBytes() throws IOException
+        {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (payloadXML == null ? 0 : payloadXML.length()));
+            try (final DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeByte(operation.ordinal());
+                out.writeUTF(serviceId);
+                out.writeUTF(nodeId);
+                if (operation != Operation.PURGE) {
+                    out.writeUTF(itemId);
+                }
+                if (operation == Operation.ADD) {
+                    out.writeUTF(publisher.toString());
+                    out.writeLong(creationDate);
+                    writeLongString(out, payloadXML);
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        static Record fromBytes(@Nonnull final byte[] data) throws IOException
+        {
+            try (final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+                final Operation operation = Operation.values()[in.readUnsignedByte()];
+                final String serviceId = in.readUTF();
+                final String nodeId = in.readUTF();
+                final String itemId = operation != Operation.PURGE ? in.readUTF() : null;
+                if (operation == Operation.ADD) {
+                    final JID publisher = new JID(in.readUTF());
+                    final long creationDate = in.readLong();
+                    final String payloadXML = readLongString(in);
+                    return new Record(operation, serviceId, nodeId, itemId, publisher, creationDate, payloadXML);
+                }
+                return new Record(operation, serviceId, nodeId, itemId, null, 0, null);
+            }
+        }
+
+        // DataOutput#writeUTF is limited to 64KB, which is not enough for all payloads.
+        private static void writeLongString(@Nonnull final DataOutputStream out, @Nullable final String value) throws IOException
+        {
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        @Nullable
+        private static String readLongString(@Nonnull final DataInputStream in) throws IOException
+        {
+            final int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+
+    /**
+     * Indices of all segments that exist on disk, including the active one.
+     */
+    private final SortedSet<Long> segments = new TreeSet<>();
+
+    /**
+     * The last change to every item that was recovered when the journal was opened.
+     */
+    private final List<Record> recovered;
+
+    private final MappedByteBuffer checkpointBuffer;
+    private long checkpoint;
+
+    private MappedByteBuffer active;
+    private long activeIndex;
+    private long position;
+
+    private PublishedItemJournal(@Nonnull final Path directory, final int segmentSize) throws IOException
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        Files.createDirectories(directory);
+        try (final FileChannel channel = FileChannel.open(directory.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            checkpointBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+        }
+        checkpoint = checkpointBuffer.getLong(0);
+
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (final Path path : stream) {
+                final String name = path.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    Log.warn("Ignoring unrecognized file in pubsub item journal directory: {}", path);
+                }
+            }
+        }
+
+        recovered = recover();
+
+        // Always start appending in a new segment, leaving recovered segments untouched until the next checkpoint.
+        final long lastIndex = segments.isEmpty() ? -1 : segments.last();
+        activateSegment(Math.max(lastIndex + 1, (checkpoint + segmentSize - 1) / segmentSize));
+    }
+
+    /**
+     * Opens (or creates) a journal in the specified directory.
+     *
+     * @param directory the directory that holds the journal files.
+     * @param segmentSize the size (in bytes) of each segment file. Must be equal to the value used by previous instances.
+     * @return the journal.
+     * @throws IOException when the journal could not be opened.
+     */
+    @Nonnull
+    static PublishedItemJournal open(@Nonnull final Path directory, final int segmentSize) throws IOException
+    {
+        return new PublishedItemJournal(directory, segmentSize);
+    }
+
+    /**
+     * Returns the last change of every item that was recorded after the last checkpoint, when this journal was opened.
+     * These changes are not guaranteed to have been written to the database.
+     *
+     * @return recovered changes, in the order in which they were recorded (possibly empty).
+     */
+    @Nonnull
+    List<Record> getRecovered()
+    {
+        return recovered;
+    }
+
+    /**
+     * Appends a record to the journal.
+     *
+     * @param record the record to append.
+     * @param force true if the record is to be written to the storage device before this method returns.
+     * @return the position directly after the appended record, or -1 if the record is too large to be journaled.
+     * @throws IOException when the record could not be written.
+     */
+    synchronized long append(@Nonnull final Record record, final boolean force) throws IOException
+    {
+        final byte[] data = record.toBytes();
+        if (data.length + HEADER_SIZE > segmentSize) {
+            Log.warn("Unable to journal change of {} bytes, as it exceeds the segment size.", data.length);
+            return -1;
+        }
+        int offset = (int) (position - activeIndex * segmentSize);
+        if (offset + HEADER_SIZE + data.length > segmentSize) {
+            activateSegment(activeIndex + 1);
+            offset = 0;
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+
+        // The length is written last, so that a partially written record is not mistaken for a complete one.
+        active.position(offset + HEADER_SIZE);
+        active.put(data);
+        active.putInt(offset + Integer.BYTES, (int) crc.getValue());
+        active.putInt(offset, data.length);
+        if (force) {
+            active.force();
+        }
+        position += HEADER_SIZE + data.length;
+        return position;
+    }
+
+    /**
+     * Returns the position at which the next record will be appended.
+     *
+     * @return a position in the journal.
+     */
+    synchronized long getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * Records that all changes that were appended before the specified position have been written to the database (or
+     * are superseded by later changes), and deletes all segments that no longer hold any other changes.
+     *
+     * @param position a position obtained from {@link #getPosition()}.
+     */
+    synchronized void checkpoint(final long position)
+    {
+        if (position <= checkpoint) {
+            return;
+        }
+        checkpoint = position;
+        checkpointBuffer.putLong(0, position);
+
+        final Iterator<Long> iterator = segments.iterator();
+        while (iterator.hasNext()) {
+            final long index = iterator.next();
+            if (index == activeIndex || (index + 1) * segmentSize > position) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(segmentPath(index));
+                iterator.remove();
+            } catch (IOException e) {
+                // On some platforms, a file cannot be deleted while it is mapped. Retry on the next checkpoint.
+                Log.debug("Unable to delete pubsub item journal segment {}. Will retry later.", index, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        active.force();
+        checkpointBuffer.force();
+    }
+
+    private Path segmentPath(final long index)
+    {
+        return directory.resolve(SEGMENT_PREFIX + index + SEGMENT_SUFFIX);
+    }
+
+    private void activateSegment(final long index) throws IOException
+    {
+        try (final FileChannel channel = FileChannel.open(segmentPath(index), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            active = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        activeIndex = index;
+        position = index * segmentSize;
+        segments.add(index);
+    }
+
+    private List<Record> recover() throws IOException
+    {
+        final Map<PublishedItem.UniqueIdentifier, Record> lastChanges = new LinkedHashMap<>();
+        int count = 0;
+        for (final long index : segments) {
+            final long start = index * segmentSize;
+            if (start + segmentSize <= checkpoint) {
+                continue;
+            }
+            final MappedByteBuffer buffer;
+            try (final FileChannel channel = FileChannel.open(segmentPath(index), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), segmentSize));
+            }
+            int offset = (int) Math.max(0, checkpoint - start);
+            while (offset + HEADER_SIZE <= buffer.limit()) {
+                final int length = buffer.getInt(offset);
+                if (length <= 0 || offset + HEADER_SIZE + length > buffer.limit()) {
+                    break; // End of the records in this segment.
+                }
+                final byte[] data = new byte[length];
+                buffer.position(offset + HEADER_SIZE);
+                buffer.get(data);
+                final CRC32 crc = new CRC32();
+                crc.update(data);
+                if ((int) crc.getValue() != buffer.getInt(offset + Integer.BYTES)) {
+                    Log.warn("Pubsub item journal segment {} contains a corrupt record at offset {}. Ignoring the remainder of that segment.", index, offset);
+                    break;
+                }
+
+                final Record record = Record.fromBytes(data);
+                count++;
+                if (record.operation == Operation.PURGE) {
+                    final Node.UniqueIdentifier nodeIdentifier = new Node.UniqueIdentifier(record.serviceId, record.nodeId);
+                    lastChanges.keySet().removeIf(key -> nodeIdentifier.equals(key.getNodeIdentifier()));
+                } else {
+                    final PublishedItem.UniqueIdentifier key = PublishedItem.getUniqueIdentifier(record.serviceId, record.nodeId, record.itemId);
+                    lastChanges.remove(key); // Re-adding moves the change to the end of the insertion order.
+                    lastChanges.put(key, record);
+                }
+                offset += HEADER_SIZE + length;
+            }
+        }
+        if (count > 0) {
+            Log.info("Recovered {} change(s) to {} published item(s) from the pubsub item journal.", count, lastChanges.size());
+        }
+        return new ArrayList<>(lastChanges.values());
+    }
+}
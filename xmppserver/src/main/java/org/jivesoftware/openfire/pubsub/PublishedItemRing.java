@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.pubsub;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A fixed-size, in-memory store of the most recent published items of a node.
+ *
+ * When an item is added to a full ring, the oldest item is overwritten. An item that is published with the ID of an
+ * item that is already in the ring replaces that item, and becomes the most recent item. The ring records if it was
+ * modified since its content was last written to the database, which allows its content to be written periodically
+ * as one compacted snapshot, instead of as a row-level insert and delete for every publication.
+ *
+ * A ring that has not been modified for a while can be retired, after which it no longer accepts changes. Its owner
+ * is expected to stop using a retired ring.
+ *
+ * Instances are thread-safe.
+ */
+class PublishedItemRing
+{
+    /**
+     * Guarantees that snapshots are written to the database in the order in which they are taken.
+     */
+    private final Object writeMutex = new Object();
+
+    /**
+     * The node of which this ring stores the items.
+     */
+    private LeafNode node;
+
+    /**
+     * Items, in order of publication, starting at {@link #head}.
+     */
+    private PublishedItem[] items;
+
+    /**
+     * Index of the oldest item.
+     */
+    private int head;
+
+    /**
+     * Number of items in the ring.
+     */
+    private int size;
+
+    /**
+     * True when the ring was modified since the last snapshot was taken.
+     */
+    private boolean dirty;
+
+    /**
+     * True when the ring no longer accepts changes.
+     */
+    private boolean retired;
+
+    /**
+     * The instant (in milliseconds since the epoch) of the last modification of the ring.
+     */
+    private long lastModified = System.currentTimeMillis();
+
+    /**
+     * Creates a ring that initially holds the provided items.
+     *
+     * @param node the node of which this ring stores the items.
+     * @param capacity the maximum number of items in the ring.
+     * @param initialItems items, oldest first, that are already stored in the database.
+     */
+    PublishedItemRing(@Nonnull final LeafNode node, final int capacity, @Nonnull final Collection<PublishedItem> initialItems)
+    {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, but is: " + capacity);
+        }
+        this.node = node;
+        items = new PublishedItem[capacity];
+        for (final PublishedItem item : initialItems) {
+            add(item);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Updates the node of which this ring stores the items, as node instances can be replaced when they are reloaded.
+     *
+     * @param node the node of which this ring stores the items.
+     */
+    synchronized void setNode(@Nonnull final LeafNode node)
+    {
+        this.node = node;
+    }
+
+    /**
+     * Returns the maximum number of items in the ring.
+     *
+     * @return the capacity of the ring.
+     */
+    synchronized int getCapacity()
+    {
+        return items.length;
+    }
+
+    /**
+     * Adds an item as the most recent item of the ring. When the ring is full, its oldest item is overwritten.
+     *
+     * @param item the item to add.
+     * @return false if the ring is retired (and the item was not added), otherwise true.
+     */
+    synchronized boolean add(@Nonnull final PublishedItem item)
+    {
+        if (retired) {
+            return false;
+        }
+        removeItem(item.getID());
+        if (size == items.length) {
+            items[head] = null;
+            head = (head + 1) % items.length;
+            size--;
+        }
+        items[(head + size) % items.length] = item;
+        size++;
+        modified();
+        return true;
+    }
+
+    /**
+     * Removes an item from the ring, if the ring holds it.
+     *
+     * @param itemId the ID of the item to remove.
+     * @return false if the ring is retired (and the item was not removed), otherwise true.
+     */
+    synchronized boolean remove(@Nonnull final String itemId)
+    {
+        if (retired) {
+            return false;
+        }
+        if (removeItem(itemId)) {
+            modified();
+        }
+        return true;
+    }
+
+    private boolean removeItem(@Nonnull final String itemId)
+    {
+        for (int i = 0; i < size; i++) {
+            if (items[(head + i) % items.length].getID().equals(itemId)) {
+                // Shift the more recent items one position towards the head.
+                for (int j = i; j < size - 1; j++) {
+                    items[(head + j) % items.length] = items[(head + j + 1) % items.length];
+                }
+                items[(head + size - 1) % items.length] = null;
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void modified()
+    {
+        dirty = true;
+        lastModified = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns an item from the ring.
+     *
+     * @param itemId the ID of the item.
+     * @return the item, or null if the ring does not hold an item with that ID.
+     */
+    @Nullable
+    synchronized PublishedItem get(@Nonnull final String itemId)
+    {
+        for (int i = 0; i < size; i++) {
+            final PublishedItem item = items[(head + i) % items.length];
+            if (item.getID().equals(itemId)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the most recent item of the ring.
+     *
+     * @return the most recent item, or null if the ring is empty.
+     */
+    @Nullable
+    synchronized PublishedItem getLast()
+    {
+        return size == 0 ? null : items[(head + size - 1) % items.length];
+    }
+
+    /**
+     * Returns the most recent items of the ring, oldest first.
+     *
+     * @param maxItems the maximum number of items to return, or -1 for all items.
+     * @return a list of items (possibly empty).
+     */
+    @Nonnull
+    synchronized List<PublishedItem> getItems(final int maxItems)
+    {
+        final int count = maxItems < 0 ? size : Math.min(maxItems, size);
+        final List<PublishedItem> result = new ArrayList<>(count);
+        for (int i = size - count; i < size; i++) {
+            result.add(items[(head + i) % items.length]);
+        }
+        return result;
+    }
+
+    /**
+     * Changes the maximum number of items in the ring. When the ring is shrunk, the oldest items are discarded.
+     *
+     * @param capacity the new maximum number of items.
+     */
+    synchronized void resize(final int capacity)
+    {
+        if (capacity == items.length) {
+            return;
+        }
+        final List<PublishedItem> current = getItems(capacity);
+        items = new PublishedItem[capacity];
+        head = 0;
+        size = current.size();
+        for (int i = 0; i < size; i++) {
+            items[i] = current.get(i);
+        }
+        modified();
+    }
+
+    /**
+     * Returns true if the ring was modified since the last snapshot was written.
+     *
+     * @return true if the ring needs to be written to the database.
+     */
+    synchronized boolean isDirty()
+    {
+        return dirty;
+    }
+
+    /**
+     * Returns true if the ring no longer accepts changes.
+     *
+     * @return true if the ring is retired.
+     */
+    synchronized boolean isRetired()
+    {
+        return retired;
+    }
+
+    /**
+     * Retires the ring if its content has been written to the database, and it was not modified since a particular
+     * instant.
+     *
+     * @param cutoff the instant (in milliseconds since the epoch).
+     * @return true if the ring is retired.
+     */
+    synchronized boolean retireIfIdle(final long cutoff)
+    {
+        if (!dirty && lastModified < cutoff) {
+            retired = true;
+        }
+        return retired;
+    }
+
+    /**
+     * Retires the ring without writing its content to the database. This waits for a snapshot that is being written to
+     * complete, and prevents further snapshots from being written.
+     */
+    void discard()
+    {
+        synchronized (writeMutex) {
+            synchronized (this) {
+                retired = true;
+                dirty = false;
+            }
+        }
+    }
+
+    /**
+     * Writes the content of the ring to the database, if it was modified since the last snapshot was written. When
+     * writing fails, the ring remains modified, so that the snapshot is written again later.
+     *
+     * @param provider the provider that is used to write the snapshot.
+     * @return false if the snapshot failed to be written, otherwise true.
+     */
+    boolean writeTo(@Nonnull final PubSubPersistenceProvider provider)
+    {
+        synchronized (writeMutex) {
+            final LeafNode snapshotNode;
+            final List<PublishedItem> snapshot;
+            synchronized (this) {
+                if (!dirty) {
+                    return true;
+                }
+                // Cleared before writing, so that modifications made while the snapshot is written are not missed.
+                dirty = false;
+                snapshotNode = node;
+                snapshot = getItems(-1);
+            }
+            boolean written = false;
+            try {
+                written = provider.replacePublishedItems(snapshotNode, snapshot);
+            } finally {
+                if (!written) {
+                    synchronized (this) {
+                        dirty = true;
+                    }
+                }
+            }
+            return written;
+        }
+    }
+}
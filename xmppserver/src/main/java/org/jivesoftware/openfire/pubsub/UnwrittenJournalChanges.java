@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.pubsub;
+
+import javax.annotation.Nonnull;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Keeps track of the positions in a {@link PublishedItemJournal} of the changes to published items that have not yet
+ * been written to the database. The journal can be checkpointed up to the position of the oldest of these changes.
+ *
+ * A change is registered when it is queued. It is identified by the instance of the published item and the type of
+ * change, until it is taken from the queue to be written. From then on, it is identified by its position.
+ *
+ * Instances of this class are not thread-safe.
+ */
+class UnwrittenJournalChanges
+{
+    private final Map<PublishedItem, Long> queuedAdditions = new IdentityHashMap<>();
+
+    private final Map<PublishedItem, Long> queuedDeletions = new IdentityHashMap<>();
+
+    private final TreeSet<Long> positions = new TreeSet<>();
+
+    /**
+     * Registers a change that is queued to be written, and that was recorded in the journal at the provided position.
+     *
+     * @param item the item that is changed.
+     * @param addition true if the item is to be added, false if it is to be deleted.
+     * @param position the position of the record of the change in the journal (negative if it was not recorded).
+     */
+    void queued(@Nonnull final PublishedItem item, final boolean addition, final long position)
+    {
+        if (position < 0) {
+            return;
+        }
+        final Long previous = queue(addition).put(item, position);
+        if (previous != null) {
+            // The same change was queued before. The later record supersedes the earlier one.
+            positions.remove(previous);
+        }
+        positions.add(position);
+    }
+
+    /**
+     * Registers that a change was taken from the queue again, to be written. The position that is returned is to be
+     * provided to {@link #written(long)} or {@link #requeued(PublishedItem, boolean, long)} afterwards.
+     *
+     * @param item the item that is changed.
+     * @param addition true if the item is to be added, false if it is to be deleted.
+     * @return the position of the record of the change in the journal, or -1 if the change is not tracked.
+     */
+    long taken(@Nonnull final PublishedItem item, final boolean addition)
+    {
+        final Long position = queue(addition).remove(item);
+        return position == null ? -1 : position;
+    }
+
+    /**
+     * Registers that a change was removed from the queue without being written, as it is superseded by a later change.
+     *
+     * @param item the item that is changed.
+     * @param addition true if the item was to be added, false if it was to be deleted.
+     */
+    void discarded(@Nonnull final PublishedItem item, final boolean addition)
+    {
+        final Long position = queue(addition).remove(item);
+        if (position != null) {
+            positions.remove(position);
+        }
+    }
+
+    /**
+     * Registers that a change that was taken from the queue has been written, or no longer needs to be written.
+     *
+     * @param position the value that was returned by {@link #taken(PublishedItem, boolean)}.
+     */
+    void written(final long position)
+    {
+        positions.remove(position);
+    }
+
+    /**
+     * Registers that a change that was taken from the queue has been put back in the queue, as writing it failed.
+     *
+     * @param item the item that is changed.
+     * @param addition true if the item is to be added, false if it is to be deleted.
+     * @param position the value that was returned by {@link #taken(PublishedItem, boolean)}.
+     */
+    void requeued(@Nonnull final PublishedItem item, final boolean addition, final long position)
+    {
+        if (position < 0) {
+            return;
+        }
+        if (queue(addition).putIfAbsent(item, position) != null) {
+            // The same change was queued again in the mean time. That later record supersedes this one.
+            positions.remove(position);
+        }
+    }
+
+    /**
+     * Returns the position up to which the journal can be checkpointed: the position of the oldest change that has not
+     * been written.
+     *
+     * @param journalPosition the position at which the next record will be appended to the journal.
+     * @return a position in the journal.
+     */
+    long getCheckpoint(final long journalPosition)
+    {
+        return positions.isEmpty() ? journalPosition : positions.first();
+    }
+
+    private Map<PublishedItem, Long> queue(final boolean addition)
+    {
+        return addition ? queuedAdditions : queuedDeletions;
+    }
+}
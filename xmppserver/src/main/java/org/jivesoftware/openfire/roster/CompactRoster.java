@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.roster;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import org.jivesoftware.util.SAXReaderUtil;
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * An immutable, compact representation of the persistent roster items of a user, as stored by a
+ * {@link RosterItemProvider}.
+ *
+ * The items are stored column-wise, in arrays. Contact addresses and group names are interned, which causes rosters
+ * that share contacts or groups to share the same instances. Subscription states are packed in one byte per item. The
+ * subscription request stanza, which rarely exists, is retained as XML.
+ *
+ * {@link RosterItem} instances are created on demand, when the roster is iterated. Every iteration creates new
+ * instances, which can be modified without affecting this representation.
+ */
+public class CompactRoster implements Cacheable, Externalizable, Iterable<RosterItem>
+{
+    private static final Logger Log = LoggerFactory.getLogger(CompactRoster.class);
+
+    private static final Interner<JID> JID_INTERNER = Interners.newWeakInterner();
+    private static final Interner<String> GROUP_INTERNER = Interners.newWeakInterner();
+    private static final String[] NO_GROUPS = new String[0];
+
+    private long[] ids;
+    private JID[] jids;
+    private byte[] states;
+    private String[] nicknames;
+    private String[][] groups;
+    private String[] stanzas;
+    private int size;
+
+    /**
+     * Constructor added for Externalizable. Do not use this constructor.
+     */
+    public CompactRoster()
+    {
+        this(0);
+    }
+
+    /**
+     * Creates an empty roster, to which items are added with {@link #add(long, String, int, int, int, String, String, List)}.
+     *
+     * @param expectedSize the expected number of items.
+     */
+    public CompactRoster(final int expectedSize)
+    {
+        final int capacity = Math.max(expectedSize, 4);
+        ids = new long[capacity];
+        jids = new JID[capacity];
+        states = new byte[capacity];
+        nicknames = new String[capacity];
+        groups = new String[capacity][];
+        stanzas = new String[capacity];
+    }
+
+    /**
+     * Returns a shared instance that is equal to the provided JID.
+     *
+     * @param jid a bare JID.
+     * @return an equal JID instance, that is shared by all users of this method.
+     */
+    @Nonnull
+    public static JID intern(@Nonnull final JID jid)
+    {
+        return JID_INTERNER.intern(jid);
+    }
+
+    /**
+     * Returns a shared instance that is equal to the provided group name.
+     *
+     * @param groupName a name of a roster group.
+     * @return an equal String instance, that is shared by all users of this method.
+     */
+    @Nonnull
+    public static String internGroup(@Nonnull final String groupName)
+    {
+        return GROUP_INTERNER.intern(groupName);
+    }
+
+    static byte pack(final int subStatus, final int askStatus, final int recvStatus)
+    {
+        // All values are in the range -1 to 3, which is shifted to 0 to 4 (three bits each).
+        return (byte) ((subStatus + 1) | (askStatus + 1) << 3 | ((recvStatus + 1) & 0x3) << 6);
+    }
+
+    static int unpackSub(final byte state)
+    {
+        return (state & 0x7) - 1;
+    }
+
+    static int unpackAsk(final byte state)
+    {
+        return (state >> 3 & 0x7) - 1;
+    }
+
+    static int unpackRecv(final byte state)
+    {
+        return (state >> 6 & 0x3) - 1;
+    }
+
+    /**
+     * Adds an item. This is intended to be used only while the roster is being constructed.
+     *
+     * @param id the ID of the item in the backend store.
+     * @param jid the (bare) address of the contact.
+     * @param subStatus the value of the subscription state.
+     * @param askStatus the value of the ask state.
+     * @param recvStatus the value of the receive state.
+     * @param nickname the nickname of the contact (can be null).
+     * @param stanza the XML of the stored subscription request stanza (can be null).
+     * @param groupNames the names of the groups of the item, in order.
+     */
+    public void add(final long id, @Nonnull final String jid, final int subStatus, final int askStatus, final int recvStatus,
+                    @Nullable final String nickname, @Nullable final String stanza, @Nonnull final List<String> groupNames)
+    {
+        if (size == ids.length) {
+            final int capacity = size + (size >> 1);
+            ids = Arrays.copyOf(ids, capacity);
+            jids = Arrays.copyOf(jids, capacity);
+            states = Arrays.copyOf(states, capacity);
+            nicknames = Arrays.copyOf(nicknames, capacity);
+            groups = Arrays.copyOf(groups, capacity);
+            stanzas = Arrays.copyOf(stanzas, capacity);
+        }
+        ids[size] = id;
+        jids[size] = intern(new JID(jid).asBareJID());
+        states[size] = pack(subStatus, askStatus, recvStatus);
+        nicknames[size] = nickname;
+        if (groupNames.isEmpty()) {
+            groups[size] = NO_GROUPS;
+        } else {
+            final String[] names = new String[groupNames.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = internGroup(groupNames.get(i));
+            }
+            groups[size] = names;
+        }
+        stanzas[size] = stanza;
+        size++;
+    }
+
+    /**
+     * Releases unused capacity. This is intended to be used once, after all items have been added.
+     */
+    public void trim()
+    {
+        if (size < ids.length) {
+            ids = Arrays.copyOf(ids, size);
+            jids = Arrays.copyOf(jids, size);
+            states = Arrays.copyOf(states, size);
+            nicknames = Arrays.copyOf(nicknames, size);
+            groups = Arrays.copyOf(groups, size);
+            stanzas = Arrays.copyOf(stanzas, size);
+        }
+    }
+
+    /**
+     * Returns the number of items.
+     *
+     * @return the number of items.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Creates a new roster item for an item of this roster.
+     *
+     * @param index the index of the item.
+     * @return a roster item.
+     */
+    @Nonnull
+    RosterItem toRosterItem(final int index)
+    {
+        final RosterItem item = new RosterItem(ids[index], jids[index],
+            RosterItem.SubType.getTypeFromInt(unpackSub(states[index])),
+            RosterItem.AskType.getTypeFromInt(unpackAsk(states[index])),
+            RosterItem.RecvType.getTypeFromInt(unpackRecv(states[index])),
+            nicknames[index],
+            Arrays.asList(groups[index]));
+        if (stanzas[index] != null) {
+            try {
+                item.setStoredSubscribeStanza(new Presence(SAXReaderUtil.readRootElement(stanzas[index])));
+            } catch (ExecutionException e) {
+                Log.warn("Unable to parse the stored subscription request of roster item {}.", ids[index], e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return item;
+    }
+
+    @Nonnull
+    @Override
+    public Iterator<RosterItem> iterator()
+    {
+        return new Iterator<RosterItem>()
+        {
+            private int index;
+
+            @Override
+            public boolean hasNext()
+            {
+                return index < size;
+            }
+
+            @Override
+            public RosterItem next()
+            {
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                return toRosterItem(index++);
+            }
+        };
+    }
+
+    @Override
+    public int getCachedSize()
+    {
+        // Interned contact addresses and group names are shared, and are therefore counted as references only.
+        int result = CacheSizes.sizeOfObject() + 6 * CacheSizes.sizeOfObject() + CacheSizes.sizeOfInt();
+        result += ids.length * (CacheSizes.sizeOfLong() + 1 + 4 * 4);
+        for (int i = 0; i < size; i++) {
+            result += CacheSizes.sizeOfString(nicknames[i]);
+            result += CacheSizes.sizeOfString(stanzas[i]);
+            result += groups[i].length * 4;
+        }
+        return result;
+    }
+
+    @Override
+    public void writeExternal(final ObjectOutput out) throws IOException
+    {
+        final ExternalizableUtil util = ExternalizableUtil.getInstance();
+        util.writeInt(out, size);
+        for (int i = 0; i < size; i++) {
+            util.writeLong(out, ids[i]);
+            util.writeSafeUTF(out, jids[i].toBareJID());
+            util.writeInt(out, states[i]);
+            util.writeBoolean(out, nicknames[i] != null);
+            if (nicknames[i] != null) {
+                util.writeSafeUTF(out, nicknames[i]);
+            }
+            util.writeStrings(out, Arrays.asList(groups[i]));
+            util.writeBoolean(out, stanzas[i] != null);
+            if (stanzas[i] != null) {
+                util.writeSafeUTF(out, stanzas[i]);
+            }
+        }
+    }
+
+    @Override
+    public void readExternal(final ObjectInput in) throws IOException
+    {
+        final ExternalizableUtil util = ExternalizableUtil.getInstance();
+        final int count = util.readInt(in);
+        final CompactRoster read = new CompactRoster(count);
+        for (int i = 0; i < count; i++) {
+            final long id = util.readLong(in);
+            final String jid = util.readSafeUTF(in);
+            final byte state = (byte) util.readInt(in);
+            final String nickname = util.readBoolean(in) ? util.readSafeUTF(in) : null;
+            final List<String> groupNames = new ArrayList<>();
+            util.readStrings(in, groupNames);
+            final String stanza = util.readBoolean(in) ? util.readSafeUTF(in) : null;
+            read.add(id, jid, unpackSub(state), unpackAsk(state), unpackRecv(state), nickname, stanza, groupNames);
+        }
+        read.trim();
+        ids = read.ids;
+        jids = read.jids;
+        states = read.states;
+        nicknames = read.nicknames;
+        groups = read.groups;
+        stanzas = read.stanzas;
+        size = read.size;
+    }
+}
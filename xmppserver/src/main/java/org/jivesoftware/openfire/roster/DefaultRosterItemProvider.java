@@ -16,26 +16,21 @@
 
 package org.jivesoftware.openfire.roster;
 
-import org.dom4j.Element;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.database.SequenceManager;
 import org.jivesoftware.openfire.user.UserAlreadyExistsException;
 import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.LocaleUtils;
-import org.jivesoftware.util.SAXReaderUtil;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xmpp.packet.JID;
-import org.xmpp.packet.Presence;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
 
 /**
  * Defines the provider methods required for creating, reading, updating and deleting roster
@@ -68,14 +63,17 @@ public class DefaultRosterItemProvider implements RosterItemProvider {
             "SELECT DISTINCT username from ofRoster WHERE jid=?";
     private static final String COUNT_ROSTER_ITEMS =
             "SELECT COUNT(rosterID) FROM ofRoster WHERE username=?";
-     private static final String LOAD_ROSTER =
-             "SELECT jid, rosterID, sub, ask, recv, nick, stanza FROM ofRoster WHERE username=?";
-    private static final String LOAD_ROSTER_ITEM_GROUPS =
-             "SELECT ofRosterGroups.rosterID,groupName FROM ofRosterGroups " +
-             "INNER JOIN ofRoster ON ofRosterGroups.rosterID = ofRoster.rosterID " +
-             "WHERE username=? ORDER BY ofRosterGroups.rosterID, %s";
+    private static final String LOAD_ROSTER_WITH_GROUPS =
+             "SELECT ofRoster.rosterID, jid, sub, ask, recv, nick, stanza, groupName FROM ofRoster " +
+             "LEFT OUTER JOIN ofRosterGroups ON ofRoster.rosterID = ofRosterGroups.rosterID " +
+             "WHERE username=? ORDER BY ofRoster.rosterID, ofRosterGroups.%s";
 
-    private final Cache<String, LinkedList<RosterItem>> rosterItemCache = CacheFactory.createCache( "RosterItems" );
+    /**
+     * The number of rows that are fetched from the database at a time, when a roster is loaded.
+     */
+    private static final int LOAD_FETCH_SIZE = 500;
+
+    private final Cache<String, CompactRoster> rosterItemCache = CacheFactory.createCache( "RosterItems" );
 
     /* (non-Javadoc)
      * @see org.jivesoftware.openfire.roster.RosterItemProvider#createItem(java.lang.String, org.jivesoftware.openfire.roster.RosterItem)
@@ -247,73 +245,63 @@ public class DefaultRosterItemProvider implements RosterItemProvider {
      */
     @Override
     public Iterator<RosterItem> getItems(String username) {
-        final LinkedList<RosterItem> cachedValue = rosterItemCache.get( username );
+        final CompactRoster cachedValue = rosterItemCache.get( username );
         if ( cachedValue != null ) {
             return cachedValue.iterator();
         }
-        LinkedList<RosterItem> itemList = new LinkedList<>();
-        Map<Long, RosterItem> itemsByID = new HashMap<>();
+        CompactRoster roster = new CompactRoster(0);
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
         try {
-            // Load all the contacts in the roster
+            // Load all the contacts in the roster, with their groups. The rows of an item are consecutive, and the
+            // item has one row without a group name if it has no groups.
             con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(LOAD_ROSTER);
+            pstmt = con.prepareStatement(String.format(LOAD_ROSTER_WITH_GROUPS, DbConnectionManager.getDatabaseType().escapeIdentifier("rank")));
+            DbConnectionManager.setFetchSize(pstmt, LOAD_FETCH_SIZE);
             pstmt.setString(1, username);
             rs = pstmt.executeQuery();
+            final List<String> groups = new ArrayList<>();
+            long rosterID = -1;
+            String jid = null;
+            int sub = 0, ask = 0, recv = 0;
+            String nickname = null;
+            String stanza = null;
             while (rs.next()) {
-                // Create a new RosterItem (ie. user contact) from the stored information
-                // First parse out the presence, if it's there.
-                Presence presence = null;
-                if (rs.getString(7) != null) {
-                    Element root = SAXReaderUtil.readRootElement(rs.getString(7));
-                    presence = new Presence(root);
+                final long rowRosterID = rs.getLong(1);
+                if (jid == null || rowRosterID != rosterID) {
+                    if (jid != null) {
+                        roster.add(rosterID, jid, sub, ask, recv, nickname, stanza, groups);
+                        groups.clear();
+                    }
+                    rosterID = rowRosterID;
+                    jid = rs.getString(2);
+                    sub = rs.getInt(3);
+                    ask = rs.getInt(4);
+                    recv = rs.getInt(5);
+                    nickname = rs.getString(6);
+                    stanza = rs.getString(7);
                 }
-                RosterItem item = new RosterItem(rs.getLong(2),
-                        new JID(rs.getString(1)),
-                        RosterItem.SubType.getTypeFromInt(rs.getInt(3)),
-                        RosterItem.AskType.getTypeFromInt(rs.getInt(4)),
-                        RosterItem.RecvType.getTypeFromInt(rs.getInt(5)),
-                        rs.getString(6),
-                        null);
-                if (presence != null) {
-                    item.setStoredSubscribeStanza(presence);
+                final String groupName = rs.getString(8);
+                if (groupName != null) {
+                    groups.add(groupName);
                 }
-                // Add the loaded RosterItem (ie. user contact) to the result
-                itemList.add(item);
-                itemsByID.put(item.getID(), item);
             }
-            // Close the statement and result set
-            DbConnectionManager.fastcloseStmt(rs, pstmt);
-            // Set null to pstmt to be sure that it's not closed twice. It seems that
-            // Sybase driver is raising an error when trying to close an already closed statement.
-            // it2000 comment: TODO interesting, that's the only place with the sybase fix
-            // it2000 comment: one should move this in closeStatement()
-            pstmt = null;
-
-            // Load the groups for the loaded contact
-            if (!itemList.isEmpty()) {
-                pstmt = con.prepareStatement(String.format(LOAD_ROSTER_ITEM_GROUPS, DbConnectionManager.getDatabaseType().escapeIdentifier("rank")));
-                pstmt.setString(1, username);
-                rs = pstmt.executeQuery();
-                while (rs.next()) {
-                    itemsByID.get(rs.getLong(1)).getGroups().add(rs.getString(2));
-                }
+            if (jid != null) {
+                roster.add(rosterID, jid, sub, ask, recv, nickname, stanza, groups);
             }
+            roster.trim();
 
-            rosterItemCache.put( username, itemList );
+            rosterItemCache.put( username, roster );
         }
-        catch (SQLException | ExecutionException e) {
+        catch (SQLException e) {
             Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-        }
-        catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            roster = new CompactRoster(0);
         }
         finally {
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
-        return itemList.iterator();
+        return roster.iterator();
     }
 
     /**
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.roster;
+
+import org.jivesoftware.database.LatencyHistogram;
+import org.jivesoftware.openfire.RoutingTable;
+import org.jivesoftware.util.NamedThreadFactory;
+import org.jivesoftware.util.SystemProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers a presence update to the contacts in a roster.
+ *
+ * The addresses to which the update is to be delivered are grouped by where they are hosted: sessions on this
+ * cluster node, sessions on other cluster nodes, and remote domains. Updates for a remote domain are routed as one
+ * batch (see {@link RoutingTable#routePackets(List, boolean)}). When there are many addresses, the updates for
+ * sessions on this cluster node are delivered in parallel, in chunks, as are the batches for different domains.
+ *
+ * Every update is addressed to the contact (a bare JID), as it would be when it was sent to the contact directly. It is
+ * routed to each of the routes of that contact: the full JIDs of its sessions, or the domain of its server or
+ * component.
+ *
+ * A broadcast completes only after all updates have been delivered. That guarantees that the updates of a user reach
+ * a contact in the order in which they were sent.
+ */
+public class PresenceBroadcaster
+{
+    private static final Logger Log = LoggerFactory.getLogger(PresenceBroadcaster.class);
+
+    /**
+     * The number of addresses from which a presence update is delivered in parallel. This is also the maximum number
+     * of updates that is delivered to sessions on this cluster node by one thread.
+     */
+    public static final SystemProperty<Integer> PARALLEL_THRESHOLD = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.client.roster.presence-broadcast.parallel-threshold")
+        .setMinValue(1)
+        .setDefaultValue(100)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * The number of threads that are used to deliver presence updates in parallel.
+     */
+    public static final SystemProperty<Integer> POOL_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.client.roster.presence-broadcast.threadpool.size")
+        .setMinValue(1)
+        .setDefaultValue(Runtime.getRuntime().availableProcessors())
+        .setDynamic(false)
+        .build();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder broadcasts = new LongAdder();
+    private final LongAdder parallelBroadcasts = new LongAdder();
+    private final LongAdder deliveries = new LongAdder();
+    private final LongAdder remoteDomainBatches = new LongAdder();
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Starts the threads that deliver presence updates in parallel. Before this is invoked, and after {@link #stop()}
+     * is invoked, all updates are delivered by the thread that broadcasts them.
+     */
+    synchronized void start()
+    {
+        executor = new ThreadPoolExecutor(
+            POOL_SIZE.getValue(),
+            POOL_SIZE.getValue(),
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            new NamedThreadFactory("presence-broadcast-", null, null, null));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    synchronized void stop()
+    {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Delivers a presence update to all available resources of contacts.
+     *
+     * @param routingTable the routing table used to find and deliver to the resources of the contacts.
+     * @param packet the presence update, which is copied for every recipient.
+     * @param contacts the bare JIDs of the contacts that are to receive the update.
+     */
+    void broadcast(@Nonnull final RoutingTable routingTable, @Nonnull final Presence packet, @Nonnull final Collection<JID> contacts)
+    {
+        final long start = System.nanoTime();
+        final List<Delivery> local = new ArrayList<>();
+        final List<Delivery> clustered = new ArrayList<>();
+        final Map<String, List<Presence>> domains = new LinkedHashMap<>();
+        int count = 0;
+        for (final JID contact : contacts) {
+            for (final JID route : routingTable.getRoutes(contact, null)) {
+                final Presence presence = packet.createCopy();
+                presence.setTo(contact);
+                if (route.getResource() == null) {
+                    // A remote domain or a component, to which the update is routed by the domain of its addressee.
+                    domains.computeIfAbsent(route.getDomain(), domain -> new ArrayList<>()).add(presence);
+                } else if (routingTable.isLocalRoute(route)) {
+                    local.add(new Delivery(route, presence));
+                } else {
+                    clustered.add(new Delivery(route, presence));
+                }
+                count++;
+            }
+        }
+
+        final ThreadPoolExecutor executor = this.executor;
+        final int threshold = executor == null ? Integer.MAX_VALUE : PARALLEL_THRESHOLD.getValue();
+        final List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < local.size(); i += threshold) {
+            final List<Delivery> chunk = local.subList(i, Math.min(local.size(), i + threshold));
+            tasks.add(() -> route(routingTable, chunk));
+        }
+        if (!clustered.isEmpty()) {
+            tasks.add(() -> route(routingTable, clustered));
+        }
+        for (final List<Presence> batch : domains.values()) {
+            tasks.add(() -> {
+                try {
+                    routingTable.routePackets(batch, false);
+                } catch (Exception e) {
+                    Log.debug(e.getMessage(), e);
+                }
+            });
+        }
+
+        if (count < threshold || tasks.size() < 2) {
+            tasks.forEach(Runnable::run);
+        } else {
+            parallelBroadcasts.increment();
+            runInParallel(executor, tasks);
+        }
+
+        broadcasts.increment();
+        deliveries.add(count);
+        remoteDomainBatches.add(domains.size());
+        latency.recordNanos(System.nanoTime() - start);
+    }
+
+    private static void route(@Nonnull final RoutingTable routingTable, @Nonnull final List<Delivery> deliveries)
+    {
+        for (final Delivery delivery : deliveries) {
+            try {
+                routingTable.routePacket(delivery.route, delivery.packet, false);
+            } catch (Exception e) {
+                // Theoretically only happens if session has been closed.
+                Log.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * A copy of a presence update, and the route of the session to which it is delivered.
+     */
+    private static final class Delivery
+    {
+        final JID route;
+        final Presence packet;
+
+        Delivery(@Nonnull final JID route, @Nonnull final Presence packet)
+        {
+            this.route = route;
+            this.packet = packet;
+        }
+    }
+
+    /**
+     * Runs tasks in the executor, apart from the first, which is run by the invoking thread. Returns when all tasks
+     * have completed.
+     */
+    private static void runInParallel(@Nonnull final ThreadPoolExecutor executor, @Nonnull final List<Runnable> tasks)
+    {
+        final List<Future<?>> futures = new ArrayList<>(tasks.size() - 1);
+        for (final Runnable task : tasks.subList(1, tasks.size())) {
+            try {
+                futures.add(executor.submit(task));
+            } catch (RejectedExecutionException e) {
+                // The executor has been shut down.
+                task.run();
+            }
+        }
+        tasks.get(0).run();
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                Log.warn("Unable to deliver presence update.", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Returns the durations of broadcasts, from the moment that the routes of the contacts are looked up, until the
+     * update is delivered to all of them.
+     *
+     * @return a histogram of broadcast durations.
+     */
+    public LatencyHistogram getLatency()
+    {
+        return latency;
+    }
+
+    /**
+     * Returns the number of broadcasts.
+     *
+     * @return a count.
+     */
+    public long getBroadcastCount()
+    {
+        return broadcasts.sum();
+    }
+
+    /**
+     * Returns the number of broadcasts of which the updates were delivered in parallel.
+     *
+     * @return a count.
+     */
+    public long getParallelBroadcastCount()
+    {
+        return parallelBroadcasts.sum();
+    }
+
+    /**
+     * Returns the number of addresses to which updates were delivered.
+     *
+     * @return a count.
+     */
+    public long getDeliveryCount()
+    {
+        return deliveries.sum();
+    }
+
+    /**
+     * Returns the number of batches in which updates were routed to remote domains and components.
+     *
+     * @return a count.
+     */
+    public long getRemoteDomainBatchCount()
+    {
+        return remoteDomainBatches.sum();
+    }
+
+    /**
+     * Discards all collected metrics.
+     */
+    public void reset()
+    {
+        latency.reset();
+        broadcasts.reset();
+        parallelBroadcasts.reset();
+        deliveries.reset();
+        remoteDomainBatches.reset();
+    }
+}
@@ -44,6 +44,7 @@ import java.io.ObjectOutput;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>A roster is a list of users that the user wishes to know if they are online.</p>
@@ -71,6 +72,12 @@ public class Roster implements Cacheable, Externalizable {
      */
     protected ConcurrentMap<String, Set<String>> implicitFrom = new ConcurrentHashMap<>();
 
+    /**
+     * Incremented after the items of this roster have been modified. This is not shared with other instances (such as
+     * copies of this roster on other cluster nodes).
+     */
+    private final AtomicInteger modificationCount = new AtomicInteger();
+
     private String username;
 
     /**
@@ -117,15 +124,18 @@ public class Roster implements Cacheable, Externalizable {
             }
             rosterItems.put(item.getJid().toBareJID(), item);
         }
-        // Add RosterItems that belong only to shared groups
-        Map<JID, List<Group>> sharedUsers = getSharedUsers(sharedGroups);
-        for (Map.Entry<JID, List<Group>> entry : sharedUsers.entrySet()) {
-            JID jid = entry.getKey();
-            List<Group> groups = entry.getValue();
+        // Add RosterItems that belong only to shared groups. Users that belong to different groups
+        // are provided once, with all the groups
+        final JID userJID = getUserJID();
+        rosterManager.forEachSharedUserForRoster(sharedGroups, this, (jid, groups) -> {
+            // Skip users that belong to the personal roster (since they have already been added)
+            if (rosterItems.containsKey(jid.toBareJID()) || userJID.equals(jid)) {
+                return;
+            }
             try {
                 Collection<Group> itemGroups = new ArrayList<>();
                 String nickname = "";
-                RosterItem item = new RosterItem(jid, RosterItem.SUB_TO, RosterItem.ASK_NONE,
+                RosterItem item = new RosterItem(CompactRoster.intern(jid), RosterItem.SUB_TO, RosterItem.ASK_NONE,
                         RosterItem.RECV_NONE, nickname, null);
                 // Add the shared groups to the new roster item
                 for (Group group : groups) {
@@ -172,7 +182,7 @@ public class Roster implements Cacheable, Externalizable {
                         jid.getNode() +
                         ")");
             }
-        }
+        });
         // Fire event indicating that a roster has just been loaded
         RosterEventDispatcher.rosterLoaded(this);
     }
@@ -201,6 +211,18 @@ public class Roster implements Cacheable, Externalizable {
         return Collections.unmodifiableCollection(rosterItems.values());
     }
 
+    /**
+     * Returns a number that changes after items of this roster have been added, removed or modified (including changes
+     * to the subscription status or groups of an item that are made before it is passed to
+     * {@link #updateRosterItem(RosterItem)}). State that is derived from the items of this roster instance can be
+     * reused for as long as this number does not change.
+     *
+     * @return the modification count of this roster instance.
+     */
+    public int getModificationCount() {
+        return modificationCount.get();
+    }
+
     /**
      * Returns the roster item that is associated with the specified JID. If no roster item
      * was found then a UserNotFoundException will be thrown.
@@ -343,6 +365,7 @@ public class Roster implements Cacheable, Externalizable {
         }
 
         rosterItems.put(user.toBareJID(), rosterItem);
+        modificationCount.incrementAndGet();
 
         // Fire event indicating that a roster item has been added
         RosterEventDispatcher.contactAdded(this, rosterItem);
@@ -366,6 +389,7 @@ public class Roster implements Cacheable, Externalizable {
         }
         if (rosterItems.putIfAbsent(item.getJid().toBareJID(), item) == null) {
             rosterItems.remove(item.getJid().toBareJID());
+            modificationCount.incrementAndGet();
             if (item.getSubStatus() != RosterItem.SUB_NONE) {
                 throw new UserNotFoundException(item.getJid().toBareJID());
             }
@@ -385,6 +409,7 @@ public class Roster implements Cacheable, Externalizable {
                         defaultContactName = item.getNickname();
                     }
                     if (defaultContactName.equals(item.getNickname())) {
+                        modificationCount.incrementAndGet();
                         return;
                     }
                 }
@@ -401,6 +426,7 @@ public class Roster implements Cacheable, Externalizable {
             // Update the backend data store
             RosterManager.getRosterItemProvider().updateItem(username, item);
         }
+        modificationCount.incrementAndGet();
         // broadcast roster update
         // Do not push items with a state of "None + Pending In"
         if (item.getSubStatus() != RosterItem.SUB_NONE ||
@@ -464,6 +490,7 @@ public class Roster implements Cacheable, Externalizable {
 
             // If removing the user was successful, remove the user from the subscriber list:
             RosterItem item = rosterItems.remove(user.toBareJID());
+            modificationCount.incrementAndGet();
 
             if (item != null) {
                 // Delete the item from the provider if the item is persistent. RosteItems that only
@@ -489,6 +516,7 @@ public class Roster implements Cacheable, Externalizable {
             RosterItem item = getImplicitRosterItem(user);
             if (item != null) {
                 implicitFrom.remove(user.toBareJID());
+                modificationCount.incrementAndGet();
                 // If the contact being removed is not a local user then ACK unsubscription
                 if (!XMPPServer.getInstance().isLocal(user)) {
                     Presence presence = new Presence();
@@ -524,36 +552,87 @@ public class Roster implements Cacheable, Externalizable {
 
         // Add the roster items (includes the personal roster and shared groups) to the answer
         for (RosterItem item : rosterItems.values()) {
-            // Do not include items with status FROM that exist only because of shared groups
-            if (item.isOnlyShared() && item.getSubStatus() == RosterItem.SUB_FROM) {
-                continue;
-            }
-            org.xmpp.packet.Roster.Ask ask = getAskStatus(item.getAskStatus());
-            org.xmpp.packet.Roster.Subscription sub = org.xmpp.packet.Roster.Subscription.valueOf(item.getSubStatus()
-                    .getName());
-            // Set the groups to broadcast (include personal and shared groups)
-            List<String> groups = new ArrayList<>(item.getGroups());
-            if (groups.contains(null)) {
-                Log.warn("A group is null in roster item: " + item.getJid() + " of user: " +
-                        getUsername());
-            }
-            for (Group sharedGroup : item.getSharedGroups()) {
-                String displayName = sharedGroup.getSharedDisplayName();
-                if (displayName != null) {
-                    groups.add(displayName);
-                } else {
-                    // Do not add the shared group if it does not have a displayName.
-                    Log.warn("Found shared group: " + sharedGroup.getName() +
-                            " with no displayName");
-                }
+            addItem(roster, item);
+        }
+        return roster;
+    }
+
+    /**
+     * Returns the version of this roster, for roster versioning (XEP-0237).
+     *
+     * @return the version of this roster.
+     */
+    public String getVersion() {
+        return String.valueOf(XMPPServer.getInstance().getRosterManager().getChangeLog().getVersion(username));
+    }
+
+    /**
+     * Returns the roster pushes that update a roster of the provided version to the current version of this roster,
+     * for roster versioning (XEP-0237). This returns null when the changes since the provided version are not known,
+     * in which case the complete roster must be provided. An empty list is returned when the provided version is the
+     * current version.
+     *
+     * @param version the version of the roster that is cached by a client (can be null).
+     * @return roster pushes (each including a version), or null.
+     */
+    public List<org.xmpp.packet.Roster> getChangesSince(String version) {
+        final Map<String, Long> changes = XMPPServer.getInstance().getRosterManager().getChangeLog().getChangesSince(username, version);
+        if (changes == null) {
+            return null;
+        }
+        final List<org.xmpp.packet.Roster> pushes = new ArrayList<>(changes.size());
+        for (Map.Entry<String, Long> change : changes.entrySet()) {
+            org.xmpp.packet.Roster push = new org.xmpp.packet.Roster();
+            push.setType(IQ.Type.set);
+            RosterItem item = rosterItems.get(change.getKey());
+            if (item == null || !addItem(push, item)) {
+                // The item was removed, or is no longer provided to the client.
+                push.addItem(new JID(change.getKey()), org.xmpp.packet.Roster.Subscription.remove);
             }
-            // Do not push items with a state of "None + Pending In"
-            if (item.getSubStatus() != RosterItem.SUB_NONE ||
-                    item.getRecvStatus() != RosterItem.RECV_SUBSCRIBE && !isSubscriptionRejected(item)) {
-                roster.addItem(item.getJid(), item.getNickname(), ask, sub, groups);
+            push.getChildElement().addAttribute("ver", String.valueOf(change.getValue()));
+            pushes.add(push);
+        }
+        return pushes;
+    }
+
+    /**
+     * Adds a roster item to a roster packet, unless the item is not to be provided to the client.
+     *
+     * @param roster the roster packet.
+     * @param item the roster item.
+     * @return true if the item was added.
+     */
+    private boolean addItem(org.xmpp.packet.Roster roster, RosterItem item) {
+        // Do not include items with status FROM that exist only because of shared groups
+        if (item.isOnlyShared() && item.getSubStatus() == RosterItem.SUB_FROM) {
+            return false;
+        }
+        org.xmpp.packet.Roster.Ask ask = getAskStatus(item.getAskStatus());
+        org.xmpp.packet.Roster.Subscription sub = org.xmpp.packet.Roster.Subscription.valueOf(item.getSubStatus()
+                .getName());
+        // Set the groups to broadcast (include personal and shared groups)
+        List<String> groups = new ArrayList<>(item.getGroups());
+        if (groups.contains(null)) {
+            Log.warn("A group is null in roster item: " + item.getJid() + " of user: " +
+                    getUsername());
+        }
+        for (Group sharedGroup : item.getSharedGroups()) {
+            String displayName = sharedGroup.getSharedDisplayName();
+            if (displayName != null) {
+                groups.add(displayName);
+            } else {
+                // Do not add the shared group if it does not have a displayName.
+                Log.warn("Found shared group: " + sharedGroup.getName() +
+                        " with no displayName");
             }
         }
-        return roster;
+        // Do not push items with a state of "None + Pending In"
+        if (item.getSubStatus() != RosterItem.SUB_NONE ||
+                item.getRecvStatus() != RosterItem.RECV_SUBSCRIBE && !isSubscriptionRejected(item)) {
+            roster.addItem(item.getJid(), item.getNickname(), ask, sub, groups);
+            return true;
+        }
+        return false;
     }
 
     private org.xmpp.packet.Roster.Ask getAskStatus(RosterItem.AskType askType) {
@@ -591,7 +670,8 @@ public class Roster implements Cacheable, Externalizable {
             // No privacy list was found (based on the session) so check if there is a default list
             list = PrivacyListManager.getInstance().getDefaultPrivacyList(username);
         }
-        // Broadcast presence to subscribed entities
+        // Determine the subscribed entities that are to receive the presence
+        final List<JID> contacts = new ArrayList<>(rosterItems.size() + implicitFrom.size());
         for (RosterItem item : rosterItems.values()) {
             if (item.getSubStatus() == RosterItem.SUB_BOTH || item.getSubStatus() == RosterItem.SUB_FROM) {
                 packet.setTo(item.getJid());
@@ -599,19 +679,10 @@ public class Roster implements Cacheable, Externalizable {
                     // Outgoing presence notifications are blocked for this contact
                     continue;
                 }
-                JID searchNode = new JID(item.getJid().getNode(), item.getJid().getDomain(), null, true);
-                final List<JID> routingTableRoutes = routingTable.getRoutes(searchNode, null);
-                for (JID jid : routingTableRoutes) {
-                    try {
-                        routingTable.routePacket(jid, packet, false);
-                    } catch (Exception e) {
-                        // Theoretically only happens if session has been closed.
-                        Log.debug(e.getMessage(), e);
-                    }
-                }
+                contacts.add(new JID(item.getJid().getNode(), item.getJid().getDomain(), null, true));
             }
         }
-        // Broadcast presence to shared contacts whose subscription status is FROM
+        // Add shared contacts whose subscription status is FROM
         final Set<String> implicitFroms = implicitFrom.keySet();
         for (String contact : implicitFroms) {
             if (contact.contains("@")) {
@@ -626,57 +697,15 @@ public class Roster implements Cacheable, Externalizable {
                 // Outgoing presence notifications are blocked for this contact
                 continue;
             }
-
-            final List<JID> routingTableRoutes = routingTable.getRoutes(new JID(contact), null);
-            for (JID jid : routingTableRoutes) {
-                try {
-                    routingTable.routePacket(jid, packet, false);
-                } catch (Exception e) {
-                    // Theoretically only happens if session has been closed.
-                    Log.debug(e.getMessage(), e);
-                }
-            }
+            contacts.add(new JID(contact));
         }
+        XMPPServer.getInstance().getRosterManager().getPresenceBroadcaster().broadcast(routingTable, packet, contacts);
         if (from != null) {
             // Broadcast presence to all resources of the user.
             SessionManager.getInstance().broadcastPresenceToResources( from, packet);
         }
     }
 
-    /**
-     * Returns the list of users that belong ONLY to a shared group of this user. If the contact
-     * belongs to the personal roster and a shared group then it wont' be included in the answer.
-     *
-     * @param sharedGroups the shared groups of this user.
-     * @return the list of users that belong ONLY to a shared group of this user.
-     */
-    private Map<JID, List<Group>> getSharedUsers(Collection<Group> sharedGroups) {
-        final RosterManager rosterManager = XMPPServer.getInstance().getRosterManager();
-        // Get the users to process from the shared groups. Users that belong to different groups
-        // will have one entry in the map associated with all the groups
-        Map<JID, List<Group>> sharedGroupUsers = new HashMap<>();
-        for (Group group : sharedGroups) {
-            // Get all the users that should be in this roster
-            Collection<JID> users = rosterManager.getSharedUsersForRoster(group, this);
-            // Add the users of the group to the general list of users to process
-            JID userJID = getUserJID();
-            for (JID jid : users) {
-                // Add the user to the answer if the user doesn't belong to the personal roster
-                // (since we have already added the user to the answer)
-                boolean isRosterItem = rosterItems.containsKey(jid.toBareJID());
-                if (!isRosterItem && !userJID.equals(jid)) {
-                    List<Group> groups = sharedGroupUsers.get(jid);
-                    if (groups == null) {
-                        groups = new ArrayList<>();
-                        sharedGroupUsers.put(jid, groups);
-                    }
-                    groups.add(group);
-                }
-            }
-        }
-        return sharedGroupUsers;
-    }
-
     private void broadcast(org.xmpp.packet.Roster roster) {
         JID recipient = XMPPServer.getInstance().createJID(username, null, true);
         roster.setTo(recipient);
@@ -684,7 +713,12 @@ public class Roster implements Cacheable, Externalizable {
         // When roster versioning is enabled, the server MUST include
         // the updated roster version with each roster push.
         if (RosterManager.isRosterVersioningEnabled()) {
-            roster.getChildElement().addAttribute("ver", String.valueOf( roster.hashCode() ) );
+            final List<String> contacts = new ArrayList<>();
+            for (org.xmpp.packet.Roster.Item item : roster.getItems()) {
+                contacts.add(item.getJID().toBareJID());
+            }
+            final long version = XMPPServer.getInstance().getRosterManager().getChangeLog().record(username, contacts);
+            roster.getChildElement().addAttribute("ver", String.valueOf(version));
         }
         SessionManager.getInstance().userBroadcast(username, roster);
     }
@@ -855,6 +889,7 @@ public class Roster implements Cacheable, Externalizable {
                 probePresence(item.getJid());
             }
         }
+        modificationCount.incrementAndGet();
         if (newItem) {
             // Fire event indicating that a roster item has been added
             RosterEventDispatcher.contactAdded(this, item);
@@ -970,6 +1005,7 @@ public class Roster implements Cacheable, Externalizable {
                 probePresence(item.getJid());
             }
         }
+        modificationCount.incrementAndGet();
         if (newItem) {
             // Fire event indicating that a roster item has been added
             RosterEventDispatcher.contactAdded(this, item);
@@ -1030,6 +1066,7 @@ public class Roster implements Cacheable, Externalizable {
                     // Fire event indicating that a roster item has been removed
                     RosterEventDispatcher.contactDeleted(this, item);
                 }
+                modificationCount.incrementAndGet();
                 // Brodcast to all the user resources of the updated roster item
                 broadcast(item, false);
             }
@@ -1099,6 +1136,7 @@ public class Roster implements Cacheable, Externalizable {
                     // Fire event indicating that a roster item has been removed
                     RosterEventDispatcher.contactDeleted(this, item);
                 }
+                modificationCount.incrementAndGet();
                 // Brodcast to all the user resources of the updated roster item
                 broadcast(item, false);
             }
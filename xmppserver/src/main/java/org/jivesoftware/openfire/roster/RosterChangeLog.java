@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.roster;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.util.SystemProperty;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Records the changes that are made to rosters, so that clients that support roster versioning (XEP-0237) can be
+ * sent only the items that changed since the version of the roster that they have, instead of the complete roster.
+ *
+ * A change is recorded for every roster push. Modifications that do not result in a roster push (for example, a
+ * change to a shared group while the roster of an affected user is not loaded) must cause a {@link #reset(Collection)}
+ * of the affected rosters. A client that has a version from before a reset receives the complete roster.
+ *
+ * Versions are based on the system clock, so that versions remain unique when the changes of a user are removed
+ * from the database.
+ */
+class RosterChangeLog
+{
+    private static final Logger Log = LoggerFactory.getLogger(RosterChangeLog.class);
+
+    /**
+     * The maximum number of changes that are retained for each roster. Clients that have a roster of a version that is
+     * older than the retained changes receive the complete roster.
+     */
+    public static final SystemProperty<Integer> MAX_CHANGES = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.client.roster.versioning.max-changes")
+        .setMinValue(1)
+        .setDefaultValue(200)
+        .setDynamic(true)
+        .build();
+
+    private static final String LOAD_CHANGES =
+        "SELECT version, jid FROM ofRosterChange WHERE username=? ORDER BY version DESC";
+    private static final String INSERT_CHANGE =
+        "INSERT INTO ofRosterChange (username, version, jid) VALUES (?, ?, ?)";
+    private static final String DELETE_CHANGES_BEFORE =
+        "DELETE FROM ofRosterChange WHERE username=? AND version<?";
+    private static final String DELETE_CHANGES =
+        "DELETE FROM ofRosterChange WHERE username=?";
+    private static final String DELETE_ALL_CHANGES =
+        "DELETE FROM ofRosterChange";
+
+    private final Cache<String, RosterChanges> changesCache = CacheFactory.createCache("Roster Changes");
+
+    /**
+     * Records that items of a roster have been pushed to its owner.
+     *
+     * @param username the owner of the roster.
+     * @param jids the bare JIDs of the contacts of the items that were pushed.
+     * @return the new version of the roster.
+     */
+    long record(@Nonnull final String username, @Nonnull final Collection<String> jids)
+    {
+        final Lock lock = changesCache.getLock(username);
+        lock.lock();
+        try {
+            final RosterChanges changes = load(username);
+            final List<Long> versions = new ArrayList<>(jids.size());
+            long version = changes.getLatestVersion();
+            for (final String jid : jids) {
+                version = nextVersion(version);
+                versions.add(version);
+                changes.add(version, jid);
+            }
+            insert(username, versions, new ArrayList<>(jids));
+            if (changes.getDropped() >= Math.max(16, MAX_CHANGES.getValue() / 4)) {
+                deleteBefore(username, changes.getOldestVersion());
+                changes.clearDropped();
+            }
+            changesCache.put(username, changes);
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current version of a roster.
+     *
+     * @param username the owner of the roster.
+     * @return a version.
+     */
+    long getVersion(@Nonnull final String username)
+    {
+        final Lock lock = changesCache.getLock(username);
+        lock.lock();
+        try {
+            final RosterChanges changes = load(username);
+            if (changes.isEmpty()) {
+                // Start the log with a reset, to have a version to provide.
+                final long version = nextVersion(0);
+                changes.add(version, null);
+                insert(username, Collections.singletonList(version), Collections.singletonList(null));
+                changesCache.put(username, changes);
+            }
+            return changes.getLatestVersion();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the contacts of a roster that have been modified since a version, with the version of their latest
+     * change, or null if the complete roster must be provided.
+     *
+     * @param username the owner of the roster.
+     * @param version the version that was provided by a client (can be null).
+     * @return the bare JIDs of modified contacts and their versions (possibly empty), or null.
+     */
+    @Nullable
+    Map<String, Long> getChangesSince(@Nonnull final String username, @Nullable final String version)
+    {
+        if (version == null || version.isEmpty()) {
+            return null;
+        }
+        final long parsed;
+        try {
+            parsed = Long.parseLong(version);
+        } catch (NumberFormatException e) {
+            // Possibly a version from before the change log existed.
+            return null;
+        }
+        final Lock lock = changesCache.getLock(username);
+        lock.lock();
+        try {
+            return load(username).getChangesSince(parsed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards the changes of rosters that might have been modified without a roster push. Clients receive the
+     * complete roster on their next request.
+     *
+     * @param usernames the owners of the rosters.
+     */
+    void reset(@Nonnull final Collection<String> usernames)
+    {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = false;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(DELETE_CHANGES);
+            final boolean batch = DbConnectionManager.isBatchUpdatesSupported();
+            for (final String username : usernames) {
+                changesCache.remove(username);
+                pstmt.setString(1, username);
+                if (batch) {
+                    pstmt.addBatch();
+                } else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+        } catch (SQLException e) {
+            Log.error("Unable to reset the roster changes of {} users.", usernames.size(), e);
+            abortTransaction = true;
+        } finally {
+            DbConnectionManager.closeStatement(pstmt);
+            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+        }
+        // Changes that were recorded while the rows were being deleted have been deleted as well.
+        for (final String username : usernames) {
+            changesCache.remove(username);
+        }
+    }
+
+    /**
+     * Discards the changes of all rosters.
+     */
+    void clear()
+    {
+        changesCache.clear();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(DELETE_ALL_CHANGES);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            Log.error("Unable to delete all roster changes.", e);
+        } finally {
+            DbConnectionManager.closeConnection(pstmt, con);
+        }
+    }
+
+    private static long nextVersion(final long latest)
+    {
+        return Math.max(latest + 1, System.currentTimeMillis());
+    }
+
+    @Nonnull
+    private RosterChanges load(@Nonnull final String username)
+    {
+        RosterChanges changes = changesCache.get(username);
+        if (changes != null) {
+            return changes;
+        }
+        final int capacity = MAX_CHANGES.getValue();
+        final long[] versions = new long[capacity];
+        final String[] jids = new String[capacity];
+        int count = 0;
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(LOAD_CHANGES);
+            DbConnectionManager.setMaxRows(pstmt, capacity);
+            pstmt.setString(1, username);
+            rs = pstmt.executeQuery();
+            while (rs.next() && count < capacity) {
+                versions[count] = rs.getLong(1);
+                jids[count] = rs.getString(2);
+                count++;
+            }
+        } catch (SQLException e) {
+            // Without the changes, clients receive the complete roster.
+            Log.error("Unable to load the roster changes of user {}.", username, e);
+            count = 0;
+        } finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        changes = new RosterChanges(capacity);
+        for (int i = count - 1; i >= 0; i--) {
+            changes.add(versions[i], jids[i]);
+        }
+        return changes;
+    }
+
+    private void insert(@Nonnull final String username, @Nonnull final List<Long> versions, @Nonnull final List<String> jids)
+    {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = false;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(INSERT_CHANGE);
+            for (int i = 0; i < versions.size(); i++) {
+                pstmt.setString(1, username);
+                pstmt.setLong(2, versions.get(i));
+                if (jids.get(i) == null) {
+                    pstmt.setNull(3, Types.VARCHAR);
+                } else {
+                    pstmt.setString(3, jids.get(i));
+                }
+                pstmt.executeUpdate();
+            }
+        } catch (SQLException e) {
+            // Clients that obtain a version that was not stored will receive the complete roster after a restart, as
+            // their version is then newer than the latest version that is known.
+            Log.error("Unable to store the roster changes of user {}.", username, e);
+            abortTransaction = true;
+        } finally {
+            DbConnectionManager.closeStatement(pstmt);
+            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+        }
+    }
+
+    private void deleteBefore(@Nonnull final String username, final long version)
+    {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(DELETE_CHANGES_BEFORE);
+            pstmt.setString(1, username);
+            pstmt.setLong(2, version);
+            pstmt.executeUpdate();
+        } catch (SQLException e) {
+            Log.warn("Unable to delete old roster changes of user {}.", username, e);
+        } finally {
+            DbConnectionManager.closeConnection(pstmt, con);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.roster;
+
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The most recent changes to the roster of a user, as recorded by {@link RosterChangeLog}.
+ *
+ * Every change has a version, which is larger than the version of any earlier change. A change either identifies a
+ * roster item (by the bare JID of the contact) that was modified, or is a reset, which indicates that the roster
+ * might have been modified in a way that was not recorded.
+ *
+ * Changes are kept in a ring of a fixed capacity. When it is full, the oldest change is dropped. Clients that have a
+ * roster of a version that is older than the oldest change that is retained need to be sent the complete roster.
+ */
+public class RosterChanges implements Cacheable, Externalizable
+{
+    private long[] versions;
+    private String[] jids;
+    private int head;
+    private int size;
+    private int dropped;
+
+    /**
+     * Constructor added for Externalizable. Do not use this constructor.
+     */
+    public RosterChanges()
+    {
+        this(1);
+    }
+
+    /**
+     * Creates an empty collection of changes.
+     *
+     * @param capacity the maximum number of changes to retain.
+     */
+    public RosterChanges(final int capacity)
+    {
+        versions = new long[capacity];
+        jids = new String[capacity];
+    }
+
+    /**
+     * Returns the version of the most recent change, or 0 when there are no changes.
+     *
+     * @return a version.
+     */
+    public long getLatestVersion()
+    {
+        return size == 0 ? 0 : versions[(head + size - 1) % versions.length];
+    }
+
+    /**
+     * Returns the version of the oldest change that is retained, or 0 when there are no changes.
+     *
+     * @return a version.
+     */
+    public long getOldestVersion()
+    {
+        return size == 0 ? 0 : versions[head];
+    }
+
+    /**
+     * Returns the number of changes that have been dropped since {@link #clearDropped()} was last invoked.
+     *
+     * @return a number of changes.
+     */
+    int getDropped()
+    {
+        return dropped;
+    }
+
+    void clearDropped()
+    {
+        dropped = 0;
+    }
+
+    /**
+     * Returns true if no changes are retained.
+     *
+     * @return true if there are no changes.
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Adds a change. Its version must be larger than that of all changes that were added before.
+     *
+     * @param version the version of the change.
+     * @param jid the bare JID of the contact that was modified, or null for a reset.
+     */
+    public void add(final long version, @Nullable final String jid)
+    {
+        if (size == versions.length) {
+            head = (head + 1) % versions.length;
+            size--;
+            dropped++;
+        }
+        final int index = (head + size) % versions.length;
+        versions[index] = version;
+        jids[index] = jid;
+        size++;
+    }
+
+    /**
+     * Returns the contacts that have been modified since a version, each with the version of their most recent
+     * change, in order of that version. This returns null when the changes since the version are not all known. That is
+     * the case when the version is not a version of this roster, when it is older than the changes that are retained,
+     * or when the roster was reset after that version.
+     *
+     * @param version a version that was provided by a client.
+     * @return the bare JIDs of the modified contacts and the versions of their latest changes (possibly empty), or null.
+     */
+    @Nullable
+    public Map<String, Long> getChangesSince(final long version)
+    {
+        if (size == 0 || version < getOldestVersion() || version > getLatestVersion()) {
+            return null;
+        }
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            final int index = (head + i) % versions.length;
+            if (versions[index] <= version) {
+                continue;
+            }
+            if (jids[index] == null) {
+                return null;
+            }
+            // Re-insert, so that the contact is ordered by its most recent change.
+            result.remove(jids[index]);
+            result.put(jids[index], versions[index]);
+        }
+        return result;
+    }
+
+    @Override
+    public int getCachedSize()
+    {
+        int result = CacheSizes.sizeOfObject() + 2 * CacheSizes.sizeOfObject() + 3 * CacheSizes.sizeOfInt();
+        result += versions.length * (CacheSizes.sizeOfLong() + 4);
+        for (int i = 0; i < size; i++) {
+            result += CacheSizes.sizeOfString(jids[(head + i) % versions.length]);
+        }
+        return result;
+    }
+
+    @Override
+    public void writeExternal(@Nonnull final ObjectOutput out) throws IOException
+    {
+        final ExternalizableUtil util = ExternalizableUtil.getInstance();
+        util.writeInt(out, versions.length);
+        util.writeInt(out, dropped);
+        util.writeInt(out, size);
+        for (int i = 0; i < size; i++) {
+            final int index = (head + i) % versions.length;
+            util.writeLong(out, versions[index]);
+            util.writeBoolean(out, jids[index] != null);
+            if (jids[index] != null) {
+                util.writeSafeUTF(out, jids[index]);
+            }
+        }
+    }
+
+    @Override
+    public void readExternal(@Nonnull final ObjectInput in) throws IOException
+    {
+        final ExternalizableUtil util = ExternalizableUtil.getInstance();
+        final int capacity = util.readInt(in);
+        versions = new long[capacity];
+        jids = new String[capacity];
+        head = 0;
+        size = 0;
+        dropped = util.readInt(in);
+        final int count = util.readInt(in);
+        for (int i = 0; i < count; i++) {
+            final long version = util.readLong(in);
+            add(version, util.readBoolean(in) ? util.readSafeUTF(in) : null);
+        }
+    }
+}
@@ -261,12 +261,7 @@ public class RosterItem implements Cacheable, Externalizable {
         this.askStatus = askStatus;
         this.recvStatus = recvStatus;
         this.nickname = nickname;
-        this.groups = new LinkedList<>();
-        if (groups != null) {
-            for (String group : groups) {
-                this.groups.add(group);
-            }
-        }
+        this.groups = groups == null ? new ArrayList<>(0) : new ArrayList<>(groups);
     }
 
     /**
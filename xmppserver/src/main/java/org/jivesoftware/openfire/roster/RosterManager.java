@@ -20,6 +20,7 @@ import org.jivesoftware.openfire.JMXManager;
 import org.jivesoftware.openfire.RoutingTable;
 import org.jivesoftware.openfire.SharedGroupException;
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.event.GroupEventDispatcher;
 import org.jivesoftware.openfire.event.GroupEventListener;
@@ -29,6 +30,8 @@ import org.jivesoftware.openfire.group.Group;
 import org.jivesoftware.openfire.group.GroupManager;
 import org.jivesoftware.openfire.group.GroupNotFoundException;
 import org.jivesoftware.openfire.group.SharedGroupVisibility;
+import org.jivesoftware.openfire.mbean.PresenceBroadcastStatistics;
+import org.jivesoftware.openfire.mbean.PresenceBroadcastStatisticsMBean;
 import org.jivesoftware.openfire.mbean.ThreadPoolExecutorDelegate;
 import org.jivesoftware.openfire.mbean.ThreadPoolExecutorDelegateMBean;
 import org.jivesoftware.openfire.user.User;
@@ -47,6 +50,7 @@ import java.time.Duration;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 
 /**
  * A simple service that allows components to retrieve a roster based solely on the ID
@@ -93,6 +97,26 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         .setDynamic(false)
         .build();
 
+    /**
+     * Determines if the shared groups of rosters are computed using a precomputed index of group memberships.
+     */
+    public static final SystemProperty<Boolean> SHARED_GROUP_INDEX_ENABLED = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("xmpp.client.roster.shared-group-index.enabled")
+        .setDefaultValue(true)
+        .setDynamic(true)
+        .build();
+
+    /**
+     * The maximum age of the index of shared group memberships, after which it is rebuilt. This bounds the time during
+     * which changes that are made to groups outside of Openfire (for example, in a directory server) go unnoticed.
+     */
+    public static final SystemProperty<Duration> SHARED_GROUP_INDEX_MAX_AGE = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.client.roster.shared-group-index.max-age")
+        .setChronoUnit(ChronoUnit.MINUTES)
+        .setDefaultValue(Duration.ofMinutes(15))
+        .setDynamic(true)
+        .build();
+
     private static final String MUTEX_SUFFIX = " ro";
 
     private Cache<String, Roster> rosterCache = null;
@@ -100,12 +124,21 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     private RoutingTable routingTable;
     private RosterItemProvider provider;
     private ThreadPoolExecutor executor;
+    private final SharedGroupIndex sharedGroupIndex = new SharedGroupIndex();
+    private final RosterChangeLog changeLog = new RosterChangeLog();
+    private final PresenceBroadcaster presenceBroadcaster = new PresenceBroadcaster();
+    private volatile boolean sharedGroupIndexInUse;
 
     /**
      * Object name used to register delegate MBean (JMX) for the thread pool executor.
      */
     private ObjectName objectName;
 
+    /**
+     * Object name used to register the MBean (JMX) for the presence broadcast metrics.
+     */
+    private ObjectName presenceBroadcastObjectName;
+
     /**
      * Returns true if the roster service is enabled. When disabled it is not possible to
      * retrieve users rosters or broadcast presence packets to roster contacts.
@@ -137,9 +170,17 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                 if (property.equals("provider.roster.className")) {
                     initProvider();
                 }
+                if (property.equals("xmpp.client.roster.versioning.active")) {
+                    // Changes are not recorded while versioning is disabled.
+                    changeLog.clear();
+                }
             }
             @Override
-            public void propertyDeleted(String property, Map params) {}
+            public void propertyDeleted(String property, Map params) {
+                if (property.equals("xmpp.client.roster.versioning.active")) {
+                    changeLog.clear();
+                }
+            }
             @Override
             public void xmlPropertySet(String property, Map params) {}
             @Override
@@ -200,6 +241,9 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
             }
             // Remove the cached roster from memory
             rosterCache.remove(username);
+            if (isRosterVersioningEnabled()) {
+                changeLog.reset(Collections.singleton(username));
+            }
 
             // Get the rosters that have a reference to the deleted user
             Iterator<String> usernames = provider.getUsernames(user.toBareJID());
@@ -237,6 +281,10 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
      * @return a collection with all the groups that the user may include in his roster.
      */
     public Collection<Group> getSharedGroups(String username) {
+        final SharedGroupIndex index = getSharedGroupIndex();
+        if (index != null) {
+            return index.getVisibleGroups(server.createJID(username, null, true));
+        }
         Collection<Group> answer = new HashSet<>();
         Collection<Group> groups = GroupManager.getInstance().getSharedGroups(username);
         for (Group group : groups) {
@@ -434,17 +482,22 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
             // Get all the affected users
             Collection<JID> users = getAffectedUsers(group);
             // Iterate on all the affected users and update their rosters
+            Collection<String> notLoaded = new ArrayList<>();
             for (JID updatedUser : users) {
                 // Get the roster to update.
                 Roster roster = null;
                 if (server.isLocal(updatedUser)) {
                     roster = rosterCache.get(updatedUser.getNode());
+                    if (roster == null) {
+                        notLoaded.add(updatedUser.getNode());
+                    }
                 }
                 if (roster != null) {
                     // Update the roster with the new group display name
                     roster.shareGroupRenamed(users);
                 }
             }
+            resetChangeLogs(notLoaded);
         }
     }
 
@@ -607,6 +660,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     @Override
     public void userCreated(User newUser, Map<String,Object> params) {
         JID newUserJID = server.createJID(newUser.getUsername(), null);
+        Collection<String> notLoaded = new ArrayList<>();
         // Shared public groups that are public should have a presence subscription
         // of type FROM for the new user
         for (Group group : getPublicSharedGroups()) {
@@ -626,6 +680,9 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                         continue;
                     }
                     roster = rosterCache.get(userToUpdate.getNode());
+                    if (roster == null) {
+                        notLoaded.add(userToUpdate.getNode());
+                    }
                 }
                 // Only update rosters in memory
                 if (roster != null) {
@@ -639,6 +696,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                 }
             }
         }
+        resetChangeLogs(notLoaded);
     }
 
     @Override
@@ -646,6 +704,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         // Shared public groups that have a presence subscription of type FROM
         // for the deleted user should no longer have a reference to the deleted user
         JID userJID = server.createJID(user.getUsername(), null);
+        Collection<String> notLoaded = new ArrayList<>();
         // Shared public groups that are public should have a presence subscription
         // of type FROM for the new user
         for (Group group : getPublicSharedGroups()) {
@@ -665,6 +724,9 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                         continue;
                     }
                     roster = rosterCache.get(userToUpdate.getNode());
+                    if (roster == null) {
+                        notLoaded.add(userToUpdate.getNode());
+                    }
                 }
                 // Only update rosters in memory
                 if (roster != null) {
@@ -678,6 +740,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                 }
             }
         }
+        resetChangeLogs(notLoaded);
 
         deleteRoster(userJID);
     }
@@ -686,6 +749,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     public void userModified(User user, Map<String,Object> params) {
         if ("nameModified".equals(params.get("type"))) {
 
+            Collection<String> evicted = new HashSet<>();
             for (Group group : getSharedGroups(user.getUsername())) {
                 ArrayList<JID> groupUsers = new ArrayList<>();
                 groupUsers.addAll(group.getAdmins());
@@ -693,8 +757,11 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
                 for (JID groupUser : groupUsers) {
                     rosterCache.remove(groupUser.getNode());
+                    evicted.add(groupUser.getNode());
                 }
             }
+            // The nickname is not pushed, but is part of the rosters when they are reloaded.
+            resetChangeLogs(evicted);
         }
     }
 
@@ -723,6 +790,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         }
 
         // Iterate on all the affected users and update their rosters
+        Collection<String> notLoaded = new HashSet<>();
         for (JID userToUpdate : users) {
             if (!addedUser.equals(userToUpdate)) {
                 // Get the roster to update
@@ -736,6 +804,9 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                         continue;
                     }
                     roster = rosterCache.get(userToUpdate.getNode());
+                    if (roster == null) {
+                        notLoaded.add(userToUpdate.getNode());
+                    }
                 }
                 // Only update rosters in memory
                 if (roster != null) {
@@ -765,6 +836,10 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                 }
             }
         }
+        if (addedUserRoster == null && server.isLocal(addedUser)) {
+            notLoaded.add(addedUser.getNode());
+        }
+        resetChangeLogs(notLoaded);
     }
 
     /**
@@ -792,6 +867,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         }
 
         // Iterate on all the affected users and update their rosters
+        Collection<String> notLoaded = new HashSet<>();
         for (JID userToUpdate : users) {
             // Get the roster to update
             Roster roster = null;
@@ -804,6 +880,9 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                     continue;
                 }
                 roster = rosterCache.get(userToUpdate.getNode());
+                if (roster == null) {
+                    notLoaded.add(userToUpdate.getNode());
+                }
             }
             // Only update rosters in memory
             if (roster != null) {
@@ -831,6 +910,10 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
                 sendSubscribeRequest(deletedUser, userToUpdate, false);
             }
         }
+        if (deletedUserRoster == null && server.isLocal(deletedUser)) {
+            notLoaded.add(deletedUser.getNode());
+        }
+        resetChangeLogs(notLoaded);
     }
 
     private void sendSubscribeRequest(JID sender, JID recipient, boolean isSubscribe) {
@@ -846,6 +929,27 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         routingTable.routePacket(recipient, presence, false);
     }
 
+    /**
+     * Returns the log of roster changes that is used for roster versioning.
+     *
+     * @return the roster change log.
+     */
+    RosterChangeLog getChangeLog() {
+        return changeLog;
+    }
+
+    /**
+     * Discards the recorded changes of rosters that have been modified while they were not loaded, as such
+     * modifications are not pushed (and therefore not recorded).
+     *
+     * @param usernames the owners of the rosters.
+     */
+    private void resetChangeLogs(Collection<String> usernames) {
+        if (isRosterVersioningEnabled() && !usernames.isEmpty()) {
+            changeLog.reset(usernames);
+        }
+    }
+
     private Collection<Group> getVisibleGroups(Group groupToCheck) {
         return GroupManager.getInstance().getVisibleGroups(groupToCheck);
     }
@@ -859,6 +963,10 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
      * @return true if a given group is visible to a given user.
      */
     public boolean isGroupVisible(Group group, JID user) {
+        final SharedGroupIndex index = getSharedGroupIndex();
+        if (index != null) {
+            return index.isGroupVisible(group, user.asBareJID());
+        }
         SharedGroupVisibility showInRoster = group.getSharedWith();
         if (SharedGroupVisibility.everybody == showInRoster) {
             return true;
@@ -928,6 +1036,56 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         return users;
     }
 
+    /**
+     * Invokes the consumer once for every user that is related to at least one of the shared groups of a roster, with
+     * the groups that relate the user to the roster. This produces the same result as merging the results of
+     * {@link #getSharedUsersForRoster(Group, Roster)} for each group, without creating a collection for each group.
+     *
+     * @param groups the shared groups of the roster owner.
+     * @param roster the roster.
+     * @param consumer receives each user, and the groups that relate the user to the roster.
+     */
+    void forEachSharedUserForRoster(Collection<Group> groups, Roster roster, BiConsumer<JID, List<Group>> consumer) {
+        final SharedGroupIndex index = getSharedGroupIndex();
+        if (index != null) {
+            index.forEachSharedUser(server.createJID(roster.getUsername(), null, true), groups, consumer);
+            return;
+        }
+        Map<JID, List<Group>> sharedGroupUsers = new HashMap<>();
+        for (Group group : groups) {
+            for (JID jid : getSharedUsersForRoster(group, roster)) {
+                sharedGroupUsers.computeIfAbsent(jid, k -> new ArrayList<>()).add(group);
+            }
+        }
+        sharedGroupUsers.forEach(consumer);
+    }
+
+    /**
+     * Returns the instance that delivers presence updates to the contacts of rosters.
+     *
+     * @return the presence broadcaster.
+     */
+    PresenceBroadcaster getPresenceBroadcaster() {
+        return presenceBroadcaster;
+    }
+
+    /**
+     * Returns the index of shared group memberships, or null when it should not be used. The index is not used in a
+     * cluster, as group events are dispatched only on the cluster node where a group is modified.
+     */
+    private SharedGroupIndex getSharedGroupIndex() {
+        if (!SHARED_GROUP_INDEX_ENABLED.getValue() || ClusterManager.isClusteringStarted()) {
+            sharedGroupIndexInUse = false;
+            return null;
+        }
+        if (!sharedGroupIndexInUse) {
+            // Events may have been missed while the index was not in use.
+            sharedGroupIndex.invalidate();
+            sharedGroupIndexInUse = true;
+        }
+        return sharedGroupIndex;
+    }
+
     Collection<JID> getSharedUsersForRoster(Group group, Roster roster) {
         SharedGroupVisibility showInRoster = group.getSharedWith();
         List<String> groupNames = group.getSharedWithUsersInGroupNames();
@@ -1048,6 +1206,9 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
         // Add this module as a user event listener so we can update
         // rosters when users are created or deleted
+        // Register the index of shared groups first, so that it is up to date when this module processes an event
+        UserEventDispatcher.addListener(sharedGroupIndex);
+        GroupEventDispatcher.addListener(sharedGroupIndex);
         UserEventDispatcher.addListener(this);
         // Add the new instance as a listener of group events
         GroupEventDispatcher.addListener(this);
@@ -1063,7 +1224,9 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         if (JMXManager.isEnabled()) {
             final ThreadPoolExecutorDelegateMBean mBean = new ThreadPoolExecutorDelegate(executor);
             objectName = JMXManager.tryRegister(mBean, ThreadPoolExecutorDelegateMBean.BASE_OBJECT_NAME + "roster");
+            presenceBroadcastObjectName = JMXManager.tryRegister(new PresenceBroadcastStatistics(presenceBroadcaster), PresenceBroadcastStatisticsMBean.OBJECT_NAME);
         }
+        presenceBroadcaster.start();
     }
 
     @Override
@@ -1073,10 +1236,18 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         UserEventDispatcher.removeListener(this);
         // Remove this module as a listener of group events
         GroupEventDispatcher.removeListener(this);
+        UserEventDispatcher.removeListener(sharedGroupIndex);
+        GroupEventDispatcher.removeListener(sharedGroupIndex);
+        sharedGroupIndex.invalidate();
         if (objectName != null) {
             JMXManager.tryUnregister(objectName);
             objectName = null;
         }
+        if (presenceBroadcastObjectName != null) {
+            JMXManager.tryUnregister(presenceBroadcastObjectName);
+            presenceBroadcastObjectName = null;
+        }
+        presenceBroadcaster.stop();
         executor.shutdown();
     }
 
@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.roster;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.event.GroupEventListener;
+import org.jivesoftware.openfire.event.UserEventListener;
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.openfire.group.GroupManager;
+import org.jivesoftware.openfire.group.GroupNotFoundException;
+import org.jivesoftware.openfire.group.SharedGroupVisibility;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Precomputes which users can see which shared groups, so that the shared part of a roster can be computed without
+ * building collections of group members for every roster that is loaded.
+ *
+ * Every user that is a member or administrator of an indexed group is assigned a dense, numeric identifier. The users
+ * of each group are kept in a {@link BitSet} that is indexed by that identifier. The contacts that a shared group
+ * adds to a roster are the union of a few of these bitsets, which are cheap to compute, even for groups with many
+ * members.
+ *
+ * The index is built lazily, on first use, and is kept up to date by group and user events. Changes that affect the
+ * visibility of groups (rather than their membership) cause the index to be rebuilt on next use. As group providers
+ * can be modified outside of Openfire, the index is also rebuilt when it is older than a configurable age.
+ */
+final class SharedGroupIndex implements GroupEventListener, UserEventListener
+{
+    private static final Logger Log = LoggerFactory.getLogger(SharedGroupIndex.class);
+
+    private final Supplier<Collection<Group>> sharedGroupSupplier;
+    private final Function<String, Group> groupLookup;
+    private final Supplier<Collection<JID>> userSupplier;
+    private final Supplier<Duration> maxAge;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Names of groups for which a delete event has been received, but for which the deletion has not been observed yet.
+     */
+    private final Set<String> deleting = ConcurrentHashMap.newKeySet();
+
+    private final Map<JID, Integer> userIds = new HashMap<>();
+    private final List<JID> users = new ArrayList<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final List<Entry> sharedEntries = new ArrayList<>();
+    private BitSet everybody;
+    private boolean built;
+    private long builtAt;
+
+    /**
+     * Creates an index that is backed by the group and user managers.
+     */
+    SharedGroupIndex()
+    {
+        this(
+            () -> GroupManager.getInstance().getSharedGroups(),
+            name -> {
+                try {
+                    return GroupManager.getInstance().getGroup(name);
+                } catch (GroupNotFoundException e) {
+                    return null;
+                }
+            },
+            () -> {
+                final Collection<String> usernames = UserManager.getInstance().getUsernames();
+                final List<JID> result = new ArrayList<>(usernames.size());
+                for (final String username : usernames) {
+                    result.add(XMPPServer.getInstance().createJID(username, null, true));
+                }
+                return result;
+            },
+            RosterManager.SHARED_GROUP_INDEX_MAX_AGE::getValue);
+    }
+
+    /**
+     * Creates an index.
+     *
+     * @param sharedGroupSupplier provides all groups that are shared.
+     * @param groupLookup returns the current instance of a group by name, or null when the group does not exist.
+     * @param userSupplier provides the (bare) addresses of all users of the system.
+     * @param maxAge provides the maximum age of the index, after which it is rebuilt.
+     */
+    SharedGroupIndex(@Nonnull final Supplier<Collection<Group>> sharedGroupSupplier,
+                     @Nonnull final Function<String, Group> groupLookup,
+                     @Nonnull final Supplier<Collection<JID>> userSupplier,
+                     @Nonnull final Supplier<Duration> maxAge)
+    {
+        this.sharedGroupSupplier = sharedGroupSupplier;
+        this.groupLookup = groupLookup;
+        this.userSupplier = userSupplier;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Returns the shared groups that the user may include in his roster. This is equivalent to
+     * {@link RosterManager#getSharedGroups(String)}.
+     *
+     * @param user the bare address of a user.
+     * @return the groups that are visible to the user.
+     */
+    @Nonnull
+    Collection<Group> getVisibleGroups(@Nonnull final JID user)
+    {
+        final List<String> names = new ArrayList<>();
+        final Lock readLock = readLock();
+        try {
+            final Integer id = userIds.get(user);
+            for (final Entry entry : sharedEntries) {
+                if (entry.isVisibleTo(id)) {
+                    names.add(entry.name);
+                }
+            }
+        } finally {
+            readLock.unlock();
+        }
+        return toGroups(names);
+    }
+
+    /**
+     * Returns true if a group is visible to a user. This is equivalent to
+     * {@link RosterManager#isGroupVisible(Group, JID)}.
+     *
+     * @param group the group to check.
+     * @param user the bare address of a user.
+     * @return true if the group is visible to the user.
+     */
+    boolean isGroupVisible(@Nonnull final Group group, @Nonnull final JID user)
+    {
+        final Lock readLock = readLock();
+        try {
+            final Entry entry = entries.get(group.getName());
+            return entry != null && entry.isVisibleTo(userIds.get(user));
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Invokes the consumer once for every user that is added to a roster by its shared groups, with all of the
+     * groups (out of those that are provided) that cause the user to be added. This is equivalent to invoking
+     * {@link RosterManager#getSharedUsersForRoster(Group, Roster)} for each group, and merging the results.
+     *
+     * The consumer is invoked outside of any lock, in order of the identifiers of the users.
+     *
+     * @param owner the bare address of the owner of the roster.
+     * @param groups the shared groups of the owner.
+     * @param consumer receives each user, and the groups that cause the user to be part of the roster.
+     */
+    void forEachSharedUser(@Nonnull final JID owner, @Nonnull final Collection<Group> groups,
+                           @Nonnull final BiConsumer<JID, List<Group>> consumer)
+    {
+        final List<Group> contributors = new ArrayList<>(groups.size());
+        final List<BitSet> contributions = new ArrayList<>(groups.size());
+        final BitSet union = new BitSet();
+        final JID[] contacts;
+        final Lock readLock = readLock();
+        try {
+            final Integer ownerId = userIds.get(owner);
+            for (final Group group : groups) {
+                final Entry entry = entries.get(group.getName());
+                if (entry == null || entry.sharedWith == null) {
+                    continue;
+                }
+                final BitSet contribution = (BitSet) entry.users.clone();
+                if (ownerId != null && entry.users.get(ownerId)) {
+                    // Users that can see a group of which the owner is a member are added with subscription 'from'.
+                    if (entry.sharedWith == SharedGroupVisibility.everybody) {
+                        contribution.or(everybody);
+                    } else {
+                        for (final Entry viewer : entry.viewers) {
+                            contribution.or(viewer.users);
+                        }
+                    }
+                }
+                contributors.add(group);
+                contributions.add(contribution);
+                union.or(contribution);
+            }
+            contacts = new JID[union.cardinality()];
+            for (int id = union.nextSetBit(0), i = 0; id >= 0; id = union.nextSetBit(id + 1), i++) {
+                contacts[i] = users.get(id);
+            }
+        } finally {
+            readLock.unlock();
+        }
+
+        for (int id = union.nextSetBit(0), i = 0; id >= 0; id = union.nextSetBit(id + 1), i++) {
+            final List<Group> contactGroups = new ArrayList<>(1);
+            for (int g = 0; g < contributions.size(); g++) {
+                if (contributions.get(g).get(id)) {
+                    contactGroups.add(contributors.get(g));
+                }
+            }
+            consumer.accept(contacts[i], contactGroups);
+        }
+    }
+
+    /**
+     * Discards the index. It will be rebuilt on next use.
+     */
+    void invalidate()
+    {
+        lock.writeLock().lock();
+        try {
+            built = false;
+            userIds.clear();
+            users.clear();
+            entries.clear();
+            sharedEntries.clear();
+            everybody = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Acquires the read lock on an index that is built and up to date. The caller must release the lock.
+     */
+    private Lock readLock()
+    {
+        if (!deleting.isEmpty()) {
+            // A group deletion is completed when the group can no longer be found.
+            for (final String name : deleting) {
+                if (groupLookup.apply(name) == null && deleting.remove(name)) {
+                    invalidate();
+                }
+            }
+        }
+        while (true) {
+            lock.readLock().lock();
+            if (isCurrent()) {
+                return lock.readLock();
+            }
+            lock.readLock().unlock();
+
+            lock.writeLock().lock();
+            try {
+                if (!isCurrent()) {
+                    build();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private boolean isCurrent()
+    {
+        final Duration age = maxAge.get();
+        return built && (age.isNegative() || System.currentTimeMillis() - builtAt < age.toMillis());
+    }
+
+    private void build()
+    {
+        final long start = System.currentTimeMillis();
+        userIds.clear();
+        users.clear();
+        entries.clear();
+        sharedEntries.clear();
+        everybody = null;
+
+        for (final Group group : sharedGroupSupplier.get()) {
+            final SharedGroupVisibility sharedWith = group.getSharedWith();
+            if (sharedWith != SharedGroupVisibility.everybody && sharedWith != SharedGroupVisibility.usersOfGroups) {
+                continue;
+            }
+            final Entry entry = entry(group);
+            if (entry.sharedWith != null) {
+                continue; // Duplicate.
+            }
+            entry.sharedWith = sharedWith;
+            sharedEntries.add(entry);
+            if (sharedWith == SharedGroupVisibility.everybody) {
+                if (everybody == null) {
+                    everybody = new BitSet();
+                    for (final JID user : userSupplier.get()) {
+                        everybody.set(id(user));
+                    }
+                }
+            } else {
+                for (final String name : new HashSet<>(group.getSharedWithUsersInGroupNames())) {
+                    Entry viewer = entries.get(name);
+                    if (viewer == null) {
+                        final Group viewerGroup = groupLookup.apply(name);
+                        if (viewerGroup == null) {
+                            // Silently ignore the invalid reference to the group.
+                            continue;
+                        }
+                        viewer = entry(viewerGroup);
+                    }
+                    entry.viewers.add(viewer);
+                }
+            }
+        }
+
+        built = true;
+        builtAt = System.currentTimeMillis();
+        Log.debug("Indexed {} shared groups with {} users in {} ms.", sharedEntries.size(), users.size(), builtAt - start);
+    }
+
+    private Entry entry(@Nonnull final Group group)
+    {
+        Entry entry = entries.get(group.getName());
+        if (entry == null) {
+            entry = new Entry(group.getName());
+            for (final JID member : group.getMembers()) {
+                entry.users.set(id(member));
+            }
+            for (final JID admin : group.getAdmins()) {
+                entry.users.set(id(admin));
+            }
+            entries.put(entry.name, entry);
+        }
+        return entry;
+    }
+
+    private int id(@Nonnull final JID user)
+    {
+        Integer id = userIds.get(user);
+        if (id == null) {
+            id = users.size();
+            final JID bare = CompactRoster.intern(user.asBareJID());
+            users.add(bare);
+            userIds.put(bare, id);
+        }
+        return id;
+    }
+
+    @Nonnull
+    private Collection<Group> toGroups(@Nonnull final Collection<String> names)
+    {
+        // Return the current instances, as those are updated when members are added or removed.
+        final List<Group> result = new ArrayList<>(names.size());
+        for (final String name : names) {
+            final Group group = groupLookup.apply(name);
+            if (group != null) {
+                result.add(group);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Updates the bit of a user in the entry of a group, after the user has been added to, or removed from the group.
+     */
+    private void updateUser(@Nonnull final Group group, @Nullable final Object user)
+    {
+        if (user == null) {
+            return;
+        }
+        final JID jid = new JID(user.toString()).asBareJID();
+        lock.writeLock().lock();
+        try {
+            if (!built) {
+                return;
+            }
+            final Entry entry = entries.get(group.getName());
+            if (entry == null) {
+                return;
+            }
+            if (group.isUser(jid)) {
+                entry.users.set(id(jid));
+            } else {
+                final Integer id = userIds.get(jid);
+                if (id != null) {
+                    entry.users.clear(id);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void groupCreated(final Group group, final Map params)
+    {
+        deleting.remove(group.getName());
+        invalidate();
+    }
+
+    @Override
+    public void groupDeleting(final Group group, final Map params)
+    {
+        // The group still exists while this event is processed. The index is discarded once it has been removed.
+        deleting.add(group.getName());
+    }
+
+    @Override
+    public void groupModified(final Group group, final Map params)
+    {
+        if (!"descriptionModified".equals(params.get("type"))) {
+            invalidate();
+        }
+    }
+
+    @Override
+    public void memberAdded(final Group group, final Map params)
+    {
+        updateUser(group, params.get("member"));
+    }
+
+    @Override
+    public void memberRemoved(final Group group, final Map params)
+    {
+        updateUser(group, params.get("member"));
+    }
+
+    @Override
+    public void adminAdded(final Group group, final Map params)
+    {
+        updateUser(group, params.get("admin"));
+    }
+
+    @Override
+    public void adminRemoved(final Group group, final Map params)
+    {
+        updateUser(group, params.get("admin"));
+    }
+
+    @Override
+    public void userCreated(final User user, final Map<String, Object> params)
+    {
+        final JID jid = XMPPServer.getInstance().createJID(user.getUsername(), null, true);
+        lock.writeLock().lock();
+        try {
+            if (built && everybody != null) {
+                everybody.set(id(jid));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void userDeleting(final User user, final Map<String, Object> params)
+    {
+        final JID jid = XMPPServer.getInstance().createJID(user.getUsername(), null, true);
+        lock.writeLock().lock();
+        try {
+            final Integer id = userIds.get(jid);
+            if (built && everybody != null && id != null) {
+                everybody.clear(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void userModified(final User user, final Map<String, Object> params)
+    {
+        // Do nothing.
+    }
+
+    /**
+     * The users of a group, and how the group is shared.
+     */
+    private static final class Entry
+    {
+        final String name;
+        final BitSet users = new BitSet();
+        final List<Entry> viewers = new ArrayList<>();
+
+        /**
+         * The visibility of the group, or null if the group is indexed only because it can see a shared group.
+         */
+        SharedGroupVisibility sharedWith;
+
+        Entry(@Nonnull final String name)
+        {
+            this.name = name;
+        }
+
+        boolean isVisibleTo(@Nullable final Integer id)
+        {
+            if (sharedWith == SharedGroupVisibility.everybody) {
+                return true;
+            }
+            if (sharedWith != SharedGroupVisibility.usersOfGroups || id == null) {
+                return false;
+            }
+            if (users.get(id)) {
+                return true;
+            }
+            for (final Entry viewer : viewers) {
+                if (viewer.users.get(id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
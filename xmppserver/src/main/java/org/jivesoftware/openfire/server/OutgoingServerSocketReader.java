@@ -55,6 +55,13 @@ public class OutgoingServerSocketReader {
         init();
     }
 
+    /**
+     * Creates a reader that does not read from a connection itself. Elements are queued by the owner of the connection
+     * through {@link #queue(Element)} instead (as is the case for connections that are read by Apache MINA).
+     */
+    public OutgoingServerSocketReader() {
+    }
+
     /**
      * Returns the OutgoingServerSession for which this reader is working for or {@code null} if
      * a OutgoingServerSession was not created yet. While the OutgoingServerSession is being
@@ -90,6 +97,17 @@ public class OutgoingServerSocketReader {
         return elements.poll(timeout, unit);
     }
 
+    /**
+     * Queues an element that was received on the connection.
+     *
+     * @param element the received element.
+     */
+    public void queue(Element element) {
+        if (!elements.offer(element)) {
+            Log.debug("Dropping element received from the remote server, as the queue is full: {}", element.asXML());
+        }
+    }
+
     private void init() {
         // Create a thread that will read and store DOM Elements.
         Thread thread = new Thread("Outgoing Server Reader") {
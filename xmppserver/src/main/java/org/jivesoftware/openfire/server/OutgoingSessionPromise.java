@@ -30,9 +30,11 @@ import org.jivesoftware.openfire.RoutingTable;
 import org.jivesoftware.openfire.SessionManager;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.cluster.NodeID;
 import org.jivesoftware.openfire.interceptor.InterceptorManager;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
+import org.jivesoftware.openfire.nio.OutgoingServerConnector;
 import org.jivesoftware.openfire.session.*;
 import org.jivesoftware.openfire.spi.RoutingTableImpl;
 import org.jivesoftware.util.JiveGlobals;
@@ -62,6 +64,10 @@ import javax.annotation.Nonnull;
  * to connect to remote servers and deliver the packets. If an error occurred while establishing
  * the connection or sending the packet an error will be returned to the sender of the packet.
  *
+ * Unless clustering is enabled, a thread of the pool does not wait for a new session to be established: the queued
+ * packets are processed once the session has been established (see
+ * {@link LocalOutgoingServerSession#authenticateDomainAsync(DomainPair)}).
+ *
  * @author Gaston Dombiak, Dave Cridland, Guus der Kinderen
  */
 public class OutgoingSessionPromise {
@@ -143,6 +149,7 @@ public class OutgoingSessionPromise {
      */
     public void shutdown() {
         threadPool.shutdown();
+        OutgoingServerConnector.getInstance().stop();
     }
 
     /**
@@ -247,18 +254,30 @@ public class OutgoingSessionPromise {
         @Override
         public void run() {
             Log.debug("Start for {}", domainPair);
-            RoutableChannelHandler channel;
+            CompletableFuture<RoutableChannelHandler> channel;
             try {
                 channel = establishConnection();
             } catch (Exception e) {
                 Log.warn("An exception occurred while trying to establish a connection for {}", domainPair, e);
-                channel = null;
+                channel = CompletableFuture.completedFuture(null);
             }
+            channel.whenComplete((route, throwable) -> {
+                if (throwable != null) {
+                    Log.warn("An exception occurred while trying to establish a connection for {}", domainPair, throwable instanceof CompletionException ? throwable.getCause() : throwable);
+                }
+                purgeQueue(throwable == null ? route : null);
+            });
+        }
 
-            // After the connection has been established (or failed), process all queued stanzas. Ensure that no more
-            // stanzas are queued while we process the queue, by first synchronizing on the same mutex that should be
-            // used to guards #queue(). That will cause to-be-queued stanzas to be sent directly over the now
-            // established connection after we've finished processing all queued stanzas below.
+        /**
+         * Processes all queued stanzas, after the connection has been established (or failed).
+         *
+         * @param channel the route to the remote domain, or null if no connection was established.
+         */
+        private void purgeQueue(final RoutableChannelHandler channel) {
+            // Ensure that no more stanzas are queued while we process the queue, by first synchronizing on the same
+            // mutex that should be used to guards #queue(). That will cause to-be-queued stanzas to be sent directly
+            // over the now established connection after we've finished processing all queued stanzas below.
             synchronized (getMutex(domainPair)) {
                 Log.trace("Purging queue for {}", domainPair);
                 Packet packet;
@@ -285,29 +304,35 @@ public class OutgoingSessionPromise {
             Log.trace("Finished processing {}", domainPair);
         }
 
-        private RoutableChannelHandler establishConnection() throws Exception {
+        private CompletableFuture<RoutableChannelHandler> establishConnection() {
             Log.debug("Start establishing a connection for {}", domainPair);
             // Create a connection to the remote server from the domain where the packet has been sent
-            boolean created;
-            // Make sure that only one cluster node is creating the outgoing connection
-            final Lock lock = serversCache.getLock(domainPair);
-            lock.lock();
-            try {
-                created = LocalOutgoingServerSession.authenticateDomain(domainPair);
-            } finally {
-                lock.unlock();
+            final CompletableFuture<Boolean> created;
+            if (ClusterManager.isClusteringStarted() || !OutgoingServerConnector.ENABLED.getValue()) {
+                // Make sure that only one connection is being created for the domain pair (by any cluster node). As
+                // the lock is to be released by the thread that acquired it, this thread waits for the connection to
+                // be established. Only the connector, when enabled on a server that is not clustered, establishes
+                // connections without holding the lock (and without occupying this thread).
+                final Lock lock = serversCache.getLock(domainPair);
+                lock.lock();
+                try {
+                    created = CompletableFuture.completedFuture(LocalOutgoingServerSession.authenticateDomain(domainPair));
+                } finally {
+                    lock.unlock();
+                }
+            } else {
+                created = LocalOutgoingServerSession.authenticateDomainAsync(domainPair);
             }
-            if (created) {
+            return created.thenApply(success -> {
+                if (!success) {
+                    throw new IllegalStateException("Failed to create connection to remote server");
+                }
                 final OutgoingServerSession serverRoute = routingTable.getServerRoute(domainPair);
                 if (serverRoute == null || !(serverRoute instanceof LocalOutgoingServerSession)) {
-                    throw new Exception("Route created but not found!!!");
-                } else {
-                    return serverRoute;
+                    throw new IllegalStateException("Route created but not found!!!");
                 }
-            }
-            else {
-                throw new Exception("Failed to create connection to remote server");
-            }
+                return serverRoute;
+            });
         }
 
         /**
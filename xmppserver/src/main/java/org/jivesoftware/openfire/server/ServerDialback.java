@@ -310,7 +310,7 @@ public class ServerDialback {
 
         log.debug( "Authenticating domain ..." );
 
-        String key = AuthFactory.createDigest( id, getSecretkey() );
+        String key = createKey( id );
 
         synchronized (socketReader) {
             log.debug( "Sending dialback key and wait for the validation response..." );
@@ -910,6 +910,16 @@ public class ServerDialback {
         return verified;
     }
 
+    /**
+     * Returns the dialback key that is sent by this server, acting as the Originating Server, on a stream.
+     *
+     * @param id the ID of the stream on which the key is sent.
+     * @return the dialback key.
+     */
+    public static String createKey(String id) {
+        return AuthFactory.createDigest(id, getSecretkey());
+    }
+
     /**
      * Returns the secret key that was randomly generated. When running inside of a cluster
      * the key will be unique to all cluster nodes.
@@ -26,6 +26,7 @@ import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.openfire.net.SASLAuthentication;
 import org.jivesoftware.openfire.net.SocketConnection;
 import org.jivesoftware.openfire.net.SocketUtil;
+import org.jivesoftware.openfire.nio.OutgoingServerConnector;
 import org.jivesoftware.openfire.server.OutgoingServerSocketReader;
 import org.jivesoftware.openfire.server.RemoteServerManager;
 import org.jivesoftware.openfire.server.ServerDialback;
@@ -52,6 +53,7 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -107,6 +109,18 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
      * @return True if the domain was authenticated by the remote server.
      */
     public static boolean authenticateDomain(final DomainPair domainPair) {
+        return authenticateDomainAsync(domainPair).join();
+    }
+
+    /**
+     * Authenticates the local domain to the remote domain, like {@link #authenticateDomain(DomainPair)} does, without
+     * waiting for a new session to be established. New sessions are established by {@link OutgoingServerConnector}
+     * when that has been enabled. Otherwise, the returned future is completed by the invoking thread.
+     *
+     * @param domainPair the local and remote domain for which authentication is to be established.
+     * @return a future that completes with true if the domain was authenticated by the remote server.
+     */
+    public static CompletableFuture<Boolean> authenticateDomainAsync(final DomainPair domainPair) {
         final String localDomain = domainPair.getLocal();
         final String remoteDomain = domainPair.getRemote();
         final Logger log = LoggerFactory.getLogger( Log.getName() + "[Authenticate local domain: '" + localDomain + "' to remote domain: '" + remoteDomain + "']" );
@@ -115,13 +129,13 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
         if (remoteDomain == null || remoteDomain.length() == 0 || remoteDomain.trim().indexOf(' ') > -1) {
             // Do nothing if the target domain is empty, null or contains whitespaces
             log.warn( "Unable to authenticate: remote domain is invalid." );
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
         try {
             // Check if the remote domain is in the blacklist
             if (!RemoteServerManager.canAccess(remoteDomain)) {
                 log.info( "Unable to authenticate: Remote domain is not accessible according to our configuration (typical causes: server federation is disabled, or domain is blacklisted)." );
-                return false;
+                return CompletableFuture.completedFuture(false);
             }
 
             log.debug( "Searching for pre-existing outgoing sessions to the remote domain (if one exists, it will be re-used) ..." );
@@ -130,7 +144,7 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
             if (sessionManager == null) {
                 // Server is shutting down while we are trying to create a new s2s connection
                 log.warn( "Unable to authenticate: a SessionManager instance is not available. This should not occur unless Openfire is starting up or shutting down." );
-                return false;
+                return CompletableFuture.completedFuture(false);
             }
             session = sessionManager.getOutgoingServerSession(domainPair);
             if (session != null && session.checkOutgoingDomainPair(domainPair))
@@ -139,7 +153,7 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
                 log.debug( "Authentication successful (domain was already authenticated in the pre-existing session)." );
                 //inform all listeners as well.
                 ServerSessionEventDispatcher.dispatchEvent(session, ServerSessionEventDispatcher.EventType.session_created);
-                return true;
+                return CompletableFuture.completedFuture(true);
             }
             if (session != null && !session.isUsingServerDialback() )
             {
@@ -189,51 +203,67 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
                 {
                     // Do nothing since the domain has already been authenticated.
                     log.debug( "Authentication successful (domain was already authenticated in the pre-existing session)." );
-                    return true;
+                    return CompletableFuture.completedFuture(true);
                 }
 
                 // A session already exists so authenticate the domain using that session.
                 if ( session.authenticateSubdomain(domainPair) )
                 {
                     log.debug( "Authentication successful (domain authentication was added using a pre-existing session)." );
-                    return true;
+                    return CompletableFuture.completedFuture(true);
                 }
                 else
                 {
                     log.warn( "Unable to authenticate: Unable to add authentication to pre-exising session." );
-                    return false;
+                    return CompletableFuture.completedFuture(false);
                 }
             }
             else
             {
-                try {
-                    log.debug("Unable to re-use an existing session. Creating a new session ...");
-                    int port = RemoteServerManager.getPortForServer(remoteDomain);
-                    session = createOutgoingSession(domainPair, port);
-                    if (session != null) {
-                        log.debug("Created a new session.");
-
-                        session.addOutgoingDomainPair(domainPair);
-                        sessionManager.outgoingServerSessionCreated((LocalOutgoingServerSession) session);
-                        log.debug("Authentication successful.");
-                        //inform all listeners as well.
-                        ServerSessionEventDispatcher.dispatchEvent(session, ServerSessionEventDispatcher.EventType.session_created);
-                        return true;
-                    } else {
-                        log.warn("Unable to authenticate: Fail to create new session.");
-                        return false;
-                    }
-                } catch (Exception e) {
-                    if (session != null) {
-                        session.close();
-                    }
-                    throw e;
+                log.debug("Unable to re-use an existing session. Creating a new session ...");
+                int port = RemoteServerManager.getPortForServer(remoteDomain);
+                final CompletableFuture<LocalOutgoingServerSession> newSession;
+                if (OutgoingServerConnector.ENABLED.getValue()) {
+                    newSession = OutgoingServerConnector.getInstance().createOutgoingSession(domainPair, port);
+                } else {
+                    newSession = CompletableFuture.completedFuture(createOutgoingSession(domainPair, port));
                 }
+                return newSession.handle((created, throwable) -> registerOutgoingSession(domainPair, created, throwable, log));
             }
         }
         catch (Exception e)
         {
             log.error( "An exception occurred while authenticating to remote domain '{}'!", remoteDomain, e );
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Registers a session that was created for a domain pair by {@link #authenticateDomainAsync(DomainPair)}.
+     *
+     * @return True if the domain was authenticated by the remote server.
+     */
+    private static boolean registerOutgoingSession(final DomainPair domainPair, final LocalOutgoingServerSession session, final Throwable throwable, final Logger log) {
+        if (throwable != null) {
+            log.error( "An exception occurred while authenticating to remote domain '{}'!", domainPair.getRemote(), throwable );
+            return false;
+        }
+        if (session == null) {
+            log.warn("Unable to authenticate: Fail to create new session.");
+            return false;
+        }
+        try {
+            log.debug("Created a new session.");
+
+            session.addOutgoingDomainPair(domainPair);
+            SessionManager.getInstance().outgoingServerSessionCreated(session);
+            log.debug("Authentication successful.");
+            //inform all listeners as well.
+            ServerSessionEventDispatcher.dispatchEvent(session, ServerSessionEventDispatcher.EventType.session_created);
+            return true;
+        } catch (Exception e) {
+            log.error( "An exception occurred while authenticating to remote domain '{}'!", domainPair.getRemote(), e );
+            session.close();
             return false;
         }
     }
@@ -647,6 +677,20 @@ public class LocalOutgoingServerSession extends LocalServerSession implements Ou
         socketReader.setSession(this);
     }
 
+    /**
+     * Creates a session for a connection on which the local domain was authenticated.
+     *
+     * @param localDomain the local domain.
+     * @param connection the connection to the remote server.
+     * @param socketReader the reader that queues the elements that are received on the connection.
+     * @param streamID the ID of the stream that was opened by the remote server.
+     * @param usingServerDialback false if the local domain was authenticated using SASL EXTERNAL.
+     */
+    public LocalOutgoingServerSession(String localDomain, Connection connection, OutgoingServerSocketReader socketReader, StreamID streamID, boolean usingServerDialback) {
+        this(localDomain, connection, socketReader, streamID);
+        this.usingServerDialback = usingServerDialback;
+    }
+
     @Override
     boolean canProcess(Packet packet) {
         final DomainPair domainPair = new DomainPair(packet.getFrom().getDomain(), packet.getTo().getDomain());
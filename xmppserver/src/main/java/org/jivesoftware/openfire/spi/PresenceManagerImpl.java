@@ -21,7 +21,11 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
 
 import org.dom4j.Document;
@@ -29,7 +33,9 @@ import org.dom4j.DocumentException;
 import org.dom4j.DocumentHelper;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.openfire.*;
+import org.jivesoftware.openfire.archive.Archiver;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.component.InternalComponentManager;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.event.UserEventDispatcher;
@@ -46,6 +52,7 @@ import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.SystemProperty;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
@@ -63,8 +70,58 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
 
     private static final Logger Log = LoggerFactory.getLogger(PresenceManagerImpl.class);
 
+    /**
+     * Enables writing offline presences and last activity to the database in batches, by a background thread. When
+     * disabled, they are written to the database by the thread that processes the presence. While clustering, they are
+     * always written by the thread that processes the presence.
+     */
+    public static final SystemProperty<Boolean> STORE_ASYNC = SystemProperty.Builder.ofType(Boolean.class)
+        .setKey("xmpp.presence.offline.store.async")
+        .setDefaultValue(true)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The maximum number of users of which the offline presence is written to the database in one batch.
+     */
+    public static final SystemProperty<Integer> STORE_BATCH_SIZE = SystemProperty.Builder.ofType(Integer.class)
+        .setKey("xmpp.presence.offline.store.batch-size")
+        .setDefaultValue(500)
+        .setMinValue(1)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The maximum amount of time that an offline presence is queued before it is written to the database. When a user
+     * goes offline or online repeatedly within this time, only the latest state is written.
+     */
+    public static final SystemProperty<Duration> STORE_BATCH_INTERVAL = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.presence.offline.store.batch-interval")
+        .setDefaultValue(Duration.ofSeconds(1))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The amount of time to wait for more offline presences to be queued, before a batch is written to the database.
+     */
+    public static final SystemProperty<Duration> STORE_BATCH_GRACE_PERIOD = SystemProperty.Builder.ofType(Duration.class)
+        .setKey("xmpp.presence.offline.store.batch-grace-period")
+        .setDefaultValue(Duration.ofMillis(50))
+        .setChronoUnit(ChronoUnit.MILLIS)
+        .setDynamic(false)
+        .build();
+
+    /**
+     * The maximum number of users of which the offline presence is read from the database in one query, when the
+     * offline presences of the contacts of a roster are preloaded.
+     */
+    private static final int PRELOAD_BATCH_SIZE = 100;
+
     private static final String LOAD_OFFLINE_PRESENCE =
             "SELECT offlinePresence, offlineDate FROM ofPresence WHERE username=?";
+    private static final String LOAD_OFFLINE_PRESENCES =
+            "SELECT username, offlinePresence, offlineDate FROM ofPresence WHERE username IN ";
     private static final String INSERT_OFFLINE_PRESENCE =
             "INSERT INTO ofPresence(username, offlinePresence, offlineDate) VALUES(?,?,?)";
     private static final String DELETE_OFFLINE_PRESENCE =
@@ -86,6 +143,19 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
     private Cache<String, Long> lastActivityCache;
     private Cache<String, String> offlinePresenceCache;
 
+    /**
+     * The offline presences that are yet to be written to the database, by username. Only the latest state of a user
+     * is retained.
+     *
+     * These are known to the local cluster node only, while the caches are shared by all cluster nodes. Another cluster
+     * node that misses the caches would read an outdated state from the database, and cache it for all cluster nodes.
+     * Presences are therefore not queued while clustering. Presences that were queued before clustering started are
+     * still written by the archiver, shortly after.
+     */
+    private final ConcurrentMap<String, PendingPresence> pending = new ConcurrentHashMap<>();
+
+    private volatile OfflinePresenceArchiver archiver;
+
     public PresenceManagerImpl() {
         super("Presence manager");
     }
@@ -201,7 +271,7 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
                 return;
             }
 
-            deleteOfflinePresenceFromDB(username);
+            persist(new PendingPresence(username, null, null));
 
             // Remove data from cache.
             offlinePresenceCache.remove(username);
@@ -209,23 +279,6 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         }
     }
 
-    private void deleteOfflinePresenceFromDB(String username) {
-        Connection con = null;
-        PreparedStatement pstmt = null;
-        try {
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(DELETE_OFFLINE_PRESENCE);
-            pstmt.setString(1, username);
-            pstmt.execute();
-        }
-        catch (SQLException sqle) {
-            Log.error(sqle.getMessage(), sqle);
-        }
-        finally {
-            DbConnectionManager.closeConnection(pstmt, con);
-        }
-    }
-
     @Override
     public void userUnavailable(Presence presence) {
         // Only save the last presence status and keep track of the time when the user went
@@ -261,32 +314,87 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
             Log.debug( "Recording 'last activity' for user '{}'.", username);
             lastActivityCache.put(username, offlinePresenceDate.getTime());
 
-            writeToDatabase(username, offlinePresence, offlinePresenceDate);
+            persist(new PendingPresence(username, offlinePresence, offlinePresenceDate));
         }
     }
 
-    private void writeToDatabase(String username, String offlinePresence, Date offlinePresenceDate) {
-        // delete existing offline presence (if any)
-        deleteOfflinePresenceFromDB(username);
+    /**
+     * Writes the offline presence of a user to the database, or queues it to be written by the archiver. A queued
+     * presence replaces any presence of the same user that is still queued.
+     *
+     * @param presence the presence to write.
+     */
+    private void persist(PendingPresence presence) {
+        final OfflinePresenceArchiver archiver = this.archiver;
+        if (archiver == null || ClusterManager.isClusteringStarted()) {
+            // Ensure that an older queued state of the user does not overwrite this one.
+            pending.remove(presence.username);
+            store(Collections.singletonList(presence));
+        }
+        else if (pending.put(presence.username, presence) == null) {
+            // The user is not yet queued. Otherwise, the archiver will write the replaced presence.
+            archiver.archive(presence.username);
+        }
+    }
 
-        // Insert data into the database.
+    /**
+     * Writes offline presences to the database, in one transaction. Presences without a date are deleted.
+     *
+     * @param presences the presences to write, of distinct users.
+     */
+    void store(List<PendingPresence> presences) {
+        if (presences.isEmpty()) {
+            return;
+        }
         Connection con = null;
-        PreparedStatement pstmt = null;
+        PreparedStatement deleteStatement = null;
+        PreparedStatement insertStatement = null;
+        boolean abortTransaction = false;
         try {
-            con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(INSERT_OFFLINE_PRESENCE);
-            pstmt.setString(1, username);
-            if (offlinePresence != null) {
-                DbConnectionManager.setLargeTextField(pstmt, 2, offlinePresence);
-            } else {
-                pstmt.setNull(2, Types.VARCHAR);
-            }
-            pstmt.setString(3, StringUtils.dateToMillis(offlinePresenceDate));
-            pstmt.execute();
+            con = DbConnectionManager.getTransactionConnection();
+            final boolean batch = DbConnectionManager.isBatchUpdatesSupported();
+            deleteStatement = con.prepareStatement(DELETE_OFFLINE_PRESENCE);
+            for (PendingPresence presence : presences) {
+                deleteStatement.setString(1, presence.username);
+                if (batch) {
+                    deleteStatement.addBatch();
+                } else {
+                    deleteStatement.execute();
+                }
+            }
+            if (batch) {
+                deleteStatement.executeBatch();
+            }
+            insertStatement = con.prepareStatement(INSERT_OFFLINE_PRESENCE);
+            int inserts = 0;
+            for (PendingPresence presence : presences) {
+                if (presence.offlineDate == null) {
+                    continue;
+                }
+                insertStatement.setString(1, presence.username);
+                if (presence.offlinePresence != null) {
+                    DbConnectionManager.setLargeTextField(insertStatement, 2, presence.offlinePresence);
+                } else {
+                    insertStatement.setNull(2, Types.VARCHAR);
+                }
+                insertStatement.setString(3, StringUtils.dateToMillis(presence.offlineDate));
+                if (batch) {
+                    insertStatement.addBatch();
+                } else {
+                    insertStatement.execute();
+                }
+                inserts++;
+            }
+            if (batch && inserts > 0) {
+                insertStatement.executeBatch();
+            }
         } catch (SQLException sqle) {
-            Log.error("Error storing offline presence of user: " + username, sqle);
+            Log.error("Error storing offline presence of {} users.", presences.size(), sqle);
+            abortTransaction = true;
         } finally {
-            DbConnectionManager.closeConnection(pstmt, con);
+            DbConnectionManager.closeStatement(insertStatement);
+            DbConnectionManager.closeStatement(deleteStatement);
+            DbConnectionManager.closeTransactionConnection(con, abortTransaction);
         }
     }
 
@@ -494,7 +602,7 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
     @Override
     public void userDeleting(User user, Map<String, Object> params) {
         // Delete user information
-        deleteOfflinePresenceFromDB(user.getUsername());
+        persist(new PendingPresence(user.getUsername(), null, null));
         offlinePresenceCache.remove(user.getUsername());
         lastActivityCache.remove(user.getUsername());
     }
@@ -531,7 +639,10 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         componentManager = InternalComponentManager.getInstance();
         // Listen for user deletion events
         UserEventDispatcher.addListener(this);
-
+        if (STORE_ASYNC.getValue()) {
+            archiver = new OfflinePresenceArchiver(STORE_BATCH_SIZE.getValue(), STORE_BATCH_INTERVAL.getValue(), STORE_BATCH_GRACE_PERIOD.getValue());
+            XMPPServer.getInstance().getArchiveManager().add(archiver);
+        }
     }
 
     @Override
@@ -541,6 +652,20 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         lastActivityCache.clear();
         // Stop listening for user deletion events
         UserEventDispatcher.removeListener(this);
+        final OfflinePresenceArchiver archiver = this.archiver;
+        if (archiver != null) {
+            this.archiver = null;
+            XMPPServer.getInstance().getArchiveManager().remove(archiver);
+            // Write the presences that the archiver did not get to.
+            final List<PendingPresence> remaining = new ArrayList<>();
+            for (String username : new ArrayList<>(pending.keySet())) {
+                final PendingPresence presence = pending.remove(username);
+                if (presence != null) {
+                    remaining.add(presence);
+                }
+            }
+            store(remaining);
+        }
     }
 
     /**
@@ -555,7 +680,12 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         Lock lock = offlinePresenceCache.getLock(username);
         lock.lock();
         try {
-            if (!offlinePresenceCache.containsKey(username) || !lastActivityCache.containsKey(username)) {
+            final PendingPresence queued = pending.get(username);
+            if (queued != null) {
+                // The database is not yet up to date.
+                cache(queued.username, queued.offlinePresence, queued.offlineDate);
+            }
+            else if (!offlinePresenceCache.containsKey(username) || !lastActivityCache.containsKey(username)) {
                 con = DbConnectionManager.getConnection();
                 pstmt = con.prepareStatement(LOAD_OFFLINE_PRESENCE);
                 pstmt.setString(1, username);
@@ -584,6 +714,85 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         }
     }
 
+    @Override
+    public void preloadOfflinePresences(Collection<String> usernames) {
+        final List<String> missing = new ArrayList<>();
+        for (String username : usernames) {
+            final PendingPresence queued = pending.get(username);
+            if (queued != null) {
+                cache(queued.username, queued.offlinePresence, queued.offlineDate);
+            }
+            else if (!offlinePresenceCache.containsKey(username) || !lastActivityCache.containsKey(username)) {
+                missing.add(username);
+            }
+        }
+        for (int i = 0; i < missing.size(); i += PRELOAD_BATCH_SIZE) {
+            loadOfflinePresences(missing.subList(i, Math.min(missing.size(), i + PRELOAD_BATCH_SIZE)));
+        }
+    }
+
+    /**
+     * Loads the offline presence data of users into cache, using one query.
+     *
+     * @param usernames the usernames.
+     */
+    private void loadOfflinePresences(List<String> usernames) {
+        final Map<String, String> offlinePresences = new HashMap<>();
+        final Map<String, Long> offlineDates = new HashMap<>();
+        final StringBuilder sql = new StringBuilder(LOAD_OFFLINE_PRESENCES).append('(');
+        for (int i = 0; i < usernames.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(')');
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(sql.toString());
+            for (int i = 0; i < usernames.size(); i++) {
+                pstmt.setString(i + 1, usernames.get(i));
+            }
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                final String username = rs.getString(1);
+                String offlinePresence = DbConnectionManager.getLargeTextField(rs, 2);
+                if (rs.wasNull()) {
+                    offlinePresence = NULL_STRING;
+                }
+                offlinePresences.put(username, offlinePresence);
+                offlineDates.put(username, Long.parseLong(rs.getString(3).trim()));
+            }
+        }
+        catch (SQLException sqle) {
+            // The data is loaded for each user individually when needed.
+            Log.error("Unable to load the offline presence of {} users.", usernames.size(), sqle);
+            return;
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        for (String username : usernames) {
+            final Lock lock = offlinePresenceCache.getLock(username);
+            lock.lock();
+            try {
+                // Do not overwrite data that was cached or queued after the query was executed.
+                if (!pending.containsKey(username) && (!offlinePresenceCache.containsKey(username) || !lastActivityCache.containsKey(username))) {
+                    offlinePresenceCache.put(username, offlinePresences.getOrDefault(username, NULL_STRING));
+                    lastActivityCache.put(username, offlineDates.getOrDefault(username, NULL_LONG));
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void cache(String username, String offlinePresence, Date offlineDate) {
+        offlinePresenceCache.put(username, offlinePresence == null ? NULL_STRING : offlinePresence);
+        lastActivityCache.put(username, offlineDate == null ? NULL_LONG : offlineDate.getTime());
+    }
+
     @Override
     public void serverStarted() {
     }
@@ -593,11 +802,57 @@ public class PresenceManagerImpl extends BasicModule implements PresenceManager,
         for (ClientSession session : XMPPServer.getInstance().getSessionManager().getSessions()) {
             if (!session.isAnonymousUser()) {
                 try {
-                    writeToDatabase(session.getUsername(), null, new Date());
+                    persist(new PendingPresence(session.getUsername(), null, new Date()));
                 } catch (UserNotFoundException e) {
                     Log.error(e.getMessage(), e);
                 }
             }
         }
     }
+
+    /**
+     * The offline presence of a user that is yet to be written to the database.
+     */
+    static class PendingPresence {
+        final String username;
+
+        /**
+         * The presence stanza, or null if the presence did not have any child elements.
+         */
+        final String offlinePresence;
+
+        /**
+         * The moment that the user went offline, or null if the stored presence is to be deleted.
+         */
+        final Date offlineDate;
+
+        PendingPresence(String username, String offlinePresence, Date offlineDate) {
+            this.username = username;
+            this.offlinePresence = offlinePresence;
+            this.offlineDate = offlineDate;
+        }
+    }
+
+    /**
+     * Writes queued offline presences to the database, in batches.
+     */
+    class OfflinePresenceArchiver extends Archiver<String> {
+
+        OfflinePresenceArchiver(int maxWorkQueueSize, Duration maxPurgeInterval, Duration gracePeriod) {
+            super("Offline Presence Store", maxWorkQueueSize, maxPurgeInterval, gracePeriod);
+        }
+
+        @Override
+        protected void store(List<String> batch) {
+            final List<PendingPresence> presences = new ArrayList<>(batch.size());
+            for (String username : batch) {
+                // Take the latest state of the user. Null when a previous batch already wrote it.
+                final PendingPresence presence = pending.remove(username);
+                if (presence != null) {
+                    presences.add(presence);
+                }
+            }
+            PresenceManagerImpl.this.store(presences);
+        }
+    }
 }
@@ -368,18 +368,50 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         }
 
         if (!routed) {
-            if (Log.isDebugEnabled()) {
-                Log.debug("Failed to route packet to JID: {} packet: {}", jid, packet.toXML());
-            }
-            if (packet instanceof IQ) {
-                iqRouter.routingFailed(jid, packet);
+            routingFailed(jid, packet);
+        }
+    }
+
+    @Override
+    public void routePackets(List<? extends Packet> packets, boolean fromServer) throws PacketException {
+        int start = 0;
+        while (start < packets.size()) {
+            final Packet first = packets.get(start);
+            int end = start + 1;
+            if (first.getFrom() != null && isRemoteDomain(first.getTo())) {
+                // Collect the consecutive packets that can be delivered over the same server session.
+                while (end < packets.size()
+                    && first.getFrom().equals(packets.get(end).getFrom())
+                    && first.getTo().getDomain().equals(packets.get(end).getTo().getDomain())) {
+                    end++;
+                }
             }
-            else if (packet instanceof Message) {
-                messageRouter.routingFailed(jid, packet);
+            if (end - start == 1) {
+                routePacket(first.getTo(), first, fromServer);
             }
-            else if (packet instanceof Presence) {
-                presenceRouter.routingFailed(jid, packet);
+            else {
+                routeToRemoteDomain(packets.subList(start, end));
             }
+            start = end;
+        }
+    }
+
+    private boolean isRemoteDomain(JID jid) {
+        return !serverName.equals(jid.getDomain()) && !(jid.getDomain().endsWith(serverName) && hasComponentRoute(jid));
+    }
+
+    private void routingFailed(JID jid, Packet packet) {
+        if (Log.isDebugEnabled()) {
+            Log.debug("Failed to route packet to JID: {} packet: {}", jid, packet.toXML());
+        }
+        if (packet instanceof IQ) {
+            iqRouter.routingFailed(jid, packet);
+        }
+        else if (packet instanceof Message) {
+            messageRouter.routingFailed(jid, packet);
+        }
+        else if (packet instanceof Presence) {
+            presenceRouter.routingFailed(jid, packet);
         }
     }
 
@@ -593,18 +625,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
      *         {@code false} otherwise.
      */
     private boolean routeToRemoteDomain(JID jid, Packet packet) {
-        if ( !JiveGlobals.getBooleanProperty( ConnectionSettings.Server.ALLOW_ANONYMOUS_OUTBOUND_DATA, false ) )
-        {
-            // Disallow anonymous local users to send data to other domains than the local domain.
-            if ( isAnonymousRoute( packet.getFrom() ) )
-            {
-                Log.info( "The anonymous user '{}' attempted to send data to '{}', which is on a remote domain. Openfire is configured to not allow anonymous users to send data to remote domains.", packet.getFrom(), jid );
-                return false;
-            }
-        }
-
-        if (!RemoteServerManager.canAccess(jid.getDomain())) { // Check if the remote domain is in the blacklist
-            Log.info( "Will not route: Remote domain {} is not accessible according to our configuration (typical causes: server federation is disabled, or domain is blacklisted).", jid.getDomain() );
+        if (!canRouteToRemoteDomain(packet.getFrom(), jid)) {
             return false;
         }
 
@@ -659,6 +680,99 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         }
     }
     
+    /**
+     * Checks if data can be sent from a local address to a remote domain.
+     *
+     * @param from the sender of the data.
+     * @param jid the recipient of the data.
+     * @return {@code true} if the data is allowed to be sent, {@code false} otherwise.
+     */
+    private boolean canRouteToRemoteDomain(JID from, JID jid) {
+        if ( !JiveGlobals.getBooleanProperty( ConnectionSettings.Server.ALLOW_ANONYMOUS_OUTBOUND_DATA, false ) )
+        {
+            // Disallow anonymous local users to send data to other domains than the local domain.
+            if ( isAnonymousRoute( from ) )
+            {
+                Log.info( "The anonymous user '{}' attempted to send data to '{}', which is on a remote domain. Openfire is configured to not allow anonymous users to send data to remote domains.", from, jid );
+                return false;
+            }
+        }
+
+        if (!RemoteServerManager.canAccess(jid.getDomain())) { // Check if the remote domain is in the blacklist
+            Log.info( "Will not route: Remote domain {} is not accessible according to our configuration (typical causes: server federation is disabled, or domain is blacklisted).", jid.getDomain() );
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Routes packets that all have the same sender, and recipients in the same remote domain. This
+     * is equivalent to routing each packet with {@link #routeToRemoteDomain(JID, Packet)}, but the
+     * checks and the lookup of the route are done once, after which the packets are written to the
+     * server session one after the other, while holding the mutex of the domain pair.
+     *
+     * @param packets the packets to route, in order.
+     */
+    private void routeToRemoteDomain(List<? extends Packet> packets) {
+        final Packet first = packets.get(0);
+        int routed = 0;
+        try {
+            if (canRouteToRemoteDomain(first.getFrom(), first.getTo())) {
+                DomainPair domainPair = new DomainPair(first.getFrom().getDomain(), first.getTo().getDomain());
+
+                Log.trace("Routing {} stanzas to remote domain: {}", packets.size(), domainPair);
+
+                // The mutex is held for all stanzas, for the reasons that are documented in routeToRemoteDomain(JID, Packet).
+                synchronized (OutgoingSessionPromise.getInstance().getMutex(domainPair))
+                {
+                    if (OutgoingSessionPromise.getInstance().hasProcess(domainPair)) {
+                        Log.trace("An outgoing session for {} is in process of being established. Queuing stanzas for delivery when that's done.", domainPair);
+                        for (; routed < packets.size(); routed++) {
+                            OutgoingSessionPromise.getInstance().queue(domainPair, packets.get(routed));
+                        }
+                    } else {
+                        NodeID nodeID = serversCache.get(domainPair);
+                        if (nodeID == null) {
+                            Log.trace("A new outgoing session for {} is needed. Instantiating a new queue stanzas for delivery when that's done.", domainPair);
+                            OutgoingSessionPromise.getInstance().createProcess(domainPair, first);
+                            for (routed = 1; routed < packets.size(); routed++) {
+                                OutgoingSessionPromise.getInstance().queue(domainPair, packets.get(routed));
+                            }
+                        } else if (server.getNodeID().equals(nodeID)) {
+                            Log.trace("An outgoing session for {} is available on the local cluster node. Delivering stanzas.", domainPair);
+                            final RoutableChannelHandler route = localRoutingTable.getRoute(domainPair);
+                            while (routed < packets.size()) {
+                                try {
+                                    route.process(packets.get(routed));
+                                } catch (UnauthorizedException e) {
+                                    Log.error("Unable to route packet " + packets.get(routed).toXML(), e);
+                                    routingFailed(packets.get(routed).getTo(), packets.get(routed));
+                                }
+                                routed++;
+                            }
+                        } else if (remotePacketRouter != null) {
+                            Log.trace("An outgoing session for {} is available on a remote cluster node. Asking that node to deliver stanzas.", domainPair);
+                            while (routed < packets.size()) {
+                                final Packet packet = packets.get(routed);
+                                if (!remotePacketRouter.routePacket(nodeID.toByteArray(), packet.getTo(), packet)) {
+                                    routingFailed(packet.getTo(), packet);
+                                }
+                                routed++;
+                            }
+                        } else {
+                            Log.error("An outgoing session for {} is available on a remote cluster node, but no RemotePacketRouter exists!", domainPair);
+                        }
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            Log.error("Primary packet routing failed", ex);
+        }
+        for (; routed < packets.size(); routed++) {
+            routingFailed(packets.get(routed).getTo(), packets.get(routed));
+        }
+    }
+
     /**
      * Returns true if the specified packet must only be route to available client sessions.
      *
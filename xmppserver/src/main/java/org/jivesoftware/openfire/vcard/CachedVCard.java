@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.vcard;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.util.Base64;
+import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.cache.CacheSizes;
+import org.jivesoftware.util.cache.Cacheable;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A vCard in the compact form in which it is cached by {@link VCardManager}.
+ *
+ * The vCard is kept as serialized XML, instead of as an element tree. The photo (the text of PHOTO/BINVAL), which
+ * usually makes up most of a vCard, is kept apart from the other fields. That way, an element can be created by
+ * parsing only the (small) remaining fields, after which the photo is added as a single text node.
+ *
+ * The SHA-1 hash of the photo, as used to announce avatars in presence (XEP-0153), is computed once, when the vCard
+ * is cached.
+ */
+public class CachedVCard implements Cacheable, Externalizable
+{
+    private byte[] fields;
+    private byte[] photo;
+    private String photoHash;
+
+    /**
+     * Constructor added for Externalizable. Do not use this constructor.
+     */
+    public CachedVCard()
+    {
+    }
+
+    /**
+     * Creates the cached form of a vCard. The provided element is not modified.
+     *
+     * @param vCard the vCard.
+     */
+    public CachedVCard(@Nonnull final Element vCard)
+    {
+        final Element binval = getPhotoElement(vCard);
+        if (binval == null) {
+            fields = vCard.asXML().getBytes(StandardCharsets.UTF_8);
+            photo = null;
+            photoHash = null;
+        } else {
+            final String text = binval.getText();
+            final byte[] decoded = Base64.decode(text);
+            photo = text.getBytes(StandardCharsets.UTF_8);
+            photoHash = decoded == null ? null : StringUtils.hash(decoded, "SHA-1");
+            final Element copy = vCard.createCopy();
+            getPhotoElement(copy).setText("");
+            fields = copy.asXML().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Nullable
+    private static Element getPhotoElement(@Nonnull final Element vCard)
+    {
+        final Element photo = vCard.element("PHOTO");
+        return photo == null ? null : photo.element("BINVAL");
+    }
+
+    /**
+     * Creates a new element that represents this vCard. Changes to the returned element do not affect this instance.
+     *
+     * @return the vCard.
+     * @throws DocumentException if the cached XML cannot be parsed (which is not expected to happen).
+     */
+    @Nonnull
+    public Element toElement() throws DocumentException
+    {
+        final Element vCard = DocumentHelper.parseText(new String(fields, StandardCharsets.UTF_8)).getRootElement();
+        vCard.detach();
+        if (photo != null) {
+            final Element binval = getPhotoElement(vCard);
+            if (binval != null) {
+                binval.setText(new String(photo, StandardCharsets.UTF_8));
+            }
+        }
+        return vCard;
+    }
+
+    /**
+     * Returns the hex-encoded SHA-1 hash of the photo of this vCard.
+     *
+     * @return the hash of the photo, or null when this vCard does not have a (valid) photo.
+     */
+    @Nullable
+    public String getPhotoHash()
+    {
+        return photoHash;
+    }
+
+    @Override
+    public int getCachedSize()
+    {
+        int size = CacheSizes.sizeOfObject();
+        size += CacheSizes.sizeOfObject() + fields.length;
+        size += CacheSizes.sizeOfObject() + (photo == null ? 0 : photo.length);
+        size += CacheSizes.sizeOfString(photoHash);
+        return size;
+    }
+
+    @Override
+    public boolean equals(final Object o)
+    {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final CachedVCard that = (CachedVCard) o;
+        return Arrays.equals(fields, that.fields) && Arrays.equals(photo, that.photo);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31 * Arrays.hashCode(fields) + Arrays.hashCode(photo);
+    }
+
+    @Override
+    public void writeExternal(@Nonnull final ObjectOutput out) throws IOException
+    {
+        final ExternalizableUtil util = ExternalizableUtil.getInstance();
+        util.writeByteArray(out, fields);
+        util.writeBoolean(out, photo != null);
+        if (photo != null) {
+            util.writeByteArray(out, photo);
+        }
+        util.writeBoolean(out, photoHash != null);
+        if (photoHash != null) {
+            util.writeSafeUTF(out, photoHash);
+        }
+    }
+
+    @Override
+    public void readExternal(@Nonnull final ObjectInput in) throws IOException
+    {
+        final ExternalizableUtil util = ExternalizableUtil.getInstance();
+        fields = util.readByteArray(in);
+        photo = util.readBoolean(in) ? util.readByteArray(in) : null;
+        photoHash = util.readBoolean(in) ? util.readSafeUTF(in) : null;
+    }
+}
@@ -21,8 +21,8 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.StringTokenizer;
 
+import org.dom4j.DocumentException;
 import org.dom4j.Element;
-import org.dom4j.tree.DefaultElement;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.disco.ServerFeaturesProvider;
@@ -59,7 +59,15 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
 
     private EventHandler eventHandler;
 
-    private Cache<String, DefaultElement> vcardCache;
+    private Cache<String, CachedVCard> vcardCache;
+
+    /**
+     * The hashes of the photos of vCards, by username. An empty value denotes a user that does not have a photo. This
+     * is kept apart from the vCards, so that the hash can be obtained without loading (or in a cluster, transferring)
+     * the vCard.
+     */
+    private Cache<String, String> photoHashCache;
+
     public static VCardManager getInstance() {
         return instance;
     }
@@ -80,6 +88,7 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
         super("VCard Manager");
         String cacheName = "VCard";
         vcardCache = CacheFactory.createCache(cacheName);
+        photoHashCache = CacheFactory.createCache("VCard Photo Hashes");
         this.eventHandler = new EventHandler();
 
         // Keeps the cache updated in case the vCard action was not performed by VCardManager
@@ -87,19 +96,20 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
             @Override
             public void vCardCreated(String username, Element vCard) {
                 // Since the vCard could be created by the provider, add it to the cache.
-                vcardCache.put(username, (DefaultElement) vCard);
+                cacheVCard(username, new CachedVCard(vCard));
             }
 
             @Override
             public void vCardUpdated(String username, Element vCard) {
                 // Since the vCard could be updated by the provider, update it to the cache.
-                vcardCache.put(username, (DefaultElement) vCard);
+                cacheVCard(username, new CachedVCard(vCard));
             }
 
             @Override
             public void vCardDeleted(String username, Element vCard) {
                 // Since the vCard could be delated by the provider, remove it to the cache.
                 vcardCache.remove(username);
+                photoHashCache.remove(username);
             }
         });
     }
@@ -123,7 +133,7 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
      */
     public String getVCardProperty(String username, String name) {
         String answer = null;
-        Element vCardElement = getOrLoadVCard(username);
+        Element vCardElement = getVCard(username);
         if (vCardElement != null) {
             // A vCard was found for this user so now look for the correct element
             Element subElement = null;
@@ -163,21 +173,21 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
         if (provider.isReadOnly()) {
             throw new UnsupportedOperationException("VCard provider is read-only.");
         }
-        Element oldVCard = getOrLoadVCard(username);
+        CachedVCard oldVCard = getOrLoadVCard(username);
         Element newvCard = null;
         // See if we need to update the vCard or insert a new one.
         if (oldVCard != null) {
             // Only update the vCard in the database if the vCard has changed.
-            if (!oldVCard.equals(vCardElement)) {
+            if (!oldVCard.equals(new CachedVCard(vCardElement))) {
                 try {
                     newvCard = provider.updateVCard(username, vCardElement);
-                    vcardCache.put(username, (DefaultElement) newvCard);
+                    cacheVCard(username, new CachedVCard(newvCard));
                     updated = true;
                 }
                 catch (NotFoundException e) {
                     Log.warn("Tried to update a vCard that does not exist", e);
                     newvCard = provider.createVCard(username, vCardElement);
-                    vcardCache.put(username, (DefaultElement) newvCard);
+                    cacheVCard(username, new CachedVCard(newvCard));
                     created = true;
                 }
             }
@@ -185,13 +195,13 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
         else {
             try {
                 newvCard = provider.createVCard(username, vCardElement);
-                vcardCache.put(username, (DefaultElement) newvCard);
+                cacheVCard(username, new CachedVCard(newvCard));
                 created = true;
             }
             catch (AlreadyExistsException e) {
                 Log.warn("Tried to create a vCard when one already exist", e);
                 newvCard = provider.updateVCard(username, vCardElement);
-                vcardCache.put(username, (DefaultElement) newvCard);
+                cacheVCard(username, new CachedVCard(newvCard));
                 updated = true;
             }
         }
@@ -216,9 +226,10 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
         if (provider.isReadOnly()) {
             throw new UnsupportedOperationException("VCard provider is read-only.");
         }
-        Element oldVCard = getOrLoadVCard(username);
+        Element oldVCard = getVCard(username);
         if (oldVCard != null) {
             vcardCache.remove(username);
+            photoHashCache.remove(username);
             // Delete the property from the DB if it was present in memory
             provider.deleteVCard(username);
             // Alert listeners that a vCard has been deleted
@@ -228,26 +239,58 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
 
     /**
      * Returns the vCard of a given user or null if none was defined before. Changes to the
-     * returned vCard will not be stored in the database. Use the returned vCard as a
-     * read-only vCard.
+     * returned vCard will not be stored in the database. Every invocation returns a new
+     * element, which can be modified by the caller.
      *
      * @param username Username (not full JID) whose vCard to retrieve.
      * @return the vCard of a given user.
      */
     public Element getVCard(String username) {
-        Element vCardElement = getOrLoadVCard(username);
-        return vCardElement == null ? null : vCardElement.createCopy();
+        CachedVCard vCard = getOrLoadVCard(username);
+        if (vCard == null) {
+            return null;
+        }
+        try {
+            return vCard.toElement();
+        }
+        catch (DocumentException e) {
+            Log.error("Unable to parse the cached vCard of user: " + username, e);
+            return null;
+        }
     }
 
-    private Element getOrLoadVCard(String username) {
-        Element vCardElement = vcardCache.get(username);
-        if (vCardElement == null) {
-            vCardElement = provider.loadVCard(username);
+    /**
+     * Returns the hex-encoded SHA-1 hash of the photo in the vCard of a user, as used to
+     * announce avatars in presence (XEP-0153).
+     *
+     * @param username Username (not full JID) whose photo hash to retrieve.
+     * @return the hash, or null if the user does not have a vCard with a photo.
+     */
+    public String getPhotoHash(String username) {
+        String hash = photoHashCache.get(username);
+        if (hash == null) {
+            CachedVCard vCard = getOrLoadVCard(username);
+            hash = vCard == null || vCard.getPhotoHash() == null ? "" : vCard.getPhotoHash();
+            photoHashCache.put(username, hash);
+        }
+        return hash.isEmpty() ? null : hash;
+    }
+
+    private CachedVCard getOrLoadVCard(String username) {
+        CachedVCard vCard = vcardCache.get(username);
+        if (vCard == null) {
+            Element vCardElement = provider.loadVCard(username);
             if (vCardElement != null) {
-                vcardCache.put(username, (DefaultElement) vCardElement);
+                vCard = new CachedVCard(vCardElement);
+                cacheVCard(username, vCard);
             }
         }
-        return vCardElement;
+        return vCard;
+    }
+
+    private void cacheVCard(String username, CachedVCard vCard) {
+        vcardCache.put(username, vCard);
+        photoHashCache.put(username, vCard.getPhotoHash() == null ? "" : vCard.getPhotoHash());
     }
 
     @Override
@@ -288,6 +331,7 @@ public class VCardManager extends BasicModule implements ServerFeaturesProvider
      */
     public void reset() {
         vcardCache.clear();
+        photoHashCache.clear();
     }
 
     @Override
@@ -23,6 +23,10 @@
 <%@ page import="org.jivesoftware.util.JiveGlobals"%>
 <%@ page import="org.jivesoftware.database.ProfiledConnection"%>
 <%@ page import="org.jivesoftware.database.ProfiledConnectionEntry"%>
+<%@ page import="org.jivesoftware.database.LatencyHistogram"%>
+<%@ page import="org.jivesoftware.database.StatementMetrics"%>
+<%@ page import="java.util.Date"%>
+<%@ page import="java.util.List"%>
 <%@ page import="org.jivesoftware.util.ParamUtils"%>
 <%@ page import="org.jivesoftware.util.CookieUtils"%>
 <%@ page import="org.jivesoftware.util.LocaleUtils"%>
@@ -43,6 +47,7 @@
 <%
     // Get parameters
     boolean doClear = request.getParameter("doClear") != null;
+    boolean doClearMetrics = request.getParameter("doClearMetrics") != null;
     String enableStats = ParamUtils.getParameter(request,"enableStats");
     int refresh = ParamUtils.getIntParameter(request,"refresh", -1);
     boolean doSortByTime = ParamUtils.getBooleanParameter(request,"doSortByTime");
@@ -53,6 +58,7 @@
     if (csrfCookie == null || csrfParam == null || !csrfCookie.getValue().equals(csrfParam)) {
         csrf_check = false;
         doClear = false;
+        doClearMetrics = false;
     }
     csrfParam = StringUtils.randomString(16);
     CookieUtils.setCookie(request, response, "csrf", csrfParam, -1);
@@ -68,6 +74,15 @@
         response.sendRedirect("server-db-stats.jsp");
     }
 
+    // Clear the statement metrics
+    if (doClearMetrics) {
+        StatementMetrics.getInstance().reset();
+        webManager.logEvent("cleared db statement metrics", null);
+        // Reload the page without params.
+        response.sendRedirect("server-db-stats.jsp");
+        return;
+    }
+
     if (csrf_check) {
         // Enable/disable stats
         if ("true".equals(enableStats) && ! DbConnectionManager.isProfilingEnabled()) {
@@ -444,5 +459,129 @@
 
 <% } %>
 
+<%
+    final StatementMetrics metrics = StatementMetrics.getInstance();
+    final LatencyHistogram poolWait = metrics.getPoolWait();
+    final LatencyHistogram holdTime = metrics.getHoldTime();
+    final List<StatementMetrics.Template> templates = metrics.getTemplates();
+    final List<StatementMetrics.SlowQuery> slowQueries = metrics.getSlowQueries();
+%>
+
+<br>
+<div class="jive-contentBox jive-contentBoxGrey" style="width: 732px;">
+<h3><fmt:message key="server.db_stats.metrics" /></h3>
+<p>
+    <fmt:message key="server.db_stats.metrics.description">
+        <fmt:param value="<%= JiveGlobals.formatDateTime(new Date(metrics.getSince())) %>"/>
+    </fmt:message>
+</p>
+<form action="server-db-stats.jsp">
+    <input type="hidden" name="csrf" value="${csrf}">
+    <input type="submit" name="doClearMetrics" value="<fmt:message key="server.db_stats.clear_stats" />">
+</form>
+</div>
+
+<b><fmt:message key="server.db_stats.metrics.connections" /></b>
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th>&nbsp;</th>
+        <th nowrap><fmt:message key="server.db_stats.count" /></th>
+        <th nowrap>p50 (ms)</th>
+        <th nowrap>p99 (ms)</th>
+        <th nowrap>p99.9 (ms)</th>
+        <th nowrap>max (ms)</th>
+    </tr>
+</thead>
+<tbody>
+    <tr class="jive-odd">
+        <td><fmt:message key="server.db_stats.metrics.pool_wait" /></td>
+        <td><%= intFormat.format(poolWait.getCount()) %></td>
+        <td><%= decFormat.format(poolWait.getPercentileMillis(50)) %></td>
+        <td><%= decFormat.format(poolWait.getPercentileMillis(99)) %></td>
+        <td><%= decFormat.format(poolWait.getPercentileMillis(99.9)) %></td>
+        <td><%= decFormat.format(poolWait.getMaxMillis()) %></td>
+    </tr>
+    <tr class="jive-even">
+        <td><fmt:message key="server.db_stats.metrics.hold_time" /></td>
+        <td><%= intFormat.format(holdTime.getCount()) %></td>
+        <td><%= decFormat.format(holdTime.getPercentileMillis(50)) %></td>
+        <td><%= decFormat.format(holdTime.getPercentileMillis(99)) %></td>
+        <td><%= decFormat.format(holdTime.getPercentileMillis(99.9)) %></td>
+        <td><%= decFormat.format(holdTime.getMaxMillis()) %></td>
+    </tr>
+</tbody>
+</table>
+</div>
+<br>
+
+<b><fmt:message key="server.db_stats.metrics.templates" /></b>
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th nowrap><fmt:message key="server.db_stats.query" /></th>
+        <th nowrap><fmt:message key="server.db_stats.count" /></th>
+        <th nowrap><fmt:message key="server.db_stats.metrics.errors" /></th>
+        <th nowrap><fmt:message key="server.db_stats.time" /> (ms)</th>
+        <th nowrap><fmt:message key="server.db_stats.average_time" /> (ms)</th>
+        <th nowrap>p50 (ms)</th>
+        <th nowrap>p99 (ms)</th>
+        <th nowrap>max (ms)</th>
+    </tr>
+</thead>
+<tbody>
+<%  if (templates.isEmpty()) { %>
+    <tr><td colspan="8"><fmt:message key="server.db_stats.no_queries" /></td></tr>
+<%  }
+    for (int i = 0; i < Math.min(templates.size(), 20); i++) {
+        final StatementMetrics.Template template = templates.get(i);
+        final LatencyHistogram histogram = template.getHistogram();
+%>
+    <tr class="<%= (i % 2 == 0) ? "jive-odd" : "jive-even" %>">
+        <td><%= StringUtils.escapeHTMLTags(template.getSql()) %></td>
+        <td><%= intFormat.format(histogram.getCount()) %></td>
+        <td><%= intFormat.format(template.getErrorCount()) %></td>
+        <td><%= decFormat.format(histogram.getTotalMillis()) %></td>
+        <td><%= decFormat.format(histogram.getMeanMillis()) %></td>
+        <td><%= decFormat.format(histogram.getPercentileMillis(50)) %></td>
+        <td><%= decFormat.format(histogram.getPercentileMillis(99)) %></td>
+        <td><%= decFormat.format(histogram.getMaxMillis()) %></td>
+    </tr>
+<%  } %>
+</tbody>
+</table>
+</div>
+<br>
+
+<b><fmt:message key="server.db_stats.metrics.slow_queries"><fmt:param value="<%= intFormat.format(metrics.getSlowQueryCount()) %>"/></fmt:message></b>
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th nowrap><fmt:message key="server.db_stats.metrics.when" /></th>
+        <th nowrap><fmt:message key="server.db_stats.time" /> (ms)</th>
+        <th nowrap><fmt:message key="server.db_stats.query" /></th>
+        <th nowrap><fmt:message key="server.db_stats.metrics.origin" /></th>
+    </tr>
+</thead>
+<tbody>
+<%  if (slowQueries.isEmpty()) { %>
+    <tr><td colspan="4"><fmt:message key="server.db_stats.no_queries" /></td></tr>
+<%  }
+    for (int i = 0; i < Math.min(slowQueries.size(), 20); i++) {
+        final StatementMetrics.SlowQuery slowQuery = slowQueries.get(i);
+%>
+    <tr class="<%= (i % 2 == 0) ? "jive-odd" : "jive-even" %>" valign="top">
+        <td nowrap><%= JiveGlobals.formatDateTime(new Date(slowQuery.getTimestamp())) %><br><%= StringUtils.escapeHTMLTags(slowQuery.getThreadName()) %></td>
+        <td><%= intFormat.format(slowQuery.getDurationMillis()) %></td>
+        <td><%= StringUtils.escapeHTMLTags(slowQuery.getSql()) %></td>
+        <td><pre style="margin: 0; font-size: smaller;"><%= StringUtils.escapeHTMLTags(slowQuery.getOrigin()) %></pre></td>
+    </tr>
+<%  } %>
+</tbody>
+</table>
+</div>
 
 </body></html>
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.database;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests that verify the implementation of {@link InstrumentedConnection}.
+ */
+public class InstrumentedConnectionTest
+{
+    /**
+     * Verifies that executions of a prepared statement are recorded under its SQL, including failed executions.
+     */
+    @Test
+    public void testPreparedStatement() throws Exception
+    {
+        // Setup test fixture.
+        final String sql = "SELECT name FROM ofUser WHERE username=?";
+        final PreparedStatement pstmt = mock(PreparedStatement.class);
+        when(pstmt.executeUpdate()).thenReturn(1).thenThrow(new SQLException("test"));
+        final Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(sql)).thenReturn(pstmt);
+        final StatementMetrics metrics = new StatementMetrics();
+        final Connection instrumented = new InstrumentedConnection(connection, metrics, Long.MAX_VALUE);
+
+        // Execute system under test.
+        final PreparedStatement statement = instrumented.prepareStatement(sql);
+        statement.executeUpdate();
+        try {
+            statement.executeUpdate();
+            fail("An exception was expected.");
+        } catch (final SQLException expected) {
+            // Expected.
+        }
+        instrumented.close();
+
+        // Verify results.
+        final List<StatementMetrics.Template> templates = metrics.getTemplates();
+        assertEquals(1, templates.size());
+        assertEquals(sql, templates.get(0).getSql());
+        assertEquals(2, templates.get(0).getHistogram().getCount());
+        assertEquals(1, templates.get(0).getErrorCount());
+        assertEquals(1, metrics.getHoldTime().getCount());
+        verify(connection).close();
+    }
+
+    /**
+     * Verifies that executions of plain statements that differ only in literal values are recorded under the same
+     * template, and that executions exceeding the threshold are sampled with the code that executed them.
+     */
+    @Test
+    public void testStatementTemplateAndSlowQuery() throws Exception
+    {
+        // Setup test fixture.
+        final Statement stmt = mock(Statement.class);
+        final Connection connection = mock(Connection.class);
+        when(connection.createStatement()).thenReturn(stmt);
+        final StatementMetrics metrics = new StatementMetrics();
+        final Connection instrumented = new InstrumentedConnection(connection, metrics, 0);
+
+        // Execute system under test.
+        final Statement statement = instrumented.createStatement();
+        statement.executeUpdate("DELETE FROM ofOffline WHERE username='john' AND messageID=12");
+        statement.executeUpdate("DELETE FROM ofOffline WHERE username='o''neil' AND messageID=345");
+
+        // Verify results.
+        final List<StatementMetrics.Template> templates = metrics.getTemplates();
+        assertEquals(1, templates.size());
+        assertEquals("DELETE FROM ofOffline WHERE username=? AND messageID=?", templates.get(0).getSql());
+        assertEquals(2, metrics.getSlowQueryCount());
+        assertTrue(metrics.getSlowQueries().get(0).getOrigin().contains(InstrumentedConnectionTest.class.getName()));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.database;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the implementation of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest
+{
+    /**
+     * Verifies that every bucket covers the values directly following those of the bucket before it.
+     */
+    @Test
+    public void testBucketsAreContiguous() throws Exception
+    {
+        // Setup test fixture.
+        long previousHighest = -1;
+
+        // Execute system under test & verify results.
+        for (long micros = 0; micros < 1_000_000; micros++) {
+            final int index = LatencyHistogram.bucketIndex(micros);
+            final long highest = LatencyHistogram.highestEquivalentValue(index);
+            assertTrue(highest >= micros);
+            if (highest != previousHighest) {
+                assertEquals(previousHighest + 1, micros);
+                previousHighest = highest;
+            }
+        }
+    }
+
+    /**
+     * Verifies that percentiles are reported within the precision of the histogram.
+     */
+    @Test
+    public void testPercentiles() throws Exception
+    {
+        // Setup test fixture.
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        // Execute system under test.
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        // Verify results.
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500.5, histogram.getMeanMillis(), 0.001);
+        assertEquals(1000, histogram.getMaxMillis(), 0.001);
+        assertEquals(500, histogram.getPercentileMillis(50), 500 * 0.07);
+        assertEquals(990, histogram.getPercentileMillis(99), 990 * 0.07);
+        assertEquals(1000, histogram.getPercentileMillis(100), 0.001);
+    }
+
+    /**
+     * Verifies that a histogram without values reports zeroes.
+     */
+    @Test
+    public void testReset() throws Exception
+    {
+        // Setup test fixture.
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(TimeUnit.SECONDS.toNanos(3));
+
+        // Execute system under test.
+        histogram.reset();
+
+        // Verify results.
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileMillis(99), 0);
+        assertEquals(0, histogram.getMaxMillis(), 0);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link OfflineMessageSpool}.
+ */
+public class OfflineMessageSpoolTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> readAll(final OfflineMessageSpool spool, final String username, final boolean delete)
+    {
+        final List<String> result = new ArrayList<>();
+        spool.process(username, delete, entry -> result.add(entry.xml));
+        return result;
+    }
+
+    /**
+     * Verifies that messages are returned in the order in which they were added, across multiple segments.
+     */
+    @Test
+    public void testMessagesAreReturnedInOrder() throws Exception
+    {
+        // Setup test fixture.
+        final OfflineMessageSpool spool = new OfflineMessageSpool(folder.getRoot().toPath(), 4096);
+        spool.open();
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final String xml = "<message to='john@example.org'><body>" + i + "</body></message>";
+            expected.add(xml);
+            spool.add("john", new Date(), xml);
+        }
+
+        // Execute system under test.
+        final List<String> result = readAll(spool, "john", false);
+
+        // Verify results.
+        assertEquals(expected, result);
+        assertEquals(100, spool.getCount("john"));
+        assertEquals(expected.stream().mapToInt(String::length).sum(), spool.getSize("john"));
+    }
+
+    /**
+     * Verifies that messages that are retrieved for deletion are removed from the spool and from disk.
+     */
+    @Test
+    public void testProcessWithDeleteRemovesMessages() throws Exception
+    {
+        // Setup test fixture.
+        final OfflineMessageSpool spool = new OfflineMessageSpool(folder.getRoot().toPath(), 4096);
+        spool.open();
+        spool.add("john", new Date(), "<message><body>a</body></message>");
+        spool.add("john", new Date(), "<message><body>b</body></message>");
+        final Path userDirectory = spool.userDirectory("john");
+
+        // Execute system under test.
+        final List<String> result = readAll(spool, "john", true);
+
+        // Verify results.
+        assertEquals(2, result.size());
+        assertTrue(readAll(spool, "john", true).isEmpty());
+        assertEquals(0, spool.getCount("john"));
+        assertEquals(0, spool.getSize("john"));
+        assertFalse(Files.exists(userDirectory));
+    }
+
+    /**
+     * Verifies that messages and totals are restored when a spool is reopened, with deleted messages excluded.
+     */
+    @Test
+    public void testStateIsRestoredOnOpen() throws Exception
+    {
+        // Setup test fixture.
+        final OfflineMessageSpool spool = new OfflineMessageSpool(folder.getRoot().toPath(), 4096);
+        spool.open();
+        final Date deleted = new Date(1000);
+        spool.add("john", new Date(500), "<message><body>a</body></message>");
+        spool.add("john", deleted, "<message><body>b</body></message>");
+        spool.add("jane", new Date(1500), "<message><body>c</body></message>");
+        spool.delete("john", deleted);
+        spool.close();
+
+        // Execute system under test.
+        final OfflineMessageSpool reopened = new OfflineMessageSpool(folder.getRoot().toPath(), 4096);
+        reopened.open();
+
+        // Verify results.
+        assertEquals(1, reopened.getCount("john"));
+        assertEquals(1, reopened.getCount("jane"));
+        assertEquals(2 * "<message><body>a</body></message>".length(), reopened.getSize());
+        assertTrue(reopened.get("john", deleted).isEmpty());
+        assertEquals(1, reopened.get("john", new Date(500)).size());
+    }
+
+    /**
+     * Verifies that maintenance removes messages that are older than the expiry cutoff, and updates the totals.
+     */
+    @Test
+    public void testMaintenanceExpiresMessages() throws Exception
+    {
+        // Setup test fixture.
+        final OfflineMessageSpool spool = new OfflineMessageSpool(folder.getRoot().toPath(), 4096);
+        spool.open();
+        spool.add("john", new Date(1000), "<message><body>old</body></message>");
+        spool.add("john", new Date(5000), "<message><body>new</body></message>");
+
+        // Execute system under test.
+        final int removed = spool.maintain(0, 2000L);
+
+        // Verify results.
+        assertEquals(1, removed);
+        assertEquals(1, spool.getCount("john"));
+        assertEquals(1, readAll(spool, "john", false).size());
+        assertTrue(readAll(spool, "john", false).get(0).contains("new"));
+    }
+
+    /**
+     * Verifies that segments that are replaced by compaction, but that could not be removed (as happens on Windows,
+     * where memory-mapped files cannot be removed), are not restored when the spool is reopened.
+     */
+    @Test
+    public void testCompactedSegmentsAreNotRestored() throws Exception
+    {
+        // Setup test fixture.
+        final OfflineMessageSpool spool = undeletableSegmentsSpool();
+        spool.open();
+        spool.add("john", new Date(1000), "<message><body>old</body></message>");
+        spool.add("john", new Date(5000), "<message><body>new</body></message>");
+        final List<Path> compacted = listSegments(spool.userDirectory("john"));
+        spool.maintain(0, 2000L);
+        spool.close();
+
+        // Execute system under test.
+        final OfflineMessageSpool reopened = new OfflineMessageSpool(folder.getRoot().toPath(), 4096);
+        reopened.open();
+
+        // Verify results.
+        assertEquals(1, reopened.getCount("john"));
+        final List<String> result = readAll(reopened, "john", false);
+        assertEquals(1, result.size());
+        assertTrue(result.get(0).contains("new"));
+        compacted.forEach(segment -> assertFalse(Files.exists(segment)));
+    }
+
+    /**
+     * Verifies that segments of which the messages have been retrieved for deletion, but that could not be removed,
+     * are not restored when the spool is reopened.
+     */
+    @Test
+    public void testRetrievedSegmentsAreNotRestored() throws Exception
+    {
+        // Setup test fixture.
+        final OfflineMessageSpool spool = undeletableSegmentsSpool();
+        spool.open();
+        spool.add("john", new Date(), "<message><body>a</body></message>");
+        spool.add("john", new Date(), "<message><body>b</body></message>");
+        final Path userDirectory = spool.userDirectory("john");
+        readAll(spool, "john", true);
+        spool.add("john", new Date(), "<message><body>c</body></message>");
+        spool.close();
+
+        // Execute system under test.
+        final OfflineMessageSpool reopened = new OfflineMessageSpool(folder.getRoot().toPath(), 4096);
+        reopened.open();
+
+        // Verify results.
+        assertEquals(1, reopened.getCount("john"));
+        final List<String> result = readAll(reopened, "john", true);
+        assertEquals(1, result.size());
+        assertTrue(result.get(0).contains("c"));
+        assertFalse(Files.exists(userDirectory));
+    }
+
+    /**
+     * Returns a spool of which segments cannot be removed, like on Windows while they are memory-mapped.
+     */
+    private OfflineMessageSpool undeletableSegmentsSpool()
+    {
+        return new OfflineMessageSpool(folder.getRoot().toPath(), 4096) {
+            @Override
+            void removeSegment(final Path segment) throws IOException
+            {
+                throw new AccessDeniedException(segment.toString());
+            }
+        };
+    }
+
+    private static List<Path> listSegments(final Path userDirectory) throws IOException
+    {
+        final List<Path> result = new ArrayList<>();
+        try (final DirectoryStream<Path> stream = Files.newDirectoryStream(userDirectory, "*.seg")) {
+            stream.forEach(result::add);
+        }
+        return result;
+    }
+}
@@ -1,11 +1,33 @@
 package org.jivesoftware.openfire;
 
+import org.jivesoftware.Fixtures;
+import org.jivesoftware.openfire.archive.ArchiveManager;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.PacketExtension;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
 
 /**
  * This tests the business rules for storing messages as described in <a href="http://xmpp.org/extensions/xep-0160.html#types">3. Handling of Message Types</a>.
@@ -14,6 +36,36 @@ import static org.junit.Assert.assertTrue;
  */
 public class OfflineMessageStoreTest {
 
+    private OfflineMessageStore store;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Fixtures.reconfigureOpenfireHome();
+        CacheFactory.initialize();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Fixtures.clearExistingProperties();
+        final XMPPServer xmppServer = Fixtures.mockXMPPServer();
+        when(xmppServer.getArchiveManager()).thenReturn(mock(ArchiveManager.class));
+        XMPPServer.setInstance(xmppServer);
+        Arrays.stream(CacheFactory.getAllCaches()).forEach(Map::clear);
+
+        // Messages are written to the database (which is replaced by a stub) by the archiver, which is not running.
+        store = spy(new OfflineMessageStore());
+        doReturn(true).when(store).insert(anyList());
+        doReturn(Collections.emptyList()).when(store).loadPage(anyString(), any(), anyLong(), anyInt());
+        doAnswer(invocation -> new HashMap<>()).when(store).loadSizes(anyString());
+        doReturn(true).when(store).delete(anyString(), anyCollection());
+        store.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.stop();
+    }
+
     @Test
     public void shouldNotStoreGroupChatMessages() {
         // XEP-0160: "groupchat" message types SHOULD NOT be stored offline
@@ -95,4 +147,128 @@ public class OfflineMessageStoreTest {
         message.addExtension(packetExtension2);
         assertTrue(OfflineMessageStore.shouldStoreMessage(message));
     }
+
+    /**
+     * Verifies that a message that is written on its own, and fails to be written, is queued again rather than lost.
+     */
+    @Test
+    public void shouldRetrySingleMessageThatFailedToBeStored() {
+        // Setup test fixture.
+        final OfflineMessageStore.PendingMessage message = new OfflineMessageStore.PendingMessage("john", 1, new Date(), "<message/>");
+        doReturn(false).doReturn(true).when(store).insert(anyList());
+
+        // Execute system under test.
+        store.store(Collections.singletonList(message));
+        final int stateAfterFailure = message.state.get();
+        final boolean storedAfterFailure = message.stored.isDone();
+        store.store(Collections.singletonList(message));
+
+        // Verify results.
+        assertEquals(OfflineMessageStore.PendingMessage.QUEUED, stateAfterFailure);
+        assertFalse(storedAfterFailure);
+        assertEquals(OfflineMessageStore.PendingMessage.DONE, message.state.get());
+        assertTrue(message.stored.isDone());
+        verify(store, times(2)).insert(Collections.singletonList(message));
+    }
+
+    /**
+     * Verifies that only the messages of a batch that fail to be written individually are queued again.
+     */
+    @Test
+    public void shouldRetryOnlyFailedMessagesOfBatch() {
+        // Setup test fixture.
+        final OfflineMessageStore.PendingMessage good = new OfflineMessageStore.PendingMessage("john", 1, new Date(), "<message/>");
+        final OfflineMessageStore.PendingMessage bad = new OfflineMessageStore.PendingMessage("jane", 2, new Date(), "<message/>");
+        doAnswer(invocation -> {
+            final List<OfflineMessageStore.PendingMessage> messages = invocation.getArgument(0);
+            return messages.size() == 1 && messages.get(0) == good;
+        }).when(store).insert(anyList());
+
+        // Execute system under test.
+        store.store(Arrays.asList(good, bad));
+
+        // Verify results.
+        assertEquals(OfflineMessageStore.PendingMessage.DONE, good.state.get());
+        assertTrue(good.stored.isDone());
+        assertEquals(OfflineMessageStore.PendingMessage.QUEUED, bad.state.get());
+        assertFalse(bad.stored.isDone());
+    }
+
+    /**
+     * Verifies that a message that repeatedly fails to be written is eventually discarded, and no longer counted.
+     */
+    @Test
+    public void shouldDiscardMessageAfterMaxAttempts() {
+        // Setup test fixture.
+        final OfflineMessageStore.PendingMessage message = new OfflineMessageStore.PendingMessage("john", 1, new Date(), "<message/>");
+        CacheFactory.createCache("Offline Message Count").put("john", 1);
+        CacheFactory.createCache("Offline Message Size").put("john", message.xml.length());
+        doReturn(false).when(store).insert(anyList());
+
+        // Execute system under test.
+        for (int i = 0; i < OfflineMessageStore.STORE_MAX_ATTEMPTS; i++) {
+            store.store(Collections.singletonList(message));
+        }
+
+        // Verify results.
+        assertEquals(OfflineMessageStore.PendingMessage.CANCELLED, message.state.get());
+        assertTrue(message.stored.isDone());
+        assertEquals(0, store.getCount("john"));
+        assertEquals(0, store.getSize("john"));
+    }
+
+    /**
+     * Verifies that a message that is retrieved while it is being written, and that is then discarded because it
+     * cannot be written, is removed from the totals once.
+     */
+    @Test
+    public void shouldNotDiscountRetrievedMessageAgainWhenDiscarded() throws Exception {
+        // Setup test fixture.
+        final OfflineMessageStore.PendingMessage message = new OfflineMessageStore.PendingMessage("john", 1, new Date(), "<message/>");
+        message.failedAttempts = OfflineMessageStore.STORE_MAX_ATTEMPTS - 1;
+        store.enqueue(message);
+        assertEquals(1, store.getCount("john"));
+        final List<OfflineMessage> retrieved = new ArrayList<>();
+        doAnswer(invocation -> {
+            // The message is retrieved while it is being written, after which another message arrives.
+            retrieved.addAll(store.getMessages("john", true));
+            store.enqueue(new OfflineMessageStore.PendingMessage("john", 2, new Date(), "<message/>"));
+            return false;
+        }).when(store).insert(Collections.singletonList(message));
+
+        // Execute system under test.
+        store.store(Collections.singletonList(message));
+
+        // Verify results.
+        assertEquals(1, retrieved.size());
+        assertEquals(OfflineMessageStore.PendingMessage.CANCELLED, message.state.get());
+        assertEquals(1, store.getCount("john"));
+        assertEquals("<message/>".length(), store.getSize("john"));
+    }
+
+    /**
+     * Verifies that a message that has been written to the database, but that has not yet been removed from the queue,
+     * is counted once.
+     */
+    @Test
+    public void shouldCountWrittenQueuedMessageOnce() throws Exception {
+        // Setup test fixture.
+        final OfflineMessageStore.PendingMessage message = new OfflineMessageStore.PendingMessage("john", 1, new Date(), "<message/>");
+        store.enqueue(message);
+        final List<Integer> countsWhileWriting = new ArrayList<>();
+        doAnswer(invocation -> {
+            // The message is in the database before it is removed from the queue.
+            doAnswer(i -> new HashMap<>(Collections.singletonMap(message.messageID, message.xml.length()))).when(store).loadSizes("john");
+            Arrays.stream(CacheFactory.getAllCaches()).forEach(Map::clear);
+            countsWhileWriting.add(store.getCount("john"));
+            return true;
+        }).when(store).insert(anyList());
+
+        // Execute system under test.
+        store.store(Collections.singletonList(message));
+
+        // Verify results.
+        assertEquals(Collections.singletonList(1), countsWhileWriting);
+        assertEquals(1, store.getCount("john"));
+    }
 }
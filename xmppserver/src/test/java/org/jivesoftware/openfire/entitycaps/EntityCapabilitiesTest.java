@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.entitycaps;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the implementation of {@link EntityCapabilities}.
+ */
+public class EntityCapabilitiesTest
+{
+    /**
+     * Verifies that the nodes of interest are derived from the '+notify' features, and are updated when a feature is
+     * added.
+     */
+    @Test
+    public void testNotifyNodes() throws Exception
+    {
+        // Setup test fixture.
+        final EntityCapabilities caps = new EntityCapabilities();
+        caps.addFeature("http://jabber.org/protocol/disco#info");
+        caps.addFeature("urn:xmpp:avatar:metadata+notify");
+        caps.addFeature("http://jabber.org/protocol/nick+notify");
+
+        // Execute system under test.
+        final int before = caps.getNotifyNodes().size();
+        caps.addFeature("urn:xmpp:bookmarks:1+notify");
+
+        // Verify results.
+        assertEquals(2, before);
+        assertEquals(new HashSet<>(Arrays.asList("urn:xmpp:avatar:metadata", "http://jabber.org/protocol/nick", "urn:xmpp:bookmarks:1")), caps.getNotifyNodes());
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.muc;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.Fixtures;
+import org.jivesoftware.util.XMPPDateTimeFormat;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests that verify the implementation of {@link HistoryRequest}, in particular how history that is kept in
+ * memory is complemented with history from the conversation log.
+ */
+public class HistoryRequestTest
+{
+    @BeforeClass
+    public static void reconfigureOpenfireHome() throws Exception {
+        Fixtures.reconfigureOpenfireHome();
+    }
+
+    @After
+    public void resetProperties() {
+        HistoryRequest.ARCHIVE_ENABLED.setValue(false);
+    }
+
+    /**
+     * Asserts that a request that is satisfied by the history in memory does not query the conversation log.
+     */
+    @Test
+    public void testInMemoryHistorySatisfiesRequest() throws Exception
+    {
+        // Setup test fixture.
+        HistoryRequest.ARCHIVE_ENABLED.setValue(true);
+        final MUCRoomHistory roomHistory = roomHistory("third", "fourth");
+        final HistoryRequest request = spy(new HistoryRequest(historyElement("maxstanzas", "2")));
+        final List<Packet> sent = new ArrayList<>();
+        final MUCRole joinRole = joinRole(sent);
+
+        // Execute system under test.
+        request.prepare(roomHistory.getRoom());
+        request.sendHistory(joinRole, roomHistory);
+
+        // Verify results.
+        assertEquals(Arrays.asList("third", "fourth"), bodies(sent));
+        verify(request, never()).loadArchivedHistory(any(), any(), any(), anyInt());
+    }
+
+    /**
+     * Asserts that a request that is not satisfied by the history in memory is complemented with older messages from
+     * the conversation log, which are sent before the messages from memory.
+     */
+    @Test
+    public void testArchiveComplementsInMemoryHistory() throws Exception
+    {
+        // Setup test fixture.
+        HistoryRequest.ARCHIVE_ENABLED.setValue(true);
+        final MUCRoomHistory roomHistory = roomHistory("third", "fourth");
+        final HistoryRequest request = spy(new HistoryRequest(historyElement("maxstanzas", "3")));
+        doReturn(archive(roomHistory, "second", "first")).when(request).loadArchivedHistory(any(), any(), any(), anyInt());
+        final List<Packet> sent = new ArrayList<>();
+        final MUCRole joinRole = joinRole(sent);
+
+        // Execute system under test.
+        request.prepare(roomHistory.getRoom());
+        request.sendHistory(joinRole, roomHistory);
+
+        // Verify results.
+        assertEquals(Arrays.asList("second", "third", "fourth"), bodies(sent));
+        verify(request).loadArchivedHistory(any(), any(), any(), eq(3));
+    }
+
+    /**
+     * Asserts that the history is sent in order, without duplicates, when a message is sent to the room while the
+     * conversation log is being queried.
+     */
+    @Test
+    public void testMessageSentWhileArchiveIsQueried() throws Exception
+    {
+        // Setup test fixture.
+        HistoryRequest.ARCHIVE_ENABLED.setValue(true);
+        final HistoryStrategy historyStrategy = historyStrategy();
+        final MUCRoomHistory roomHistory = roomHistory(historyStrategy, "third", "fourth");
+        final List<Message> archive = archive(roomHistory, "second", "first");
+        final HistoryRequest request = spy(new HistoryRequest(historyElement("maxstanzas", "4")));
+        doAnswer(invocation -> {
+            // A message is sent to the room, and written to the conversation log, while it is being queried.
+            historyStrategy.addMessage(message("fifth", new Date()));
+            final List<Message> result = new ArrayList<>(archive);
+            result.add(0, roomHistory.getReverseMessageHistory().previous());
+            return result;
+        }).when(request).loadArchivedHistory(any(), any(), any(), anyInt());
+        final List<Packet> sent = new ArrayList<>();
+        final MUCRole joinRole = joinRole(sent);
+
+        // Execute system under test.
+        request.prepare(roomHistory.getRoom());
+        request.sendHistory(joinRole, roomHistory);
+
+        // Verify results.
+        assertEquals(Arrays.asList("second", "third", "fourth", "fifth"), bodies(sent));
+    }
+
+    /**
+     * Asserts that the conversation log is queried when sending history for a room for which it was not prepared.
+     */
+    @Test
+    public void testArchiveQueriedWhenNotPrepared() throws Exception
+    {
+        // Setup test fixture.
+        HistoryRequest.ARCHIVE_ENABLED.setValue(true);
+        final MUCRoomHistory roomHistory = roomHistory("third", "fourth");
+        final HistoryRequest request = spy(new HistoryRequest(historyElement("maxstanzas", "3")));
+        doReturn(archive(roomHistory, "second", "first")).when(request).loadArchivedHistory(any(), any(), any(), anyInt());
+        final List<Packet> sent = new ArrayList<>();
+        final MUCRole joinRole = joinRole(sent);
+
+        // Execute system under test.
+        request.sendHistory(joinRole, roomHistory);
+
+        // Verify results.
+        assertEquals(Arrays.asList("second", "third", "fourth"), bodies(sent));
+        verify(request).loadArchivedHistory(any(), any(), any(), eq(3));
+    }
+
+    /**
+     * Asserts that the conversation log is not queried when that has not been enabled.
+     */
+    @Test
+    public void testArchiveNotQueriedWhenDisabled() throws Exception
+    {
+        // Setup test fixture.
+        HistoryRequest.ARCHIVE_ENABLED.setValue(false);
+        final MUCRoomHistory roomHistory = roomHistory("third", "fourth");
+        final HistoryRequest request = spy(new HistoryRequest(historyElement("maxstanzas", "10")));
+        final List<Packet> sent = new ArrayList<>();
+        final MUCRole joinRole = joinRole(sent);
+
+        // Execute system under test.
+        request.prepare(roomHistory.getRoom());
+        request.sendHistory(joinRole, roomHistory);
+
+        // Verify results.
+        assertEquals(Arrays.asList("third", "fourth"), bodies(sent));
+        verify(request, never()).loadArchivedHistory(any(), any(), any(), anyInt());
+    }
+
+    private static Element historyElement(final String attribute, final String value)
+    {
+        final Element x = DocumentHelper.createElement("x");
+        x.addElement("history").addAttribute(attribute, value);
+        return x;
+    }
+
+    private static HistoryStrategy historyStrategy()
+    {
+        final HistoryStrategy historyStrategy = new HistoryStrategy(null);
+        historyStrategy.setType(HistoryStrategy.Type.all);
+        return historyStrategy;
+    }
+
+    private static MUCRoomHistory roomHistory(final String... bodies)
+    {
+        return roomHistory(historyStrategy(), bodies);
+    }
+
+    private static MUCRoomHistory roomHistory(final HistoryStrategy historyStrategy, final String... bodies)
+    {
+        final MUCRoom room = mock(MUCRoom.class);
+        when(room.getJID()).thenReturn(new JID("room", "conference.example.org", null));
+        when(room.isLogEnabled()).thenReturn(true);
+
+        final long start = System.currentTimeMillis() - bodies.length * 1000L;
+        for (int i = 0; i < bodies.length; i++) {
+            historyStrategy.addMessage(message(bodies[i], new Date(start + i * 1000L)));
+        }
+        final MUCRoomHistory result = new MUCRoomHistory(room, historyStrategy);
+        when(room.getRoomHistory()).thenReturn(result);
+        return result;
+    }
+
+    /**
+     * Returns the content of the conversation log of a room, most recent first: the messages in memory, followed by
+     * older messages with the provided bodies, each a second older than the one before.
+     */
+    private static List<Message> archive(final MUCRoomHistory roomHistory, final String... olderBodies) throws Exception
+    {
+        final List<Message> result = new ArrayList<>();
+        final ListIterator<Message> iterator = roomHistory.getReverseMessageHistory();
+        while (iterator.hasPrevious()) {
+            result.add(iterator.previous());
+        }
+        Date date = xmppDateTime(result.get(result.size() - 1));
+        for (final String body : olderBodies) {
+            date = new Date(date.getTime() - 1000);
+            result.add(message(body, date));
+        }
+        return result;
+    }
+
+    private static Message message(final String body, final Date date)
+    {
+        final Message message = new Message();
+        message.setType(Message.Type.groupchat);
+        message.setFrom(new JID("room", "conference.example.org", "nick"));
+        message.setBody(body);
+        message.addChildElement("delay", "urn:xmpp:delay").addAttribute("stamp", XMPPDateTimeFormat.format(date));
+        return message;
+    }
+
+    private static Date xmppDateTime(final Message message) throws Exception
+    {
+        return new XMPPDateTimeFormat().parseString(message.getChildElement("delay", "urn:xmpp:delay").attributeValue("stamp"));
+    }
+
+    private static MUCRole joinRole(final List<Packet> sent)
+    {
+        final MUCRole joinRole = mock(MUCRole.class);
+        doAnswer(invocation -> sent.add(invocation.getArgument(0))).when(joinRole).send(any(Packet.class));
+        return joinRole;
+    }
+
+    private static List<String> bodies(final List<Packet> sent)
+    {
+        return sent.stream().map(packet -> ((Message) packet).getBody()).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.muc;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests that verify the implementation of {@link JoinPresenceBatcher}.
+ */
+public class JoinPresenceBatcherTest
+{
+    /**
+     * A delay that is long enough for scheduled deliveries not to occur during a test.
+     */
+    private static final long NEVER = 3_600_000;
+
+    /**
+     * Asserts that join presences are not delivered while they are being coalesced, and that a flush delivers all of
+     * them, in order of arrival, after which the room is no longer tracked.
+     */
+    @Test
+    public void testCoalescedPresencesAreDeliveredInOrder() throws Exception
+    {
+        // Setup test fixture.
+        final JID roomJID = new JID("coalesce", "conference.example.org", null);
+        final List<Packet> received = new ArrayList<>();
+        final MUCRole recipient = occupant(MUCRole.Role.participant, received);
+
+        // Execute system under test.
+        for (final String nickname : Arrays.asList("a", "b", "c")) {
+            final Presence presence = presence(roomJID, nickname);
+            JoinPresenceBatcher.add(roomJID, presence, presence, true, Collections.singletonList(recipient), NEVER);
+        }
+        final int receivedBeforeFlush = received.size();
+        JoinPresenceBatcher.flush(roomJID);
+
+        // Verify results.
+        assertEquals(0, receivedBeforeFlush);
+        assertEquals(3, received.size());
+        assertEquals("a", received.get(0).getFrom().getResource());
+        assertEquals("b", received.get(1).getFrom().getResource());
+        assertEquals("c", received.get(2).getFrom().getResource());
+        assertFalse(JoinPresenceBatcher.hasPending(roomJID));
+    }
+
+    /**
+     * Asserts that coalesced join presences are delivered in the background when the coalesce window expires.
+     */
+    @Test
+    public void testPresencesAreDeliveredAfterDelay() throws Exception
+    {
+        // Setup test fixture.
+        final JID roomJID = new JID("delayed", "conference.example.org", null);
+        final List<Packet> received = Collections.synchronizedList(new ArrayList<>());
+        final MUCRole recipient = occupant(MUCRole.Role.participant, received);
+        final Presence first = presence(roomJID, "a");
+        final Presence second = presence(roomJID, "b");
+
+        // Execute system under test.
+        JoinPresenceBatcher.add(roomJID, first, first, true, Collections.singletonList(recipient), 50);
+        JoinPresenceBatcher.add(roomJID, second, second, true, Collections.singletonList(recipient), 50);
+
+        // Verify results.
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (JoinPresenceBatcher.hasPending(roomJID) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(JoinPresenceBatcher.hasPending(roomJID));
+        assertEquals(2, received.size());
+    }
+
+    /**
+     * Asserts that pending join presences are not delivered to occupants that left the room before the presences were
+     * delivered.
+     */
+    @Test
+    public void testDepartedOccupantIsSkipped() throws Exception
+    {
+        // Setup test fixture.
+        final JID roomJID = new JID("departed", "conference.example.org", null);
+        final List<Packet> receivedByStaying = new ArrayList<>();
+        final List<Packet> receivedByLeaving = new ArrayList<>();
+        final MUCRole staying = occupant(MUCRole.Role.participant, receivedByStaying);
+        final MUCRole leaving = occupant(MUCRole.Role.participant, receivedByLeaving);
+        final Presence presence = presence(roomJID, "a");
+        JoinPresenceBatcher.add(roomJID, presence, presence, true, Arrays.asList(staying, leaving), NEVER);
+
+        // Execute system under test.
+        JoinPresenceBatcher.removeRecipient(roomJID, leaving);
+        JoinPresenceBatcher.flush(roomJID);
+
+        // Verify results.
+        assertEquals(1, receivedByStaying.size());
+        assertTrue(receivedByLeaving.isEmpty());
+    }
+
+    /**
+     * Asserts that in a semi-anonymous room, only moderators receive the presence that includes the real JID.
+     */
+    @Test
+    public void testAnonymousPresenceForNonModerators() throws Exception
+    {
+        // Setup test fixture.
+        final JID roomJID = new JID("semianon", "conference.example.org", null);
+        final List<Packet> receivedByModerator = new ArrayList<>();
+        final List<Packet> receivedByParticipant = new ArrayList<>();
+        final MUCRole moderator = occupant(MUCRole.Role.moderator, receivedByModerator);
+        final MUCRole participant = occupant(MUCRole.Role.participant, receivedByParticipant);
+        final Presence nonAnonPresence = presence(roomJID, "a");
+        final Presence anonPresence = presence(roomJID, "a");
+
+        // Execute system under test.
+        JoinPresenceBatcher.add(roomJID, nonAnonPresence, anonPresence, false, Arrays.asList(moderator, participant), NEVER);
+        JoinPresenceBatcher.flush(roomJID);
+
+        // Verify results.
+        assertSame(nonAnonPresence, receivedByModerator.get(0));
+        assertSame(anonPresence, receivedByParticipant.get(0));
+    }
+
+    private static Presence presence(final JID roomJID, final String nickname)
+    {
+        final Presence presence = new Presence();
+        presence.setFrom(new JID(roomJID.getNode(), roomJID.getDomain(), nickname));
+        return presence;
+    }
+
+    private static MUCRole occupant(final MUCRole.Role role, final List<Packet> received)
+    {
+        final MUCRole occupant = mock(MUCRole.class);
+        when(occupant.getRole()).thenReturn(role);
+        doAnswer(invocation -> received.add(invocation.getArgument(0))).when(occupant).send(any(Packet.class));
+        return occupant;
+    }
+}
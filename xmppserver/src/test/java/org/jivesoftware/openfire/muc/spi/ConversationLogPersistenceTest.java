@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.muc.spi;
+
+import org.dbunit.DBTestCase;
+import org.dbunit.PropertiesBasedJdbcDatabaseTester;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.xml.XmlDataSet;
+import org.jivesoftware.Fixtures;
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.database.DefaultConnectionProvider;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.muc.HistoryStrategy;
+import org.jivesoftware.openfire.muc.MUCRole;
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.jivesoftware.openfire.muc.MUCRoomHistory;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies the storage of MUC conversation log entries, using multi-row INSERT statements and parallel writer lanes,
+ * and the loading of room history from the conversation log.
+ */
+public class ConversationLogPersistenceTest extends DBTestCase
+{
+    public static final String DRIVER = "org.hsqldb.jdbcDriver";
+    public static final String URL;
+    public static final String USERNAME = "sa";
+    public static final String PASSWORD = "";
+
+    static {
+        final URL location = ConversationLogPersistenceTest.class.getResource("/datasets/openfire.script");
+        final String fileLocation = location.toString().substring(0, location.toString().lastIndexOf("/")+1) + "openfire";
+        URL = "jdbc:hsqldb:"+fileLocation+";ifexists=true";
+
+        // Setup database configuration of DBUnit.
+        System.setProperty( PropertiesBasedJdbcDatabaseTester.DBUNIT_DRIVER_CLASS, DRIVER );
+        System.setProperty( PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL, URL );
+        System.setProperty( PropertiesBasedJdbcDatabaseTester.DBUNIT_USERNAME, USERNAME );
+        System.setProperty( PropertiesBasedJdbcDatabaseTester.DBUNIT_PASSWORD, PASSWORD );
+    }
+
+    public void setUp() throws Exception
+    {
+        // Ensure that DB-Unit's setUp is called!
+        super.setUp();
+
+        // Initialize Openfire's cache framework.
+        CacheFactory.initialize();
+
+        // Mock the XMPPServer implementation that's used internally.
+        Fixtures.clearExistingProperties();
+        XMPPServer.setInstance(Fixtures.mockXMPPServer());
+
+        // Ensure that Openfire caches are reset before each test to avoid tests to affect each-other.
+        Arrays.stream(CacheFactory.getAllCaches()).forEach(Map::clear);
+
+        // Wire the database connection provider used by the persistence manager.
+        final DefaultConnectionProvider conProvider = new DefaultConnectionProvider();
+        conProvider.setDriver(DRIVER);
+        conProvider.setServerURL(URL);
+        conProvider.setUsername(USERNAME);
+        conProvider.setPassword(PASSWORD);
+        DbConnectionManager.setConnectionProvider(conProvider);
+    }
+
+    @Override
+    protected IDataSet getDataSet() throws Exception {
+        // This dataset restores the state of the database to one that does not contain any conversation logs.
+        return new XmlDataSet(getClass().getResourceAsStream("/datasets/clean.xml"));
+    }
+
+    /**
+     * Asserts that multi-row INSERT statements are used only for databases that support them, and that the amount of
+     * rows per statement is capped to stay within the parameter limits of the database.
+     */
+    public void testRowsPerStatementPerDatabaseType() throws Exception
+    {
+        // Execute system under test.
+        final int postgresql = MUCPersistenceManager.getConversationLogRowsPerStatement(DbConnectionManager.DatabaseType.postgresql);
+        final int mysql = MUCPersistenceManager.getConversationLogRowsPerStatement(DbConnectionManager.DatabaseType.mysql);
+        final int hsqldb = MUCPersistenceManager.getConversationLogRowsPerStatement(DbConnectionManager.DatabaseType.hsqldb);
+        final int db2 = MUCPersistenceManager.getConversationLogRowsPerStatement(DbConnectionManager.DatabaseType.db2);
+        final int sqlserver = MUCPersistenceManager.getConversationLogRowsPerStatement(DbConnectionManager.DatabaseType.sqlserver);
+        final int oracle = MUCPersistenceManager.getConversationLogRowsPerStatement(DbConnectionManager.DatabaseType.oracle);
+        final int unknown = MUCPersistenceManager.getConversationLogRowsPerStatement(DbConnectionManager.DatabaseType.unknown);
+
+        // Verify results.
+        final int expected = MUCPersistenceManager.CONVERSATION_LOG_ROWS_PER_STATEMENT.getDefaultValue();
+        assertEquals(expected, postgresql);
+        assertEquals(expected, mysql);
+        assertEquals(expected, hsqldb);
+        assertEquals(expected, db2);
+        assertEquals(expected, sqlserver);
+        assertEquals(1, oracle);
+        assertEquals(1, unknown);
+    }
+
+    /**
+     * Asserts that the amount of rows per statement is capped, even when a larger value is configured.
+     */
+    public void testRowsPerStatementIsCapped() throws Exception
+    {
+        // Setup test fixture.
+        MUCPersistenceManager.CONVERSATION_LOG_ROWS_PER_STATEMENT.setValue(10000);
+
+        try {
+            // Execute system under test.
+            final int result = MUCPersistenceManager.getConversationLogRowsPerStatement(DbConnectionManager.DatabaseType.sqlserver);
+
+            // Verify results.
+            assertTrue(result * 8 <= 2100);
+        } finally {
+            MUCPersistenceManager.CONVERSATION_LOG_ROWS_PER_STATEMENT.setValue(MUCPersistenceManager.CONVERSATION_LOG_ROWS_PER_STATEMENT.getDefaultValue());
+        }
+    }
+
+    /**
+     * Asserts that a multi-row INSERT statement has one parameterized VALUES list per row.
+     */
+    public void testMultiRowInsertStatement() throws Exception
+    {
+        // Execute system under test.
+        final String result = MUCPersistenceManager.getMultiRowConversationLogInsert(3);
+
+        // Verify results.
+        assertEquals("INSERT INTO ofMucConversationLog (roomID,messageID,sender,nickname,logTime,subject,body,stanza) VALUES (?,?,?,?,?,?,?,?),(?,?,?,?,?,?,?,?),(?,?,?,?,?,?,?,?)", result);
+    }
+
+    /**
+     * Asserts that all rows of a batch are written, when the batch spans several statements of which the last one
+     * inserts fewer rows than the others.
+     */
+    public void testMultiRowInsertWritesAllRows() throws Exception
+    {
+        // Setup test fixture.
+        final List<ConversationLogEntry> batch = createEntries(7, 1);
+
+        // Execute system under test.
+        final boolean result = MUCPersistenceManager.saveConversationLogBatchMultiRow(batch, 3);
+
+        // Verify results.
+        assertTrue(result);
+        assertEquals(messageIDs(batch), loadMessageIDs());
+    }
+
+    /**
+     * Asserts that all rows of a batch are written when the batch is partitioned over several writer lanes.
+     */
+    public void testLanesWriteAllRows() throws Exception
+    {
+        // Setup test fixture.
+        final MultiUserChatServiceImpl.ConversationLogEntryArchiver archiver = new MultiUserChatServiceImpl.ConversationLogEntryArchiver("test", 100, Duration.ofSeconds(1), Duration.ofMillis(50), 3);
+        final List<ConversationLogEntry> batch = createEntries(20, 5);
+
+        try {
+            // Execute system under test.
+            archiver.store(batch);
+        } finally {
+            archiver.stop();
+        }
+
+        // Verify results.
+        assertEquals(messageIDs(batch), loadMessageIDs());
+    }
+
+    /**
+     * Asserts that the batch that an archiver with several writer lanes is working on when it is stopped, is written.
+     */
+    public void testStopWritesLastBatch() throws Exception
+    {
+        // Setup test fixture.
+        final MultiUserChatServiceImpl.ConversationLogEntryArchiver archiver = new MultiUserChatServiceImpl.ConversationLogEntryArchiver("test", 100, Duration.ofSeconds(5), Duration.ofSeconds(2), 3);
+        final List<ConversationLogEntry> batch = createEntries(20, 5);
+        batch.forEach(archiver::archive);
+        final Thread thread = new Thread(archiver);
+        thread.start();
+
+        // Wait for the archiver to take the entries, after which it waits for more entries before storing them.
+        final long deadline = System.currentTimeMillis() + 1000;
+        while (archiver.getQueueSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, archiver.getQueueSize());
+
+        // Execute system under test.
+        archiver.stop();
+        thread.join(10000);
+
+        // Verify results.
+        assertFalse(thread.isAlive());
+        assertEquals(messageIDs(batch), loadMessageIDs());
+    }
+
+    /**
+     * Asserts that history is loaded from the conversation log for the requested period only, most recent first, and
+     * limited to the requested amount of messages.
+     */
+    public void testLoadHistoryRange() throws Exception
+    {
+        // Setup test fixture.
+        final List<ConversationLogEntry> batch = createEntries(5, 1);
+        assertTrue(MUCPersistenceManager.saveConversationLogBatch(batch));
+
+        final JID roomJID = new JID("room1", "conference.example.org", null);
+        final MUCRole role = mock(MUCRole.class);
+        when(role.getRoleAddress()).thenReturn(roomJID);
+        final MUCRoom room = mock(MUCRoom.class);
+        when(room.getID()).thenReturn(1L);
+        when(room.getJID()).thenReturn(roomJID);
+        when(room.getRole()).thenReturn(role);
+        final MUCRoomHistory roomHistory = new MUCRoomHistory(room, new HistoryStrategy(null));
+        when(room.getRoomHistory()).thenReturn(roomHistory);
+
+        // Execute system under test.
+        final List<Message> result = MUCPersistenceManager.loadHistory(room, batch.get(1).getDate(), batch.get(4).getDate(), 2);
+
+        // Verify results.
+        assertEquals(2, result.size());
+        assertEquals("Message 3", result.get(0).getBody());
+        assertEquals("Message 2", result.get(1).getBody());
+    }
+
+    private static List<ConversationLogEntry> createEntries(final int count, final int rooms)
+    {
+        final List<ConversationLogEntry> result = new ArrayList<>();
+        final long start = System.currentTimeMillis() - count * 1000L;
+        for (int i = 0; i < count; i++) {
+            final MUCRoom room = mock(MUCRoom.class);
+            when(room.getID()).thenReturn((long) (i % rooms) + 1);
+
+            final Message message = new Message();
+            message.setFrom(new JID("room" + ((i % rooms) + 1), "conference.example.org", "nick" + i));
+            message.setBody("Message " + i);
+            result.add(new ConversationLogEntry(new Date(start + i * 1000L), room, message, new JID("user" + i + "@example.org")));
+        }
+        return result;
+    }
+
+    private static List<Long> messageIDs(final List<ConversationLogEntry> entries)
+    {
+        final List<Long> result = new ArrayList<>();
+        for (final ConversationLogEntry entry : entries) {
+            result.add(entry.getMessageID());
+        }
+        result.sort(Long::compare);
+        return result;
+    }
+
+    private static List<Long> loadMessageIDs() throws Exception
+    {
+        final List<Long> result = new ArrayList<>();
+        try (final Connection con = DbConnectionManager.getConnection();
+             final PreparedStatement pstmt = con.prepareStatement("SELECT messageID FROM ofMucConversationLog ORDER BY messageID");
+             final ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                result.add(rs.getLong(1));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.muc.spi;
+
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.jivesoftware.openfire.muc.MultiUserChatService;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests that verify the implementation of {@link MUCRoomSearchIndex}.
+ */
+public class MUCRoomSearchIndexTest
+{
+    private static MUCRoomSearchInfo info(final String name, final String naturalLanguageName, final String description, final int occupants)
+    {
+        final MultiUserChatService service = mock(MultiUserChatService.class);
+        when(service.getServiceName()).thenReturn("conference");
+
+        final MUCRoom room = mock(MUCRoom.class);
+        when(room.getMUCService()).thenReturn(service);
+        when(room.getName()).thenReturn(name);
+        when(room.getJID()).thenReturn(new JID(name, "conference.example.org", null));
+        when(room.getNaturalLanguageName()).thenReturn(naturalLanguageName);
+        when(room.getDescription()).thenReturn(description);
+        when(room.getSubject()).thenReturn("");
+        when(room.getOccupantsCount()).thenReturn(occupants);
+        return new MUCRoomSearchInfo(room);
+    }
+
+    private static Set<String> names(final Set<MUCRoomSearchInfo> infos)
+    {
+        return infos.stream().map(MUCRoomSearchInfo::getName).collect(Collectors.toSet());
+    }
+
+    /**
+     * Verifies that a lookup returns all rooms that contain the term, regardless of case.
+     */
+    @Test
+    public void testFindCandidates() throws Exception
+    {
+        // Setup test fixture.
+        final MUCRoomSearchIndex index = new MUCRoomSearchIndex();
+        index.update(info("a", "Openfire Developers", "All about development", 3));
+        index.update(info("b", "Smack Users", "Client library", 1));
+        index.update(info("c", "The DEVELOPERS lounge", null, 0));
+
+        // Execute system under test.
+        final Set<MUCRoomSearchInfo> result = index.findCandidates(MUCRoomSearchIndex.Field.naturalLanguageName, "develop");
+
+        // Verify results.
+        assertEquals(new HashSet<>(Arrays.asList("a", "c")), names(result));
+    }
+
+    /**
+     * Verifies that a term that is too short to be indexed does not narrow down the search.
+     */
+    @Test
+    public void testFindCandidatesShortTerm() throws Exception
+    {
+        // Setup test fixture.
+        final MUCRoomSearchIndex index = new MUCRoomSearchIndex();
+        index.update(info("a", "Openfire Developers", "All about development", 3));
+
+        // Execute system under test.
+        final Set<MUCRoomSearchInfo> result = index.findCandidates(MUCRoomSearchIndex.Field.naturalLanguageName, "op");
+
+        // Verify results.
+        assertNull(result);
+    }
+
+    /**
+     * Verifies that a room that is updated is no longer found by its previous values.
+     */
+    @Test
+    public void testUpdateReplacesPreviousState() throws Exception
+    {
+        // Setup test fixture.
+        final MUCRoomSearchIndex index = new MUCRoomSearchIndex();
+        index.update(info("a", "Openfire Developers", "All about development", 3));
+
+        // Execute system under test.
+        index.update(info("a", "Spark Users", "All about development", 3));
+
+        // Verify results.
+        assertTrue(index.findCandidates(MUCRoomSearchIndex.Field.naturalLanguageName, "openfire").isEmpty());
+        assertEquals(Collections.singleton("a"), names(index.findCandidates(MUCRoomSearchIndex.Field.naturalLanguageName, "spark")));
+        assertEquals(Collections.singleton("a"), names(index.findCandidates(MUCRoomSearchIndex.Field.description, "development")));
+        assertEquals(1, index.size());
+    }
+
+    /**
+     * Verifies that a removed room is no longer found.
+     */
+    @Test
+    public void testRemove() throws Exception
+    {
+        // Setup test fixture.
+        final MUCRoomSearchIndex index = new MUCRoomSearchIndex();
+        index.update(info("a", "Openfire Developers", "All about development", 3));
+
+        // Execute system under test.
+        index.remove("a");
+
+        // Verify results.
+        assertTrue(index.findCandidates(MUCRoomSearchIndex.Field.naturalLanguageName, "openfire").isEmpty());
+        assertTrue(index.getByOccupantsCount(0).isEmpty());
+        assertEquals(0, index.size());
+    }
+
+    /**
+     * Verifies that rooms are ordered by occupant count, and that rooms with too few occupants are excluded.
+     */
+    @Test
+    public void testGetByOccupantsCount() throws Exception
+    {
+        // Setup test fixture.
+        final MUCRoomSearchIndex index = new MUCRoomSearchIndex();
+        index.update(info("a", "A", null, 3));
+        index.update(info("b", "B", null, 7));
+        index.update(info("c", "C", null, 0));
+        index.update(info("d", "D", null, 3));
+
+        // Execute system under test.
+        final List<MUCRoomSearchInfo> result = index.getByOccupantsCount(1);
+
+        // Verify results.
+        assertEquals(Arrays.asList("b", "a", "d"), result.stream().map(MUCRoomSearchInfo::getName).collect(Collectors.toList()));
+    }
+
+    /**
+     * Verifies that text is lower-cased in the same way by the index as by callers that use {@link
+     * MUCRoomSearchIndex#normalize(String)}, including for characters of which the lower-case form differs in length
+     * or by locale when using {@link String#toLowerCase()}.
+     */
+    @Test
+    public void testNormalizeMatchesIndex() throws Exception
+    {
+        // Setup test fixture.
+        final MUCRoomSearchIndex index = new MUCRoomSearchIndex();
+        index.update(info("a", "\u0130STANBUL", null, 1));
+
+        // Execute system under test.
+        final Set<MUCRoomSearchInfo> result = index.findCandidates(MUCRoomSearchIndex.Field.naturalLanguageName, "istanbul");
+
+        // Verify results.
+        assertEquals(Collections.singleton("a"), names(result));
+        assertEquals("istanbul", MUCRoomSearchIndex.normalize("\u0130STANBUL"));
+        assertTrue(MUCRoomSearchIndex.normalize(result.iterator().next().getNaturalLanguageName()).contains(MUCRoomSearchIndex.normalize("Istanbul")));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.muc.spi;
+
+import org.jivesoftware.Fixtures;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.cluster.NodeID;
+import org.jivesoftware.openfire.muc.MultiUserChatService;
+import org.jivesoftware.openfire.muc.cluster.OccupantAddedTask;
+import org.jivesoftware.openfire.muc.cluster.OccupantRemovedTask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests that verify the lookup tables that are maintained by {@link OccupantManager}.
+ */
+public class OccupantManagerTest
+{
+    private static final NodeID LOCAL_NODE = NodeID.getInstance("local-node".getBytes(StandardCharsets.UTF_8));
+    private static final NodeID REMOTE_NODE = NodeID.getInstance("remote-node".getBytes(StandardCharsets.UTF_8));
+
+    private XMPPServer originalServer;
+    private OccupantManager occupantManager;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        originalServer = XMPPServer.getInstance();
+        final XMPPServer xmppServer = Fixtures.mockXMPPServer();
+        doReturn(LOCAL_NODE).when(xmppServer).getNodeID();
+        //noinspection deprecation
+        XMPPServer.setInstance(xmppServer);
+
+        final MultiUserChatService service = mock(MultiUserChatService.class);
+        when(service.getServiceName()).thenReturn("conference");
+        when(service.getServiceDomain()).thenReturn("conference." + Fixtures.XMPP_DOMAIN);
+        occupantManager = new OccupantManager(service);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        //noinspection deprecation
+        XMPPServer.setInstance(originalServer);
+    }
+
+    private void add(final String roomName, final String nickname, final JID realJID, final NodeID nodeID)
+    {
+        occupantManager.process(new OccupantAddedTask("conference", roomName, nickname, realJID, nodeID));
+    }
+
+    private void remove(final String roomName, final String nickname, final JID realJID, final NodeID nodeID)
+    {
+        occupantManager.process(new OccupantRemovedTask("conference", roomName, nickname, realJID, nodeID));
+    }
+
+    /**
+     * Verifies that the rooms of a user are found by its real JID, and that the lookup is updated when the user leaves.
+     */
+    @Test
+    public void testRoomNamesForAddress() throws Exception
+    {
+        // Setup test fixture.
+        final JID user = new JID("john", Fixtures.XMPP_DOMAIN, "desktop");
+        add("room1", "john", user, LOCAL_NODE);
+        add("room2", "john", user, REMOTE_NODE);
+        add("room3", "jane", new JID("jane", Fixtures.XMPP_DOMAIN, "phone"), LOCAL_NODE);
+
+        // Execute system under test.
+        remove("room2", "john", user, REMOTE_NODE);
+
+        // Verify results.
+        assertEquals(Collections.singleton("room1"), occupantManager.roomNamesForAddress(user));
+    }
+
+    /**
+     * Verifies that occupants of a room are found by node.
+     */
+    @Test
+    public void testOccupantsForRoomByNode() throws Exception
+    {
+        // Setup test fixture.
+        final JID john = new JID("john", Fixtures.XMPP_DOMAIN, "desktop");
+        final JID jane = new JID("jane", Fixtures.XMPP_DOMAIN, "phone");
+        add("room1", "john", john, LOCAL_NODE);
+        add("room1", "jane", jane, REMOTE_NODE);
+        add("room2", "jane", jane, LOCAL_NODE);
+
+        // Execute system under test.
+        final Set<OccupantManager.Occupant> local = occupantManager.occupantsForRoomByNode("room1", LOCAL_NODE);
+        final Set<OccupantManager.Occupant> others = occupantManager.occupantsForRoomExceptForNode("room1", LOCAL_NODE);
+
+        // Verify results.
+        assertEquals(Collections.singleton(new OccupantManager.Occupant("room1", "john", john)), local);
+        assertEquals(Collections.singleton(new OccupantManager.Occupant("room1", "jane", jane)), others);
+    }
+
+    /**
+     * Verifies that only local occupants that have not been active recently are reported as being inactive.
+     */
+    @Test
+    public void testLocalOccupantsInactiveSince() throws Exception
+    {
+        // Setup test fixture.
+        final JID john = new JID("john", Fixtures.XMPP_DOMAIN, "desktop");
+        final JID jane = new JID("jane", Fixtures.XMPP_DOMAIN, "phone");
+        final JID remote = new JID("remote", Fixtures.XMPP_DOMAIN, "laptop");
+        add("room1", "john", john, LOCAL_NODE);
+        add("room1", "jane", jane, LOCAL_NODE);
+        add("room1", "remote", remote, REMOTE_NODE);
+
+        // Execute system under test.
+        final Instant future = Instant.now().plus(Duration.ofMinutes(5));
+        final Set<OccupantManager.Occupant> before = occupantManager.localOccupantsInactiveSince(future);
+        Thread.sleep(2);
+        final Instant cutoff = Instant.now();
+        Thread.sleep(2);
+        occupantManager.registerActivity(jane);
+        final Set<OccupantManager.Occupant> after = occupantManager.localOccupantsInactiveSince(cutoff);
+
+        // Verify results.
+        assertEquals(new HashSet<>(Arrays.asList(new OccupantManager.Occupant("room1", "john", john), new OccupantManager.Occupant("room1", "jane", jane))), before);
+        assertEquals(Collections.singleton(new OccupantManager.Occupant("room1", "john", john)), after);
+    }
+
+    /**
+     * Verifies that all occupants of a room are unregistered when the room is destroyed.
+     */
+    @Test
+    public void testRoomDestroyed() throws Exception
+    {
+        // Setup test fixture.
+        final JID john = new JID("john", Fixtures.XMPP_DOMAIN, "desktop");
+        add("room1", "john", john, LOCAL_NODE);
+        add("room1", "john", john, REMOTE_NODE);
+        add("room2", "john", john, LOCAL_NODE);
+
+        // Execute system under test.
+        occupantManager.roomDestroyed(new JID("room1", "conference." + Fixtures.XMPP_DOMAIN, null));
+
+        // Verify results.
+        assertEquals(Collections.singleton("room2"), occupantManager.roomNamesForAddress(john));
+        assertTrue(occupantManager.occupantsForRoomByNode("room1", REMOTE_NODE).isEmpty());
+        assertEquals(1, occupantManager.localOccupantsInactiveSince(Instant.now().plus(Duration.ofMinutes(5))).size());
+    }
+}
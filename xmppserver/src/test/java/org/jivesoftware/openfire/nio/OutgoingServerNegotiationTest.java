@@ -0,0 +1,586 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.nio;
+
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.session.IdleStatus;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.session.IoSessionConfig;
+import org.jivesoftware.Fixtures;
+import org.jivesoftware.openfire.SessionManager;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.keystore.CertificateStoreManager;
+import org.jivesoftware.openfire.keystore.TrustStore;
+import org.jivesoftware.openfire.net.DNSUtil;
+import org.jivesoftware.openfire.server.ServerDialback;
+import org.jivesoftware.openfire.session.DomainPair;
+import org.jivesoftware.openfire.session.LocalOutgoingServerSession;
+import org.jivesoftware.openfire.spi.ConnectionType;
+import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests that verify the order in which {@link OutgoingServerNegotiation} attempts to connect to a remote domain,
+ * and how connections are used by the negotiation.
+ */
+public class OutgoingServerNegotiationTest
+{
+    private static final String FEATURES_DIALBACK = "<stream:features><dialback xmlns='urn:xmpp:features:dialback'/></stream:features>";
+    private static final String FEATURES_STARTTLS = "<stream:features><starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/><dialback xmlns='urn:xmpp:features:dialback'/></stream:features>";
+    private static final String FEATURES_EXTERNAL = "<stream:features><mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>EXTERNAL</mechanism></mechanisms></stream:features>";
+
+    private OutgoingServerConnector connector;
+    private OutgoingServerNegotiation negotiation;
+    private CompletableFuture<LocalOutgoingServerSession> result;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Fixtures.reconfigureOpenfireHome();
+        CacheFactory.initialize();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Fixtures.clearExistingProperties();
+
+        // The certificates of the remote server are not trusted, which makes the negotiation continue with dialback.
+        final XMPPServer xmppServer = Fixtures.mockXMPPServer();
+        when(xmppServer.getSessionManager()).thenReturn(mock(SessionManager.class));
+        final CertificateStoreManager certificateStoreManager = mock(CertificateStoreManager.class);
+        when(certificateStoreManager.getTrustStore(any(ConnectionType.class))).thenReturn(mock(TrustStore.class));
+        when(xmppServer.getCertificateStoreManager()).thenReturn(certificateStoreManager);
+        XMPPServer.setInstance(xmppServer);
+
+        // The hosts of the remote domain are not resolved: the attempts are provided by the tests.
+        connector = mock(OutgoingServerConnector.class);
+        when(connector.getUnreachableHosts()).thenReturn(new UnreachableHosts());
+        when(connector.getResolver()).thenReturn(command -> {});
+        negotiation = new OutgoingServerNegotiation(connector, new DomainPair("example.org", "example.com"), 5269);
+        result = negotiation.start();
+    }
+
+    /**
+     * Verifies that hosts keep their order, while the addresses of each host alternate between address families.
+     */
+    @Test
+    public void testAttemptsAlternateAddressFamilies() throws Exception
+    {
+        // Setup test fixture.
+        final Map<String, InetAddress[]> dns = new HashMap<>();
+        dns.put("xmpp1.example.org", new InetAddress[] { ipv6(1), ipv6(2), ipv4(1), ipv4(2) });
+        dns.put("xmpp2.example.org", new InetAddress[] { ipv4(3) });
+        final List<DNSUtil.HostAddress> hosts = Arrays.asList(
+            host("xmpp1.example.org", 5270, true),
+            host("xmpp2.example.org", 5269, false));
+
+        // Execute system under test.
+        final List<OutgoingServerNegotiation.Attempt> result = OutgoingServerNegotiation.getAttempts(hosts, resolver(dns), new UnreachableHosts());
+
+        // Verify results.
+        assertEquals(Arrays.asList(
+            new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv6(1), 5270), true),
+            new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(1), 5270), true),
+            new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv6(2), 5270), true),
+            new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(2), 5270), true),
+            new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(3), 5269), false)), result);
+    }
+
+    /**
+     * Verifies that addresses that are known to be unreachable are attempted last, and that hosts that cannot be
+     * resolved are skipped.
+     */
+    @Test
+    public void testUnreachableAddressesAreAttemptedLast() throws Exception
+    {
+        // Setup test fixture.
+        final Map<String, InetAddress[]> dns = new HashMap<>();
+        dns.put("xmpp1.example.org", new InetAddress[] { ipv4(1) });
+        dns.put("xmpp2.example.org", new InetAddress[] { ipv4(2) });
+        final List<DNSUtil.HostAddress> hosts = Arrays.asList(
+            host("xmpp1.example.org", 5269, false),
+            host("unknown.example.org", 5269, false),
+            host("xmpp2.example.org", 5269, false));
+        final UnreachableHosts unreachableHosts = new UnreachableHosts();
+        unreachableHosts.add(new InetSocketAddress(ipv4(1), 5269), Duration.ofHours(1));
+
+        // Execute system under test.
+        final List<OutgoingServerNegotiation.Attempt> result = OutgoingServerNegotiation.getAttempts(hosts, resolver(dns), unreachableHosts);
+
+        // Verify results.
+        assertEquals(Arrays.asList(
+            new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(2), 5269), false),
+            new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(1), 5269), false)), result);
+    }
+
+    /**
+     * Verifies that addresses are no longer considered unreachable once a connection was established, or after the
+     * retention has passed.
+     */
+    @Test
+    public void testUnreachableHostsAreForgotten() throws Exception
+    {
+        // Setup test fixture.
+        final InetSocketAddress first = new InetSocketAddress(ipv4(1), 5269);
+        final InetSocketAddress second = new InetSocketAddress(ipv4(2), 5269);
+        final UnreachableHosts unreachableHosts = new UnreachableHosts();
+
+        // Execute system under test.
+        unreachableHosts.add(first, Duration.ofHours(1));
+        unreachableHosts.add(second, Duration.ofMillis(1));
+        Thread.sleep(10);
+        final boolean secondAfterRetention = unreachableHosts.contains(second);
+        final boolean firstBeforeSuccess = unreachableHosts.contains(first);
+        unreachableHosts.remove(first);
+
+        // Verify results.
+        assertFalse(secondAfterRetention);
+        assertTrue(firstBeforeSuccess);
+        assertFalse(unreachableHosts.contains(first));
+    }
+
+    /**
+     * Verifies that the fallback to server dialback connects to the same address again, when the remote domain has
+     * only one address, and that the connection of that attempt is used even though the connection that was abandoned
+     * is closed after the new attempt was started.
+     */
+    @Test
+    public void testDialbackFallbackToSameAddress() throws Exception
+    {
+        // Setup test fixture.
+        final OutgoingServerNegotiation.Attempt attempt = new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(1), 5269), false);
+        final ConnectFuture firstFuture = mock(ConnectFuture.class);
+        final ConnectFuture secondFuture = mock(ConnectFuture.class);
+        final OutgoingServerConnector connector = mock(OutgoingServerConnector.class);
+        when(connector.getUnreachableHosts()).thenReturn(new UnreachableHosts());
+        final OutgoingServerNegotiation negotiation = new OutgoingServerNegotiation(connector, new DomainPair("example.org", "example.com"), 5269);
+        when(connector.connect(attempt, negotiation)).thenReturn(firstFuture, secondFuture);
+        final IoSession firstSession = session(firstFuture);
+        final IoSession secondSession = session(secondFuture);
+        final NIOConnection firstConnection = mock(NIOConnection.class);
+        final NIOConnection secondConnection = mock(NIOConnection.class);
+
+        negotiation.onResolved(Collections.singletonList(attempt));
+        negotiation.onOpened(firstSession, firstConnection);
+        negotiation.onReceived(firstSession, "<stream:error><host-unknown xmlns='urn:ietf:params:xml:ns:xmpp-streams'/></stream:error>");
+
+        // Execute system under test.
+        negotiation.onClosed(firstSession);
+        negotiation.onOpened(secondSession, secondConnection);
+
+        // Verify results.
+        verify(connector, times(2)).connect(attempt, negotiation);
+        verify(firstConnection).close();
+        verify(secondSession, never()).closeNow();
+        final ArgumentCaptor<String> header = ArgumentCaptor.forClass(String.class);
+        verify(secondConnection).deliverRawText(header.capture());
+        assertTrue(header.getValue().startsWith("<stream:stream"));
+        assertFalse(header.getValue().contains("version="));
+    }
+
+    /**
+     * Verifies that a stream of version 1.0 is opened, and that the stream features are awaited after the remote
+     * server responded with a stream header of that version.
+     */
+    @Test
+    public void testStreamHeaderOfXMPP10Server() throws Exception
+    {
+        // Setup test fixture.
+        final OutgoingServerNegotiation.Attempt attempt = new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(1), 5269), false);
+        final IoSession session = connecting(attempt);
+        final NIOConnection connection = mock(NIOConnection.class);
+        negotiation.onResolved(Collections.singletonList(attempt));
+
+        // Execute system under test.
+        negotiation.onOpened(session, connection);
+        negotiation.onReceived(session, "<?xml version='1.0' encoding='UTF-8'?>");
+        negotiation.onReceived(session, header("abc", true));
+        negotiation.onReceived(session, FEATURES_DIALBACK);
+
+        // Verify results.
+        final List<String> sent = sent(connection, 2);
+        assertTrue(sent.get(0).startsWith("<stream:stream"));
+        assertTrue(sent.get(0).contains("version=\"1.0\""));
+        assertEquals("<db:result from=\"example.org\" to=\"example.com\">" + ServerDialback.createKey("abc") + "</db:result>", sent.get(1));
+        verify(session.getConfig()).setIdleTime(eq(IdleStatus.READER_IDLE), anyInt());
+        verify(connection, never()).close();
+    }
+
+    /**
+     * Verifies that a remote server that responds with a stream header without a version is connected to again, to
+     * authenticate with server dialback on a stream that does not declare a version.
+     */
+    @Test
+    public void testStreamHeaderWithoutVersion() throws Exception
+    {
+        // Setup test fixture.
+        final OutgoingServerNegotiation.Attempt attempt = new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(1), 5269), false);
+        final IoSession firstSession = connecting(attempt);
+        final NIOConnection firstConnection = mock(NIOConnection.class);
+        negotiation.onResolved(Collections.singletonList(attempt));
+        negotiation.onOpened(firstSession, firstConnection);
+        final IoSession secondSession = connecting(attempt);
+        final NIOConnection secondConnection = mock(NIOConnection.class);
+
+        // Execute system under test.
+        negotiation.onReceived(firstSession, header("abc", false));
+        negotiation.onOpened(secondSession, secondConnection);
+        negotiation.onReceived(secondSession, header("def", false));
+
+        // Verify results.
+        verify(firstConnection).close();
+        verify(connector, times(2)).connect(attempt, negotiation);
+        final List<String> sent = sent(secondConnection, 2);
+        assertFalse(sent.get(0).contains("version="));
+        assertTrue(sent.get(1).contains(ServerDialback.createKey("def")));
+        assertFalse(result.isDone());
+    }
+
+    /**
+     * Verifies that STARTTLS is requested when offered, that TLS is negotiated after the remote server allowed it to
+     * proceed, and that a new stream is opened on the secured connection.
+     */
+    @Test
+    public void testStartTLS() throws Exception
+    {
+        // Setup test fixture.
+        final OutgoingServerNegotiation.Attempt attempt = new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(1), 5269), false);
+        final IoSession session = connecting(attempt);
+        final NIOConnection connection = mock(NIOConnection.class);
+        negotiation.onResolved(Collections.singletonList(attempt));
+        negotiation.onOpened(session, connection);
+        negotiation.onReceived(session, header("abc", true));
+
+        // Execute system under test.
+        negotiation.onReceived(session, FEATURES_STARTTLS);
+        negotiation.onSecured(session); // Ignored, as TLS was not yet started.
+        negotiation.onReceived(session, "<proceed xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+        negotiation.onSecured(session);
+        negotiation.onReceived(session, header("def", true));
+        negotiation.onReceived(session, FEATURES_DIALBACK);
+
+        // Verify results.
+        verify(connection).startTLS(true, true);
+        final List<String> sent = sent(connection, 4);
+        assertEquals("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>", sent.get(1));
+        assertTrue(sent.get(2).startsWith("<stream:stream"));
+        assertTrue(sent.get(2).contains("version=\"1.0\""));
+        assertTrue(sent.get(3).contains(ServerDialback.createKey("def")));
+        verify(connection, never()).close();
+    }
+
+    /**
+     * Verifies that the session is established, without server dialback, on the stream that is restarted after the
+     * local domain was authenticated using SASL EXTERNAL.
+     */
+    @Test
+    public void testSASLExternal() throws Exception
+    {
+        // Setup test fixture.
+        final OutgoingServerNegotiation.Attempt attempt = new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(1), 5270), true);
+        final IoSession session = connecting(attempt);
+        final NIOConnection connection = mock(NIOConnection.class);
+        negotiation.onResolved(Collections.singletonList(attempt));
+
+        // Execute system under test.
+        negotiation.onOpened(session, connection);
+        negotiation.onSecured(session);
+        negotiation.onReceived(session, header("abc", true));
+        negotiation.onReceived(session, FEATURES_EXTERNAL);
+        negotiation.onReceived(session, "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+        negotiation.onReceived(session, header("def", true));
+
+        // Verify results.
+        verify(connection).startTLS(true, true);
+        final List<String> sent = sent(connection, 3);
+        assertTrue(sent.get(0).startsWith("<stream:stream"));
+        assertEquals("<auth xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\" mechanism=\"EXTERNAL\">" + StringUtils.encodeBase64("example.org") + "</auth>", sent.get(1));
+        assertTrue(sent.get(2).startsWith("<stream:stream"));
+        final LocalOutgoingServerSession established = result.get(5, TimeUnit.SECONDS);
+        assertNotNull(established);
+        assertEquals("def", established.getStreamID().getID());
+        assertFalse(established.isUsingServerDialback());
+        verify(connection).init(established);
+    }
+
+    /**
+     * Verifies that the session is established once the remote server reported the dialback key to be valid.
+     */
+    @Test
+    public void testDialbackValid() throws Exception
+    {
+        // Setup test fixture.
+        final OutgoingServerNegotiation.Attempt attempt = new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(1), 5269), false);
+        final IoSession session = connecting(attempt);
+        final NIOConnection connection = mock(NIOConnection.class);
+        negotiation.onResolved(Collections.singletonList(attempt));
+        negotiation.onOpened(session, connection);
+        negotiation.onReceived(session, header("abc", true));
+        negotiation.onReceived(session, FEATURES_DIALBACK);
+
+        // Execute system under test.
+        negotiation.onReceived(session, "<db:result from='example.com' to='example.org' type='valid'/>");
+
+        // Verify results.
+        final LocalOutgoingServerSession established = result.get(5, TimeUnit.SECONDS);
+        assertNotNull(established);
+        assertEquals("abc", established.getStreamID().getID());
+        assertTrue(established.isUsingServerDialback());
+        verify(connection).init(established);
+        verify(session.getConfig()).setIdleTime(IdleStatus.READER_IDLE, 0);
+
+        // An idle established session is left to the session manager.
+        negotiation.onIdle(session);
+        verify(connection, never()).close();
+    }
+
+    /**
+     * Verifies that a dialback key that is reported to be invalid causes the negotiation to be retried using server
+     * dialback on a stream without a version, and that the negotiation fails when the key is invalid again.
+     */
+    @Test
+    public void testDialbackInvalid() throws Exception
+    {
+        // Setup test fixture.
+        final OutgoingServerNegotiation.Attempt attempt = new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(1), 5269), false);
+        final IoSession firstSession = connecting(attempt);
+        final NIOConnection firstConnection = mock(NIOConnection.class);
+        negotiation.onResolved(Collections.singletonList(attempt));
+        negotiation.onOpened(firstSession, firstConnection);
+        negotiation.onReceived(firstSession, header("abc", true));
+        negotiation.onReceived(firstSession, FEATURES_DIALBACK);
+        final IoSession secondSession = connecting(attempt);
+        final NIOConnection secondConnection = mock(NIOConnection.class);
+
+        // Execute system under test.
+        negotiation.onReceived(firstSession, "<db:result from='example.com' to='example.org' type='invalid'/>");
+        negotiation.onOpened(secondSession, secondConnection);
+        negotiation.onReceived(secondSession, header("def", false));
+        negotiation.onReceived(secondSession, "<db:result from='example.com' to='example.org' type='invalid'/>");
+
+        // Verify results.
+        verify(firstConnection).close();
+        verify(secondConnection).close();
+        verify(connector, times(2)).connect(attempt, negotiation);
+        assertNull(result.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Verifies that a stream error that is received while the session is being negotiated abandons the connection,
+     * also after the negotiation has fallen back to server dialback.
+     */
+    @Test
+    public void testStreamErrorDuringNegotiation() throws Exception
+    {
+        // Setup test fixture.
+        final OutgoingServerNegotiation.Attempt attempt = new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(1), 5269), false);
+        final IoSession firstSession = connecting(attempt);
+        final NIOConnection firstConnection = mock(NIOConnection.class);
+        negotiation.onResolved(Collections.singletonList(attempt));
+        negotiation.onOpened(firstSession, firstConnection);
+        negotiation.onReceived(firstSession, header("abc", true));
+        negotiation.onReceived(firstSession, FEATURES_STARTTLS);
+        final IoSession secondSession = connecting(attempt);
+        final NIOConnection secondConnection = mock(NIOConnection.class);
+
+        // Execute system under test.
+        negotiation.onReceived(firstSession, "<stream:error><internal-server-error xmlns='urn:ietf:params:xml:ns:xmpp-streams'/></stream:error>");
+        negotiation.onOpened(secondSession, secondConnection);
+        negotiation.onReceived(secondSession, header("def", false));
+        negotiation.onReceived(secondSession, "<stream:error><not-authorized xmlns='urn:ietf:params:xml:ns:xmpp-streams'/></stream:error>");
+
+        // Verify results.
+        verify(firstConnection, never()).startTLS(anyBoolean(), anyBoolean());
+        verify(firstConnection).close();
+        verify(secondConnection).close();
+        assertNull(result.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Verifies that the connection is abandoned when the remote server does not respond in time while the session is
+     * being negotiated.
+     */
+    @Test
+    public void testIdleTimeout() throws Exception
+    {
+        // Setup test fixture.
+        final OutgoingServerNegotiation.Attempt attempt = new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(1), 5269), false);
+        final IoSession firstSession = connecting(attempt);
+        final NIOConnection firstConnection = mock(NIOConnection.class);
+        negotiation.onResolved(Collections.singletonList(attempt));
+        negotiation.onOpened(firstSession, firstConnection);
+        final IoSession secondSession = connecting(attempt);
+        final NIOConnection secondConnection = mock(NIOConnection.class);
+
+        // Execute system under test.
+        negotiation.onIdle(firstSession);
+        negotiation.onOpened(secondSession, secondConnection);
+        negotiation.onIdle(secondSession);
+
+        // Verify results.
+        verify(firstSession.getConfig()).setIdleTime(eq(IdleStatus.READER_IDLE), anyInt());
+        verify(firstConnection).close();
+        verify(secondConnection).close();
+        verify(connector, times(2)).connect(attempt, negotiation);
+        assertNull(result.get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Verifies that a connection on which direct TLS fails because the remote server responds in plaintext is
+     * attempted again to the same address, without direct TLS.
+     */
+    @Test
+    public void testDirectTLSPlaintextRetry() throws Exception
+    {
+        // Setup test fixture.
+        final InetSocketAddress address = new InetSocketAddress(ipv4(1), 5270);
+        final OutgoingServerNegotiation.Attempt attempt = new OutgoingServerNegotiation.Attempt(address, true);
+        final OutgoingServerNegotiation.Attempt retry = new OutgoingServerNegotiation.Attempt(address, false);
+        final IoSession firstSession = connecting(attempt);
+        final NIOConnection firstConnection = mock(NIOConnection.class);
+        final IoSession secondSession = connecting(retry);
+        final NIOConnection secondConnection = mock(NIOConnection.class);
+        negotiation.onResolved(Collections.singletonList(attempt));
+        negotiation.onOpened(firstSession, firstConnection);
+
+        // Execute system under test.
+        negotiation.onException(firstSession, new RuntimeException(new SSLException("Unrecognized SSL message, plaintext connection?")));
+        negotiation.onClosed(firstSession);
+        negotiation.onOpened(secondSession, secondConnection);
+
+        // Verify results.
+        verify(firstConnection).startTLS(true, true);
+        verify(firstSession).closeNow();
+        verify(connector).connect(retry, negotiation);
+        verify(secondSession, never()).closeNow();
+        verify(secondConnection, never()).startTLS(anyBoolean(), anyBoolean());
+        final List<String> sent = sent(secondConnection, 1);
+        assertTrue(sent.get(0).contains("version=\"1.0\""));
+        assertFalse(result.isDone());
+    }
+
+    /**
+     * Verifies that a connection on which the TLS handshake fails is closed without sending any data, after which the
+     * negotiation falls back to server dialback.
+     */
+    @Test
+    public void testTLSHandshakeFailure() throws Exception
+    {
+        // Setup test fixture.
+        final OutgoingServerNegotiation.Attempt attempt = new OutgoingServerNegotiation.Attempt(new InetSocketAddress(ipv4(1), 5270), true);
+        final IoSession firstSession = connecting(attempt);
+        final NIOConnection firstConnection = mock(NIOConnection.class);
+        negotiation.onResolved(Collections.singletonList(attempt));
+        negotiation.onOpened(firstSession, firstConnection);
+        final IoSession secondSession = connecting(attempt);
+
+        // Execute system under test.
+        negotiation.onException(firstSession, new SSLHandshakeException("certificate_unknown"));
+
+        // Verify results.
+        verify(firstSession).closeNow();
+        verify(firstConnection, never()).close();
+        verify(firstConnection, never()).deliverRawText(anyString());
+        verify(connector, times(2)).connect(attempt, negotiation);
+        verify(secondSession, never()).closeNow();
+    }
+
+    /**
+     * Arranges for the next connection of the attempt to be opened as the returned session.
+     */
+    private IoSession connecting(final OutgoingServerNegotiation.Attempt attempt)
+    {
+        final ConnectFuture future = mock(ConnectFuture.class);
+        when(connector.connect(attempt, negotiation)).thenReturn(future);
+        return session(future);
+    }
+
+    private static String header(final String id, final boolean versioned)
+    {
+        return "<stream:stream xmlns:db='jabber:server:dialback' xmlns:stream='http://etherx.jabber.org/streams' xmlns='jabber:server' from='example.com' to='example.org' id='" + id + "'" + (versioned ? " version='1.0'" : "") + ">";
+    }
+
+    private static List<String> sent(final NIOConnection connection, final int count)
+    {
+        final ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(connection, times(count)).deliverRawText(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private static IoSession session(final ConnectFuture future)
+    {
+        final IoSession session = mock(IoSession.class);
+        when(session.getAttribute(OutgoingServerConnectionHandler.CONNECT_FUTURE)).thenReturn(future);
+        when(session.getConfig()).thenReturn(mock(IoSessionConfig.class));
+        return session;
+    }
+
+    private static DNSUtil.HostAddress host(final String hostname, final int port, final boolean directTLS)
+    {
+        final DNSUtil.HostAddress host = mock(DNSUtil.HostAddress.class);
+        when(host.getHost()).thenReturn(hostname);
+        when(host.getPort()).thenReturn(port);
+        when(host.isDirectTLS()).thenReturn(directTLS);
+        return host;
+    }
+
+    private static OutgoingServerNegotiation.AddressResolver resolver(final Map<String, InetAddress[]> dns)
+    {
+        return host -> {
+            final InetAddress[] addresses = dns.get(host);
+            if (addresses == null) {
+                throw new UnknownHostException(host);
+            }
+            return addresses;
+        };
+    }
+
+    private static InetAddress ipv4(final int last) throws UnknownHostException
+    {
+        return InetAddress.getByAddress(new byte[] { (byte) 192, 0, 2, (byte) last });
+    }
+
+    private static InetAddress ipv6(final int last) throws UnknownHostException
+    {
+        final byte[] address = new byte[16];
+        address[0] = 0x20;
+        address[1] = 0x01;
+        address[2] = 0x0d;
+        address[3] = (byte) 0xb8;
+        address[15] = (byte) last;
+        return InetAddress.getByAddress(address);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.pep;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the implementation of {@link PEPServiceSummary}.
+ */
+public class PEPServiceSummaryTest
+{
+    /**
+     * Verifies that nodes that are added to a summary can be found, and are no longer found after they are removed.
+     */
+    @Test
+    public void testAddAndRemoveNodes() throws Exception
+    {
+        // Setup test fixture.
+        final PEPServiceSummary summary = new PEPServiceSummary();
+
+        // Execute system under test.
+        summary.addNode("urn:xmpp:avatar:metadata");
+        summary.addNode("urn:xmpp:avatar:data");
+        summary.addNode("http://jabber.org/protocol/nick");
+        summary.addNode("urn:xmpp:avatar:data");
+        summary.removeNode("urn:xmpp:avatar:metadata");
+        summary.removeNode("urn:xmpp:bookmarks:1");
+
+        // Verify results.
+        assertEquals(2, summary.getNodeCount());
+        assertTrue(summary.hasNode("urn:xmpp:avatar:data"));
+        assertTrue(summary.hasNode("http://jabber.org/protocol/nick"));
+        assertFalse(summary.hasNode("urn:xmpp:avatar:metadata"));
+    }
+
+    /**
+     * Verifies that node IDs are shared between summaries.
+     */
+    @Test
+    public void testNodeIdsAreInterned() throws Exception
+    {
+        // Setup test fixture.
+        final PEPServiceSummary summary = new PEPServiceSummary();
+
+        // Execute system under test.
+        summary.addNode(new String("urn:xmpp:avatar:metadata"));
+
+        // Verify results.
+        assertTrue(summary.getCachedSize() < 100);
+        assertTrue(summary.hasNode("urn:xmpp:avatar:metadata"));
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.privacy;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.Fixtures;
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link CompiledPrivacyList}.
+ */
+public class CompiledPrivacyListTest
+{
+    private static final JID OWNER = new JID("owner@example.org/desktop");
+
+    private static final String[] ADDRESSES = {
+        "friend@example.org/phone", "friend@example.org/desktop", "colleague@example.org", "stranger@example.com/a",
+        "example.com", "example.net/service", "owner@example.org/phone", "implicit@example.org"
+    };
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Fixtures.reconfigureOpenfireHome();
+        CacheFactory.initialize();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Fixtures.clearExistingProperties();
+    }
+
+    /**
+     * Verifies that the compiled list reaches the same decision as the evaluation of the items one by one, for all
+     * kinds of stanza and directions.
+     */
+    @Test
+    public void testSameDecisionAsItems() throws Exception
+    {
+        // Setup test fixture.
+        final List<PrivacyItem> items = items(
+            "<item type='jid' value='friend@example.org/phone' action='allow' order='1'><message/></item>",
+            "<item type='group' value='Work' action='deny' order='2'><iq/><presence-out/></item>",
+            "<item type='jid' value='friend@example.org' action='deny' order='3'><message/><presence-in/></item>",
+            "<item type='subscription' value='from' action='deny' order='4'><presence-in/></item>",
+            "<item type='jid' value='example.com' action='deny' order='5'/>",
+            "<item type='subscription' value='none' action='allow' order='6'><iq/></item>",
+            "<item type='jid' value='example.net/service' action='deny' order='7'><presence-out/></item>",
+            "<item action='deny' order='8'><message/></item>",
+            "<item type='subscription' value='both' action='deny' order='9'/>"
+        );
+        final Roster roster = new TestRoster();
+        final CompiledPrivacyList compiled = new CompiledPrivacyList(OWNER, items);
+
+        // Execute system under test & verify results.
+        assertTrue(compiled.isRosterRequired());
+        for (final Packet packet : packets()) {
+            assertEquals(packet.toXML(), evaluate(items, packet, roster), compiled.shouldBlockPacket(packet, roster));
+        }
+    }
+
+    /**
+     * Verifies that the decisions that are based on the roster follow modifications of the roster.
+     */
+    @Test
+    public void testRosterModification() throws Exception
+    {
+        // Setup test fixture.
+        final List<PrivacyItem> items = items(
+            "<item type='group' value='Blocked' action='deny' order='1'/>"
+        );
+        final TestRoster roster = new TestRoster();
+        final CompiledPrivacyList compiled = new CompiledPrivacyList(OWNER, items);
+        final Message message = new Message();
+        message.setFrom("stranger@example.com/laptop");
+        message.setTo(OWNER);
+        final boolean before = compiled.shouldBlockPacket(message, roster);
+
+        // Execute system under test.
+        // A pending subscription request, which is updated without a roster push.
+        final RosterItem item = roster.getRosterItem(new JID("stranger@example.com"));
+        item.setRecvStatus(RosterItem.RECV_SUBSCRIBE);
+        item.setGroups(new ArrayList<>(Collections.singletonList("Blocked")));
+        roster.updateRosterItem(item);
+        final boolean after = compiled.shouldBlockPacket(message, roster);
+
+        // Verify results.
+        assertFalse(before);
+        assertTrue(after);
+    }
+
+    /**
+     * Verifies that stanzas that are not from a user are never blocked, and that a list without items that depend on
+     * the roster does not require it.
+     */
+    @Test
+    public void testWithoutRoster() throws Exception
+    {
+        // Setup test fixture.
+        final List<PrivacyItem> items = items(
+            "<item action='deny' order='1'/>"
+        );
+        final CompiledPrivacyList compiled = new CompiledPrivacyList(OWNER, items);
+        final Message fromServer = new Message();
+        fromServer.setTo(OWNER);
+        final Message fromUser = fromServer.createCopy();
+        fromUser.setFrom("someone@example.com");
+
+        // Execute system under test & verify results.
+        assertFalse(compiled.isRosterRequired());
+        assertFalse(compiled.shouldBlockPacket(fromServer, null));
+        assertTrue(compiled.shouldBlockPacket(fromUser, null));
+    }
+
+    private static List<PrivacyItem> items(final String... xml) throws Exception
+    {
+        final List<PrivacyItem> result = new ArrayList<>();
+        for (final String item : xml) {
+            result.add(new PrivacyItem(DocumentHelper.parseText(item).getRootElement()));
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static boolean evaluate(final List<PrivacyItem> items, final Packet packet, final Roster roster)
+    {
+        for (final PrivacyItem item : items) {
+            if (item.matchesCondition(packet, roster, OWNER)) {
+                return !item.isAllow();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns stanzas of every kind, received from and sent to all addresses.
+     */
+    private static List<Packet> packets()
+    {
+        final List<Packet> result = new ArrayList<>();
+        for (final String address : ADDRESSES) {
+            final List<Packet> received = new ArrayList<>();
+            received.add(new Message());
+            received.add(new IQ());
+            received.add(new Presence());
+            received.add(new Presence(Presence.Type.unavailable));
+            received.add(new Presence(Presence.Type.subscribe));
+            for (final Packet packet : received) {
+                packet.setFrom(address);
+                packet.setTo(OWNER);
+                result.add(packet);
+                final Packet sent = packet.createCopy();
+                sent.setFrom(OWNER);
+                sent.setTo(address);
+                result.add(sent);
+            }
+        }
+        final Presence broadcast = new Presence();
+        broadcast.setFrom(OWNER);
+        result.add(broadcast);
+        return result;
+    }
+
+    /**
+     * A roster with a contact for every subscription status, one of which only exists due to a shared group.
+     */
+    private static class TestRoster extends Roster
+    {
+        TestRoster()
+        {
+            add("friend@example.org", RosterItem.SUB_BOTH, "Friends");
+            add("colleague@example.org", RosterItem.SUB_TO, "Work");
+            add("stranger@example.com", RosterItem.SUB_NONE, null);
+            implicitFrom.put("implicit@example.org", Collections.singleton("Everyone"));
+        }
+
+        private void add(final String jid, final RosterItem.SubType subscription, final String group)
+        {
+            rosterItems.put(jid, new RosterItem(new JID(jid), subscription, RosterItem.ASK_NONE, RosterItem.RECV_NONE,
+                "", group == null ? null : Collections.singletonList(group)));
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.pubsub;
+
+import org.dbunit.DBTestCase;
+import org.dbunit.PropertiesBasedJdbcDatabaseTester;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.xml.XmlDataSet;
+import org.jivesoftware.Fixtures;
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.database.DefaultConnectionProvider;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.xmpp.packet.JID;
+
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Verifies that the nodes of a pubsub service, including their affiliations and subscriptions, are loaded from the
+ * database by {@link DefaultPubSubPersistenceProvider}, both when the nodes are assembled sequentially and when they
+ * are assembled in parallel.
+ */
+public class DefaultPubSubPersistenceProviderTest extends DBTestCase
+{
+    public static final String DRIVER = "org.hsqldb.jdbcDriver";
+    public static final String URL;
+    public static final String USERNAME = "sa";
+    public static final String PASSWORD = "";
+
+    private static final String SERVICE_ID = "pubsub";
+    private static final int NODE_COUNT = 50;
+    private static final JID OWNER = new JID("owner@example.org");
+
+    static {
+        final URL location = DefaultPubSubPersistenceProviderTest.class.getResource("/datasets/openfire.script");
+        final String fileLocation = location.toString().substring(0, location.toString().lastIndexOf("/")+1) + "openfire";
+        URL = "jdbc:hsqldb:"+fileLocation+";ifexists=true";
+
+        // Setup database configuration of DBUnit.
+        System.setProperty( PropertiesBasedJdbcDatabaseTester.DBUNIT_DRIVER_CLASS, DRIVER );
+        System.setProperty( PropertiesBasedJdbcDatabaseTester.DBUNIT_CONNECTION_URL, URL );
+        System.setProperty( PropertiesBasedJdbcDatabaseTester.DBUNIT_USERNAME, USERNAME );
+        System.setProperty( PropertiesBasedJdbcDatabaseTester.DBUNIT_PASSWORD, PASSWORD );
+    }
+
+    public void setUp() throws Exception
+    {
+        // Ensure that DB-Unit's setUp is called!
+        super.setUp();
+
+        // Initialize Openfire's cache framework.
+        CacheFactory.initialize();
+
+        // Mock the XMPPServer implementation that's used internally.
+        Fixtures.clearExistingProperties();
+        XMPPServer.setInstance(Fixtures.mockXMPPServer());
+
+        // Ensure that Openfire caches are reset before each test to avoid tests to affect each-other.
+        Arrays.stream(CacheFactory.getAllCaches()).forEach(Map::clear);
+
+        // Wire the database connection provider used by the persistence provider.
+        final DefaultConnectionProvider conProvider = new DefaultConnectionProvider();
+        conProvider.setDriver(DRIVER);
+        conProvider.setServerURL(URL);
+        conProvider.setUsername(USERNAME);
+        conProvider.setPassword(PASSWORD);
+        DbConnectionManager.setConnectionProvider(conProvider);
+    }
+
+    @Override
+    protected IDataSet getDataSet() throws Exception {
+        // This dataset restores the state of the database to one that does not contain any pubsub nodes.
+        return new XmlDataSet(getClass().getResourceAsStream("/datasets/clean.xml"));
+    }
+
+    /**
+     * Asserts that nodes are loaded with their affiliations and subscriptions when they are assembled sequentially.
+     */
+    public void testLoadNodesSequentially() throws Exception
+    {
+        // Setup test fixture.
+        insertNodes();
+        DefaultPubSubPersistenceProvider.LOAD_PARALLEL_THRESHOLD.setValue(Integer.MAX_VALUE);
+
+        try {
+            // Execute system under test.
+            final Map<String, Node> result = loadNodes();
+
+            // Verify results.
+            assertLoaded(result);
+        } finally {
+            DefaultPubSubPersistenceProvider.LOAD_PARALLEL_THRESHOLD.setValue(DefaultPubSubPersistenceProvider.LOAD_PARALLEL_THRESHOLD.getDefaultValue());
+        }
+    }
+
+    /**
+     * Asserts that nodes are loaded with their affiliations and subscriptions when they are assembled in parallel.
+     */
+    public void testLoadNodesInParallel() throws Exception
+    {
+        // Setup test fixture.
+        insertNodes();
+        DefaultPubSubPersistenceProvider.LOAD_PARALLEL_THRESHOLD.setValue(1);
+
+        try {
+            // Execute system under test.
+            final Map<String, Node> result = loadNodes();
+
+            // Verify results.
+            assertLoaded(result);
+        } finally {
+            DefaultPubSubPersistenceProvider.LOAD_PARALLEL_THRESHOLD.setValue(DefaultPubSubPersistenceProvider.LOAD_PARALLEL_THRESHOLD.getDefaultValue());
+        }
+    }
+
+    /**
+     * Asserts that affiliations and subscriptions of nodes that do not exist are ignored, without preventing the other
+     * nodes from being loaded.
+     */
+    public void testLoadNodesIgnoresOrphanedRows() throws Exception
+    {
+        // Setup test fixture.
+        insertNodes();
+        try (final Connection con = DbConnectionManager.getConnection()) {
+            insertAffiliation(con, "missing", OWNER, "owner");
+            insertSubscription(con, "missing", "sub-missing", publisher(0));
+        }
+
+        // Execute system under test.
+        final Map<String, Node> result = loadNodes();
+
+        // Verify results.
+        assertFalse(result.containsKey("missing"));
+        assertLoaded(result);
+    }
+
+    private Map<String, Node> loadNodes()
+    {
+        // Nodes resolve their service through the server.
+        final PubSubModule service = mock(PubSubModule.class);
+        when(XMPPServer.getInstance().getPubSubModule()).thenReturn(service);
+        when(service.getServiceID()).thenReturn(SERVICE_ID);
+        when(service.getUniqueIdentifier()).thenReturn(new PubSubService.UniqueIdentifier(SERVICE_ID));
+        final Map<String, Node> result = new HashMap<>();
+        doAnswer(invocation -> {
+            final Node node = invocation.getArgument(0);
+            result.put(node.getNodeID(), node);
+            return null;
+        }).when(service).addNode(any(Node.class));
+
+        new DefaultPubSubPersistenceProvider().loadNodes(service);
+        return result;
+    }
+
+    private static void assertLoaded(final Map<String, Node> nodes)
+    {
+        assertEquals(NODE_COUNT, nodes.size());
+        for (int i = 0; i < NODE_COUNT; i++) {
+            final Node node = nodes.get("node" + i);
+            assertNotNull(node);
+            assertEquals(2, node.getAllAffiliates().size());
+            assertEquals(NodeAffiliate.Affiliation.owner, node.getAffiliate(OWNER).getAffiliation());
+            assertEquals(NodeAffiliate.Affiliation.publisher, node.getAffiliate(publisher(i)).getAffiliation());
+            assertEquals(1, node.getAllSubscriptions().size());
+            final NodeSubscription subscription = node.getSubscription("sub" + i);
+            assertNotNull(subscription);
+            assertEquals(publisher(i), subscription.getJID());
+            assertSame(node, subscription.getNode());
+        }
+    }
+
+    private static JID publisher(final int index)
+    {
+        return new JID("user" + index + "@example.org");
+    }
+
+    /**
+     * Inserts leaf nodes, that each have an owner and a publisher. The publisher is subscribed to the node.
+     */
+    private static void insertNodes() throws Exception
+    {
+        try (final Connection con = DbConnectionManager.getConnection()) {
+            for (int i = 0; i < NODE_COUNT; i++) {
+                final String nodeID = "node" + i;
+                try (final PreparedStatement pstmt = con.prepareStatement(
+                    "INSERT INTO ofPubsubNode (serviceID, nodeID, leaf, creationDate, modificationDate, parent, deliverPayloads, " +
+                        "maxPayloadSize, persistItems, maxItems, notifyConfigChanges, notifyDelete, notifyRetract, presenceBased, " +
+                        "sendItemSubscribe, publisherModel, subscriptionEnabled, configSubscription, accessModel, creator) " +
+                        "VALUES (?, ?, 1, '000001000000000', '000001000000000', NULL, 1, 5120, 1, 10, 1, 1, 1, 0, 1, 'publishers', 1, 0, 'open', ?)")) {
+                    pstmt.setString(1, SERVICE_ID);
+                    pstmt.setString(2, nodeID);
+                    pstmt.setString(3, OWNER.toString());
+                    pstmt.executeUpdate();
+                }
+                insertAffiliation(con, nodeID, OWNER, "owner");
+                insertAffiliation(con, nodeID, publisher(i), "publisher");
+                insertSubscription(con, nodeID, "sub" + i, publisher(i));
+            }
+        }
+    }
+
+    private static void insertAffiliation(final Connection con, final String nodeID, final JID jid, final String affiliation) throws Exception
+    {
+        try (final PreparedStatement pstmt = con.prepareStatement("INSERT INTO ofPubsubAffiliation (serviceID, nodeID, jid, affiliation) VALUES (?, ?, ?, ?)")) {
+            pstmt.setString(1, SERVICE_ID);
+            pstmt.setString(2, nodeID);
+            pstmt.setString(3, jid.toString());
+            pstmt.setString(4, affiliation);
+            pstmt.executeUpdate();
+        }
+    }
+
+    private static void insertSubscription(final Connection con, final String nodeID, final String subID, final JID subscriber) throws Exception
+    {
+        try (final PreparedStatement pstmt = con.prepareStatement(
+            "INSERT INTO ofPubsubSubscription (serviceID, nodeID, id, jid, owner, state, deliver, digest, digest_frequency, " +
+                "expire, includeBody, showValues, subscriptionType, subscriptionDepth, keyword) " +
+                "VALUES (?, ?, ?, ?, ?, 'subscribed', 1, 0, 86400000, NULL, 0, '', 'items', 1, NULL)")) {
+            pstmt.setString(1, SERVICE_ID);
+            pstmt.setString(2, nodeID);
+            pstmt.setString(3, subID);
+            pstmt.setString(4, subscriber.toString());
+            pstmt.setString(5, subscriber.toString());
+            pstmt.executeUpdate();
+        }
+    }
+}
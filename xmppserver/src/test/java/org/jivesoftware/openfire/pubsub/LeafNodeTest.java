@@ -24,6 +24,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 
 import static org.junit.Assert.*;
 
@@ -64,4 +67,52 @@ public class LeafNodeTest
         assertTrue( result instanceof LeafNode );
         assertEquals( input, result );
     }
+
+    /**
+     * Verifies that subscriptions can be found by owner and by subscriber, including after a subscription is reloaded.
+     */
+    @Test
+    public void testSubscriptionIndexes() throws Exception
+    {
+        // Setup fixture.
+        final LeafNode node = new LeafNode( new PubSubService.UniqueIdentifier( "test-service-id" ), null, "test-node-id", new JID( "unit-test@example.org"), new DefaultNodeConfiguration(true));
+        final JID owner = new JID( "owner@example.org" );
+        final NodeSubscription desktop = new NodeSubscription( node, owner, new JID( "owner@example.org/desktop" ), NodeSubscription.State.subscribed, "a" );
+        final NodeSubscription phone = new NodeSubscription( node, owner, new JID( "owner@example.org/phone" ), NodeSubscription.State.subscribed, "b" );
+        final NodeSubscription other = new NodeSubscription( node, new JID( "other@example.org" ), new JID( "other@example.org" ), NodeSubscription.State.subscribed, "c" );
+        node.addSubscription( desktop );
+        node.addSubscription( phone );
+        node.addSubscription( other );
+
+        // Execute system under test.
+        final NodeSubscription reloaded = new NodeSubscription( node, owner, new JID( "owner@example.org/tablet" ), NodeSubscription.State.subscribed, "b" );
+        node.addSubscription( reloaded );
+
+        // Verify result.
+        assertEquals( new HashSet<>( Arrays.asList( desktop, reloaded ) ), new HashSet<>( node.getSubscriptions( owner ) ) );
+        assertTrue( node.getSubscriptionsBySubscriber( new JID( "owner@example.org/phone" ) ).isEmpty() );
+        assertEquals( Collections.singletonList( reloaded ), node.getSubscriptionsBySubscriber( new JID( "owner@example.org/tablet" ) ) );
+    }
+
+    /**
+     * Verifies that the list of subscriptions to which notifications can be delivered is recomputed after a change.
+     */
+    @Test
+    public void testDeliverySubscriptionsInvalidation() throws Exception
+    {
+        // Setup fixture.
+        final LeafNode node = new LeafNode( new PubSubService.UniqueIdentifier( "test-service-id" ), null, "test-node-id", new JID( "unit-test@example.org"), new DefaultNodeConfiguration(true));
+        final NodeSubscription active = new NodeSubscription( node, new JID( "a@example.org" ), new JID( "a@example.org" ), NodeSubscription.State.subscribed, "a" );
+        final NodeSubscription pending = new NodeSubscription( node, new JID( "b@example.org" ), new JID( "b@example.org" ), NodeSubscription.State.pending, "b" );
+        node.addSubscription( active );
+        node.addSubscription( pending );
+        final Object before = node.getDeliverySubscriptions();
+
+        // Execute system under test.
+        active.setShouldDeliverNotifications( false );
+
+        // Verify result.
+        assertEquals( Collections.singletonList( active ), before );
+        assertTrue( node.getDeliverySubscriptions().isEmpty() );
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.pubsub;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests that verify the implementation of {@link NotificationDeliveryPipeline}.
+ */
+public class NotificationDeliveryPipelineTest
+{
+    /**
+     * Verifies that notifications composed for each affiliate are routed through the service of the node.
+     */
+    @Test
+    public void testPublish() throws Exception
+    {
+        // Setup test fixture.
+        final PubSubService service = mock(PubSubService.class);
+        final LeafNode node = mock(LeafNode.class);
+        when(node.getService()).thenReturn(service);
+        when(node.getUniqueIdentifier()).thenReturn(new Node.UniqueIdentifier("pubsub", "test-publish"));
+
+        final List<NodeAffiliate> affiliates = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            final JID recipient = new JID("user" + i, "example" + (i % 3) + ".org", null);
+            final NodeAffiliate affiliate = mock(NodeAffiliate.class);
+            doAnswer(invocation -> {
+                final NotificationSink sink = invocation.getArgument(4);
+                sink.send(node, invocation.getArgument(0), recipient);
+                return null;
+            }).when(affiliate).sendPublishedNotifications(any(Message.class), any(), eq(node), anyList(), any(NotificationSink.class));
+            affiliates.add(affiliate);
+        }
+        final NotificationDeliveryPipeline pipeline = NotificationDeliveryPipeline.getInstance();
+        final long routedBefore = pipeline.getMetrics(NotificationDeliveryPipeline.Stage.route).getItems();
+
+        // Execute system under test.
+        pipeline.publish(node, affiliates, Collections.emptyList());
+
+        // Verify results.
+        verify(service, timeout(5000).times(600)).sendNotification(eq(node), any(Message.class), any(JID.class));
+        verify(service).sendNotification(eq(node), any(Message.class), eq(new JID("user42", "example0.org", null)));
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (pipeline.getMetrics(NotificationDeliveryPipeline.Stage.route).getItems() - routedBefore < 600 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(600, pipeline.getMetrics(NotificationDeliveryPipeline.Stage.route).getItems() - routedBefore);
+    }
+
+    /**
+     * Verifies that notifications of events of the same node are delivered in the order of the events.
+     */
+    @Test
+    public void testOrderPerNode() throws Exception
+    {
+        // Setup test fixture.
+        final PubSubService service = mock(PubSubService.class);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            delivered.add(((Message) invocation.getArgument(1)).getBody());
+            return null;
+        }).when(service).broadcast(any(Node.class), any(Message.class), anyList());
+        final LeafNode node = mock(LeafNode.class);
+        when(node.getService()).thenReturn(service);
+        when(node.getUniqueIdentifier()).thenReturn(new Node.UniqueIdentifier("pubsub", "test-order"));
+        final NotificationDeliveryPipeline pipeline = NotificationDeliveryPipeline.getInstance();
+
+        // Execute system under test.
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            final Message message = new Message();
+            message.setBody("event " + i);
+            pipeline.broadcast(node, message, Collections.singletonList(new JID("user@example.org")));
+            expected.add("event " + i);
+        }
+
+        // Verify results.
+        verify(service, timeout(5000).times(50)).broadcast(any(Node.class), any(Message.class), anyList());
+        assertEquals(expected, delivered);
+    }
+
+    /**
+     * Verifies that notifications of deleted items are delivered after the notifications of items that were published
+     * earlier, and that later events of the node are delivered by the pipeline while earlier ones are pending.
+     */
+    @Test
+    public void testRetractAfterPublish() throws Exception
+    {
+        // Setup test fixture.
+        final PubSubService service = mock(PubSubService.class);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            final Message notification = invocation.getArgument(1);
+            if (notification.getBody().equals("publish")) {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            delivered.add(notification.getBody());
+            return null;
+        }).when(service).sendNotification(any(Node.class), any(Message.class), any(JID.class));
+        final LeafNode node = mock(LeafNode.class);
+        when(node.getService()).thenReturn(service);
+        when(node.getUniqueIdentifier()).thenReturn(new Node.UniqueIdentifier("pubsub", "test-retract"));
+
+        final JID recipient = new JID("user@example.org");
+        final NodeAffiliate affiliate = mock(NodeAffiliate.class);
+        doAnswer(invocation -> {
+            final Message notification = invocation.getArgument(0);
+            notification.setBody("publish");
+            ((NotificationSink) invocation.getArgument(4)).send(node, notification, recipient);
+            return null;
+        }).when(affiliate).sendPublishedNotifications(any(Message.class), any(), eq(node), anyList(), any(NotificationSink.class));
+        doAnswer(invocation -> {
+            final Message notification = invocation.getArgument(0);
+            notification.setBody("retract");
+            ((NotificationSink) invocation.getArgument(4)).send(node, notification, recipient);
+            return null;
+        }).when(affiliate).sendDeletionNotifications(any(Message.class), any(), eq(node), anyList(), any(NotificationSink.class));
+        final NotificationDeliveryPipeline pipeline = NotificationDeliveryPipeline.getInstance();
+
+        // Execute system under test.
+        pipeline.publish(node, Collections.singletonList(affiliate), Collections.emptyList());
+        final boolean applicableWhilePending = pipeline.isApplicable(node, 1);
+        pipeline.retract(node, Collections.singletonList(affiliate), Collections.emptyList());
+        release.countDown();
+
+        // Verify results.
+        verify(service, timeout(5000).times(2)).sendNotification(eq(node), any(Message.class), eq(recipient));
+        assertTrue(applicableWhilePending);
+        assertEquals(Arrays.asList("publish", "retract"), delivered);
+    }
+}
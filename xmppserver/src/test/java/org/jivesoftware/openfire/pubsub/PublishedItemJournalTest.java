@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.pubsub;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.JID;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the implementation of {@link PublishedItemJournal}.
+ */
+public class PublishedItemJournalTest
+{
+    private static final int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static PublishedItem item(final String nodeId, final String itemId, final String payload)
+    {
+        final PublishedItem item = new PublishedItem("pubsub", nodeId, new JID("john@example.org/desktop"), itemId, new Date(1234567890L));
+        item.setPayloadXML(payload);
+        return item;
+    }
+
+    private static long segmentCount(final Path directory) throws Exception
+    {
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(".journal")).count();
+        }
+    }
+
+    /**
+     * Verifies that changes that were not checkpointed are recovered, reduced to the last change per item.
+     */
+    @Test
+    public void testRecovery() throws Exception
+    {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final PublishedItemJournal journal = PublishedItemJournal.open(directory, SEGMENT_SIZE);
+        journal.append(PublishedItemJournal.Record.add(item("node", "a", "<a/>")), false);
+        journal.append(PublishedItemJournal.Record.add(item("node", "b", "<b/>")), false);
+        journal.append(PublishedItemJournal.Record.delete(item("node", "a", null)), false);
+        journal.append(PublishedItemJournal.Record.add(item("node", "b", "<b2/>")), false);
+        journal.close();
+
+        // Execute system under test.
+        final List<PublishedItemJournal.Record> result = PublishedItemJournal.open(directory, SEGMENT_SIZE).getRecovered();
+
+        // Verify results.
+        assertEquals(2, result.size());
+        assertEquals(PublishedItemJournal.Operation.DELETE, result.get(0).operation);
+        assertEquals("a", result.get(0).itemId);
+        assertEquals(PublishedItemJournal.Operation.ADD, result.get(1).operation);
+        final PublishedItem recovered = result.get(1).toPublishedItem();
+        assertEquals("b", recovered.getID());
+        assertEquals("<b2/>", recovered.getPayloadXML());
+        assertEquals(new JID("john@example.org/desktop"), recovered.getPublisher());
+        assertEquals(new Date(1234567890L), recovered.getCreationDate());
+    }
+
+    /**
+     * Verifies that changes to a node that precede a purge of that node are not recovered.
+     */
+    @Test
+    public void testPurge() throws Exception
+    {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final PublishedItemJournal journal = PublishedItemJournal.open(directory, SEGMENT_SIZE);
+        journal.append(PublishedItemJournal.Record.add(item("node", "a", "<a/>")), false);
+        journal.append(PublishedItemJournal.Record.add(item("other", "a", "<a/>")), false);
+        journal.append(PublishedItemJournal.Record.purge(new Node.UniqueIdentifier("pubsub", "node")), false);
+        journal.append(PublishedItemJournal.Record.add(item("node", "b", "<b/>")), false);
+        journal.close();
+
+        // Execute system under test.
+        final List<PublishedItemJournal.Record> result = PublishedItemJournal.open(directory, SEGMENT_SIZE).getRecovered();
+
+        // Verify results.
+        assertEquals(2, result.size());
+        assertEquals("other", result.get(0).nodeId);
+        assertEquals("b", result.get(1).itemId);
+    }
+
+    /**
+     * Verifies that checkpointed changes are not recovered, and that segments that only hold such changes are removed.
+     */
+    @Test
+    public void testCheckpoint() throws Exception
+    {
+        // Setup test fixture.
+        final Path directory = folder.newFolder().toPath();
+        final PublishedItemJournal journal = PublishedItemJournal.open(directory, SEGMENT_SIZE);
+        for (int i = 0; i < 50; i++) {
+            journal.append(PublishedItemJournal.Record.add(item("node", "item-" + i, "<payload/>")), false);
+        }
+        final long position = journal.getPosition();
+        journal.append(PublishedItemJournal.Record.add(item("node", "last", "<payload/>")), false);
+        final long segmentsBefore = segmentCount(directory);
+        assertTrue(segmentsBefore > 1);
+
+        // Execute system under test.
+        journal.checkpoint(position);
+        final long segmentsAfter = segmentCount(directory);
+        journal.close();
+        final List<PublishedItemJournal.Record> result = PublishedItemJournal.open(directory, SEGMENT_SIZE).getRecovered();
+
+        // Verify results.
+        assertTrue(segmentsAfter < segmentsBefore);
+        assertEquals(1, result.size());
+        assertEquals("last", result.get(0).itemId);
+    }
+}
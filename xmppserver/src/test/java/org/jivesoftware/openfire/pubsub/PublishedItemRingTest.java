@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.pubsub;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests that verify the implementation of {@link PublishedItemRing}.
+ */
+public class PublishedItemRingTest
+{
+    private static PublishedItem item(final String itemId)
+    {
+        return new PublishedItem("pubsub", "node", new JID("john@example.org/desktop"), itemId, new Date());
+    }
+
+    private static List<String> ids(final List<PublishedItem> items)
+    {
+        return items.stream().map(PublishedItem::getID).collect(Collectors.toList());
+    }
+
+    /**
+     * Verifies that the oldest item is overwritten when an item is added to a full ring.
+     */
+    @Test
+    public void testAddEvictsOldest() throws Exception
+    {
+        // Setup test fixture.
+        final PublishedItemRing ring = new PublishedItemRing(mock(LeafNode.class), 3, Arrays.asList(item("a"), item("b"), item("c")));
+
+        // Execute system under test.
+        ring.add(item("d"));
+
+        // Verify results.
+        assertEquals(Arrays.asList("b", "c", "d"), ids(ring.getItems(-1)));
+        assertEquals(Arrays.asList("c", "d"), ids(ring.getItems(2)));
+        assertEquals("d", ring.getLast().getID());
+        assertNull(ring.get("a"));
+    }
+
+    /**
+     * Verifies that an item that is published with the ID of an existing item replaces that item.
+     */
+    @Test
+    public void testAddReplacesSameId() throws Exception
+    {
+        // Setup test fixture.
+        final PublishedItemRing ring = new PublishedItemRing(mock(LeafNode.class), 3, Arrays.asList(item("a"), item("b"), item("c")));
+        final PublishedItem replacement = item("a");
+
+        // Execute system under test.
+        ring.add(replacement);
+
+        // Verify results.
+        assertEquals(Arrays.asList("b", "c", "a"), ids(ring.getItems(-1)));
+        assertSame(replacement, ring.get("a"));
+    }
+
+    /**
+     * Verifies that an item can be removed from the middle of a ring that has wrapped around.
+     */
+    @Test
+    public void testRemove() throws Exception
+    {
+        // Setup test fixture.
+        final PublishedItemRing ring = new PublishedItemRing(mock(LeafNode.class), 3, Arrays.asList(item("a"), item("b"), item("c"), item("d")));
+
+        // Execute system under test.
+        ring.remove("c");
+        ring.add(item("e"));
+
+        // Verify results.
+        assertEquals(Arrays.asList("b", "d", "e"), ids(ring.getItems(-1)));
+    }
+
+    /**
+     * Verifies that shrinking a ring discards its oldest items.
+     */
+    @Test
+    public void testResize() throws Exception
+    {
+        // Setup test fixture.
+        final PublishedItemRing ring = new PublishedItemRing(mock(LeafNode.class), 4, Arrays.asList(item("a"), item("b"), item("c"), item("d"), item("e")));
+
+        // Execute system under test.
+        ring.resize(2);
+        ring.add(item("f"));
+
+        // Verify results.
+        assertEquals(2, ring.getCapacity());
+        assertEquals(Arrays.asList("e", "f"), ids(ring.getItems(-1)));
+    }
+
+    /**
+     * Verifies that only a modified ring is written, and that a retired ring no longer accepts changes.
+     */
+    @Test
+    public void testWriteAndRetire() throws Exception
+    {
+        // Setup test fixture.
+        final LeafNode node = mock(LeafNode.class);
+        final PubSubPersistenceProvider provider = mock(PubSubPersistenceProvider.class);
+        when(provider.replacePublishedItems(any(LeafNode.class), anyList())).thenReturn(true);
+        final PublishedItemRing ring = new PublishedItemRing(node, 2, Collections.singletonList(item("a")));
+
+        // Execute system under test.
+        ring.writeTo(provider);
+        ring.add(item("b"));
+        ring.writeTo(provider);
+        final boolean retired = ring.retireIfIdle(Long.MAX_VALUE);
+
+        // Verify results.
+        verify(provider, times(1)).replacePublishedItems(any(LeafNode.class), anyList());
+        verify(provider).replacePublishedItems(node, ring.getItems(-1));
+        assertTrue(retired);
+        assertFalse(ring.add(item("c")));
+        assertEquals(Arrays.asList("a", "b"), ids(ring.getItems(-1)));
+    }
+
+    /**
+     * Verifies that a ring remains modified when its snapshot fails to be written, so that it is written again later
+     * and is not retired.
+     */
+    @Test
+    public void testFailedWriteIsRetried() throws Exception
+    {
+        // Setup test fixture.
+        final LeafNode node = mock(LeafNode.class);
+        final PubSubPersistenceProvider provider = mock(PubSubPersistenceProvider.class);
+        when(provider.replacePublishedItems(any(LeafNode.class), anyList())).thenReturn(false, true);
+        final PublishedItemRing ring = new PublishedItemRing(node, 2, Collections.singletonList(item("a")));
+        ring.add(item("b"));
+
+        // Execute system under test.
+        final boolean firstWritten = ring.writeTo(provider);
+        final boolean retiredAfterFailure = ring.retireIfIdle(Long.MAX_VALUE);
+        final boolean secondWritten = ring.writeTo(provider);
+
+        // Verify results.
+        assertFalse(firstWritten);
+        assertFalse(retiredAfterFailure);
+        assertTrue(secondWritten);
+        verify(provider, times(2)).replacePublishedItems(node, ring.getItems(-1));
+        assertTrue(ring.retireIfIdle(Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.pubsub;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests that verify the implementation of {@link UnwrittenJournalChanges}.
+ */
+public class UnwrittenJournalChangesTest
+{
+    private static PublishedItem item(final String itemId)
+    {
+        return new PublishedItem("pubsub", "node", new JID("john@example.org/desktop"), itemId, new Date());
+    }
+
+    /**
+     * Verifies that the checkpoint is the journal position when no changes are unwritten.
+     */
+    @Test
+    public void testCheckpointWithoutChanges() throws Exception
+    {
+        // Setup test fixture.
+        final UnwrittenJournalChanges changes = new UnwrittenJournalChanges();
+
+        // Execute system under test.
+        final long result = changes.getCheckpoint(100);
+
+        // Verify results.
+        assertEquals(100, result);
+    }
+
+    /**
+     * Verifies that the checkpoint does not pass a change that is taken to be written, but that has not been written.
+     */
+    @Test
+    public void testCheckpointStopsAtChangeBeingWritten() throws Exception
+    {
+        // Setup test fixture.
+        final UnwrittenJournalChanges changes = new UnwrittenJournalChanges();
+        final PublishedItem a = item("a");
+        final PublishedItem b = item("b");
+        changes.queued(a, true, 10);
+        changes.queued(b, false, 20);
+
+        // Execute system under test.
+        final long position = changes.taken(a, true);
+
+        // Verify results.
+        assertEquals(10, position);
+        assertEquals(10, changes.getCheckpoint(30));
+    }
+
+    /**
+     * Verifies that the checkpoint advances to the oldest remaining change after a batch is written, even though
+     * other changes continue to be queued.
+     */
+    @Test
+    public void testCheckpointAdvancesPastWrittenBatch() throws Exception
+    {
+        // Setup test fixture.
+        final UnwrittenJournalChanges changes = new UnwrittenJournalChanges();
+        final PublishedItem a = item("a");
+        final PublishedItem b = item("b");
+        final PublishedItem c = item("c");
+        changes.queued(a, true, 10);
+        changes.queued(b, true, 20);
+        final long positionA = changes.taken(a, true);
+        final long positionB = changes.taken(b, true);
+        changes.queued(c, true, 30);
+
+        // Execute system under test.
+        changes.written(positionA);
+        changes.written(positionB);
+
+        // Verify results.
+        assertEquals(30, changes.getCheckpoint(40));
+    }
+
+    /**
+     * Verifies that a change that failed to be written keeps holding back the checkpoint after it is queued again.
+     */
+    @Test
+    public void testRequeuedChangeHoldsCheckpoint() throws Exception
+    {
+        // Setup test fixture.
+        final UnwrittenJournalChanges changes = new UnwrittenJournalChanges();
+        final PublishedItem a = item("a");
+        changes.queued(a, true, 10);
+        final long position = changes.taken(a, true);
+
+        // Execute system under test.
+        changes.requeued(a, true, position);
+
+        // Verify results.
+        assertEquals(10, changes.getCheckpoint(20));
+        assertEquals(10, changes.taken(a, true));
+    }
+
+    /**
+     * Verifies that a change that is superseded by a later change no longer holds back the checkpoint.
+     */
+    @Test
+    public void testDiscardedChangeReleasesCheckpoint() throws Exception
+    {
+        // Setup test fixture.
+        final UnwrittenJournalChanges changes = new UnwrittenJournalChanges();
+        final PublishedItem a = item("a");
+        final PublishedItem b = item("b");
+        changes.queued(a, true, 10);
+        changes.queued(b, false, 20);
+
+        // Execute system under test.
+        changes.discarded(a, true);
+
+        // Verify results.
+        assertEquals(20, changes.getCheckpoint(30));
+    }
+
+    /**
+     * Verifies that changes that are not recorded in the journal are not tracked.
+     */
+    @Test
+    public void testUnrecordedChangeIsIgnored() throws Exception
+    {
+        // Setup test fixture.
+        final UnwrittenJournalChanges changes = new UnwrittenJournalChanges();
+        final PublishedItem a = item("a");
+
+        // Execute system under test.
+        changes.queued(a, true, -1);
+
+        // Verify results.
+        assertEquals(-1, changes.taken(a, true));
+        assertEquals(30, changes.getCheckpoint(30));
+    }
+}
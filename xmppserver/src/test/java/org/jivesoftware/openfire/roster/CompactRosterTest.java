@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.roster;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link CompactRoster}.
+ */
+public class CompactRosterTest
+{
+    private static List<RosterItem> items(final CompactRoster roster)
+    {
+        final List<RosterItem> result = new ArrayList<>();
+        roster.forEach(result::add);
+        return result;
+    }
+
+    /**
+     * Verifies that every combination of subscription states survives packing.
+     */
+    @Test
+    public void testStatePacking() throws Exception
+    {
+        for (final RosterItem.SubType sub : RosterItem.SubType.values()) {
+            for (final RosterItem.AskType ask : RosterItem.AskType.values()) {
+                for (final RosterItem.RecvType recv : RosterItem.RecvType.values()) {
+                    // Execute system under test.
+                    final byte state = CompactRoster.pack(sub.getValue(), ask.getValue(), recv.getValue());
+
+                    // Verify results.
+                    assertEquals(sub.getValue(), CompactRoster.unpackSub(state));
+                    assertEquals(ask.getValue(), CompactRoster.unpackAsk(state));
+                    assertEquals(recv.getValue(), CompactRoster.unpackRecv(state));
+                }
+            }
+        }
+    }
+
+    /**
+     * Verifies that items are returned as added, and that contact addresses and group names are shared between rosters.
+     */
+    @Test
+    public void testItemsAreReturnedWithInternedValues() throws Exception
+    {
+        // Setup test fixture.
+        final CompactRoster first = new CompactRoster(1);
+        final CompactRoster second = new CompactRoster(1);
+        first.add(1, "john@example.org", RosterItem.SUB_BOTH.getValue(), RosterItem.ASK_NONE.getValue(), RosterItem.RECV_NONE.getValue(), "John", null, Arrays.asList(new String("Friends"), "Work"));
+        first.add(2, "jane@example.org", RosterItem.SUB_TO.getValue(), RosterItem.ASK_SUBSCRIBE.getValue(), RosterItem.RECV_NONE.getValue(), null, null, Collections.emptyList());
+        second.add(3, "john@example.org", RosterItem.SUB_FROM.getValue(), RosterItem.ASK_NONE.getValue(), RosterItem.RECV_NONE.getValue(), null, null, Collections.singletonList(new String("Friends")));
+
+        // Execute system under test.
+        final List<RosterItem> firstItems = items(first);
+        final List<RosterItem> secondItems = items(second);
+
+        // Verify results.
+        assertEquals(2, firstItems.size());
+        assertEquals(1, firstItems.get(0).getID());
+        assertEquals("john@example.org", firstItems.get(0).getJid().toBareJID());
+        assertEquals(RosterItem.SUB_BOTH, firstItems.get(0).getSubStatus());
+        assertEquals("John", firstItems.get(0).getNickname());
+        assertEquals(Arrays.asList("Friends", "Work"), firstItems.get(0).getGroups());
+        assertEquals(RosterItem.ASK_SUBSCRIBE, firstItems.get(1).getAskStatus());
+        assertNull(firstItems.get(1).getNickname());
+        assertTrue(firstItems.get(1).getGroups().isEmpty());
+        assertSame(firstItems.get(0).getJid(), secondItems.get(0).getJid());
+        assertSame(firstItems.get(0).getGroups().get(0), secondItems.get(0).getGroups().get(0));
+    }
+
+    /**
+     * Verifies that modifying a roster item that was obtained from a roster does not modify the roster.
+     */
+    @Test
+    public void testItemsAreIndependentCopies() throws Exception
+    {
+        // Setup test fixture.
+        final CompactRoster roster = new CompactRoster(1);
+        roster.add(1, "john@example.org", RosterItem.SUB_NONE.getValue(), RosterItem.ASK_NONE.getValue(), RosterItem.RECV_NONE.getValue(), "John", null, Collections.singletonList("Friends"));
+
+        // Execute system under test.
+        final RosterItem item = roster.iterator().next();
+        item.setSubStatus(RosterItem.SUB_BOTH);
+        item.getGroups().add("Work");
+
+        // Verify results.
+        final RosterItem fresh = roster.iterator().next();
+        assertEquals(RosterItem.SUB_NONE, fresh.getSubStatus());
+        assertEquals(Collections.singletonList("Friends"), fresh.getGroups());
+    }
+
+    /**
+     * Verifies that a roster survives serialization.
+     */
+    @Test
+    public void testExternalization() throws Exception
+    {
+        // Setup test fixture.
+        final CompactRoster roster = new CompactRoster(2);
+        roster.add(1, "john@example.org", RosterItem.SUB_BOTH.getValue(), RosterItem.ASK_NONE.getValue(), RosterItem.RECV_SUBSCRIBE.getValue(), "John", "<presence xmlns=\"jabber:client\" type=\"subscribe\" from=\"john@example.org\"/>", Arrays.asList("Friends", "Work"));
+        roster.add(2, "jane@example.org", RosterItem.SUB_TO.getValue(), RosterItem.ASK_NONE.getValue(), RosterItem.RECV_NONE.getValue(), null, null, Collections.emptyList());
+
+        // Execute system under test.
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(roster);
+        }
+        final CompactRoster result;
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            result = (CompactRoster) in.readObject();
+        }
+
+        // Verify results.
+        final List<RosterItem> items = items(result);
+        assertEquals(2, result.size());
+        assertEquals("john@example.org", items.get(0).getJid().toBareJID());
+        assertEquals(RosterItem.RECV_SUBSCRIBE, items.get(0).getRecvStatus());
+        assertEquals(Arrays.asList("Friends", "Work"), items.get(0).getGroups());
+        assertNotNull(items.get(0).getStoredSubscribeStanza());
+        assertEquals(2, items.get(1).getID());
+        assertNull(items.get(1).getNickname());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.roster;
+
+import org.jivesoftware.openfire.RoutingTable;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests that verify the functionality of {@link PresenceBroadcaster}.
+ */
+public class PresenceBroadcasterTest
+{
+    /**
+     * Verifies that a presence update is routed to each session on this cluster node individually, and to each remote
+     * domain as one batch, with a copy of the update that is addressed to every contact.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRecipientsAreGroupedByDomain() throws Exception
+    {
+        // Setup test fixture.
+        final JID john = new JID("john@example.org");
+        final JID jane = new JID("jane@remote.example.com");
+        final JID bob = new JID("bob@remote.example.com");
+        final JID alice = new JID("alice@other.example.net");
+        final JID johnsPhone = new JID("john@example.org/phone");
+        final RoutingTable routingTable = mock(RoutingTable.class);
+        when(routingTable.getRoutes(john, null)).thenReturn(Collections.singletonList(johnsPhone));
+        when(routingTable.getRoutes(jane, null)).thenReturn(Collections.singletonList(jane));
+        when(routingTable.getRoutes(bob, null)).thenReturn(Collections.singletonList(bob));
+        when(routingTable.getRoutes(alice, null)).thenReturn(Collections.singletonList(alice));
+        when(routingTable.isLocalRoute(johnsPhone)).thenReturn(true);
+        final Presence presence = new Presence();
+        presence.setFrom("owner@example.org/desktop");
+        final PresenceBroadcaster broadcaster = new PresenceBroadcaster();
+
+        // Execute system under test.
+        broadcaster.broadcast(routingTable, presence, Arrays.asList(john, jane, bob, alice));
+
+        // Verify results.
+        final ArgumentCaptor<Packet> local = ArgumentCaptor.forClass(Packet.class);
+        verify(routingTable).routePacket(eq(johnsPhone), local.capture(), eq(false));
+        assertEquals(john, local.getValue().getTo());
+        final ArgumentCaptor<List> batches = ArgumentCaptor.forClass(List.class);
+        verify(routingTable, times(2)).routePackets(batches.capture(), eq(false));
+        final List<Presence> remote = batches.getAllValues().get(0);
+        assertEquals(2, remote.size());
+        assertEquals(jane, remote.get(0).getTo());
+        assertEquals(bob, remote.get(1).getTo());
+        assertEquals(alice, ((List<Presence>) batches.getAllValues().get(1)).get(0).getTo());
+        assertNotSame(presence, remote.get(0));
+        assertEquals(4, broadcaster.getDeliveryCount());
+        assertEquals(2, broadcaster.getRemoteDomainBatchCount());
+        assertEquals(1, broadcaster.getLatency().getCount());
+    }
+
+    /**
+     * Verifies that a presence update for a contact that is hosted by a component is addressed to that contact, rather
+     * than to the component (which is the route of the contact).
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testComponentContactIsAddressed() throws Exception
+    {
+        // Setup test fixture.
+        final JID contact = new JID("jane@gateway.example.org");
+        final JID component = new JID("gateway.example.org");
+        final RoutingTable routingTable = mock(RoutingTable.class);
+        when(routingTable.getRoutes(contact, null)).thenReturn(Collections.singletonList(component));
+        final Presence presence = new Presence();
+        presence.setFrom("owner@example.org/desktop");
+        final PresenceBroadcaster broadcaster = new PresenceBroadcaster();
+
+        // Execute system under test.
+        broadcaster.broadcast(routingTable, presence, Collections.singletonList(contact));
+
+        // Verify results.
+        final ArgumentCaptor<List> batches = ArgumentCaptor.forClass(List.class);
+        verify(routingTable).routePackets(batches.capture(), eq(false));
+        final List<Presence> batch = batches.getValue();
+        assertEquals(1, batch.size());
+        assertEquals(contact, batch.get(0).getTo());
+        assertEquals(1, broadcaster.getRemoteDomainBatchCount());
+    }
+}
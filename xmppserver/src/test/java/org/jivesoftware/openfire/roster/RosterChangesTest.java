@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.roster;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link RosterChanges}.
+ */
+public class RosterChangesTest
+{
+    /**
+     * Verifies that the contacts that changed since a version are returned once, ordered by their latest change.
+     */
+    @Test
+    public void testChangesSince() throws Exception
+    {
+        // Setup test fixture.
+        final RosterChanges changes = new RosterChanges(10);
+        changes.add(10, null);
+        changes.add(11, "john@example.org");
+        changes.add(12, "jane@example.org");
+        changes.add(13, "john@example.org");
+
+        // Execute system under test.
+        final Map<String, Long> sinceReset = changes.getChangesSince(10);
+        final Map<String, Long> sinceFirst = changes.getChangesSince(11);
+        final Map<String, Long> sinceLatest = changes.getChangesSince(13);
+
+        // Verify results.
+        assertEquals(Arrays.asList("jane@example.org", "john@example.org"), new ArrayList<>(sinceReset.keySet()));
+        assertEquals(Long.valueOf(13), sinceReset.get("john@example.org"));
+        assertEquals(2, sinceFirst.size());
+        assertTrue(sinceLatest.isEmpty());
+    }
+
+    /**
+     * Verifies that changes cannot be determined for versions that are not known, or that precede a reset.
+     */
+    @Test
+    public void testUnknownChanges() throws Exception
+    {
+        // Setup test fixture.
+        final RosterChanges changes = new RosterChanges(10);
+        changes.add(10, null);
+        changes.add(11, "john@example.org");
+        changes.add(12, null);
+        changes.add(13, "jane@example.org");
+
+        // Execute system under test & verify results.
+        assertNull(changes.getChangesSince(9));
+        assertNull(changes.getChangesSince(11));
+        assertNull(changes.getChangesSince(14));
+        assertNotNull(changes.getChangesSince(12));
+        assertNull(new RosterChanges(10).getChangesSince(0));
+    }
+
+    /**
+     * Verifies that the oldest changes are dropped when the capacity is exceeded, after which older versions can no
+     * longer be served.
+     */
+    @Test
+    public void testOldestChangesAreDropped() throws Exception
+    {
+        // Setup test fixture.
+        final RosterChanges changes = new RosterChanges(3);
+        changes.add(1, null);
+
+        // Execute system under test.
+        for (int i = 2; i <= 6; i++) {
+            changes.add(i, "contact" + i + "@example.org");
+        }
+
+        // Verify results.
+        assertEquals(3, changes.getDropped());
+        assertEquals(4, changes.getOldestVersion());
+        assertEquals(6, changes.getLatestVersion());
+        assertNull(changes.getChangesSince(3));
+        assertEquals(2, changes.getChangesSince(4).size());
+    }
+
+    /**
+     * Verifies that changes survive serialization.
+     */
+    @Test
+    public void testExternalization() throws Exception
+    {
+        // Setup test fixture.
+        final RosterChanges changes = new RosterChanges(2);
+        changes.add(1, null);
+        changes.add(2, "john@example.org");
+        changes.add(3, "jane@example.org");
+
+        // Execute system under test.
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(changes);
+        }
+        final RosterChanges result;
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            result = (RosterChanges) in.readObject();
+        }
+
+        // Verify results.
+        assertEquals(2, result.getOldestVersion());
+        assertEquals(3, result.getLatestVersion());
+        assertEquals(1, result.getDropped());
+        assertEquals(changes.getChangesSince(2), result.getChangesSince(2));
+    }
+}
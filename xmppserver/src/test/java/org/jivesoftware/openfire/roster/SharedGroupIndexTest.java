@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.roster;
+
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.openfire.group.SharedGroupVisibility;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import java.time.Duration;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests that verify the functionality of {@link SharedGroupIndex}.
+ */
+public class SharedGroupIndexTest
+{
+    private static final JID JOHN = new JID("john@example.org");
+    private static final JID JANE = new JID("jane@example.org");
+    private static final JID BOB = new JID("bob@example.org");
+    private static final JID ALICE = new JID("alice@example.org");
+
+    private final Map<String, Group> groups = new HashMap<>();
+
+    private Group group(final String name, final SharedGroupVisibility sharedWith, final List<String> sharedWithGroups, final JID... members)
+    {
+        final Group group = mock(Group.class);
+        final Set<JID> users = new HashSet<>(Arrays.asList(members));
+        when(group.getName()).thenReturn(name);
+        when(group.getSharedWith()).thenReturn(sharedWith);
+        when(group.getSharedWithUsersInGroupNames()).thenReturn(sharedWithGroups);
+        when(group.getMembers()).thenReturn(users);
+        when(group.getAdmins()).thenReturn(Collections.emptySet());
+        when(group.isUser(any(JID.class))).thenAnswer(invocation -> users.contains(invocation.getArgument(0)));
+        groups.put(name, group);
+        return group;
+    }
+
+    private SharedGroupIndex index()
+    {
+        return new SharedGroupIndex(
+            () -> {
+                final List<Group> result = new ArrayList<>();
+                for (final Group group : groups.values()) {
+                    if (group.getSharedWith() != null) {
+                        result.add(group);
+                    }
+                }
+                return result;
+            },
+            groups::get,
+            () -> Arrays.asList(JOHN, JANE, BOB, ALICE),
+            () -> Duration.ofMinutes(15));
+    }
+
+    private static Map<JID, List<Group>> sharedUsers(final SharedGroupIndex index, final JID owner, final Collection<Group> groups)
+    {
+        final Map<JID, List<Group>> result = new HashMap<>();
+        index.forEachSharedUser(owner, groups, result::put);
+        return result;
+    }
+
+    /**
+     * Verifies that groups that are shared with everybody, with their own members, and with members of other groups are
+     * visible to the users that they are shared with only.
+     */
+    @Test
+    public void testVisibleGroups() throws Exception
+    {
+        // Setup test fixture.
+        final Group everybody = group("everybody", SharedGroupVisibility.everybody, Collections.emptyList(), BOB);
+        final Group sales = group("sales", SharedGroupVisibility.usersOfGroups, Collections.singletonList("support"), JOHN);
+        group("support", null, Collections.emptyList(), JANE);
+        final SharedGroupIndex index = index();
+
+        // Execute system under test.
+        final Collection<Group> john = index.getVisibleGroups(JOHN);
+        final Collection<Group> jane = index.getVisibleGroups(JANE);
+        final Collection<Group> alice = index.getVisibleGroups(ALICE);
+
+        // Verify results.
+        assertEquals(new HashSet<>(Arrays.asList(everybody, sales)), new HashSet<>(john));
+        assertEquals(new HashSet<>(Arrays.asList(everybody, sales)), new HashSet<>(jane));
+        assertEquals(Collections.singleton(everybody), new HashSet<>(alice));
+        assertFalse(index.isGroupVisible(sales, ALICE));
+    }
+
+    /**
+     * Verifies that the users of a roster include the users of its groups, plus the users that can see a group that the
+     * owner is a member of, each with all of the groups that relate them to the roster.
+     */
+    @Test
+    public void testSharedUsers() throws Exception
+    {
+        // Setup test fixture.
+        final Group everybody = group("everybody", SharedGroupVisibility.everybody, Collections.emptyList(), BOB);
+        final Group sales = group("sales", SharedGroupVisibility.usersOfGroups, Collections.singletonList("support"), JOHN, BOB);
+        group("support", null, Collections.emptyList(), JANE);
+        final SharedGroupIndex index = index();
+
+        // Execute system under test.
+        final Map<JID, List<Group>> john = sharedUsers(index, JOHN, Arrays.asList(everybody, sales));
+        final Map<JID, List<Group>> bob = sharedUsers(index, BOB, Arrays.asList(everybody, sales));
+
+        // Verify results.
+        assertEquals(new HashSet<>(Arrays.asList(JOHN, JANE, BOB)), john.keySet());
+        assertEquals(Arrays.asList(everybody, sales), john.get(BOB));
+        assertEquals(Collections.singletonList(sales), john.get(JANE));
+        assertEquals(new HashSet<>(Arrays.asList(JOHN, JANE, BOB, ALICE)), bob.keySet());
+        assertEquals(Collections.singletonList(everybody), bob.get(ALICE));
+    }
+
+    /**
+     * Verifies that membership changes are applied to the index.
+     */
+    @Test
+    public void testMembershipEventsUpdateIndex() throws Exception
+    {
+        // Setup test fixture.
+        final Group sales = group("sales", SharedGroupVisibility.usersOfGroups, Collections.emptyList(), JOHN);
+        final SharedGroupIndex index = index();
+        assertTrue(index.getVisibleGroups(ALICE).isEmpty());
+
+        // Execute system under test.
+        sales.getMembers().add(ALICE);
+        index.memberAdded(sales, Collections.singletonMap("member", ALICE.toString()));
+        sales.getMembers().remove(JOHN);
+        index.memberRemoved(sales, Collections.singletonMap("member", JOHN.toString()));
+
+        // Verify results.
+        assertEquals(Collections.singletonList(sales), index.getVisibleGroups(ALICE));
+        assertTrue(index.getVisibleGroups(JOHN).isEmpty());
+    }
+
+    /**
+     * Verifies that a deleted group is removed from the index once the deletion has completed.
+     */
+    @Test
+    public void testDeletedGroupIsRemoved() throws Exception
+    {
+        // Setup test fixture.
+        final Group sales = group("sales", SharedGroupVisibility.everybody, Collections.emptyList(), JOHN);
+        final SharedGroupIndex index = index();
+        assertEquals(1, index.getVisibleGroups(JANE).size());
+
+        // Execute system under test.
+        index.groupDeleting(sales, Collections.emptyMap());
+        final int duringDeletion = index.getVisibleGroups(JANE).size();
+        groups.remove("sales");
+        final int afterDeletion = index.getVisibleGroups(JANE).size();
+
+        // Verify results.
+        assertEquals(1, duringDeletion);
+        assertEquals(0, afterDeletion);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.spi;
+
+import org.jivesoftware.Fixtures;
+import org.jivesoftware.openfire.SessionManager;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.archive.ArchiveManager;
+import org.jivesoftware.openfire.archive.Archiver;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.openfire.user.UserManager;
+import org.jivesoftware.util.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests that verify how {@link PresenceManagerImpl} queues offline presences to be written to the database.
+ */
+public class PresenceManagerImplTest
+{
+    private PresenceManagerImpl presenceManager;
+    private PresenceManagerImpl.OfflinePresenceArchiver archiver;
+    private User user;
+
+    /**
+     * The presences that were written to the (stubbed) database, per invocation.
+     */
+    private final List<List<PresenceManagerImpl.PendingPresence>> stored = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Fixtures.reconfigureOpenfireHome();
+        CacheFactory.initialize();
+    }
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Fixtures.clearExistingProperties();
+        Arrays.stream(CacheFactory.getAllCaches()).forEach(Map::clear);
+
+        final XMPPServer xmppServer = Fixtures.mockXMPPServer();
+        when(xmppServer.getSessionManager()).thenReturn(mock(SessionManager.class));
+        final ArchiveManager archiveManager = mock(ArchiveManager.class);
+        when(xmppServer.getArchiveManager()).thenReturn(archiveManager);
+        XMPPServer.setInstance(xmppServer);
+
+        // Use the stub user provider, that is populated with the user that goes offline.
+        UserManager.setProvider(new Fixtures.StubUserProvider());
+        final UserManager userManager = UserManager.getInstance();
+        userManager.createUser("john", "secret", "John Doe", "john@example.org");
+        when(xmppServer.getUserManager()).thenReturn(userManager);
+
+        presenceManager = spy(new PresenceManagerImpl());
+        doAnswer(invocation -> {
+            stored.add(new ArrayList<>(invocation.getArgument(0)));
+            return null;
+        }).when(presenceManager).store(anyList());
+        presenceManager.initialize(xmppServer);
+        presenceManager.start();
+
+        // The archiver is not running: its batches are processed by the tests.
+        final ArgumentCaptor<Archiver> captor = ArgumentCaptor.forClass(Archiver.class);
+        verify(archiveManager).add(captor.capture());
+        archiver = (PresenceManagerImpl.OfflinePresenceArchiver) captor.getValue();
+
+        user = mock(User.class);
+        when(user.getUsername()).thenReturn("john");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        presenceManager.stop();
+    }
+
+    private static Presence unavailable(final String status)
+    {
+        final Presence presence = new Presence(Presence.Type.unavailable);
+        presence.setFrom(new JID("john", Fixtures.XMPP_DOMAIN, "desktop"));
+        presence.setStatus(status);
+        return presence;
+    }
+
+    /**
+     * Verifies that a user that goes offline repeatedly before the archiver runs is written once, with the latest
+     * state.
+     */
+    @Test
+    public void testQueuedPresencesAreCoalesced() throws Exception
+    {
+        // Setup test fixture.
+        presenceManager.userUnavailable(unavailable("first"));
+        presenceManager.userUnavailable(unavailable("second"));
+
+        // Execute system under test.
+        archiver.store(Arrays.asList("john", "john"));
+
+        // Verify results.
+        assertEquals(1, stored.size());
+        assertEquals(1, stored.get(0).size());
+        assertEquals("john", stored.get(0).get(0).username);
+        assertTrue(stored.get(0).get(0).offlinePresence.contains("second"));
+    }
+
+    /**
+     * Verifies that a queued presence is used when the caches no longer hold the state of the user, instead of the
+     * (outdated) state in the database.
+     */
+    @Test
+    public void testQueuedPresenceIsUsedOnCacheMiss() throws Exception
+    {
+        // Setup test fixture.
+        presenceManager.userUnavailable(unavailable("queued"));
+        Arrays.stream(CacheFactory.getAllCaches()).forEach(Map::clear);
+
+        // Execute system under test.
+        final String result = presenceManager.getLastPresenceStatus(user);
+
+        // Verify results.
+        assertEquals("queued", result);
+        assertTrue(presenceManager.getLastActivity(user) >= 0);
+        assertTrue(stored.isEmpty());
+    }
+
+    /**
+     * Verifies that presences that are still queued are written when the manager is stopped.
+     */
+    @Test
+    public void testQueuedPresencesAreWrittenOnStop() throws Exception
+    {
+        // Setup test fixture.
+        presenceManager.userUnavailable(unavailable("last"));
+        presenceManager.userDeleting(mockUser("jane"), Collections.emptyMap());
+
+        // Execute system under test.
+        presenceManager.stop();
+
+        // Verify results.
+        assertEquals(1, stored.size());
+        assertEquals(2, stored.get(0).size());
+        final PresenceManagerImpl.PendingPresence john = stored.get(0).stream().filter(p -> p.username.equals("john")).findFirst().orElse(null);
+        final PresenceManagerImpl.PendingPresence jane = stored.get(0).stream().filter(p -> p.username.equals("jane")).findFirst().orElse(null);
+        assertNotNull(john);
+        assertTrue(john.offlinePresence.contains("last"));
+        assertNotNull(jane);
+        assertNull(jane.offlineDate);
+
+        // Nothing is left for the archiver.
+        archiver.store(Arrays.asList("john", "jane"));
+        assertTrue(stored.get(stored.size() - 1).isEmpty());
+    }
+
+    private static User mockUser(final String username)
+    {
+        final User result = mock(User.class);
+        when(result.getUsername()).thenReturn(username);
+        return result;
+    }
+}
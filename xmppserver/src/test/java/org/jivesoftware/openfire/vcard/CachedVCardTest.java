@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2022 Ignite Realtime Foundation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.vcard;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.util.Base64;
+import org.jivesoftware.util.StringUtils;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests that verify the functionality of {@link CachedVCard}.
+ */
+public class CachedVCardTest
+{
+    private static final byte[] PHOTO = "not really an image".getBytes(StandardCharsets.UTF_8);
+
+    private static Element vCard(final boolean withPhoto) throws Exception
+    {
+        final String photo = withPhoto ? "<PHOTO><TYPE>image/png</TYPE><BINVAL>" + Base64.encodeBytes(PHOTO) + "</BINVAL></PHOTO>" : "";
+        return DocumentHelper.parseText("<vCard xmlns='vcard-temp'><FN>John Doe</FN>" + photo + "<NICKNAME>john</NICKNAME></vCard>").getRootElement();
+    }
+
+    /**
+     * Verifies that the element that is created from a cached vCard equals the original, including the photo.
+     */
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        // Setup test fixture.
+        final Element original = vCard(true);
+
+        // Execute system under test.
+        final CachedVCard cached = new CachedVCard(original);
+        final Element result = cached.toElement();
+
+        // Verify results.
+        assertEquals(original.asXML(), result.asXML());
+        assertNull(result.getParent());
+        assertEquals(Base64.encodeBytes(PHOTO), original.element("PHOTO").elementText("BINVAL"));
+    }
+
+    /**
+     * Verifies that the hash of the photo is the hex-encoded SHA-1 hash of the decoded photo, and is absent for a vCard
+     * without a photo.
+     */
+    @Test
+    public void testPhotoHash() throws Exception
+    {
+        // Execute system under test.
+        final CachedVCard withPhoto = new CachedVCard(vCard(true));
+        final CachedVCard withoutPhoto = new CachedVCard(vCard(false));
+
+        // Verify results.
+        assertEquals(StringUtils.hash(PHOTO, "SHA-1"), withPhoto.getPhotoHash());
+        assertNull(withoutPhoto.getPhotoHash());
+        assertEquals(vCard(false).asXML(), withoutPhoto.toElement().asXML());
+    }
+
+    /**
+     * Verifies that cached vCards survive serialization, and are equal when their content is.
+     */
+    @Test
+    public void testExternalization() throws Exception
+    {
+        // Setup test fixture.
+        final CachedVCard cached = new CachedVCard(vCard(true));
+
+        // Execute system under test.
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(cached);
+        }
+        final CachedVCard result;
+        try (final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            result = (CachedVCard) in.readObject();
+        }
+
+        // Verify results.
+        assertEquals(cached, result);
+        assertEquals(cached.getPhotoHash(), result.getPhotoHash());
+        assertNotEquals(cached, new CachedVCard(vCard(false)));
+    }
+}